@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.app;
+
+import java.io.File;
+
+import org.openstreetmap.gui.jmapviewer.Coordinate;
+import org.openstreetmap.gui.jmapviewer.tiles.OsmFileCacheTileLoader;
+import org.openstreetmap.gui.jmapviewer.tiles.Tile;
+import org.openstreetmap.gui.jmapviewer.tiles.TileLoaderListener;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+
+/**
+ * Exports cached tiles to a tile archive, or imports a tile archive into the
+ * cache, without showing the application, so that the cache warmed on one
+ * computer can be copied to others. Run as <code>GeoDesk export</code> or
+ * <code>GeoDesk import</code> followed by the arguments described by the
+ * app.archive.usage message.
+ */
+public final class ArchiveCommand
+{
+    private static final int ARG_COMMAND = 0;
+    private static final int ARG_SOURCE = 1;
+    private static final int ARG_ARCHIVE = 2;
+    private static final int ARG_MIN_ZOOM = 3;
+    private static final int ARG_MAX_ZOOM = 4;
+    private static final int ARG_NORTH = 5;
+    private static final int ARG_WEST = 6;
+    private static final int ARG_SOUTH = 7;
+    private static final int ARG_EAST = 8;
+    private static final int IMPORT_ARGUMENTS = 3;
+    private static final int EXPORT_ARGUMENTS = 5;
+    private static final int EXPORT_AREA_ARGUMENTS = 9;
+
+    private ArchiveCommand()
+    {}
+
+    /**
+     * Exports or imports tiles.
+     * @param pArguments "export" or "import", the tile source, the archive file,
+     *     and for an export the zoom levels and optionally the area, followed by
+     *     the cache directory option.
+     * @throws Exception If the cache or the archive cannot be accessed.
+     */
+    public static void main(String[] pArguments) throws Exception
+    {
+        String[] arguments = pArguments;
+        File cache = null;
+        if(arguments.length > 2 && arguments[arguments.length - 2].equals("-cache"))
+        {
+            cache = new File(arguments[arguments.length - 1]);
+            String[] rest = new String[arguments.length - 2];
+            System.arraycopy(arguments, 0, rest, 0, rest.length);
+            arguments = rest;
+        }
+        boolean export = arguments.length > 0 && arguments[ARG_COMMAND].equals("export");
+        boolean valid = export ? arguments.length == EXPORT_ARGUMENTS || arguments.length == EXPORT_AREA_ARGUMENTS
+                : arguments.length == IMPORT_ARGUMENTS && arguments[ARG_COMMAND].equals("import");
+        TileSource source = valid ? SeedCommand.getTileSource(arguments[ARG_SOURCE]) : null;
+        if(source == null)
+        {
+            System.err.println(GeoDesk.MESSAGES.getString("app.archive.usage"));
+            return;
+        }
+        TileLoaderListener listener = new TileLoaderListener()
+        {
+            @Override
+            public void tileLoadingFinished(Tile pTile, boolean pSuccess)
+            {}
+        };
+        OsmFileCacheTileLoader loader = cache == null ? new OsmFileCacheTileLoader(listener)
+                : new OsmFileCacheTileLoader(listener, cache);
+        File archive = new File(arguments[ARG_ARCHIVE]);
+        long start = System.currentTimeMillis();
+        int tiles;
+        if(export)
+        {
+            Coordinate northWest = null;
+            Coordinate southEast = null;
+            if(arguments.length == EXPORT_AREA_ARGUMENTS)
+            {
+                northWest = new Coordinate(Double.parseDouble(arguments[ARG_NORTH]), Double.parseDouble(arguments[ARG_WEST]));
+                southEast = new Coordinate(Double.parseDouble(arguments[ARG_SOUTH]), Double.parseDouble(arguments[ARG_EAST]));
+            }
+            tiles = loader.exportArchive(source, northWest, southEast, Integer.parseInt(arguments[ARG_MIN_ZOOM]),
+                    Integer.parseInt(arguments[ARG_MAX_ZOOM]), archive);
+        }
+        else
+        {
+            tiles = loader.importArchive(source, archive);
+        }
+        System.out.println(tiles + " " + GeoDesk.MESSAGES.getString("app.archive.done") + " "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -27,6 +27,7 @@ import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ResourceBundle;
 
@@ -417,12 +418,25 @@ public class GeoDesk extends JFrame implements JMapViewerEventListener
 	}
 
     /**
-     * Launch the application.
-     * @param pArguments Not used.
+     * Launch the application, or seed, export or import the tile cache
+     * without showing the application if the first argument is "seed",
+     * "export" or "import".
+     * @param pArguments Not used, except for the tile cache commands,
+     *     see {@link SeedCommand} and {@link ArchiveCommand}.
      * @throws Exception Anything
      */
     public static void main(String[] pArguments) throws Exception
     {
+        if(pArguments.length > 0 && pArguments[0].equals("seed"))
+        {
+            SeedCommand.main(Arrays.copyOfRange(pArguments, 1, pArguments.length));
+            return;
+        }
+        if(pArguments.length > 0 && (pArguments[0].equals("export") || pArguments[0].equals("import")))
+        {
+            ArchiveCommand.main(pArguments);
+            return;
+        }
         UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         SettingManager.getInstance().initialize();
         new GeoDesk();
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.app;
+
+import java.io.File;
+
+import org.openstreetmap.gui.jmapviewer.Coordinate;
+import org.openstreetmap.gui.jmapviewer.tiles.OsmFileCacheTileLoader;
+import org.openstreetmap.gui.jmapviewer.tiles.Tile;
+import org.openstreetmap.gui.jmapviewer.tiles.TileLoaderListener;
+import org.openstreetmap.gui.jmapviewer.tiles.TileSeeder;
+import org.openstreetmap.gui.jmapviewer.tilesources.BingAerialTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.CycleOsmTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.MapnikOsmTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+
+/**
+ * Downloads the tiles of an area into the file cache without showing the
+ * application, so that the area can be viewed where there is no network.
+ * Run as <code>GeoDesk seed</code> followed by the arguments described by
+ * the app.seed.usage message. Interrupting the command saves its progress,
+ * and running it again with the same arguments resumes it.
+ */
+public final class SeedCommand
+{
+    private static final String CHECKPOINT_FILE = "seeding.properties";
+    private static final int NUMBER_OF_ARGUMENTS = 7;
+    private static final int ARG_NORTH = 1;
+    private static final int ARG_WEST = 2;
+    private static final int ARG_SOUTH = 3;
+    private static final int ARG_EAST = 4;
+    private static final int ARG_MIN_ZOOM = 5;
+    private static final int ARG_MAX_ZOOM = 6;
+    // The latitudes beyond which the map has no tiles, rounded down
+    private static final double MAX_LATITUDE = 85.0511;
+    // Tiles per second, well within the usage policies of the public tile servers
+    private static final double DEFAULT_RATE = 2;
+
+    private SeedCommand()
+    {}
+
+    /**
+     * Seeds the file cache.
+     * @param pArguments The tile source, the area, the zoom levels and the options.
+     * @throws Exception If the cache cannot be accessed.
+     */
+    public static void main(String[] pArguments) throws Exception
+    {
+        if(pArguments.length < NUMBER_OF_ARGUMENTS || (pArguments.length - NUMBER_OF_ARGUMENTS) % 2 != 0)
+        {
+            usage();
+            return;
+        }
+        TileSource source = getTileSource(pArguments[0]);
+        if(source == null)
+        {
+            usage();
+            return;
+        }
+        int threads = TileSeeder.DEFAULT_CONCURRENCY;
+        double rate = DEFAULT_RATE;
+        File cache = null;
+        Coordinate northWest;
+        Coordinate southEast;
+        int minZoom;
+        int maxZoom;
+        try
+        {
+            for(int i = NUMBER_OF_ARGUMENTS; i < pArguments.length; i += 2)
+            {
+                if(pArguments[i].equals("-threads"))
+                {
+                    threads = Integer.parseInt(pArguments[i + 1]);
+                }
+                else if(pArguments[i].equals("-rate"))
+                {
+                    rate = Double.parseDouble(pArguments[i + 1]);
+                }
+                else if(pArguments[i].equals("-cache"))
+                {
+                    cache = new File(pArguments[i + 1]);
+                }
+                else
+                {
+                    usage();
+                    return;
+                }
+            }
+            northWest = new Coordinate(Double.parseDouble(pArguments[ARG_NORTH]), Double.parseDouble(pArguments[ARG_WEST]));
+            southEast = new Coordinate(Double.parseDouble(pArguments[ARG_SOUTH]), Double.parseDouble(pArguments[ARG_EAST]));
+            minZoom = Integer.parseInt(pArguments[ARG_MIN_ZOOM]);
+            maxZoom = Integer.parseInt(pArguments[ARG_MAX_ZOOM]);
+        }
+        catch(NumberFormatException e)
+        {
+            usage();
+            return;
+        }
+        if(!isValidArea(northWest, southEast) || threads < 1 || rate < 0 || minZoom < source.getMinZoom()
+                || maxZoom > source.getMaxZoom() || minZoom > maxZoom)
+        {
+            usage();
+            return;
+        }
+        TileLoaderListener listener = new TileLoaderListener()
+        {
+            @Override
+            public void tileLoadingFinished(Tile pTile, boolean pSuccess)
+            {}
+        };
+        OsmFileCacheTileLoader loader = cache == null ? new OsmFileCacheTileLoader(listener)
+                : new OsmFileCacheTileLoader(listener, cache);
+        final TileSeeder seeder = new TileSeeder(loader, source);
+        seeder.setConcurrency(threads);
+        seeder.setRate(rate);
+        seeder.setCheckpointFile(new File(loader.getCacheDirectory(), CHECKPOINT_FILE));
+        seeder.setProgressListener(new TileSeeder.ProgressListener()
+        {
+            @Override
+            public void progress(TileSeeder.Progress pProgress)
+            {
+                System.out.println(pProgress);
+            }
+        });
+        final Thread main = Thread.currentThread();
+        Thread hook = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                seeder.cancel();
+                try
+                {
+                    main.join();
+                }
+                catch(InterruptedException e)
+                {
+                    return;
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(hook);
+        System.out.println(GeoDesk.MESSAGES.getString("app.seed.start") + " " + loader.getCacheDirectory());
+        TileSeeder.Progress progress = seeder.seed(northWest, southEast, minZoom, maxZoom);
+        if(progress.getDone() < progress.getTotal())
+        {
+            System.out.println(GeoDesk.MESSAGES.getString("app.seed.cancelled"));
+        }
+        else
+        {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        }
+    }
+
+    /*
+     * Returns true if the corners are in order and within the latitudes of the map.
+     */
+    static boolean isValidArea(Coordinate pNorthWest, Coordinate pSouthEast)
+    {
+        return pNorthWest.getLatitude() >= pSouthEast.getLatitude() && pNorthWest.getLongitude() <= pSouthEast.getLongitude()
+                && Math.abs(pNorthWest.getLatitude()) <= MAX_LATITUDE && Math.abs(pSouthEast.getLatitude()) <= MAX_LATITUDE
+                && Math.abs(pNorthWest.getLongitude()) <= 180 && Math.abs(pSouthEast.getLongitude()) <= 180;
+    }
+
+    /*
+     * Returns the tile source named on the command line, or null.
+     */
+    static TileSource getTileSource(String pName)
+    {
+        if(pName.equalsIgnoreCase("mapnik"))
+        {
+            return new MapnikOsmTileSource();
+        }
+        else if(pName.equalsIgnoreCase("cycle"))
+        {
+            return new CycleOsmTileSource();
+        }
+        else if(pName.equalsIgnoreCase("bing"))
+        {
+            return new BingAerialTileSource();
+        }
+        return null;
+    }
+
+    private static void usage()
+    {
+        System.err.println(GeoDesk.MESSAGES.getString("app.seed.usage"));
+    }
+}
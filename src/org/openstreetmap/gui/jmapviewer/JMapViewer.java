@@ -27,6 +27,7 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Insets;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.ArrayList;
@@ -44,8 +45,10 @@ import javax.swing.event.EventListenerList;
 import static org.openstreetmap.gui.app.GeoDesk.MESSAGES;
 
 import org.openstreetmap.gui.jmapviewer.JMVCommandEvent.CommandType;
+import org.openstreetmap.gui.jmapviewer.tiles.ConcurrentTileCache;
 import org.openstreetmap.gui.jmapviewer.tiles.JobDispatcher;
-import org.openstreetmap.gui.jmapviewer.tiles.MemoryTileCache;
+import org.openstreetmap.gui.jmapviewer.tiles.LruEvictionPolicy;
+import org.openstreetmap.gui.jmapviewer.tiles.PyramidEvictionPolicy;
 import org.openstreetmap.gui.jmapviewer.tiles.Tile;
 import org.openstreetmap.gui.jmapviewer.tiles.TileCache;
 import org.openstreetmap.gui.jmapviewer.tiles.TileController;
@@ -109,18 +112,21 @@ public class JMapViewer extends JPanel implements TileLoaderListener
     /**
      * Creates a standard {@link JMapViewer} instance that can be controlled via
      * mouse: hold right mouse button for moving, double click left mouse button
-     * or use mouse wheel for zooming. Loaded tiles are stored the
-     * {@link MemoryTileCache} and the tile loader uses 4 parallel threads for
-     * retrieving the tiles.
+     * or use mouse wheel for zooming. Loaded tiles are stored in a
+     * {@link ConcurrentTileCache} that protects the parent tiles used as
+     * placeholders when zooming, and the tile loader uses 4 parallel threads
+     * for retrieving the tiles.
      */
     public JMapViewer() 
     {
-        this(new MemoryTileCache(), 4);
+        this(new ConcurrentTileCache(ConcurrentTileCache.DEFAULT_MAXIMUM_BYTES,
+                new PyramidEvictionPolicy(new LruEvictionPolicy())), 4);
         new JMapController(this);
     }
 
     /**
      * Create a new JMapViewer with a specified tile cache and thread count.
+     * The statistics of a {@link ConcurrentTileCache} are published over JMX.
      * @param pTileCache The tile cache object.
      * @param pDownloadThreadCount The number of threads to use for download.
      */
@@ -129,6 +135,10 @@ public class JMapViewer extends JPanel implements TileLoaderListener
         super();
         aTileSource = new MapnikOsmTileSource();
         aTileController = new TileController(aTileSource, pTileCache, this);
+        if(pTileCache instanceof ConcurrentTileCache)
+        {
+            ((ConcurrentTileCache) pTileCache).getStatistics().register("memory");
+        }
         aMapMarkerList = new LinkedList<MapMarker>();
         aMapMarkersVisible = true;
         aMapLegendVisible = true;
@@ -589,6 +599,19 @@ public class JMapViewer extends JPanel implements TileLoaderListener
         int xMax = getWidth();
         int yMax = getHeight();
 
+        // load the tiles in view first, starting from the cursor if it is over the map
+        int minTileX = Math.floorDiv(aCenter.x - w2, tilesize);
+        int minTileY = Math.floorDiv(aCenter.y - h2, tilesize);
+        int maxTileX = Math.floorDiv(aCenter.x + w2, tilesize);
+        int maxTileY = Math.floorDiv(aCenter.y + h2, tilesize);
+        Point focus = getMousePosition();
+        if(focus == null)
+        {
+            focus = new Point(w2, h2);
+        }
+        aTileController.setViewport(aZoomLevel, new Rectangle(minTileX, minTileY, maxTileX - minTileX + 1, maxTileY - minTileY + 1),
+                (aCenter.x - w2 + focus.x) / (double) tilesize, (aCenter.y - h2 + focus.y) / (double) tilesize);
+
         // paint the tiles in a spiral, starting from center of the map
         boolean painted = true;
         int x = 0;
@@ -626,6 +649,8 @@ public class JMapViewer extends JPanel implements TileLoaderListener
                 iMove = (iMove + 1) % MOVE.length;
             }
         }
+        aTileController.cancelJobsOutside(aZoomLevel, minTileX, minTileY, maxTileX, maxTileY);
+
         // outer border of the map
         int mapSize = tilesize << aZoomLevel;
         pGraphics.drawRect(w2 - aCenter.x, h2 - aCenter.y, mapSize, mapSize);
@@ -751,7 +776,7 @@ public class JMapViewer extends JPanel implements TileLoaderListener
             return;
         }
         Coordinate zoomPos = getPosition(pNewCenter);
-        JobDispatcher.getInstance().cancelOutstandingJobs();
+        aTileController.cancelOutstandingJobs();
         // requests
         setDisplayPositionByLatLon(pNewCenter, zoomPos.getLatitude(), zoomPos.getLongitude(), pNewZoomLevel);
         fireJMVEvent(new JMVCommandEvent(CommandType.ZOOM, this));
@@ -852,6 +877,17 @@ public class JMapViewer extends JPanel implements TileLoaderListener
         return aZoomSlider.isVisible();
     }
 
+    /**
+     * Makes the tiles of this map viewer load through another dispatcher than
+     * the shared one, for example so that its threads serve this map only.
+     * @param pDispatcher The dispatcher.
+     */
+    public void setJobDispatcher(JobDispatcher pDispatcher)
+    {
+        aTileController.setJobDispatcher(pDispatcher);
+        repaint();
+    }
+
     /**
      * Sets the tile source for this map viewer.
      * @param pTileSource The tile source.
@@ -870,7 +906,7 @@ public class JMapViewer extends JPanel implements TileLoaderListener
         aTileController.setTileSource(pTileSource);
         aZoomSlider.setMinimum(pTileSource.getMinZoom());
         aZoomSlider.setMaximum(pTileSource.getMaxZoom());
-        JobDispatcher.getInstance().cancelOutstandingJobs();
+        aTileController.cancelOutstandingJobs();
         if (aZoomLevel > pTileSource.getMaxZoom()) 
         {
             setZoom(pTileSource.getMaxZoom());
@@ -38,8 +38,14 @@ public final class OsmMercator
 	private static final double FULL_CIRCLE_IN_DEGREES_D = 360d;
 	private static final double HALF_CIRCLE_IN_DEGREES_D = 180d;
 	private static final int TILE_SIZE = 256;
-	private static final double MAX_LAT = 85.05112877980659;
-	private static final double MIN_LAT = -85.05112877980659;
+	/**
+	 * The northernmost latitude that can be projected.
+	 */
+	public static final double MAX_LAT = 85.05112877980659;
+	/**
+	 * The southernmost latitude that can be projected.
+	 */
+	public static final double MIN_LAT = -85.05112877980659;
 	private static final double EARTH_RADIUS = 6371000; // An approximation
 
     private OsmMercator()
@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.awt.image.BufferedImage;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+
+/**
+ * {@link TileCache} implementation that keeps {@link Tile} objects in memory
+ * up to a budget expressed in bytes of decoded pixels rather than in number
+ * of tiles. If the budget is exceeded, tiles are deleted in the order chosen by a
+ * {@link TileEvictionPolicy}, by default the least recently used ones first.
+ *
+ * Lookups never block and do not allocate: the entries are held in a map
+ * keyed by the packed {@link TileKey} of the tiles, and the eviction policy
+ * is only informed of the access if the eviction lock can be obtained
+ * immediately. This way the painting thread does not wait on loader threads
+ * adding tiles, at the cost of a slightly approximate eviction order under
+ * contention.
+ *
+ * Identical tiles can share their decoded image, see {@link SharedTileImages}.
+ * The pixels of a shared image are charged once, to the first tile cached
+ * with it, and the charge passes to another tile holding the image when
+ * that tile leaves the cache.
+ *
+ * The hits, misses and evictions are counted in {@link TileCacheStatistics}
+ * that can be published over JMX.
+ */
+public class ConcurrentTileCache implements TileCache
+{
+    /**
+     * The default memory budget, in bytes.
+     */
+    public static final long DEFAULT_MAXIMUM_BYTES = 128L * 1024 * 1024;
+
+    // Approximate cost of a tile object and its bookkeeping, excluding pixels.
+    private static final long ENTRY_OVERHEAD = 256;
+
+    // Assumed bytes per pixel for tiles whose image is not yet loaded.
+    private static final int ESTIMATED_BYTES_PER_PIXEL = 4;
+
+    private final long aMaximumBytes;
+    private final TileEvictionPolicy aPolicy;
+    private final LongHashMap<CacheEntry> aEntries = new LongHashMap<CacheEntry>();
+    private final TileCacheStatistics aStatistics = new TileCacheStatistics();
+
+    // Guards the modifications of the entries, the policy and the total weight.
+    private final ReentrantLock aEvictionLock = new ReentrantLock();
+    private long aResidentBytes = 0;
+    // The entries holding each decoded image, the first of which is charged for its pixels
+    private final Map<BufferedImage, Set<CacheEntry>> aImageHolders = new IdentityHashMap<BufferedImage, Set<CacheEntry>>();
+
+    /**
+     * Constructs a new in-memory cache with the default budget.
+     */
+    public ConcurrentTileCache()
+    {
+        this(DEFAULT_MAXIMUM_BYTES);
+    }
+
+    /**
+     * Constructs a new in-memory cache that evicts the
+     * least recently used tiles first.
+     *
+     * @param pMaximumBytes The maximum number of bytes of tile images
+     *        to keep in memory. Must be positive.
+     */
+    public ConcurrentTileCache(long pMaximumBytes)
+    {
+        this(pMaximumBytes, new LruEvictionPolicy());
+    }
+
+    /**
+     * Constructs a new in-memory cache.
+     *
+     * @param pMaximumBytes The maximum number of bytes of tile images
+     *        to keep in memory. Must be positive.
+     * @param pPolicy The eviction policy. Must not be used by any other cache.
+     */
+    public ConcurrentTileCache(long pMaximumBytes, TileEvictionPolicy pPolicy)
+    {
+        if(pMaximumBytes <= 0)
+        {
+            throw new IllegalArgumentException("The cache budget must be positive");
+        }
+        aMaximumBytes = pMaximumBytes;
+        aPolicy = pPolicy;
+        aPolicy.setMaximumWeight(pMaximumBytes);
+    }
+
+    /*
+     * Unlike the MemoryTileCache, accesses to tiles that are still loading are
+     * also recorded: these tiles are on screen and must not be evicted before
+     * their image arrives. If a loader thread currently holds the lock the
+     * access is simply not recorded.
+     */
+    @Override
+    public Tile getTile(TileSource pTileSource, int pTileX, int pTileY, int pZoomLevel)
+    {
+        long start = System.nanoTime();
+        CacheEntry entry = aEntries.get(TileKey.pack(pTileSource, pTileX, pTileY, pZoomLevel));
+        if(entry == null)
+        {
+            aStatistics.recordMiss(System.nanoTime() - start);
+            return null;
+        }
+        if(aEvictionLock.tryLock())
+        {
+            try
+            {
+                if(entry.aResident)
+                {
+                    reweigh(entry);
+                    aPolicy.recordAccess(entry.aTile.getPackedKey());
+                    evict();
+                }
+            }
+            finally
+            {
+                aEvictionLock.unlock();
+            }
+        }
+        aStatistics.recordHit(System.nanoTime() - start);
+        return entry.aTile;
+    }
+
+    @Override
+    public void addTile(Tile pTile)
+    {
+        CacheEntry entry = new CacheEntry(pTile);
+        long key = pTile.getPackedKey();
+        aEvictionLock.lock();
+        try
+        {
+            CacheEntry old = aEntries.put(key, entry);
+            if(old != null)
+            {
+                old.aResident = false;
+                aResidentBytes -= old.aWeight;
+                aPolicy.recordRemoval(key);
+                aStatistics.recordRemoval(pTile.getZoom(), old.aWeight);
+                release(old);
+            }
+            hold(entry, pTile.getDecodedImage());
+            entry.aWeight = weigh(entry);
+            entry.aResident = true;
+            aResidentBytes += entry.aWeight;
+            aStatistics.recordInsertion(pTile.getZoom(), entry.aWeight);
+            aPolicy.recordInsertion(key, entry.aWeight);
+            evict();
+        }
+        finally
+        {
+            aEvictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return The maximum number of bytes this cache holds on to.
+     */
+    public long getMaximumBytes()
+    {
+        return aMaximumBytes;
+    }
+
+    /**
+     * @return The number of bytes currently accounted for by the cached tiles.
+     */
+    public long getResidentBytes()
+    {
+        aEvictionLock.lock();
+        try
+        {
+            return aResidentBytes;
+        }
+        finally
+        {
+            aEvictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of tiles currently in the cache.
+     */
+    public int getTileCount()
+    {
+        return aEntries.size();
+    }
+
+    /**
+     * @return The statistics of this cache.
+     */
+    public TileCacheStatistics getStatistics()
+    {
+        return aStatistics;
+    }
+
+    /*
+     * The weight of a tile whose image is still loading is estimated from the
+     * tile size, so that a burst of requests cannot overshoot the budget once
+     * the images arrive. Only the entry charged for a shared image counts its pixels.
+     */
+    private long weigh(CacheEntry pEntry)
+    {
+        Tile tile = pEntry.aTile;
+        long bytes = 0;
+        if(pEntry.aImage != null && aImageHolders.get(pEntry.aImage).iterator().next() == pEntry)
+        {
+            bytes = Tile.getDecodedSize(pEntry.aImage);
+        }
+        if(!tile.isLoaded())
+        {
+            int tileSize = tile.getSource().getTileSize();
+            bytes = Math.max(bytes, (long) tileSize * tileSize * ESTIMATED_BYTES_PER_PIXEL);
+        }
+        return bytes + ENTRY_OVERHEAD;
+    }
+
+    /*
+     * Records that an entry holds an image, which may be null.
+     */
+    private void hold(CacheEntry pEntry, BufferedImage pImage)
+    {
+        if(pImage == null)
+        {
+            return;
+        }
+        Set<CacheEntry> holders = aImageHolders.get(pImage);
+        if(holders == null)
+        {
+            holders = new LinkedHashSet<CacheEntry>();
+            aImageHolders.put(pImage, holders);
+        }
+        holders.add(pEntry);
+        pEntry.aImage = pImage;
+    }
+
+    /*
+     * Records that an entry no longer holds its image. If the entry was
+     * charged for the image, the next entry holding it is charged instead.
+     */
+    private void release(CacheEntry pEntry)
+    {
+        BufferedImage image = pEntry.aImage;
+        if(image == null)
+        {
+            return;
+        }
+        pEntry.aImage = null;
+        Set<CacheEntry> holders = aImageHolders.get(image);
+        boolean charged = holders.iterator().next() == pEntry;
+        holders.remove(pEntry);
+        if(holders.isEmpty())
+        {
+            aImageHolders.remove(image);
+        }
+        else if(charged)
+        {
+            reweigh(holders.iterator().next());
+        }
+    }
+
+    private void reweigh(CacheEntry pEntry)
+    {
+        BufferedImage image = pEntry.aTile.getDecodedImage();
+        if(image != pEntry.aImage)
+        {
+            release(pEntry);
+            hold(pEntry, image);
+        }
+        long weight = weigh(pEntry);
+        if(weight != pEntry.aWeight)
+        {
+            aResidentBytes += weight - pEntry.aWeight;
+            aStatistics.recordResize(weight - pEntry.aWeight);
+            pEntry.aWeight = weight;
+            aPolicy.recordWeightChange(pEntry.aTile.getPackedKey(), weight);
+        }
+    }
+
+    /*
+     * Removes the victims chosen by the policy until the budget is met,
+     * always keeping at least one tile.
+     */
+    private void evict()
+    {
+        while(aResidentBytes > aMaximumBytes && aEntries.size() > 1)
+        {
+            long key = aPolicy.selectVictim();
+            CacheEntry victim = aEntries.remove(key);
+            aPolicy.recordRemoval(key);
+            victim.aResident = false;
+            aResidentBytes -= victim.aWeight;
+            aStatistics.recordEviction(victim.aTile.getZoom(), victim.aWeight);
+            release(victim);
+        }
+    }
+
+    /**
+     * A cached tile, its weight and the decoded image it holds. All fields
+     * except the tile are guarded by the eviction lock.
+     */
+    private static final class CacheEntry
+    {
+        private final Tile aTile;
+        private long aWeight;
+        private boolean aResident = false;
+        // The image of the tile in the holders of images, or null
+        private BufferedImage aImage;
+
+        private CacheEntry(Tile pTile)
+        {
+            aTile = pTile;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * A {@link TileLoader} that downloads tiles with the asynchronous
+ * {@link HttpClient} of the platform, instead of opening a new connection
+ * for each tile as the {@link OsmTileLoader} does. The client keeps the
+ * connections to each host alive from one tile to the next, and multiplexes
+ * the requests over a single HTTP/2 connection when the server supports it.
+ *
+ * A job only sends the request for its tile: the threads of the
+ * {@link JobDispatcher} are not held while the tile downloads, and the tile
+ * is decoded by a thread of the client once the response has arrived.
+ * A tile already being fetched by any loader sharing the same
+ * {@link TileFetchRegistry} is not requested again.
+ * The requests go through a {@link TileRequestLimiter}, keyed by tile source
+ * and host, so that requests over the limits wait without holding a thread.
+ */
+public class HttpTileLoader extends OsmTileLoader
+{
+    private static final Logger LOGGER = Logger.getLogger(HttpTileLoader.class.getName());
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_NOT_FOUND = 404;
+
+    private final HttpClient aClient;
+
+    /**
+     * Creates a loader with its own client.
+     *
+     * @param pListener The listener for this loader.
+     */
+    public HttpTileLoader(TileLoaderListener pListener)
+    {
+        this(pListener, createClient());
+    }
+
+    /**
+     * Creates a loader that sends its requests with a given client,
+     * for example to share the connections of several loaders.
+     *
+     * @param pListener The listener for this loader.
+     * @param pClient The client sending the requests.
+     */
+    public HttpTileLoader(TileLoaderListener pListener, HttpClient pClient)
+    {
+        super(pListener);
+        aClient = pClient;
+    }
+
+    /**
+     * @return A client that prefers HTTP/2 and follows redirections.
+     */
+    public static HttpClient createClient()
+    {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .build();
+    }
+
+    /**
+     * @return The client sending the requests of this loader.
+     */
+    public HttpClient getClient()
+    {
+        return aClient;
+    }
+
+    @Override
+    public TileJob createTileLoaderJob(Tile pTile)
+    {
+        return new HttpLoadJob(pTile);
+    }
+
+    /**
+     * Creates the request for a tile, with the headers of this loader.
+     *
+     * @param pTile The tile.
+     * @return A builder for the GET request of pTile.
+     * @throws IOException If the URL of the tile cannot be obtained.
+     */
+    protected HttpRequest.Builder newRequest(Tile pTile) throws IOException
+    {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(pTile.getUrl())).timeout(REQUEST_TIMEOUT).GET();
+        for(Entry<String, String> header : getRequestHeaders().entrySet())
+        {
+            try
+            {
+                builder.header(header.getKey(), header.getValue());
+            }
+            catch(IllegalArgumentException e)
+            {
+                // Headers such as Connection are managed by the client
+                LOGGER.fine("Ignoring header " + header.getKey() + ": " + e.getMessage());
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Sends a request without waiting for the response, once the limiter allows it.
+     * Cancelling the response withdraws the request from the limiter if it is
+     * still waiting, otherwise it aborts the exchange.
+     *
+     * @param pTile The tile requested.
+     * @param pRequest The request.
+     * @return The response, completed by a thread of the client.
+     */
+    protected CompletableFuture<HttpResponse<byte[]>> send(Tile pTile, final HttpRequest pRequest)
+    {
+        final TileRequestLimiter limiter = getRequestLimiter();
+        if(limiter == null)
+        {
+            return aClient.sendAsync(pRequest, BodyHandlers.ofByteArray());
+        }
+        final String key = getLimiterKey(pTile, pRequest);
+        final CompletableFuture<HttpResponse<byte[]>> response = new CompletableFuture<HttpResponse<byte[]>>();
+        final CompletableFuture<Void> permit = limiter.acquire(key);
+        permit.whenComplete(new BiConsumer<Void, Throwable>()
+        {
+            @Override
+            public void accept(Void pPermit, Throwable pFailure)
+            {
+                if(pFailure != null)
+                {
+                    response.completeExceptionally(pFailure);
+                }
+                else if(response.isDone())
+                {
+                    // Cancelled while the permit was being granted
+                    limiter.release(key);
+                }
+                else
+                {
+                    exchange(pRequest, response, limiter, key);
+                }
+            }
+        });
+        response.whenComplete(new BiConsumer<HttpResponse<byte[]>, Throwable>()
+        {
+            @Override
+            public void accept(HttpResponse<byte[]> pResponse, Throwable pFailure)
+            {
+                if(response.isCancelled())
+                {
+                    permit.cancel(false);
+                }
+            }
+        });
+        return response;
+    }
+
+    /*
+     * Sends a request for which a permit was acquired, and releases the permit
+     * once the exchange is over. Cancelling pResponse aborts the exchange.
+     */
+    private void exchange(HttpRequest pRequest, final CompletableFuture<HttpResponse<byte[]>> pResponse,
+            final TileRequestLimiter pLimiter, final String pKey)
+    {
+        final CompletableFuture<HttpResponse<byte[]>> exchange;
+        try
+        {
+            exchange = aClient.sendAsync(pRequest, BodyHandlers.ofByteArray());
+        }
+        catch(RuntimeException e)
+        {
+            pLimiter.release(pKey);
+            pResponse.completeExceptionally(e);
+            return;
+        }
+        exchange.whenComplete(new BiConsumer<HttpResponse<byte[]>, Throwable>()
+        {
+            @Override
+            public void accept(HttpResponse<byte[]> pResult, Throwable pFailure)
+            {
+                pLimiter.release(pKey);
+                if(pFailure == null)
+                {
+                    pResponse.complete(pResult);
+                }
+                else
+                {
+                    pResponse.completeExceptionally(TileFetchRegistry.unwrap(pFailure));
+                }
+            }
+        });
+        pResponse.whenComplete(new BiConsumer<HttpResponse<byte[]>, Throwable>()
+        {
+            @Override
+            public void accept(HttpResponse<byte[]> pResult, Throwable pFailure)
+            {
+                if(pResponse.isCancelled())
+                {
+                    exchange.cancel(true);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param pTile A tile.
+     * @param pRequest The request for pTile.
+     * @return The key of the request in the limiter: the name of the tile source and the host.
+     */
+    protected static String getLimiterKey(Tile pTile, HttpRequest pRequest)
+    {
+        return getLimiterKey(pTile, pRequest.uri().getHost());
+    }
+
+    private class HttpLoadJob extends CancellableJob
+    {
+        private final Tile aTile;
+
+        HttpLoadJob(Tile pTile)
+        {
+            super(pTile);
+            aTile = pTile;
+        }
+
+        @Override
+        public void run()
+        {
+            if(resume())
+            {
+                if(!isCancelled())
+                {
+                    load();
+                }
+                return;
+            }
+            if(!startLoading())
+            {
+                return;
+            }
+            load();
+        }
+
+        private void load()
+        {
+            try
+            {
+                if(loadTileFromCompressedTier(aTile))
+                {
+                    finish(true);
+                    return;
+                }
+                final HttpRequest request = newRequest(aTile).build();
+                // Cancelled to abort the exchange, if the fetch loses all its requests
+                final CompletableFuture<HttpResponse<byte[]>> response = new CompletableFuture<HttpResponse<byte[]>>();
+                CompletableFuture<TileFetchRegistry.Fetch> fetch = openRequest();
+                fetch.whenComplete(new BiConsumer<TileFetchRegistry.Fetch, Throwable>()
+                {
+                    @Override
+                    public void accept(TileFetchRegistry.Fetch pFetch, Throwable pFailure)
+                    {
+                        if(isCancelled())
+                        {
+                            aTile.setLoading(false);
+                        }
+                        else if(pFailure == null)
+                        {
+                            receive(pFetch);
+                        }
+                        else if(!retryLater(TileFetchRegistry.unwrap(pFailure)))
+                        {
+                            fail(TileFetchRegistry.unwrap(pFailure));
+                        }
+                    }
+                });
+                fetchShared(aTile, fetch, new Supplier<CompletionStage<TileFetchRegistry.Fetch>>()
+                {
+                    @Override
+                    public CompletionStage<TileFetchRegistry.Fetch> get()
+                    {
+                        final CompletableFuture<HttpResponse<byte[]>> sent = send(aTile, request);
+                        sent.whenComplete(new BiConsumer<HttpResponse<byte[]>, Throwable>()
+                        {
+                            @Override
+                            public void accept(HttpResponse<byte[]> pResponse, Throwable pFailure)
+                            {
+                                if(pFailure == null)
+                                {
+                                    response.complete(pResponse);
+                                }
+                                else
+                                {
+                                    response.completeExceptionally(TileFetchRegistry.unwrap(pFailure));
+                                }
+                            }
+                        });
+                        response.whenComplete(new BiConsumer<HttpResponse<byte[]>, Throwable>()
+                        {
+                            @Override
+                            public void accept(HttpResponse<byte[]> pResponse, Throwable pFailure)
+                            {
+                                if(response.isCancelled())
+                                {
+                                    sent.cancel(false);
+                                }
+                            }
+                        });
+                        return response.thenApply(new Function<HttpResponse<byte[]>, TileFetchRegistry.Fetch>()
+                        {
+                            @Override
+                            public TileFetchRegistry.Fetch apply(HttpResponse<byte[]> pResponse)
+                            {
+                                return toFetch(pResponse);
+                            }
+                        });
+                    }
+                }, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        response.cancel(false);
+                    }
+                });
+            }
+            catch(IOException | IllegalArgumentException e)
+            {
+                fail(e);
+            }
+        }
+
+        /*
+         * Runs in a thread of the client, for the job that sent the request only.
+         */
+        private TileFetchRegistry.Fetch toFetch(HttpResponse<byte[]> pResponse)
+        {
+            if(TileServerBusyException.isBusy(pResponse.statusCode()))
+            {
+                throw new CompletionException(new TileServerBusyException(pResponse.statusCode(),
+                        pResponse.headers().firstValue(TileServerBusyException.RETRY_AFTER_HEADER).orElse(null)));
+            }
+            if(pResponse.statusCode() == HTTP_NOT_FOUND)
+            {
+                throw new CompletionException(new FileNotFoundException(pResponse.uri().toString()));
+            }
+            if(pResponse.statusCode() != HTTP_OK)
+            {
+                throw new CompletionException(new IOException("HTTP status " + pResponse.statusCode()));
+            }
+            loadTileMetadata(aTile, pResponse.headers());
+            if("no-tile".equals(aTile.getValue("tile-info")))
+            {
+                return new TileFetchRegistry.Fetch(null, aTile.getMetadata());
+            }
+            if(pResponse.body().length == 0)
+            {
+                throw new CompletionException(new IOException("Empty response"));
+            }
+            return new TileFetchRegistry.Fetch(pResponse.body(), aTile.getMetadata());
+        }
+
+        private void receive(TileFetchRegistry.Fetch pFetch)
+        {
+            try
+            {
+                loadFetchedTile(aTile, pFetch);
+                finish(true);
+            }
+            catch(IOException | RuntimeException e)
+            {
+                fail(e);
+            }
+        }
+
+        private void finish(boolean pSuccess)
+        {
+            aTile.setLoaded(true);
+            aTile.setLoading(false);
+            aListener.tileLoadingFinished(aTile, pSuccess);
+        }
+
+        private void fail(Throwable pFailure)
+        {
+            if(pFailure instanceof TileSourceUnavailableException)
+            {
+                // Not retried: the tile keeps its placeholder and is requested again later
+                aTile.setLoading(false);
+                aListener.tileLoadingFinished(aTile, false);
+                return;
+            }
+            aTile.setError();
+            LOGGER.fine("Failed loading " + aTile + ": " + pFailure.getMessage());
+            finish(false);
+        }
+    }
+}
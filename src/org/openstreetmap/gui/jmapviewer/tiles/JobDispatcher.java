@@ -20,9 +20,12 @@
  *******************************************************************************/
 package org.openstreetmap.gui.jmapviewer.tiles;
 
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 /**
  * A generic class that processes a list of Runnable one-by-one using
@@ -31,27 +34,61 @@ import java.util.concurrent.TimeUnit;
  * more than #WORKER_THREAD_TIMEOUT seconds (default: 30), the instance
  * ends itself.
  *
+ * The jobs are not run in the order in which they are added: the tiles in
+ * view are loaded first, starting from the focus of the viewport, then the
+ * other tiles, and finally the revalidations of the tiles already shown.
+ * See {@link #setViewport(int, Rectangle, double, double)}.
+ *
+ * The jobs are submitted through {@link Client clients}, usually one per map,
+ * each with a queue and a viewport of its own. The dispatcher takes a job from
+ * each client that has some in turn, so that a map loading many tiles does not
+ * hold back the others, and cancelling the jobs of a client leaves the jobs of
+ * the other clients alone. A dispatcher can be created for each map or shared
+ * by several; {@link #getInstance()} is the one shared by default. The methods
+ * of the dispatcher itself that take jobs use its default client.
+ *
+ * On a platform that has virtual threads, the dispatcher can instead run
+ * each job in a virtual thread of its own, see {@link #setVirtualThreads(boolean)}.
+ * Up to {@link #VIRTUAL_JOB_MAX_COUNT} jobs then run at the same time, most
+ * of them waiting for the network or the disk at little cost, and the
+ * resources they use are limited by {@link TileResources} instead of by the
+ * number of threads. The virtual threads are created by reflection, so
+ * that the dispatcher still runs on platforms without them.
+ *
  * @author Jan Peter Stotz
  */
 public final class JobDispatcher 
 {
-    private static final JobDispatcher INSTANCE = new JobDispatcher();
-    private static final int WORKER_THREAD_MAX_COUNT = 8;
-    
     /**
-     * Type of queue, FIFO if <code>false</code>, LIFO if <code>true</code>.
+     * The maximum number of jobs running at the same time on virtual threads.
+     * The other jobs wait in the queue, so that they still run in order of priority.
      */
-    private static final boolean MODEL_LIFO = false;
+    public static final int VIRTUAL_JOB_MAX_COUNT = 256;
+
+    private static final Logger LOGGER = Logger.getLogger(JobDispatcher.class.getName());
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+    private static final ThreadLocal<Client> CURRENT_CLIENT = new ThreadLocal<Client>();
+    private static final JobDispatcher INSTANCE = new JobDispatcher(true);
+    private static final int WORKER_THREAD_MAX_COUNT = 8;
     
     /**
      * Specifies the time span in seconds that a worker thread waits for new
      * jobs to perform. If the time span has elapsed the worker thread
-     * terminates itself. Only the first worker thread works differently, it
-     * ignores the timeout and will never terminate itself.
+     * terminates itself. Only the first worker thread of the shared instance
+     * works differently, it ignores the timeout and only terminates itself
+     * while the jobs run on virtual threads, after which it is started again.
      */
     private static final int WORKER_THREAD_TIMEOUT = 30;
 
-    private BlockingDeque<TileJob> aJobQueue = new LinkedBlockingDeque<TileJob>();
+    // The clients with jobs queued, in the order in which they are served. Guarded by itself
+    private final ArrayDeque<Client> aActiveClients = new ArrayDeque<Client>();
+    private final Client aDefaultClient = new Client();
+    private final boolean aPermanentThread;
+    
+    /**
+     * True while the permanent worker thread, if this dispatcher has one, is running.
+     */
+    private boolean aFirstThreadRunning = false;
     
     /**
      * Total number of worker threads currently idle or active.
@@ -68,13 +105,28 @@ public final class JobDispatcher
      */
     private int aWorkerThreadId = 0;
 
-    private JobDispatcher() 
+    // The factory of the virtual threads running the jobs, or null to run them on worker threads
+    private volatile ThreadFactory aVirtualThreads = null;
+    private final Semaphore aVirtualJobSlots = new Semaphore(VIRTUAL_JOB_MAX_COUNT);
+    private Thread aLauncher = null;
+
+    /**
+     * Creates a dispatcher. Its threads are started when jobs are added,
+     * and end once they are idle.
+     */
+    public JobDispatcher()
     {
-        addWorkerThread().aFirstThread = true;
+        this(false);
+    }
+
+    private JobDispatcher(boolean pPermanentThread) 
+    {
+        aPermanentThread = pPermanentThread;
+        startFirstThread();
     }
     
     /**
-     * @return the singleton instance of the {@link JobDispatcher}
+     * @return The dispatcher shared by default by the maps.
      */
     public static JobDispatcher getInstance() 
     {
@@ -82,42 +134,323 @@ public final class JobDispatcher
     }    
 
     /**
-     * Removes all jobs from the queue that are currently not being processed.
+     * @return A new client of this dispatcher, with a queue of its own.
+     */
+    public Client createClient()
+    {
+        return new Client();
+    }
+
+    /**
+     * @return The client that submitted the job running in the current thread,
+     *     or null if the thread is not running a job of a dispatcher.
+     */
+    public static Client getCurrentClient()
+    {
+        return CURRENT_CLIENT.get();
+    }
+
+    /**
+     * @return True if the platform has virtual threads, which requires Java 21.
+     */
+    public static boolean isVirtualThreadSupported()
+    {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Chooses whether the jobs run on virtual threads or on worker threads.
+     * The jobs already running are not affected.
+     *
+     * @param pEnabled True to run the jobs on virtual threads, if the platform has them.
+     * @return True if the jobs now run on virtual threads.
+     */
+    public boolean setVirtualThreads(boolean pEnabled)
+    {
+        if(!pEnabled || VIRTUAL_THREAD_FACTORY == null)
+        {
+            aVirtualThreads = null;
+            startFirstThread();
+            return false;
+        }
+        aVirtualThreads = VIRTUAL_THREAD_FACTORY;
+        startLauncher();
+        return true;
+    }
+
+    /**
+     * @return True if the jobs run on virtual threads.
+     */
+    public boolean isUsingVirtualThreads()
+    {
+        return aVirtualThreads != null;
+    }
+
+    /**
+     * Removes all jobs of the default client from the queue that are currently
+     * not being processed, and cancels them.
      */
     public void cancelOutstandingJobs()
     {
-        aJobQueue.clear();
+        aDefaultClient.cancelOutstandingJobs();
+    }
+
+    /**
+     * Cancels a job of the default client: removes it from the queue if it is
+     * still there, otherwise stops it if it is loading its tile.
+     *
+     * @param pJob The job to cancel.
+     */
+    public void cancelJob(TileJob pJob)
+    {
+        aDefaultClient.cancelJob(pJob);
     }
 
     /**
-     * Adds a job to the queue.
+     * Sets the viewport that decides the order of the jobs of the default client.
+     *
+     * @param pZoom The zoom level in view.
+     * @param pVisible The range of tiles in view at zoom level pZoom.
+     * @param pFocusX The X position, in tiles, of the point to load first, such as the cursor.
+     * @param pFocusY The Y position, in tiles, of the point to load first.
+     */
+    public void setViewport(int pZoom, Rectangle pVisible, double pFocusX, double pFocusY)
+    {
+        aDefaultClient.setViewport(pZoom, pVisible, pFocusX, pFocusY);
+    }
+
+    /**
+     * @return The number of jobs of the default client waiting to be run.
+     */
+    public int getQueueSize()
+    {
+        return aDefaultClient.getQueueSize();
+    }
+
+    /**
+     * Adds a job to the queue of the default client.
      * Jobs for tiles already contained in the are ignored (using a <code>null</code> tile
      * prevents skipping).
      *
      * @param pJob the the job to be added
+     * @return True if the job was added, false if it was ignored.
+     */
+    public boolean addJob(TileJob pJob) 
+    {
+        return aDefaultClient.addJob(pJob, false);
+    }
+
+    /**
+     * Adds a job to the queue of the default client, unless a job for the
+     * same tile is already there.
+     *
+     * @param pJob The job to be added.
+     * @param pRevalidation True if pJob only validates a tile already shown,
+     *     in which case it runs after the jobs that load tiles.
+     * @return True if the job was added, false if it was ignored.
+     */
+    public boolean addJob(TileJob pJob, boolean pRevalidation)
+    {
+        return aDefaultClient.addJob(pJob, pRevalidation);
+    }
+
+    /*
+     * Called once a client has queued a job: puts the client in line to be
+     * served if it was not, and starts a thread to run the job if needed.
+     */
+    private void jobAdded(Client pClient)
+    {
+        synchronized(aActiveClients)
+        {
+            if(!pClient.aScheduled)
+            {
+                pClient.aScheduled = true;
+                aActiveClients.add(pClient);
+            }
+            aActiveClients.notifyAll();
+        }
+        if(aVirtualThreads != null)
+        {
+            startLauncher();
+            return;
+        }
+        synchronized(this)
+        {
+            if(aWorkerThreadIdleCount == 0 && aWorkerThreadCount < WORKER_THREAD_MAX_COUNT)
+            {
+                addWorkerThread();
+            }
+        }
+    }
+
+    /*
+     * Takes the next job of the first client in line, which goes back to the
+     * end of the line if it has more jobs, waiting for a job if there is none.
+     * Returns null if no job was added before the timeout; a negative timeout
+     * waits indefinitely.
      */
-    public void addJob(TileJob pJob) 
+    private Assignment poll(long pTimeout, TimeUnit pUnit) throws InterruptedException
     {
-        try 
+        long deadline = System.nanoTime() + pUnit.toNanos(pTimeout);
+        synchronized(aActiveClients)
         {
-            if(pJob.getTile() != null)
+            while(true)
             {
-                for(TileJob oldJob : aJobQueue) 
+                Client client = aActiveClients.poll();
+                while(client != null)
                 {
-                    if(oldJob.getTile() == pJob.getTile()) 
+                    TileJobQueue.Entry entry = client.aJobQueue.take();
+                    if(entry != null && client.aJobQueue.size() > 0)
                     {
-                        return;
+                        aActiveClients.add(client);
                     }
+                    else
+                    {
+                        client.aScheduled = false;
+                    }
+                    if(entry != null)
+                    {
+                        return new Assignment(client, entry.getJob(), entry.isRevalidation());
+                    }
+                    client = aActiveClients.poll();
+                }
+                if(pTimeout < 0)
+                {
+                    aActiveClients.wait();
+                }
+                else
+                {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if(remaining <= 0)
+                    {
+                        return null;
+                    }
+                    aActiveClients.wait(remaining);
                 }
             }
-            aJobQueue.put(pJob);
-            if(aWorkerThreadIdleCount == 0 && aWorkerThreadCount < WORKER_THREAD_MAX_COUNT)
+        }
+    }
+
+    private boolean hasJobs()
+    {
+        synchronized(aActiveClients)
+        {
+            return !aActiveClients.isEmpty();
+        }
+    }
+
+    /*
+     * Starts the thread that hands the jobs to virtual threads, if it is not running.
+     */
+    private synchronized void startLauncher()
+    {
+        if(aLauncher != null)
+        {
+            return;
+        }
+        aLauncher = new Thread("OSMJobLauncher")
+        {
+            @Override
+            public void run()
             {
-                addWorkerThread();
+                launchJobs();
+                synchronized(JobDispatcher.this)
+                {
+                    aLauncher = null;
+                }
+                if(aVirtualThreads != null && hasJobs())
+                {
+                    // Switched back to virtual threads while stopping
+                    startLauncher();
+                }
+            }
+        };
+        aLauncher.setDaemon(true);
+        aLauncher.start();
+    }
+
+    /*
+     * Takes the jobs in order and runs each in a virtual thread, as long as
+     * fewer than VIRTUAL_JOB_MAX_COUNT are running. Stops once the jobs
+     * no longer run on virtual threads.
+     */
+    private void launchJobs()
+    {
+        while(aVirtualThreads != null)
+        {
+            final Assignment job;
+            try
+            {
+                aVirtualJobSlots.acquire();
+                job = poll(WORKER_THREAD_TIMEOUT, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                return;
             }
-        } 
-        catch (InterruptedException e) 
+            ThreadFactory factory = aVirtualThreads;
+            if(job == null || factory == null)
+            {
+                aVirtualJobSlots.release();
+                if(job != null)
+                {
+                    // Switched back to worker threads in the meantime
+                    job.aClient.addJob(job.aJob, job.aRevalidation);
+                }
+                continue;
+            }
+            factory.newThread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        job.run();
+                    }
+                    catch(RuntimeException e)
+                    {
+                        e.printStackTrace();
+                    }
+                    finally
+                    {
+                        aVirtualJobSlots.release();
+                    }
+                }
+            }).start();
+        }
+    }
+
+    /*
+     * Returns a factory of virtual threads, or null if the platform has none.
+     * Equivalent to Thread.ofVirtual().name(...).factory() on Java 21.
+     */
+    private static ThreadFactory createVirtualThreadFactory()
+    {
+        try
+        {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "OSMVirtualJobThread ", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch(ReflectiveOperationException | RuntimeException e)
+        {
+            LOGGER.fine("Virtual threads are not available: " + e);
+            return null;
+        }
+    }
+
+    /*
+     * Starts the permanent worker thread, if this dispatcher has one and it
+     * is not running, such as after the jobs ran on virtual threads.
+     */
+    private synchronized void startFirstThread()
+    {
+        if(aPermanentThread && !aFirstThreadRunning && aVirtualThreads == null)
         {
+            aFirstThreadRunning = true;
+            addWorkerThread().aFirstThread = true;
         }
     }
 
@@ -132,6 +465,136 @@ public final class JobDispatcher
         return jobThread;
     }
 
+    /**
+     * The jobs of one map, with a queue and a viewport of their own.
+     * Cancelling the jobs of a client does not affect the other clients
+     * of the dispatcher.
+     */
+    public final class Client
+    {
+        private final TileJobQueue aJobQueue = new TileJobQueue();
+        // Guarded by the line of the active clients
+        private boolean aScheduled = false;
+
+        private Client()
+        {}
+
+        /**
+         * @return The dispatcher that runs the jobs of this client.
+         */
+        public JobDispatcher getDispatcher()
+        {
+            return JobDispatcher.this;
+        }
+
+        /**
+         * Adds a job to the queue, unless a job for the same tile is already there.
+         *
+         * @param pJob The job to be added.
+         * @return True if the job was added, false if it was ignored.
+         */
+        public boolean addJob(TileJob pJob)
+        {
+            return addJob(pJob, false);
+        }
+
+        /**
+         * Adds a job to the queue, unless a job for the same tile is already there.
+         *
+         * @param pJob The job to be added.
+         * @param pRevalidation True if pJob only validates a tile already shown,
+         *     in which case it runs after the jobs that load tiles.
+         * @return True if the job was added, false if it was ignored.
+         */
+        public boolean addJob(TileJob pJob, boolean pRevalidation)
+        {
+            if(!aJobQueue.add(pJob, pRevalidation))
+            {
+                return false;
+            }
+            jobAdded(this);
+            return true;
+        }
+
+        /**
+         * Cancels a job: removes it from the queue if it is still there,
+         * otherwise stops it if it is loading its tile.
+         *
+         * @param pJob The job to cancel.
+         */
+        public void cancelJob(TileJob pJob)
+        {
+            aJobQueue.remove(pJob);
+            pJob.cancel();
+        }
+
+        /**
+         * Removes all the jobs of this client that are not running yet from
+         * the queue, and cancels them.
+         */
+        public void cancelOutstandingJobs()
+        {
+            for(TileJob job : aJobQueue.drain())
+            {
+                job.cancel();
+            }
+        }
+
+        /**
+         * Sets the viewport that decides the order of the jobs of this client.
+         * The jobs already queued are reordered.
+         *
+         * @param pZoom The zoom level in view.
+         * @param pVisible The range of tiles in view at zoom level pZoom.
+         * @param pFocusX The X position, in tiles, of the point to load first, such as the cursor.
+         * @param pFocusY The Y position, in tiles, of the point to load first.
+         */
+        public void setViewport(int pZoom, Rectangle pVisible, double pFocusX, double pFocusY)
+        {
+            aJobQueue.setViewport(pZoom, pVisible, pFocusX, pFocusY);
+        }
+
+        /**
+         * @return The number of jobs of this client waiting to be run.
+         */
+        public int getQueueSize()
+        {
+            return aJobQueue.size();
+        }
+    }
+
+    /**
+     * A job taken from the queue of a client, which runs with the client
+     * as the current client of its thread. The job keeps its tier, in case
+     * it is queued again.
+     */
+    private static final class Assignment implements Runnable
+    {
+        private final Client aClient;
+        private final TileJob aJob;
+        private final boolean aRevalidation;
+
+        private Assignment(Client pClient, TileJob pJob, boolean pRevalidation)
+        {
+            aClient = pClient;
+            aJob = pJob;
+            aRevalidation = pRevalidation;
+        }
+
+        @Override
+        public void run()
+        {
+            CURRENT_CLIENT.set(aClient);
+            try
+            {
+                aJob.run();
+            }
+            finally
+            {
+                CURRENT_CLIENT.remove();
+            }
+        }
+    }
     private class JobThread extends Thread 
     {
         private Runnable aJob;
@@ -148,43 +611,36 @@ public final class JobDispatcher
         public void run() 
         {
             executeJobs();
-            synchronized (INSTANCE) 
+            synchronized (JobDispatcher.this) 
             {
                 aWorkerThreadCount--;
+                if(aFirstThread)
+                {
+                    aFirstThreadRunning = false;
+                    // Switched back to worker threads while stopping
+                    startFirstThread();
+                }
             }
         }
 
         protected void executeJobs() 
         {
-            while(!isInterrupted()) 
+            // The worker threads stop once the jobs run on virtual threads
+            while(!isInterrupted() && aVirtualThreads == null) 
             {
                 try 
                 {
-                    synchronized (INSTANCE)
+                    synchronized (JobDispatcher.this)
                     {
                         aWorkerThreadIdleCount++;
                     }
-                    if(MODEL_LIFO) 
+                    if(aFirstThread)
                     {
-                        if (aFirstThread)
-                        {
-                            aJob = aJobQueue.takeLast();
-                        }
-                        else
-                        {
-                            aJob = aJobQueue.pollLast(WORKER_THREAD_TIMEOUT, TimeUnit.SECONDS);
-                        }
-                    } 
-                    else 
+                        aJob = poll(-1, TimeUnit.SECONDS);
+                    }
+                    else
                     {
-                        if(aFirstThread)
-                        {
-                            aJob = aJobQueue.take();
-                        }
-                        else
-                        {
-                            aJob = aJobQueue.poll(WORKER_THREAD_TIMEOUT, TimeUnit.SECONDS);
-                        }
+                        aJob = poll(WORKER_THREAD_TIMEOUT, TimeUnit.SECONDS);
                     }
                 } 
                 catch (InterruptedException e1) 
@@ -193,7 +649,7 @@ public final class JobDispatcher
                 } 
                 finally 
                 {
-                    synchronized (INSTANCE) 
+                    synchronized (JobDispatcher.this) 
                     {
                         aWorkerThreadIdleCount--;
                     }
@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A hash map from primitive <code>long</code> keys to objects, using open
+ * addressing with linear probing. Lookups do not allocate and do not lock,
+ * so they can be performed by any thread at any time. All the modifying
+ * methods must be called by one thread at a time, typically while holding a
+ * lock owned by the client.
+ *
+ * Lookups that run concurrently with modifications are weakly consistent,
+ * in the same way as those of {@link java.util.concurrent.ConcurrentHashMap}.
+ *
+ * @param <V> The type of the values.
+ */
+final class LongHashMap<V>
+{
+    private static final int MINIMUM_CAPACITY = 16;
+
+    // A removed entry, which keeps probe sequences going through its slot.
+    private static final Entry<Object> TOMBSTONE = new Entry<Object>(0, null);
+
+    private volatile Table<V> aTable;
+    private volatile int aSize = 0;
+
+    /**
+     * Creates an empty map.
+     */
+    LongHashMap()
+    {
+        aTable = new Table<V>(MINIMUM_CAPACITY);
+    }
+
+    /**
+     * @param pKey The key to look up.
+     * @return The value mapped to pKey, or null if there is none.
+     */
+    V get(long pKey)
+    {
+        Table<V> table = aTable;
+        int index = table.indexFor(pKey);
+        while(true)
+        {
+            Entry<V> entry = table.aSlots.get(index);
+            if(entry == null)
+            {
+                return null;
+            }
+            if(entry != TOMBSTONE && entry.aKey == pKey)
+            {
+                return entry.aValue;
+            }
+            index = (index + 1) & table.aMask;
+        }
+    }
+
+    /**
+     * Maps pKey to pValue.
+     *
+     * @param pKey The key.
+     * @param pValue The value, not null.
+     * @return The value previously mapped to pKey, or null if there was none.
+     */
+    V put(long pKey, V pValue)
+    {
+        Table<V> table = aTable;
+        int index = table.indexFor(pKey);
+        int free = -1;
+        while(true)
+        {
+            Entry<V> entry = table.aSlots.get(index);
+            if(entry == null)
+            {
+                break;
+            }
+            if(entry == TOMBSTONE)
+            {
+                if(free < 0)
+                {
+                    free = index;
+                }
+            }
+            else if(entry.aKey == pKey)
+            {
+                table.aSlots.set(index, new Entry<V>(pKey, pValue));
+                return entry.aValue;
+            }
+            index = (index + 1) & table.aMask;
+        }
+        if(free >= 0)
+        {
+            table.aSlots.set(free, new Entry<V>(pKey, pValue));
+        }
+        else
+        {
+            table.aSlots.set(index, new Entry<V>(pKey, pValue));
+            table.aUsed++;
+        }
+        aSize++;
+        if(table.aUsed > table.threshold())
+        {
+            rehash();
+        }
+        return null;
+    }
+
+    /**
+     * Removes the mapping for pKey.
+     *
+     * @param pKey The key.
+     * @return The value previously mapped to pKey, or null if there was none.
+     */
+    V remove(long pKey)
+    {
+        return remove(pKey, null);
+    }
+
+    /**
+     * Removes the mapping for pKey if it is mapped to pValue, or any value
+     * if pValue is null.
+     *
+     * @param pKey The key.
+     * @param pValue The expected value, compared by identity, or null.
+     * @return The value that was removed, or null if nothing was removed.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long pKey, V pValue)
+    {
+        Table<V> table = aTable;
+        int index = table.indexFor(pKey);
+        while(true)
+        {
+            Entry<V> entry = table.aSlots.get(index);
+            if(entry == null)
+            {
+                return null;
+            }
+            if(entry != TOMBSTONE && entry.aKey == pKey)
+            {
+                if(pValue != null && entry.aValue != pValue)
+                {
+                    return null;
+                }
+                table.aSlots.set(index, (Entry<V>) TOMBSTONE);
+                aSize--;
+                return entry.aValue;
+            }
+            index = (index + 1) & table.aMask;
+        }
+    }
+
+    /**
+     * @return The number of mappings.
+     */
+    int size()
+    {
+        return aSize;
+    }
+
+    /**
+     * @return A snapshot of the keys currently in the map.
+     */
+    long[] keys()
+    {
+        Table<V> table = aTable;
+        long[] keys = new long[aSize];
+        int count = 0;
+        for(int i = 0; i < table.aSlots.length() && count < keys.length; i++)
+        {
+            Entry<V> entry = table.aSlots.get(i);
+            if(entry != null && entry != TOMBSTONE)
+            {
+                keys[count++] = entry.aKey;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Removes all the mappings.
+     */
+    void clear()
+    {
+        aTable = new Table<V>(MINIMUM_CAPACITY);
+        aSize = 0;
+    }
+
+    /*
+     * Copies the live entries into a new table, dropping tombstones, and
+     * publishes it. Readers still probing the old table see a consistent,
+     * if slightly outdated, state.
+     */
+    private void rehash()
+    {
+        Table<V> old = aTable;
+        int capacity = MINIMUM_CAPACITY;
+        while(capacity < aSize * 4)
+        {
+            capacity <<= 1;
+        }
+        Table<V> table = new Table<V>(capacity);
+        for(int i = 0; i < old.aSlots.length(); i++)
+        {
+            Entry<V> entry = old.aSlots.get(i);
+            if(entry != null && entry != TOMBSTONE)
+            {
+                int index = table.indexFor(entry.aKey);
+                while(table.aSlots.get(index) != null)
+                {
+                    index = (index + 1) & table.aMask;
+                }
+                table.aSlots.set(index, entry);
+                table.aUsed++;
+            }
+        }
+        aTable = table;
+    }
+
+    /**
+     * An immutable key-value pair.
+     *
+     * @param <V> The type of the value.
+     */
+    private static final class Entry<V>
+    {
+        private final long aKey;
+        private final V aValue;
+
+        Entry(long pKey, V pValue)
+        {
+            aKey = pKey;
+            aValue = pValue;
+        }
+    }
+
+    /**
+     * The slots of the map. The capacity is always a power of two.
+     *
+     * @param <V> The type of the values.
+     */
+    private static final class Table<V>
+    {
+        private final AtomicReferenceArray<Entry<V>> aSlots;
+        private final int aMask;
+        // Slots that are not null, including tombstones. Only accessed by writers.
+        private int aUsed = 0;
+
+        Table(int pCapacity)
+        {
+            aSlots = new AtomicReferenceArray<Entry<V>>(pCapacity);
+            aMask = pCapacity - 1;
+        }
+
+        int threshold()
+        {
+            return aSlots.length() / 2;
+        }
+
+        /*
+         * Spreads the bits of the key, since neighboring tiles
+         * only differ in their lowest bits.
+         */
+        int indexFor(long pKey)
+        {
+            long hash = pKey * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ hash >>> 32) & aMask;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+/**
+ * Discards the least recently used tile first.
+ */
+public class LruEvictionPolicy implements TileEvictionPolicy
+{
+    private final LongHashMap<Node> aNodes = new LongHashMap<Node>();
+    private final Node aSentinel = new Node(0);
+
+    /**
+     * Creates an empty policy.
+     */
+    public LruEvictionPolicy()
+    {
+        aSentinel.aPrev = aSentinel;
+        aSentinel.aNext = aSentinel;
+    }
+
+    @Override
+    public void setMaximumWeight(long pMaximumWeight)
+    {}
+
+    @Override
+    public void recordInsertion(long pKey, long pWeight)
+    {
+        Node node = new Node(pKey);
+        aNodes.put(pKey, node);
+        linkFirst(node);
+    }
+
+    @Override
+    public void recordAccess(long pKey)
+    {
+        Node node = aNodes.get(pKey);
+        if(node != null)
+        {
+            unlink(node);
+            linkFirst(node);
+        }
+    }
+
+    @Override
+    public void recordWeightChange(long pKey, long pWeight)
+    {}
+
+    @Override
+    public void recordRemoval(long pKey)
+    {
+        Node node = aNodes.remove(pKey);
+        if(node != null)
+        {
+            unlink(node);
+        }
+    }
+
+    @Override
+    public long selectVictim()
+    {
+        return aSentinel.aPrev.aKey;
+    }
+
+    private void linkFirst(Node pNode)
+    {
+        pNode.aNext = aSentinel.aNext;
+        pNode.aPrev = aSentinel;
+        aSentinel.aNext.aPrev = pNode;
+        aSentinel.aNext = pNode;
+    }
+
+    private static void unlink(Node pNode)
+    {
+        pNode.aPrev.aNext = pNode.aNext;
+        pNode.aNext.aPrev = pNode.aPrev;
+    }
+
+    /**
+     * Element of the circular recency list, most recent first.
+     */
+    private static final class Node
+    {
+        private final long aKey;
+        private Node aPrev;
+        private Node aNext;
+
+        private Node(long pKey)
+        {
+            aKey = pKey;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the encoded (PNG, JPEG, etc.) bytes of recently loaded tiles in
+ * direct buffers, outside of the Java heap. This is the middle tier between
+ * the decoded images held by a {@link TileCache} and the tile files or
+ * servers of a {@link TileLoader}: an encoded tile takes a fraction of the
+ * memory of its decoded image, so many more tiles can be kept at hand, and
+ * tiles that fall out of the cache are decoded again from this store instead
+ * of being read from disk or downloaded.
+ *
+ * The memory is allocated in slabs that are split into fixed-size pages, and
+ * each tile occupies as many pages as it needs. Slabs are only allocated when
+ * needed, up to the capacity of the store. When no page is free, the least
+ * recently used tiles are discarded.
+ */
+public class OffHeapTileStore
+{
+    /**
+     * The default capacity of the store, in bytes.
+     */
+    public static final long DEFAULT_CAPACITY = 128L * 1024 * 1024;
+
+    private static final Logger LOGGER = Logger.getLogger(OffHeapTileStore.class.getName());
+    private static final int PAGE_SIZE = 4096;
+    private static final int PAGES_PER_SLAB = 256;
+    private static final int SLAB_SIZE = PAGE_SIZE * PAGES_PER_SLAB;
+
+    private final int aMaximumPages;
+    private final List<ByteBuffer> aSlabs = new ArrayList<ByteBuffer>();
+    private final LongHashMap<StoreEntry> aEntries = new LongHashMap<StoreEntry>();
+
+    // Stack of the pages that are allocated but not used
+    private int[] aFreePages;
+    private int aFreePageCount = 0;
+
+    // Most recently used entry first
+    private StoreEntry aHead;
+    private StoreEntry aTail;
+    private long aStoredBytes = 0;
+    private boolean aCanGrow = true;
+
+    /**
+     * Creates a store with the default capacity.
+     */
+    public OffHeapTileStore()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a store. No memory is allocated until tiles are stored.
+     *
+     * @param pCapacity The maximum number of bytes of direct memory
+     *        used by the store. Must be at least one slab (1 MB).
+     */
+    public OffHeapTileStore(long pCapacity)
+    {
+        if(pCapacity < SLAB_SIZE)
+        {
+            throw new IllegalArgumentException("The capacity must be at least " + SLAB_SIZE + " bytes");
+        }
+        aMaximumPages = (int) Math.min(Integer.MAX_VALUE, pCapacity / SLAB_SIZE * PAGES_PER_SLAB);
+        aFreePages = new int[PAGES_PER_SLAB];
+    }
+
+    /**
+     * Stores the encoded bytes of a tile, replacing any previous
+     * bytes stored for the same key. Tiles larger than a quarter of
+     * the capacity are ignored.
+     *
+     * @param pKey The packed key of the tile, see {@link TileKey}.
+     * @param pData The encoded image
+     * @param pLength The number of bytes of pData that hold the image.
+     */
+    public synchronized void put(long pKey, byte[] pData, int pLength)
+    {
+        remove(pKey);
+        int pageCount = (pLength + PAGE_SIZE - 1) / PAGE_SIZE;
+        if(pLength == 0 || pageCount > aMaximumPages / 4)
+        {
+            return;
+        }
+        while(aFreePageCount < pageCount)
+        {
+            if(allocateSlab())
+            {
+                continue;
+            }
+            if(aTail == null)
+            {
+                return;
+            }
+            evictLeastRecentlyUsed();
+        }
+        StoreEntry entry = new StoreEntry(pKey, new int[pageCount], pLength);
+        for(int i = 0; i < pageCount; i++)
+        {
+            int page = aFreePages[--aFreePageCount];
+            entry.aPages[i] = page;
+            int offset = i * PAGE_SIZE;
+            slabOf(page).put(offsetOf(page), pData, offset, Math.min(PAGE_SIZE, pLength - offset));
+        }
+        aEntries.put(pKey, entry);
+        linkFirst(entry);
+        aStoredBytes += pLength;
+    }
+
+    /**
+     * Copies the encoded bytes of a tile back into the heap.
+     *
+     * @param pKey The packed key of the tile.
+     * @return The encoded image, or null if the tile is not in the store.
+     */
+    public synchronized byte[] get(long pKey)
+    {
+        StoreEntry entry = aEntries.get(pKey);
+        if(entry == null)
+        {
+            return null;
+        }
+        byte[] data = new byte[entry.aLength];
+        for(int i = 0; i < entry.aPages.length; i++)
+        {
+            int page = entry.aPages[i];
+            int offset = i * PAGE_SIZE;
+            slabOf(page).get(offsetOf(page), data, offset, Math.min(PAGE_SIZE, entry.aLength - offset));
+        }
+        unlink(entry);
+        linkFirst(entry);
+        return data;
+    }
+
+    /**
+     * Discards the bytes stored for a tile, if any.
+     *
+     * @param pKey The packed key of the tile.
+     */
+    public synchronized void remove(long pKey)
+    {
+        StoreEntry entry = aEntries.remove(pKey);
+        if(entry != null)
+        {
+            release(entry);
+        }
+    }
+
+    /**
+     * @return The number of tiles in the store.
+     */
+    public int getTileCount()
+    {
+        return aEntries.size();
+    }
+
+    /**
+     * @return The number of encoded bytes in the store, not counting
+     *         the unused part of the last page of each tile.
+     */
+    public synchronized long getStoredBytes()
+    {
+        return aStoredBytes;
+    }
+
+    /**
+     * @return The number of bytes of direct memory allocated by the store.
+     */
+    public synchronized long getAllocatedBytes()
+    {
+        return (long) aSlabs.size() * SLAB_SIZE;
+    }
+
+    /*
+     * Returns false if the store is at capacity or if the virtual machine
+     * refuses to allocate more direct memory, in which case the store stops
+     * growing.
+     */
+    private boolean allocateSlab()
+    {
+        if(!aCanGrow || (aSlabs.size() + 1) * PAGES_PER_SLAB > aMaximumPages)
+        {
+            return false;
+        }
+        try
+        {
+            aSlabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+        }
+        catch(OutOfMemoryError e)
+        {
+            LOGGER.warning("Off-heap tile store limited to " + aSlabs.size() * SLAB_SIZE + " bytes: " + e.getMessage());
+            aCanGrow = false;
+            return false;
+        }
+        int firstPage = (aSlabs.size() - 1) * PAGES_PER_SLAB;
+        if(aFreePages.length < aFreePageCount + PAGES_PER_SLAB)
+        {
+            int[] pages = new int[aFreePages.length + PAGES_PER_SLAB];
+            System.arraycopy(aFreePages, 0, pages, 0, aFreePageCount);
+            aFreePages = pages;
+        }
+        for(int i = PAGES_PER_SLAB - 1; i >= 0; i--)
+        {
+            aFreePages[aFreePageCount++] = firstPage + i;
+        }
+        return true;
+    }
+
+    private void evictLeastRecentlyUsed()
+    {
+        StoreEntry victim = aTail;
+        aEntries.remove(victim.aKey);
+        release(victim);
+    }
+
+    private void release(StoreEntry pEntry)
+    {
+        unlink(pEntry);
+        if(aFreePages.length < aFreePageCount + pEntry.aPages.length)
+        {
+            int[] pages = new int[aFreePageCount + pEntry.aPages.length];
+            System.arraycopy(aFreePages, 0, pages, 0, aFreePageCount);
+            aFreePages = pages;
+        }
+        for(int page : pEntry.aPages)
+        {
+            aFreePages[aFreePageCount++] = page;
+        }
+        aStoredBytes -= pEntry.aLength;
+    }
+
+    private ByteBuffer slabOf(int pPage)
+    {
+        return aSlabs.get(pPage / PAGES_PER_SLAB);
+    }
+
+    private static int offsetOf(int pPage)
+    {
+        return pPage % PAGES_PER_SLAB * PAGE_SIZE;
+    }
+
+    private void linkFirst(StoreEntry pEntry)
+    {
+        pEntry.aPrev = null;
+        pEntry.aNext = aHead;
+        if(aHead != null)
+        {
+            aHead.aPrev = pEntry;
+        }
+        aHead = pEntry;
+        if(aTail == null)
+        {
+            aTail = pEntry;
+        }
+    }
+
+    private void unlink(StoreEntry pEntry)
+    {
+        if(pEntry.aPrev != null)
+        {
+            pEntry.aPrev.aNext = pEntry.aNext;
+        }
+        else
+        {
+            aHead = pEntry.aNext;
+        }
+        if(pEntry.aNext != null)
+        {
+            pEntry.aNext.aPrev = pEntry.aPrev;
+        }
+        else
+        {
+            aTail = pEntry.aPrev;
+        }
+        pEntry.aPrev = null;
+        pEntry.aNext = null;
+    }
+
+    /**
+     * The pages holding the bytes of one tile, linked in recency order.
+     */
+    private static final class StoreEntry
+    {
+        private final long aKey;
+        private final int[] aPages;
+        private final int aLength;
+        private StoreEntry aPrev;
+        private StoreEntry aNext;
+
+        private StoreEntry(long pKey, int[] pPages, int pLength)
+        {
+            aKey = pKey;
+            aPages = pPages;
+            aLength = pLength;
+        }
+    }
+}
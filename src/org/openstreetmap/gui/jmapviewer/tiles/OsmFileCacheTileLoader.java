@@ -21,28 +21,35 @@
 package org.openstreetmap.gui.jmapviewer.tiles;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.charset.Charset;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.openstreetmap.gui.jmapviewer.Coordinate;
 import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
 import org.openstreetmap.gui.jmapviewer.tilesources.TileSource.TileUpdate;
 
@@ -50,6 +57,22 @@ import org.openstreetmap.gui.jmapviewer.tilesources.TileSource.TileUpdate;
  * A {@link TileLoader} implementation that loads tiles from OSM via HTTP and
  * saves all loaded files in a directory located in the temporary directory.
  * If a tile is present in this file cache it will not be loaded from OSM again.
+ * The files of the tiles are laid out by {@link TileCacheLayout}, and caches
+ * in the former flat layout are migrated the first time a source is used.
+ * The downloaded tiles are written by a {@link TileWriteQueue}, and the size
+ * of the cache can be limited with {@link #setQuotas(long, long)}.
+ * The age, size and tags of the cached tiles are recorded in a {@link TileCacheIndex}
+ * in each directory, so that tiles absent from the cache and tiles that are
+ * no longer fresh are recognized without accessing the file system.
+ * The lookups in the file cache are counted in {@link TileCacheStatistics}.
+ * A job only starts the loading of its tile, which then goes through the
+ * stages of a {@link TilePipeline}, so that a slow download does not delay
+ * the tiles found on disk. A tile to download goes back to the queue of its
+ * {@link JobDispatcher} before the network stage, so that the downloads are
+ * also made in order of priority, and so does a job refused by a full stage,
+ * so that no thread of the dispatcher waits for a stage. The threads of each
+ * stage limit the resource that the stage uses, in place of the
+ * {@link TileResources} of the loader.
  *
  * @author Jan Peter Stotz
  * @author Stefan Zeller
@@ -61,16 +84,34 @@ public class OsmFileCacheTileLoader extends OsmTileLoader
     
     private static final String ETAG_FILE_EXT = ".etag";
     private static final String TAGS_FILE_EXT = ".tags";
+    private static final String INDEX_FILE_NAME = "tiles.idx";
 
     private static final Charset TAGS_CHARSET = Charset.forName("UTF-8");
 
     private static final long FILE_AGE_ONE_DAY = 1000 * 60 * 60 * 24;
     private static final long FILE_AGE_ONE_WEEK = FILE_AGE_ONE_DAY * 7;
     private static final long MAX_CACHE_FILE_AGE = FILE_AGE_ONE_WEEK;
+    private static final long SWEEP_INTERVAL = 1000 * 60 * 10;
+
+    // Runs the stages of the seeding jobs in the thread of the job
+    private static final Executor DIRECT_EXECUTOR = new Executor()
+    {
+        @Override
+        public void execute(Runnable pTask)
+        {
+            pTask.run();
+        }
+    };
 
     private String aCacheDirBase;
     
     private final Map<TileSource, File> aSourceCacheDirMap;
+    private final Map<TileSource, TileCacheIndex> aSourceIndexMap = new HashMap<TileSource, TileCacheIndex>();
+
+    private final TileCacheStatistics aStatistics = new TileCacheStatistics();
+    private final TileWriteQueue aWriteQueue = new TileWriteQueue();
+    private final TilePipeline aPipeline = new TilePipeline();
+    private final TileCacheSweeper aSweeper = new TileCacheSweeper(aStatistics, MAX_CACHE_FILE_AGE);
 
     /**
      * Sets the maximum age of the local cached tile in the file system. If a
@@ -100,6 +141,14 @@ public class OsmFileCacheTileLoader extends OsmTileLoader
         LOGGER.finest("Tile cache directory: " + pCacheDirectory);
         aCacheDirBase = pCacheDirectory.getAbsolutePath();
         aSourceCacheDirMap = new HashMap<TileSource, File>();
+        aWriteQueue.setLinkListener(new TileWriteQueue.LinkListener()
+        {
+            @Override
+            public void linked(File pFile, File pExisting)
+            {
+                tileLinked(pFile, pExisting);
+            }
+        });
     }
     
     /**
@@ -152,10 +201,325 @@ public class OsmFileCacheTileLoader extends OsmTileLoader
     @Override
     public TileJob createTileLoaderJob(Tile pTile) 
     {
-        return new FileLoadJob(pTile);
+        return new FileLoadJob(pTile, false);
+    }
+
+    /**
+     * Does not limit again the resource used by a stage of the pipeline, whose
+     * threads already limit it. The requests of those threads to each host are
+     * still limited by the request limiter, and the seeding jobs, which run in
+     * the threads of the dispatcher, by the resources of the loader.
+     */
+    @Override
+    protected TileResources.Permit acquire(TileResources.Resource pResource, Tile pTile) throws IOException
+    {
+        if(aPipeline.isRunningIn(TilePipeline.getStage(pResource)))
+        {
+            return TileResources.Permit.unlimited();
+        }
+        return super.acquire(pResource, pTile);
+    }
+
+    /**
+     * Creates a job that brings a tile of the cache up to date for later
+     * use rather than for display: the job does not use the compressed tier,
+     * and downloads a new version of an old tile in the thread that runs it.
+     *
+     * @param pTile The tile to download.
+     * @return The job that downloads pTile into the cache.
+     */
+    public TileJob createSeedingJob(Tile pTile)
+    {
+        return new FileLoadJob(pTile, true);
+    }
+
+    /**
+     * Tells whether a tile is in the cache and recent enough not to be
+     * validated with the tile server, without reading it.
+     *
+     * @param pTile The tile.
+     * @return True if pTile is in the cache and fresh.
+     */
+    public boolean isFresh(Tile pTile)
+    {
+        getSourceCacheDir(pTile.getSource());
+        TileCacheIndex index = getSourceIndex(pTile.getSource());
+        TileCacheIndex.Entry entry = index == null ? null : index.get(getIndexKey(pTile));
+        return entry != null && System.currentTimeMillis() - entry.getTime() <= MAX_CACHE_FILE_AGE;
+    }
+
+    /**
+     * @return The statistics of the file cache. The resident bytes and entries
+     *     include the tiles already in the directory of a tile source the first
+     *     time a tile of this source is requested.
+     */
+    public TileCacheStatistics getStatistics()
+    {
+        return aStatistics;
+    }
+
+    /**
+     * @return The directory in which the tiles of all the sources are cached.
+     */
+    public File getCacheDirectory()
+    {
+        return new File(aCacheDirBase);
+    }
+
+    /**
+     * @return The stages through which the tiles are loaded, whose sizes can be changed.
+     */
+    public TilePipeline getPipeline()
+    {
+        return aPipeline;
+    }
+
+    /**
+     * @return The queue in which the downloaded tiles wait to be written to the cache.
+     */
+    public TileWriteQueue getWriteQueue()
+    {
+        return aWriteQueue;
+    }
+
+    /**
+     * Limits the size of the cache. Once this method is called, the cache
+     * is checked periodically and whenever it grows beyond pGlobalQuota, and
+     * tiles are deleted in a background thread until the quotas are met.
+     * The space reclaimed is reported in the statistics as evicted bytes.
+     *
+     * @param pSourceQuota The maximum number of bytes of tiles for each tile source.
+     * @param pGlobalQuota The maximum number of bytes of tiles for all the sources together.
+     */
+    public void setQuotas(long pSourceQuota, long pGlobalQuota)
+    {
+        aSweeper.setQuotas(pSourceQuota, pGlobalQuota);
+        aSweeper.start(SWEEP_INTERVAL);
+        aSweeper.requestSweep();
+    }
+
+    /**
+     * @return The object that keeps the cache within its quotas.
+     */
+    public TileCacheSweeper getSweeper()
+    {
+        return aSweeper;
+    }
+
+    /**
+     * Copies the cached tiles of a source in an area and a range of zoom
+     * levels into a {@link TileArchive}, with their tags and the time at
+     * which they were loaded.
+     *
+     * @param pSource The tile source.
+     * @param pNorthWest The north-west corner of the area, or null to export all the tiles in the zoom range.
+     * @param pSouthEast The south-east corner of the area, or null to export all the tiles in the zoom range.
+     * @param pMinZoom The lowest zoom level.
+     * @param pMaxZoom The highest zoom level.
+     * @param pArchive The archive file to create.
+     * @return The number of tiles exported.
+     * @throws IOException If the cache or the archive cannot be accessed.
+     */
+    public int exportArchive(TileSource pSource, Coordinate pNorthWest, Coordinate pSouthEast, int pMinZoom, int pMaxZoom,
+            File pArchive) throws IOException
+    {
+        File dir = getSourceCacheDir(pSource);
+        TileCacheIndex index = getSourceIndex(pSource);
+        if(index == null)
+        {
+            throw new IOException("Cannot read the tile cache index of " + dir);
+        }
+        flushWrites();
+        long[] keys = index.keys();
+        Arrays.sort(keys);
+        int[][] ranges = new int[pMaxZoom + 1][];
+        int count = 0;
+        try(TileArchive.Writer writer = new TileArchive.Writer(pArchive, pSource.getName()))
+        {
+            for(long key : keys)
+            {
+                int zoom = TileKey.getZoom(key);
+                int x = TileKey.getXtile(key);
+                int y = TileKey.getYtile(key);
+                if(zoom < pMinZoom || zoom > pMaxZoom)
+                {
+                    continue;
+                }
+                if(pNorthWest != null)
+                {
+                    if(ranges[zoom] == null)
+                    {
+                        ranges[zoom] = TileSeeder.getTileRange(pNorthWest, pSouthEast, zoom);
+                    }
+                    int[] range = ranges[zoom];
+                    if(x < range[0] || y < range[1] || x > range[2] || y > range[3])
+                    {
+                        continue;
+                    }
+                }
+                TileCacheIndex.Entry entry = index.get(key);
+                if(entry == null)
+                {
+                    continue;
+                }
+                String tags = entry.getTags();
+                if(tags == null)
+                {
+                    tags = readTags(TileCacheLayout.getFile(dir, zoom, x, y, TAGS_FILE_EXT),
+                            TileCacheLayout.getFile(dir, zoom, x, y, ETAG_FILE_EXT));
+                }
+                byte[] data = null;
+                if(entry.getSize() > 0)
+                {
+                    try
+                    {
+                        data = Files.readAllBytes(TileCacheLayout.getFile(dir, zoom, x, y, "." + pSource.getTileType()).toPath());
+                    }
+                    catch(NoSuchFileException e)
+                    {
+                        // Deleted since it was indexed
+                        continue;
+                    }
+                }
+                writer.add(key, entry.getTime(), tags, data);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds the tiles of a {@link TileArchive} to the cache of their source,
+     * reading the archive in one pass. The tiles keep the time at which they
+     * were loaded, and replace the cached versions of the same tiles.
+     *
+     * @param pSource The tile source, which must be the one of the archive.
+     * @param pArchive The archive file.
+     * @return The number of tiles imported.
+     * @throws IOException If the archive cannot be read or holds tiles of another source.
+     */
+    public int importArchive(final TileSource pSource, File pArchive) throws IOException
+    {
+        final File dir = getSourceCacheDir(pSource);
+        final TileCacheIndex index = getSourceIndex(pSource);
+        int count;
+        try(TileArchive archive = new TileArchive(pArchive))
+        {
+            if(!archive.getSourceName().equals(pSource.getName()))
+            {
+                throw new IOException(pArchive + " holds tiles of " + archive.getSourceName());
+            }
+            archive.readAll(new TileArchive.RecordVisitor()
+            {
+                @Override
+                public void visit(final TileArchive.Record pRecord)
+                {
+                    final long key = pRecord.getKey();
+                    int zoom = TileKey.getZoom(key);
+                    int x = TileKey.getXtile(key);
+                    int y = TileKey.getYtile(key);
+                    final String tags = pRecord.getTags().isEmpty() ? null : pRecord.getTags();
+                    final int size = pRecord.getData() == null ? 0 : pRecord.getData().length;
+                    aWriteQueue.write(TileCacheLayout.getFile(dir, zoom, x, y, "." + pSource.getTileType()), pRecord.getData(),
+                            TileCacheLayout.getFile(dir, zoom, x, y, TAGS_FILE_EXT), tags, new Runnable()
+                            {
+                                @Override
+                                public void run()
+                                {
+                                    tileWritten(index, key, pRecord.getTime(), size, tags);
+                                }
+                            });
+                }
+            });
+            count = archive.getTileCount();
+        }
+        flushWrites();
+        return count;
+    }
+
+    private void flushWrites() throws InterruptedIOException
+    {
+        try
+        {
+            aWriteQueue.flush();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing tiles");
+        }
+    }
+
+    /*
+     * Records a tile that was written to the cache in the index, if any,
+     * and in the statistics.
+     */
+    private void tileWritten(TileCacheIndex pIndex, long pKey, long pTime, int pSize, String pTags)
+    {
+        TileCacheIndex.Entry previous = pIndex == null ? null : pIndex.get(pKey);
+        long oldLength = previous == null ? 0 : previous.getSize();
+        if(oldLength == 0 && pSize > 0)
+        {
+            aStatistics.recordInsertion(TileKey.getZoom(pKey), pSize);
+        }
+        else if(pSize > 0)
+        {
+            // The bytes of a replaced shared file may still be linked to
+            aStatistics.recordResize(pSize - (previous.isShared() ? 0 : oldLength));
+        }
+        if(pIndex != null)
+        {
+            pIndex.put(pKey, pTime, pSize, pTags == null ? "" : pTags);
+        }
+        if(aStatistics.getResidentBytes() > aSweeper.getGlobalQuota())
+        {
+            aSweeper.requestSweep();
+        }
+    }
+
+    /*
+     * Marks the two tiles of a hard link as shared in their index, and takes
+     * back the bytes of the new link from the statistics, as they were
+     * recorded when the tile was written.
+     */
+    private void tileLinked(File pFile, File pExisting)
+    {
+        markShared(pExisting);
+        if(markShared(pFile))
+        {
+            aStatistics.recordResize(-pFile.length());
+        }
     }
 
-    private File getSourceCacheDir(TileSource pSource)
+    /*
+     * Marks a tile file as shared in the index of its directory. Returns
+     * false if the directory has no index or the file is not a tile file.
+     */
+    private boolean markShared(File pFile)
+    {
+        long key = TileCacheLayout.getKey(pFile);
+        TileCacheIndex index = getDirectoryIndex(TileCacheLayout.getDirectory(pFile));
+        if(key < 0 || index == null || index.get(key) == null)
+        {
+            return false;
+        }
+        index.markShared(key);
+        return true;
+    }
+
+    private synchronized TileCacheIndex getDirectoryIndex(File pDirectory)
+    {
+        for(Entry<TileSource, File> entry : aSourceCacheDirMap.entrySet())
+        {
+            if(entry.getValue().equals(pDirectory))
+            {
+                return aSourceIndexMap.get(entry.getKey());
+            }
+        }
+        return null;
+    }
+
+    private synchronized File getSourceCacheDir(TileSource pSource)
     {
         File dir = aSourceCacheDirMap.get(pSource);
         if (dir == null) 
@@ -165,171 +529,565 @@ public class OsmFileCacheTileLoader extends OsmTileLoader
             {
                 dir.mkdirs();
             }
+            TileCacheLayout.migrate(dir);
+            aSourceCacheDirMap.put(pSource, dir);
+            TileCacheIndex index = openIndex(dir, pSource.getTileType());
+            aSourceIndexMap.put(pSource, index);
+            if(index != null)
+            {
+                aSweeper.addDirectory(dir, index, pSource.getTileType());
+            }
         }
         return dir;
     }
+
+    /*
+     * Returns the index of a source once its directory was obtained, or null if
+     * the index cannot be used, in which case the cached tiles are ignored.
+     */
+    private synchronized TileCacheIndex getSourceIndex(TileSource pSource)
+    {
+        return aSourceIndexMap.get(pSource);
+    }
+
+    /**
+     * The keys of the tiles in an index. The packed key of a tile cannot be
+     * used since source identifiers are assigned anew in each session.
+     */
+    private static long getIndexKey(Tile pTile)
+    {
+        return TileKey.pack(0, pTile.getXtile(), pTile.getYtile(), pTile.getZoom());
+    }
+
+    /*
+     * Opens the index of a directory, filling it from the files of the
+     * directory the first time. The tiles are recorded in the statistics,
+     * counting once the image files shared by several tiles.
+     */
+    private TileCacheIndex openIndex(File pDirectory, String pTileType)
+    {
+        TileCacheIndex index;
+        try
+        {
+            index = new TileCacheIndex(new File(pDirectory, INDEX_FILE_NAME));
+        }
+        catch(IOException e)
+        {
+            LOGGER.log(Level.WARNING, "Cannot open tile cache index in " + pDirectory, e);
+            return null;
+        }
+        if(index.isNew())
+        {
+            LOGGER.info("Indexing tile cache directory " + pDirectory);
+            fillIndex(pDirectory, index);
+            index.markFilled();
+        }
+        Set<Object> sharedFiles = new HashSet<Object>();
+        for(long key : index.keys())
+        {
+            TileCacheIndex.Entry entry = index.get(key);
+            if(entry.getSize() == 0)
+            {
+                continue;
+            }
+            int zoom = TileKey.getZoom(key);
+            if(entry.isShared() && !sharedFiles.add(TileCacheLayout.getFileKey(TileCacheLayout.getFile(pDirectory, zoom,
+                    TileKey.getXtile(key), TileKey.getYtile(key), "." + pTileType))))
+            {
+                aStatistics.recordInsertion(zoom, 0);
+            }
+            else
+            {
+                aStatistics.recordInsertion(zoom, entry.getSize());
+            }
+        }
+        return index;
+    }
+
+    private static void fillIndex(final File pDirectory, final TileCacheIndex pIndex)
+    {
+        TileCacheLayout.visitFiles(pDirectory, new TileCacheLayout.TileFileVisitor()
+        {
+            @Override
+            public void visit(File pFile, int pZoom, int pX, int pY, String pExtension)
+            {
+                if(pExtension.equals(ETAG_FILE_EXT))
+                {
+                    return;
+                }
+                long key = TileKey.pack(0, pX, pY, pZoom);
+                String tags = readTags(TileCacheLayout.getFile(pDirectory, pZoom, pX, pY, TAGS_FILE_EXT),
+                        TileCacheLayout.getFile(pDirectory, pZoom, pX, pY, ETAG_FILE_EXT));
+                if(!pExtension.equals(TAGS_FILE_EXT))
+                {
+                    pIndex.put(key, pFile.lastModified(), (int) pFile.length(), tags);
+                    if(TileCacheLayout.getLinkCount(pFile) > 1)
+                    {
+                        pIndex.markShared(key);
+                    }
+                }
+                else if(tags.contains("tile-info=no-tile"))
+                {
+                    pIndex.put(key, pFile.lastModified(), 0, tags);
+                }
+            }
+        });
+    }
+
+    /*
+     * Returns the content of the tags file of a tile, including the
+     * tag of a legacy ETag file, with one tag per line.
+     */
+    private static String readTags(File pTagsFile, File pETagFile)
+    {
+        StringBuilder tags = new StringBuilder();
+        try
+        {
+            if(pTagsFile.exists())
+            {
+                for(String line : Files.readAllLines(pTagsFile.toPath(), TAGS_CHARSET))
+                {
+                    tags.append(line).append('\n');
+                }
+            }
+            if(pETagFile.exists())
+            {
+                tags.append("etag=").append(new String(Files.readAllBytes(pETagFile.toPath()), TAGS_CHARSET)).append('\n');
+            }
+        }
+        catch(IOException e)
+        {
+            LOGGER.warning("Failed to read tile tags: " + e.getMessage());
+        }
+        return tags.toString();
+    }
     
-    private class FileLoadJob implements TileJob 
+    private class FileLoadJob extends CancellableJob 
     {
-        private InputStream aInput = null;
         private Tile aTile;
+        private final boolean aSeeding;
         private File aTileCacheDir;
+        private TileCacheIndex aIndex;
         private File aTileFile = null;
         private long aFileAge = 0;
+        // The image read from the cache, until it is decoded
+        private byte[] aFileData = null;
         private boolean aFileTilePainted = false;
+        // Set once the job has gone through the disk stage
+        private boolean aLookedUp = false;
+        private boolean aRevalidation = false;
 
-        public FileLoadJob(Tile pTile) 
+        public FileLoadJob(Tile pTile, boolean pSeeding) 
         {
+            super(pTile);
             aTile = pTile;
-        }
-
-        public Tile getTile() 
-        {
-            return aTile;
+            aSeeding = pSeeding;
         }
 
         public void run() 
         {
-            synchronized (aTile)
+            if(resume())
             {
-                if((aTile.isLoaded() && !aTile.isError()) || aTile.isLoading())
+                if(isCancelled())
                 {
                     return;
                 }
-                aTile.setLoaded(false);
-                aTile.setError(false);
-                aTile.setLoading(true);
+                if(aLookedUp)
+                {
+                    fetchTile();
+                }
+                else
+                {
+                    readTile();
+                }
+                return;
             }
-            aTileCacheDir = getSourceCacheDir(aTile.getSource());
-            if(loadTileFromFile()) 
+            if(!startLoading())
+            {
+                return;
+            }
+            if(!aSeeding && loadTileFromMemory())
+            {
+                return;
+            }
+            readTile();
+        }
+
+        /*
+         * Hands the tile to the disk stage. Called by the thread of the job.
+         */
+        private void readTile()
+        {
+            enter(TilePipeline.Stage.DISK, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    lookUpTile();
+                }
+            });
+        }
+
+        /*
+         * Hands a task to a stage from the thread of the job, which does not
+         * wait if the stage is full: the job is then queued again once the
+         * stage has room, and offers the task again when its turn comes.
+         */
+        private void enter(TilePipeline.Stage pStage, Runnable pTask)
+        {
+            if(aSeeding)
             {
+                pTask.run();
                 return;
             }
-            if(aFileTilePainted) 
+            aPipeline.offer(pStage, pTask, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    requeue(aRevalidation);
+                }
+            });
+        }
+
+        /*
+         * Returns the executor of a stage of the pipeline. The stages of the
+         * seeding jobs run in the thread of the job.
+         */
+        private Executor stage(TilePipeline.Stage pStage)
+        {
+            if(aSeeding)
+            {
+                return DIRECT_EXECUTOR;
+            }
+            return aPipeline.getExecutor(pStage);
+        }
+
+        /*
+         * Returns the executor of the decode stage for the end of a fetch. The
+         * end of a cancelled fetch only leaves the tile unloaded, and runs in
+         * the thread that completed it, which may be the one that cancelled
+         * the job, instead of waiting behind the tiles queued for decoding.
+         */
+        private Executor finishStage()
+        {
+            final Executor stage = stage(TilePipeline.Stage.DECODE);
+            return new Executor()
             {
-                TileJob job = new TileJob() 
+                @Override
+                public void execute(Runnable pTask)
                 {
-                    public void run() 
+                    if(isCancelled())
                     {
-                        loadOrUpdateTile();
+                        pTask.run();
                     }
-                    public Tile getTile() 
+                    else
                     {
-                        return aTile;
+                        stage.execute(pTask);
                     }
-                };
-                JobDispatcher.getInstance().addJob(job);
-            } 
-            else
+                }
+            };
+        }
+
+        /*
+         * Runs in the disk stage. A tile found in the cache goes on to the
+         * decode stage, the others to the network stage.
+         */
+        private void lookUpTile()
+        {
+            if(isCancelled())
+            {
+                return;
+            }
+            aLookedUp = true;
+            aTileCacheDir = getSourceCacheDir(aTile.getSource());
+            aIndex = getSourceIndex(aTile.getSource());
+            if(!loadTileFromFile()) 
+            {
+                fetchLater();
+                return;
+            }
+            stage(TilePipeline.Stage.DECODE).execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    showFileTile();
+                }
+            });
+        }
+
+        /*
+         * Runs in the decode stage: shows the copy of the tile read from the
+         * cache, then has it validated if it is old.
+         */
+        private void showFileTile()
+        {
+            if(isCancelled())
+            {
+                return;
+            }
+            if(aFileData != null)
+            {
+                try
+                {
+                    loadTileImage(aTile, aFileData);
+                }
+                catch(IOException | RuntimeException e)
+                {
+                    // The file is damaged
+                    deleteTileFile();
+                    aIndex.remove(getIndexKey(aTile));
+                    aTileFile = null;
+                    aFileAge = 0;
+                    fetchLater();
+                    return;
+                }
+                finally
+                {
+                    aFileData = null;
+                }
+            }
+            aFileTilePainted = true;
+            if(System.currentTimeMillis() - aFileAge <= MAX_CACHE_FILE_AGE) 
+            {
+                aTile.setLoaded(true);
+                aTile.setLoading(false);
+                aListener.tileLoadingFinished(aTile, true);
+                return;
+            }
+            aListener.tileLoadingFinished(aTile, true);
+            if(aSeeding) 
             {
                 loadOrUpdateTile();
+                return;
+            }
+            aRevalidation = true;
+            requeue(true);
+        }
+
+        /*
+         * Has the tile downloaded from a stage other than the network stage.
+         * The stage does not wait for the network stage: the job is queued
+         * again, and hands the tile to the network stage when its turn comes.
+         */
+        private void fetchLater()
+        {
+            if(aSeeding)
+            {
+                fetchTile();
+                return;
             }
+            requeue(false);
         }
 
+        /*
+         * Hands the tile to the network stage. Called by the thread of the job.
+         */
+        private void fetchTile()
+        {
+            enter(TilePipeline.Stage.NETWORK, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    loadOrUpdateTile();
+                }
+            });
+        }
+
+        /*
+         * A tile without a local copy is downloaded unconditionally, which can
+         * be shared with the other requests for it. A local copy is validated
+         * with a conditional request of its own, unless the tile is already
+         * being downloaded.
+         */
         private void loadOrUpdateTile() 
         {
+            CompletableFuture<TileFetchRegistry.Fetch> fetch = openRequest();
+            CompletableFuture<TileFetchRegistry.Fetch> done = fetch.whenCompleteAsync(new BiConsumer<TileFetchRegistry.Fetch, Throwable>()
+            {
+                @Override
+                public void accept(TileFetchRegistry.Fetch pFetch, Throwable pFailure)
+                {
+                    finishLoading(pFetch, TileFetchRegistry.unwrap(pFailure));
+                }
+            }, finishStage());
             try
             {
-                URLConnection urlConn = loadTileFromOsm(aTile);
-                if(aTileFile != null) 
+                if(aTileFile == null)
                 {
-                    switch(aTile.getSource().getTileUpdate()) 
+                    fetchShared(aTile, fetch, limit(new Callable<TileFetchRegistry.Fetch>()
                     {
-                    case IfModifiedSince:
-                        urlConn.setIfModifiedSince(aFileAge);
-                        break;
-                    case LastModified:
-                        if (!isOsmTileNewer(aFileAge)) 
+                        @Override
+                        public TileFetchRegistry.Fetch call() throws Exception
                         {
-                            LOGGER.finest("LastModified test: local version is up to date: " + aTile);
-                            aTile.setLoaded(true);
-                            aTileFile.setLastModified(System.currentTimeMillis() - MAX_CACHE_FILE_AGE + aRecheckAfter);
-                            return;
+                            return downloadTile(connect());
                         }
-                        break;
-                    case None:
-                    	break;
-                    case IfNoneMatch:
-                    	break;
-                    case ETag:
-                    	break;
-                    }
-                    
+                    }, aPipeline.getExecutor(TilePipeline.Stage.NETWORK)), getDisconnect());
                 }
-                if (aTile.getSource().getTileUpdate() == TileUpdate.ETag || aTile.getSource().getTileUpdate() == TileUpdate.IfNoneMatch) 
+                else
                 {
-                    String fileETag = aTile.getValue("etag");
-                    if (fileETag != null) 
+                    TileFetchRegistry registry = getFetchRegistry();
+                    if(registry == null || !registry.attach(aTile.getUrl(), fetch))
                     {
-                        switch (aTile.getSource().getTileUpdate()) 
+                        fetchUnshared(aTile, fetch, limit(new Callable<TileFetchRegistry.Fetch>()
                         {
-                        case IfNoneMatch:
-                            urlConn.addRequestProperty("If-None-Match", fileETag);
-                            break;
-                        case ETag:
-                            if (hasOsmTileETag(fileETag)) 
+                            @Override
+                            public TileFetchRegistry.Fetch call() throws Exception
                             {
-                                aTile.setLoaded(true);
-                                aTileFile.setLastModified(System.currentTimeMillis() - MAX_CACHE_FILE_AGE
-                                        + aRecheckAfter);
-                                return;
+                                return validateTile();
                             }
-                        }
+                        }, aPipeline.getExecutor(TilePipeline.Stage.NETWORK)), getDisconnect());
                     }
-                    aTile.putValue("etag", urlConn.getHeaderField("ETag"));
                 }
-                if (urlConn instanceof HttpURLConnection && ((HttpURLConnection)urlConn).getResponseCode() == 304) 
+            }
+            catch(IOException e)
+            {
+                fetch.completeExceptionally(e);
+            }
+            if(aSeeding)
+            {
+                try
                 {
-                    // If we are isModifiedSince or If-None-Match has been set
-                    // and the server answers with a HTTP 304 = "Not Modified"
-                    LOGGER.finest("ETag test: local version is up to date: " + aTile);
-                    aTile.setLoaded(true);
-                    aTileFile.setLastModified(System.currentTimeMillis() - MAX_CACHE_FILE_AGE + aRecheckAfter);
-                    return;
+                    done.join();
                 }
+                catch(CompletionException | CancellationException e)
+                {
+                    // Already reported by finishLoading
+                }
+            }
+        }
 
-                loadTileMetadata(aTile, urlConn);
-                saveTagsToFile();
-
-                if ("no-tile".equals(aTile.getValue("tile-info")))
+        /*
+         * Sends a conditional request for the tile. Returns null if the local
+         * copy is up to date.
+         */
+        private TileFetchRegistry.Fetch validateTile() throws IOException
+        {
+            URLConnection urlConn = connect();
+            switch(aTile.getSource().getTileUpdate()) 
+            {
+            case IfModifiedSince:
+                urlConn.setIfModifiedSince(aFileAge);
+                break;
+            case LastModified:
+                if (!isOsmTileNewer(aFileAge)) 
                 {
-                    aTile.setError();
-                    aListener.tileLoadingFinished(aTile, true);
-                } 
-                else 
+                    LOGGER.finest("LastModified test: local version is up to date: " + aTile);
+                    markValidated();
+                    return null;
+                }
+                break;
+            case None:
+            	break;
+            case IfNoneMatch:
+            	break;
+            case ETag:
+            	break;
+            }
+            String fileETag = aTile.getValue("etag");
+            if (fileETag != null) 
+            {
+                switch (aTile.getSource().getTileUpdate()) 
                 {
-                    for(int i = 0; i < 5; ++i) 
+                case IfNoneMatch:
+                    urlConn.addRequestProperty("If-None-Match", fileETag);
+                    break;
+                case ETag:
+                    if (hasOsmTileETag(fileETag)) 
                     {
-                        if (urlConn instanceof HttpURLConnection && ((HttpURLConnection)urlConn).getResponseCode() == 503)
-                        {
-                            Thread.sleep(5000+(new Random()).nextInt(5000));
-                            continue;
-                        }
-                        byte[] buffer = loadTileInBuffer(urlConn);
-                        if (buffer != null) 
-                        {
-                            aTile.loadImage(new ByteArrayInputStream(buffer));
-                            aTile.setLoaded(true);
-                            aListener.tileLoadingFinished(aTile, true);
-                            saveTileToFile(buffer);
-                            break;
-                        }
+                        markValidated();
+                        return null;
                     }
+                    break;
+                default:
+                    break;
+                }
+            }
+            if (urlConn instanceof HttpURLConnection && ((HttpURLConnection)urlConn).getResponseCode() == 304) 
+            {
+                // If we are isModifiedSince or If-None-Match has been set
+                // and the server answers with a HTTP 304 = "Not Modified"
+                LOGGER.finest("ETag test: local version is up to date: " + aTile);
+                markValidated();
+                return null;
+            }
+            return downloadTile(urlConn);
+        }
+
+        /*
+         * Reads the response to a request for the tile.
+         */
+        private TileFetchRegistry.Fetch downloadTile(URLConnection pUrlConnection) throws IOException
+        {
+            TileUpdate update = aTile.getSource().getTileUpdate();
+            if (update == TileUpdate.ETag || update == TileUpdate.IfNoneMatch) 
+            {
+                aTile.putValue("etag", pUrlConnection.getHeaderField("ETag"));
+            }
+            checkServerBusy(pUrlConnection);
+            loadTileMetadata(aTile, pUrlConnection);
+            if ("no-tile".equals(aTile.getValue("tile-info")))
+            {
+                return new TileFetchRegistry.Fetch(null, aTile.getMetadata());
+            }
+            byte[] buffer = loadTileInBuffer(pUrlConnection);
+            if (buffer == null) 
+            {
+                throw new IOException("Empty tile");
+            }
+            return new TileFetchRegistry.Fetch(buffer, aTile.getMetadata());
+        }
+
+        /*
+         * Runs in the decode stage: loads the tile fetched, if any, notifies
+         * the listener, and hands the tile to the write queue.
+         */
+        private void finishLoading(TileFetchRegistry.Fetch pFetch, Throwable pFailure)
+        {
+            if(isCancelled())
+            {
+                aTile.setLoading(false);
+                return;
+            }
+            // The seeder counts the tiles that failed, and retries them when resumed
+            if(!aSeeding && retryLater(pFailure))
+            {
+                return;
+            }
+            if(pFailure instanceof TileSourceUnavailableException)
+            {
+                // The old copy of the tile, or its placeholder, is kept, and the
+                // tile is left unloaded so that it is requested again later
+                aTile.setLoading(false);
+                aListener.tileLoadingFinished(aTile, false);
+                return;
+            }
+            try
+            {
+                if(pFailure != null)
+                {
+                    throw pFailure;
+                }
+                if(pFetch != null)
+                {
+                    loadFetchedTile(aTile, pFetch);
+                    aTile.setLoaded(true);
+                    aListener.tileLoadingFinished(aTile, true);
+                    saveToFile(pFetch.getData());
                 }
             } 
-            catch (Exception e) 
+            catch (Throwable e) 
             {
                 aTile.setError();
                 aListener.tileLoadingFinished(aTile, false);
-                if (aInput == null) 
+                try 
+                {
+                    System.err.println("Failed loading " + aTile.getUrl() +": " + e.getMessage());
+                }
+                catch(IOException i) 
                 {
-                    try 
-                    {
-                        System.err.println("Failed loading " + aTile.getUrl() +": " + e.getMessage());
-                    }
-                    catch(IOException i) 
-                    {
-                    }
                 }
             } 
             finally 
@@ -339,50 +1097,86 @@ public class OsmFileCacheTileLoader extends OsmTileLoader
             }
         }
 
+        private boolean loadTileFromMemory()
+        {
+            try
+            {
+                if(loadTileFromCompressedTier(aTile))
+                {
+                    aTile.setLoaded(true);
+                    aTile.setLoading(false);
+                    aListener.tileLoadingFinished(aTile, true);
+                    return true;
+                }
+            }
+            catch(IOException e)
+            {
+                LOGGER.warning("Failed to decode stored tile " + aTile + ": " + e.getMessage());
+            }
+            return false;
+        }
+
+        /*
+         * Reads the tile into aFileData, which stays null if the server has
+         * no tile. Only the tiles in the index are looked up, so a tile absent
+         * from the cache costs no file system access. The age and tags of the
+         * tile are also taken from the index, unless the tags did not fit in it.
+         */
         protected boolean loadTileFromFile()
         {
+            long start = System.nanoTime();
+            TileCacheIndex.Entry entry = aIndex == null ? null : aIndex.get(getIndexKey(aTile));
+            if(entry == null)
+            {
+                aStatistics.recordMiss(System.nanoTime() - start);
+                return false;
+            }
             FileInputStream fin = null;
             try 
             {
                 aTileFile = getTileFile();
-                if(!aTileFile.exists())
+                if(entry.getTags() == null)
                 {
-                    return false;
+                    loadTagsFromFile();
+                }
+                else
+                {
+                    loadTags(entry.getTags());
                 }
-
-                loadTagsFromFile();
                 if ("no-tile".equals(aTile.getValue("tile-info")))
                 {
                     aTile.setError();
-                    if (aTileFile.exists()) 
+                    if (entry.getSize() > 0) 
                     {
-                        aTileFile.delete();
+                        deleteTileFile();
+                        indexTile(0, formatTags());
                     }
                     aTileFile = getTagsFile();
                 } 
                 else 
                 {
-                    fin = new FileInputStream(aTileFile);
-                    if (fin.available() == 0)
+                    TileResources.Permit permit = acquire(TileResources.Resource.DISK, aTile);
+                    try
+                    {
+                        fin = new FileInputStream(aTileFile);
+                        if (fin.available() == 0)
+                        {
+                        	fin.close();
+                            throw new IOException("File empty");
+                        }
+                        aFileData = TileBuffers.read(fin, aTileFile.length());
+                        fin.close();
+                    }
+                    finally
                     {
-                    	fin.close();
-                        throw new IOException("File empty");
+                        permit.close();
                     }
-                    aTile.loadImage(fin);
-                    fin.close();
                 }
 
-                aFileAge = aTileFile.lastModified();
-                boolean oldTile = System.currentTimeMillis() - aFileAge > MAX_CACHE_FILE_AGE;
-                if(!oldTile) 
-                {
-                    aTile.setLoaded(true);
-                    aListener.tileLoadingFinished(aTile, true);
-                    aFileTilePainted = true;
-                    return true;
-                }
-                aListener.tileLoadingFinished(aTile, true);
-                aFileTilePainted = true;
+                aFileAge = entry.getTime();
+                aIndex.setAccessTime(getIndexKey(aTile), System.currentTimeMillis());
+                aStatistics.recordHit(System.nanoTime() - start);
+                return true;
             } 
             catch(Exception e) 
             {
@@ -391,42 +1185,39 @@ public class OsmFileCacheTileLoader extends OsmTileLoader
                     if (fin != null) 
                     {
                         fin.close();
-                        aTileFile.delete();
+                        deleteTileFile();
                     }
                 } 
                 catch (Exception e1) 
                 {
                 }
+                // The file is damaged or was deleted by someone else
+                aIndex.remove(getIndexKey(aTile));
+                aStatistics.recordMiss(System.nanoTime() - start);
                 aTileFile = null;
                 aFileAge = 0;
+                aFileData = null;
             }
             return false;
         }
 
         protected byte[] loadTileInBuffer(URLConnection pUrlConnection) throws IOException 
         {
-            aInput = pUrlConnection.getInputStream();
-            ByteArrayOutputStream bout = new ByteArrayOutputStream(aInput.available());
-            byte[] buffer = new byte[2048];
-            boolean finished = false;
-            do 
+            InputStream input = pUrlConnection.getInputStream();
+            byte[] data;
+            try
             {
-                int read = aInput.read(buffer);
-                if (read >= 0) 
-                {
-                    bout.write(buffer, 0, read);
-                } 
-                else 
-                {
-                    finished = true;
-                }
-            } 
-            while (!finished);
-            if(bout.size() == 0)
+                data = TileBuffers.read(input, pUrlConnection.getContentLengthLong());
+            }
+            finally
+            {
+                input.close();
+            }
+            if(data.length == 0)
             {
                 return null;
             }
-            return bout.toByteArray();
+            return data;
         }
 
         /**
@@ -479,60 +1270,94 @@ public class OsmFileCacheTileLoader extends OsmTileLoader
 
         private File getTileFile()
         {
-            return new File(aTileCacheDir + "/" + aTile.getZoom() + "_" + aTile.getXtile() + "_" + aTile.getYtile() + "."
-                    + aTile.getSource().getTileType());
+            return TileCacheLayout.getFile(aTileCacheDir, aTile.getZoom(), aTile.getXtile(), aTile.getYtile(),
+                    "." + aTile.getSource().getTileType());
         }
 
-        private File getTagsFile() 
+        private void deleteTileFile()
         {
-            return new File(aTileCacheDir + "/" + aTile.getZoom() + "_" + aTile.getXtile() + "_" + aTile.getYtile()
-                    + TAGS_FILE_EXT);
+            long length = TileCacheLayout.getLinkCount(aTileFile) > 1 ? 0 : aTileFile.length();
+            if(aTileFile.delete())
+            {
+                aStatistics.recordEviction(aTile.getZoom(), length);
+            }
         }
 
-        private void saveTileToFile(byte[] pRawData) 
+        /*
+         * Records the tile in the index, with the current time
+         * as the time at which it was loaded.
+         */
+        private void indexTile(int pSize, String pTags)
         {
-            try
+            if(aIndex != null)
             {
-                FileOutputStream f = new FileOutputStream(aTileCacheDir + "/" + aTile.getZoom() + "_" + aTile.getXtile()
-                        + "_" + aTile.getYtile() + "." + aTile.getSource().getTileType());
-                f.write(pRawData);
-                f.close();
-            } 
-            catch (Exception e) 
+                aIndex.put(getIndexKey(aTile), System.currentTimeMillis(), pSize, pTags == null ? "" : pTags);
+            }
+        }
+
+        /*
+         * Returns the tags of the tile, one per line, or null if it has none.
+         */
+        private String formatTags()
+        {
+            if(aTile.getMetadata() == null)
+            {
+                return null;
+            }
+            StringBuilder tags = new StringBuilder();
+            for(Entry<String, String> entry : aTile.getMetadata().entrySet())
             {
-                System.err.println("Failed to save tile content: " + e.getLocalizedMessage());
+                tags.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
             }
+            return tags.toString();
         }
 
-        private void saveTagsToFile()
+        /*
+         * Postpones the next check of a tile that was found up to date. The
+         * time is kept in the index, so that the modification time of an image
+         * file shared with other tiles is left alone; it is set on the file
+         * only when there is no index, and the file is not shared.
+         */
+        private void markValidated()
         {
-            File tagsFile = getTagsFile();
-            if (aTile.getMetadata() == null) 
+            long time = System.currentTimeMillis() - MAX_CACHE_FILE_AGE + aRecheckAfter;
+            if(aIndex != null)
             {
-                tagsFile.delete();
-                return;
+                aIndex.setTime(getIndexKey(aTile), time);
             }
-            try 
+            else if(TileCacheLayout.getLinkCount(aTileFile) <= 1)
             {
-                final PrintWriter f = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tagsFile),
-                        TAGS_CHARSET));
-                for (Entry<String, String> entry : aTile.getMetadata().entrySet()) 
+                aTileFile.setLastModified(time);
+            }
+        }
+
+        private File getTagsFile() 
+        {
+            return TileCacheLayout.getFile(aTileCacheDir, aTile.getZoom(), aTile.getXtile(), aTile.getYtile(), TAGS_FILE_EXT);
+        }
+
+        /*
+         * Hands the image, if any, and the tags of the tile to the write queue.
+         * The index and the statistics are updated once the files are written.
+         */
+        private void saveToFile(final byte[] pRawData)
+        {
+            final String tags = formatTags();
+            aWriteQueue.write(getTileFile(), pRawData, getTagsFile(), tags, new Runnable()
+            {
+                @Override
+                public void run()
                 {
-                    f.println(entry.getKey() + "=" + entry.getValue());
+                    tileWritten(aIndex, getIndexKey(aTile), System.currentTimeMillis(), pRawData == null ? 0 : pRawData.length, tags);
                 }
-                f.close();
-            } 
-            catch (Exception e) 
-            {
-                System.err.println("Failed to save tile tags: " + e.getLocalizedMessage());
-            }
+            });
         }
 
         /** Load backward-compatiblity .etag file and if it exists move it to new .tags file. */
         private void loadOldETagfromFile() 
         {
-            File etagFile = new File(aTileCacheDir, aTile.getZoom() + "_"
-                    + aTile.getXtile() + "_" + aTile.getYtile() + ETAG_FILE_EXT);
+            File etagFile = TileCacheLayout.getFile(aTileCacheDir, aTile.getZoom(), aTile.getXtile(), aTile.getYtile(),
+                    ETAG_FILE_EXT);
             if(!etagFile.exists())
             {
             	return;
@@ -547,7 +1372,7 @@ public class OsmFileCacheTileLoader extends OsmTileLoader
                 aTile.putValue("etag", etag);
                 if (etagFile.delete()) 
                 {
-                    saveTagsToFile();
+                    aWriteQueue.write(getTileFile(), null, getTagsFile(), formatTags(), null);
                 }
             } 
             catch(IOException e) 
@@ -556,6 +1381,18 @@ public class OsmFileCacheTileLoader extends OsmTileLoader
             }
         }
 
+        private void loadTags(String pTags)
+        {
+            for(String line : pTags.split("\n"))
+            {
+                int i = line.indexOf('=');
+                if(i > 0)
+                {
+                    aTile.putValue(line.substring(0, i), line.substring(i + 1));
+                }
+            }
+        }
+
         private void loadTagsFromFile() 
         {
             loadOldETagfromFile();
@@ -584,6 +1421,5 @@ public class OsmFileCacheTileLoader extends OsmTileLoader
                 System.err.println("Failed to load tile tags: " + e.getLocalizedMessage());
             }
         }
-
     }
 }
@@ -25,18 +25,55 @@ import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.http.HttpHeaders;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 /**
  * A {@link TileLoader} implementation that loads tiles from OSM.
+ * Downloads go through a {@link TileFetchRegistry}, so that a tile
+ * requested again while it is downloading is downloaded only once.
+ * A tile whose server is busy is requested again later by a
+ * {@link TileRetryScheduler}, and a tile source that keeps failing is
+ * not requested for a while, as decided by a {@link TileCircuitBreaker}.
+ * The connections, the reading of files and the decoding of images are
+ * limited by {@link TileResources}, whatever the number of threads loading tiles,
+ * and the requests sent to each server by a {@link TileRequestLimiter}. A job
+ * does not wait for the limiter: a request that has to wait is sent by
+ * another thread once the limiter allows it.
  *
  * @author Jan Peter Stotz
  */
 public class OsmTileLoader implements TileLoader
 {
 	private static final int READ_TIMEOUT = 30000;
+	private static final String CAPTURE_DATES_HEADER = "X-VE-TILEMETA-CaptureDatesRange";
+	private static final String TILE_INFO_HEADER = "X-VE-Tile-Info";
+
+    // Sends the requests of the jobs that had to wait for the request limiter
+    private static final Executor REQUEST_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        private final AtomicInteger aCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable pRunnable)
+        {
+            Thread thread = new Thread(pRunnable, "Tile requester " + aCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
 	protected TileLoaderListener aListener;
     
@@ -44,6 +81,12 @@ public class OsmTileLoader implements TileLoader
 	private Map<String, String> aHeaders = new HashMap<>();
     private int aTimeoutConnect = 0;
     private int aTimeoutRead = 0;
+    private OffHeapTileStore aCompressedTier = null;
+    private volatile TileFetchRegistry aFetchRegistry = TileFetchRegistry.getDefault();
+    private volatile TileRetryScheduler aRetryScheduler = TileRetryScheduler.getDefault();
+    private volatile TileCircuitBreaker aCircuitBreaker = TileCircuitBreaker.getDefault();
+    private volatile TileResources aResources = TileResources.getDefault();
+    private volatile TileRequestLimiter aLimiter = TileRequestLimiter.getDefault();
 
     /**
      * New tile loader with a single listener.
@@ -61,6 +104,465 @@ public class OsmTileLoader implements TileLoader
     	return new TileLoaderJob(pTile);
     }
 
+    /**
+     * Sets the store in which the encoded bytes of loaded tiles are kept.
+     * Tiles found in this store are decoded from it instead of being loaded
+     * from their original location.
+     * @param pStore The store, or null to not keep the encoded tiles.
+     */
+    public void setCompressedTileStore(OffHeapTileStore pStore)
+    {
+        aCompressedTier = pStore;
+    }
+
+    /**
+     * @return The registry of the downloads in flight, or null if they are not shared.
+     */
+    public TileFetchRegistry getFetchRegistry()
+    {
+        return aFetchRegistry;
+    }
+
+    /**
+     * Sets the registry through which the downloads of this loader are shared
+     * with the other requests for the same tiles.
+     * @param pRegistry The registry, or null to not share the downloads.
+     */
+    public void setFetchRegistry(TileFetchRegistry pRegistry)
+    {
+        aFetchRegistry = pRegistry;
+    }
+
+    /**
+     * @return The scheduler of the tiles to request again, or null if they are not retried.
+     */
+    public TileRetryScheduler getRetryScheduler()
+    {
+        return aRetryScheduler;
+    }
+
+    /**
+     * @param pScheduler The scheduler of the tiles to request again when their
+     *     server is busy, or null to not retry them.
+     */
+    public void setRetryScheduler(TileRetryScheduler pScheduler)
+    {
+        aRetryScheduler = pScheduler;
+    }
+
+    /**
+     * @return The limits on the resources used to load tiles, or null if there are none.
+     */
+    public TileResources getResources()
+    {
+        return aResources;
+    }
+
+    /**
+     * @param pResources The limits on the resources used to load tiles, which
+     *     can be shared between loaders, or null to not limit them.
+     */
+    public void setResources(TileResources pResources)
+    {
+        aResources = pResources;
+    }
+
+    /**
+     * Waits until a resource may be used to load a tile.
+     * @param pResource The resource to use.
+     * @param pTile The tile loaded, whose host is the resource for NETWORK.
+     * @return The permit, to close once the resource is no longer used.
+     * @throws IOException If the thread is interrupted, or the URL of the tile cannot be obtained.
+     */
+    protected TileResources.Permit acquire(TileResources.Resource pResource, Tile pTile) throws IOException
+    {
+        TileResources resources = aResources;
+        if(resources == null)
+        {
+            return TileResources.Permit.unlimited();
+        }
+        String host = null;
+        if(pResource == TileResources.Resource.NETWORK)
+        {
+            host = new URL(pTile.getUrl()).getHost();
+        }
+        return resources.acquire(pResource, host);
+    }
+
+    /**
+     * @return The limiter of the requests, or null if they are not limited.
+     */
+    public TileRequestLimiter getRequestLimiter()
+    {
+        return aLimiter;
+    }
+
+    /**
+     * @param pLimiter The limiter of the requests, which can be shared between
+     *     loaders, or null to not limit them.
+     */
+    public void setRequestLimiter(TileRequestLimiter pLimiter)
+    {
+        aLimiter = pLimiter;
+    }
+
+    /**
+     * @param pTile A tile.
+     * @param pHost The host to which the request for pTile is sent.
+     * @return The key of the request in the limiter: the name of the tile source and the host.
+     */
+    protected static String getLimiterKey(Tile pTile, String pHost)
+    {
+        return pTile.getSource().getName() + "@" + pHost;
+    }
+
+    /**
+     * @return The breaker of the tile sources that keep failing, or null if there is none.
+     */
+    public TileCircuitBreaker getCircuitBreaker()
+    {
+        return aCircuitBreaker;
+    }
+
+    /**
+     * @param pBreaker The breaker of the tile sources that keep failing,
+     *     or null to always request the tiles.
+     */
+    public void setCircuitBreaker(TileCircuitBreaker pBreaker)
+    {
+        aCircuitBreaker = pBreaker;
+    }
+
+    /**
+     * Schedules a job to run again if its tile failed because its server was busy,
+     * or because its source was considered down by the circuit breaker. In the
+     * latter case, the job runs again once the circuit may be probed, and the
+     * retry does not count.
+     * @param pRetry The job loading the tile again.
+     * @param pClient The client of the dispatcher that runs pRetry, or null for the default one.
+     * @param pRetries The number of times the tile was retried already.
+     * @param pFailure The reason why the tile failed.
+     * @return True if the job was scheduled, in which case the tile is still loading.
+     */
+    protected boolean retryLater(TileJob pRetry, JobDispatcher.Client pClient, int pRetries, Throwable pFailure)
+    {
+        TileRetryScheduler scheduler = aRetryScheduler;
+        if(scheduler == null)
+        {
+            return false;
+        }
+        TileCircuitBreaker breaker = aCircuitBreaker;
+        if(pFailure instanceof TileSourceUnavailableException && breaker != null)
+        {
+            scheduler.schedule(pRetry, pClient, breaker.getWaitTime(((TileSourceUnavailableException) pFailure).getSourceName()));
+            return true;
+        }
+        return pFailure instanceof TileServerBusyException
+                && scheduler.retry(pRetry, pClient, pRetries, (TileServerBusyException) pFailure);
+    }
+
+    /**
+     * Checks whether the server of a tile is busy.
+     * @param pUrlConnection The connection for the tile.
+     * @throws TileServerBusyException If the server answered that it is busy.
+     * @throws IOException If the server cannot be reached.
+     */
+    protected static void checkServerBusy(URLConnection pUrlConnection) throws IOException
+    {
+        if(pUrlConnection instanceof HttpURLConnection)
+        {
+            HttpURLConnection connection = (HttpURLConnection) pUrlConnection;
+            if(TileServerBusyException.isBusy(connection.getResponseCode()))
+            {
+                throw new TileServerBusyException(connection.getResponseCode(),
+                        connection.getHeaderField(TileServerBusyException.RETRY_AFTER_HEADER));
+            }
+        }
+    }
+
+    /**
+     * Fetches a tile for a request, or attaches the request to the fetch of its
+     * URL already in flight. Cancelling the request withdraws it, and the fetch
+     * is aborted once it has no request left.
+     * @param pTile The tile to fetch.
+     * @param pRequest The request, completed with the result of the fetch.
+     * @param pFetch Starts the fetch of pTile, called by the calling thread if needed.
+     * @param pAbort Aborts the fetch started by pFetch, or null.
+     * @throws IOException If the URL of the tile cannot be obtained.
+     */
+    protected void fetchShared(Tile pTile, CompletableFuture<TileFetchRegistry.Fetch> pRequest,
+            Supplier<? extends CompletionStage<TileFetchRegistry.Fetch>> pFetch, Runnable pAbort) throws IOException
+    {
+        TileFetchRegistry registry = aFetchRegistry;
+        if(registry == null)
+        {
+            // A registry of its own, so that the fetch is not shared but can still be aborted
+            registry = new TileFetchRegistry();
+        }
+        registry.fetch(pTile.getUrl(), pRequest, guard(pTile, pFetch), pAbort);
+    }
+
+    /**
+     * Fetches a tile synchronously for a request, or attaches the request to the
+     * fetch of its URL already in flight. In the latter case the calling thread
+     * does not wait for the other fetch to complete.
+     * @param pTile The tile to fetch.
+     * @param pRequest The request, completed with the result of the fetch.
+     * @param pDownload Downloads pTile, called by the calling thread if needed.
+     * @param pAbort Aborts the download from another thread, or null.
+     * @throws IOException If the URL of the tile cannot be obtained.
+     */
+    protected void fetchShared(Tile pTile, CompletableFuture<TileFetchRegistry.Fetch> pRequest,
+            Callable<TileFetchRegistry.Fetch> pDownload, Runnable pAbort) throws IOException
+    {
+        fetchShared(pTile, pRequest, synchronous(pDownload), pAbort);
+    }
+
+    /**
+     * Fetches a tile synchronously for a request that cannot be shared, for
+     * example because its answer depends on a local copy of the tile.
+     * @param pTile The tile to fetch.
+     * @param pRequest The request, completed with the result of the fetch.
+     * @param pDownload Downloads pTile, called by the calling thread.
+     * @param pAbort Aborts the download from another thread, or null.
+     * @throws IOException If the URL of the tile cannot be obtained.
+     */
+    protected void fetchUnshared(Tile pTile, CompletableFuture<TileFetchRegistry.Fetch> pRequest,
+            Callable<TileFetchRegistry.Fetch> pDownload, Runnable pAbort) throws IOException
+    {
+        fetchUnshared(pTile, pRequest, synchronous(pDownload), pAbort);
+    }
+
+    /**
+     * Fetches a tile for a request that cannot be shared.
+     * @param pTile The tile to fetch.
+     * @param pRequest The request, completed with the result of the fetch.
+     * @param pFetch Starts the fetch of pTile, called by the calling thread.
+     * @param pAbort Aborts the fetch started by pFetch, or null.
+     * @throws IOException If the URL of the tile cannot be obtained.
+     */
+    protected void fetchUnshared(Tile pTile, CompletableFuture<TileFetchRegistry.Fetch> pRequest,
+            Supplier<? extends CompletionStage<TileFetchRegistry.Fetch>> pFetch, Runnable pAbort) throws IOException
+    {
+        new TileFetchRegistry().fetch(pTile.getUrl(), pRequest, guard(pTile, pFetch), pAbort);
+    }
+
+    /**
+     * Makes a fetch go through the circuit breaker of this loader, if there is one:
+     * the fetch fails with a {@link TileSourceUnavailableException} without being
+     * started if the source of the tile is considered down, and its outcome is
+     * recorded otherwise.
+     * @param pTile The tile to fetch.
+     * @param pFetch Starts the fetch of pTile.
+     * @return Starts the fetch of pTile if its source is available.
+     */
+    protected Supplier<CompletionStage<TileFetchRegistry.Fetch>> guard(Tile pTile,
+            final Supplier<? extends CompletionStage<TileFetchRegistry.Fetch>> pFetch)
+    {
+        final TileCircuitBreaker breaker = aCircuitBreaker;
+        final String source = pTile.getSource().getName();
+        return new Supplier<CompletionStage<TileFetchRegistry.Fetch>>()
+        {
+            @Override
+            public CompletionStage<TileFetchRegistry.Fetch> get()
+            {
+                if(breaker == null)
+                {
+                    return pFetch.get();
+                }
+                if(!breaker.allowRequest(source))
+                {
+                    return CompletableFuture.failedFuture(new TileSourceUnavailableException(source));
+                }
+                CompletionStage<TileFetchRegistry.Fetch> fetch;
+                try
+                {
+                    fetch = pFetch.get();
+                }
+                catch(RuntimeException e)
+                {
+                    // Not an answer of the source, but the probe, if this was one, is over
+                    breaker.record(source, new CancellationException());
+                    throw e;
+                }
+                return fetch.whenComplete(new BiConsumer<TileFetchRegistry.Fetch, Throwable>()
+                {
+                    @Override
+                    public void accept(TileFetchRegistry.Fetch pResult, Throwable pFailure)
+                    {
+                        breaker.record(source, pFailure);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @param pDownload Downloads a tile.
+     * @return Calls pDownload in the calling thread and returns its result as a completed stage.
+     */
+    protected static Supplier<CompletionStage<TileFetchRegistry.Fetch>> synchronous(final Callable<TileFetchRegistry.Fetch> pDownload)
+    {
+        return new Supplier<CompletionStage<TileFetchRegistry.Fetch>>()
+        {
+            @Override
+            public CompletionStage<TileFetchRegistry.Fetch> get()
+            {
+                try
+                {
+                    return CompletableFuture.completedFuture(pDownload.call());
+                }
+                catch(Exception e)
+                {
+                    return CompletableFuture.failedFuture(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Loads the result of a fetch into a tile: its metadata, and its image or
+     * the error image if the server has no tile. The encoded image is kept in
+     * the compressed tile store if there is one.
+     * @param pTile The tile fetched.
+     * @param pFetch The result of the fetch of pTile.
+     * @throws IOException If the image cannot be decoded.
+     */
+    protected void loadFetchedTile(Tile pTile, TileFetchRegistry.Fetch pFetch) throws IOException
+    {
+        for(Entry<String, String> entry : pFetch.getMetadata().entrySet())
+        {
+            pTile.putValue(entry.getKey(), entry.getValue());
+        }
+        if(pFetch.getData() == null)
+        {
+            pTile.setError();
+            return;
+        }
+        loadTileImage(pTile, pFetch.getData());
+    }
+
+    /**
+     * Downloads a tile.
+     * @param pTile The tile to download.
+     * @param pUrlConnection The new connection for pTile.
+     * @return The encoded image and the metadata of pTile.
+     * @throws IOException If the tile cannot be downloaded.
+     */
+    protected TileFetchRegistry.Fetch download(Tile pTile, URLConnection pUrlConnection) throws IOException
+    {
+        URLConnection conn = pUrlConnection;
+        checkServerBusy(conn);
+        loadTileMetadata(pTile, conn);
+        if("no-tile".equals(pTile.getValue("tile-info")))
+        {
+            return new TileFetchRegistry.Fetch(null, pTile.getMetadata());
+        }
+        InputStream input = conn.getInputStream();
+        try
+        {
+            return new TileFetchRegistry.Fetch(TileBuffers.read(input, conn.getContentLengthLong()), pTile.getMetadata());
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    /**
+     * Loads the image of a tile from the compressed tile store, if there is one.
+     * @param pTile The tile to load.
+     * @return True if the image of the tile was found in the store.
+     * @throws IOException If the stored image cannot be decoded.
+     */
+    protected boolean loadTileFromCompressedTier(Tile pTile) throws IOException
+    {
+        if(aCompressedTier == null)
+        {
+            return false;
+        }
+        byte[] data = aCompressedTier.get(pTile.getPackedKey());
+        if(data == null)
+        {
+            return false;
+        }
+        decode(pTile, data);
+        return true;
+    }
+
+    /**
+     * Keeps the encoded image of a tile in the compressed tile store, if there is one.
+     * @param pTile The tile that was loaded.
+     * @param pData The encoded image of the tile.
+     */
+    protected void storeInCompressedTier(Tile pTile, byte[] pData)
+    {
+        if(aCompressedTier != null)
+        {
+            aCompressedTier.put(pTile.getPackedKey(), pData, pData.length);
+        }
+    }
+
+    /**
+     * Loads the image of a tile from a stream, keeping the encoded image
+     * in the compressed tile store if there is one.
+     * @param pTile The tile to load.
+     * @param pInput The stream holding the encoded image.
+     * @throws IOException If the image cannot be read.
+     */
+    protected void loadTileImage(Tile pTile, InputStream pInput) throws IOException
+    {
+        loadTileImage(pTile, pInput, -1);
+    }
+
+    /**
+     * Loads the image of a tile from a stream of known length, reading it
+     * directly into an array of that length.
+     * @param pTile The tile to load.
+     * @param pInput The stream holding the encoded image.
+     * @param pLength The length of the encoded image, or a negative value if it is unknown.
+     * @return The encoded image.
+     * @throws IOException If the image cannot be read.
+     */
+    protected byte[] loadTileImage(Tile pTile, InputStream pInput, long pLength) throws IOException
+    {
+        byte[] data = TileBuffers.read(pInput, pLength);
+        loadTileImage(pTile, data);
+        return data;
+    }
+
+    /**
+     * Loads the image of a tile, keeping the encoded image in the compressed
+     * tile store if there is one.
+     * @param pTile The tile to load.
+     * @param pData The encoded image.
+     * @throws IOException If the image cannot be decoded.
+     */
+    protected void loadTileImage(Tile pTile, byte[] pData) throws IOException
+    {
+        decode(pTile, pData);
+        storeInCompressedTier(pTile, pData);
+    }
+
+    /**
+     * Decodes the image of a tile, once the decoder may be used.
+     * @param pTile The tile to load.
+     * @param pData The encoded image.
+     * @throws IOException If the image cannot be decoded.
+     */
+    protected void decode(Tile pTile, byte[] pData) throws IOException
+    {
+        TileResources.Permit permit = acquire(TileResources.Resource.DECODER, pTile);
+        try
+        {
+            pTile.loadImage(pData);
+        }
+        finally
+        {
+            permit.close();
+        }
+    }
+
     /**
      * Load a tile from OSM.
      * @param pTile The tile to load
@@ -87,18 +589,40 @@ public class OsmTileLoader implements TileLoader
      */
     protected void loadTileMetadata(Tile pTile, URLConnection pUrlConnection) 
     {
-        String str = pUrlConnection.getHeaderField("X-VE-TILEMETA-CaptureDatesRange");
-        if (str != null) 
+        putTileMetadata(pTile, pUrlConnection.getHeaderField(CAPTURE_DATES_HEADER), pUrlConnection.getHeaderField(TILE_INFO_HEADER));
+    }
+
+    /**
+     * Load the metadata for the tile from the headers of an HTTP response.
+     * @param pTile The tile
+     * @param pHeaders The headers of the response
+     */
+    protected void loadTileMetadata(Tile pTile, HttpHeaders pHeaders) 
+    {
+        putTileMetadata(pTile, pHeaders.firstValue(CAPTURE_DATES_HEADER).orElse(null),
+                pHeaders.firstValue(TILE_INFO_HEADER).orElse(null));
+    }
+
+    private static void putTileMetadata(Tile pTile, String pCaptureDates, String pTileInfo)
+    {
+        if (pCaptureDates != null) 
         {
-            pTile.putValue("capture-date", str);
+            pTile.putValue("capture-date", pCaptureDates);
         }
-        str = pUrlConnection.getHeaderField("X-VE-Tile-Info");
-        if (str != null) 
+        if (pTileInfo != null) 
         {
-            pTile.putValue("tile-info", str);
+            pTile.putValue("tile-info", pTileInfo);
         }
     }
 
+    /**
+     * @return A copy of the HTTP headers sent with each request for a tile.
+     */
+    protected Map<String, String> getRequestHeaders()
+    {
+        return new HashMap<>(aHeaders);
+    }
+
     /**
      * Prepare the Url Connection.
      * @param pUrlConnection The url connection to prepare.
@@ -125,71 +649,474 @@ public class OsmTileLoader implements TileLoader
         return getClass().getSimpleName();
     }
     
-    private class TileLoaderJob implements TileJob
+    /**
+     * A job that can be cancelled while it loads its tile. Cancelling the job
+     * withdraws its request for the tile, which aborts the fetch if no other
+     * job waits for it, and skips the decoding of the tile. The tile is then
+     * left unloaded, so that it can be requested again.
+     */
+    protected abstract class CancellableJob implements TileJob
     {
-    	private final Tile aTile;
-    	private InputStream aInput = null;
-    	
-    	public TileLoaderJob(Tile pTile)
-    	{
-    		aTile = pTile;
-    	}
+        private final Tile aTile;
+        private volatile boolean aCancelled = false;
+        private volatile boolean aStarted = false;
+        private volatile boolean aResuming = false;
+        private volatile boolean aAborted = false;
+        private int aRetries = 0;
+        private volatile CompletableFuture<TileFetchRegistry.Fetch> aRequest;
+        private volatile CompletableFuture<Void> aRequestPermit;
+        private volatile URLConnection aConnection;
+        private volatile JobDispatcher.Client aClient;
 
-        public void run()
+        /**
+         * @param pTile The tile to load.
+         */
+        protected CancellableJob(Tile pTile)
+        {
+            aTile = pTile;
+        }
+
+        @Override
+        public Tile getTile()
+        {
+            return aTile;
+        }
+
+        @Override
+        public void cancel()
+        {
+            aCancelled = true;
+            CompletableFuture<Void> permit = aRequestPermit;
+            if(permit != null)
+            {
+                permit.cancel(false);
+            }
+            CompletableFuture<TileFetchRegistry.Fetch> request = aRequest;
+            if(aStarted && (request == null || !request.cancel(false)))
+            {
+                // The job is not fetching: it is waiting to be retried, or done
+                aTile.setLoading(false);
+            }
+        }
+
+        /**
+         * Marks the tile as loading, unless the job is cancelled, the tile is
+         * already loaded, or another job is loading it.
+         * @return True if this job is to load the tile.
+         */
+        protected boolean startLoading()
         {
-            synchronized (aTile) 
+            if(aCancelled)
+            {
+                return false;
+            }
+            synchronized (aTile)
             {
-                if ((aTile.isLoaded() && !aTile.isError()) || aTile.isLoading())
+                if((aTile.isLoaded() && !aTile.isError()) || aTile.isLoading())
                 {
-                    return;
+                    return false;
                 }
                 aTile.setLoaded(false);
                 aTile.setError(false);
                 aTile.setLoading(true);
             }
-            try
+            aStarted = true;
+            aClient = JobDispatcher.getCurrentClient();
+            return true;
+        }
+
+        /**
+         * Schedules the job to run again if its tile failed because its server
+         * was busy or its source is considered down. The job keeps its tile, so
+         * that it is ordered and can be cancelled like the other jobs of its client.
+         * @param pFailure The reason why the tile failed.
+         * @return True if the job was scheduled, in which case the tile is still loading.
+         */
+        protected boolean retryLater(Throwable pFailure)
+        {
+            aResuming = true;
+            if(OsmTileLoader.this.retryLater(this, aClient, aRetries, pFailure))
             {
-                URLConnection conn = loadTileFromOsm(aTile);
-                loadTileMetadata(aTile, conn);
-                if ("no-tile".equals(aTile.getValue("tile-info")))
+                if(pFailure instanceof TileServerBusyException)
                 {
-                    aTile.setError();
+                    aRetries++;
                 }
-                else
+                return true;
+            }
+            aResuming = false;
+            return false;
+        }
+
+        /**
+         * Queues the job again in the client that ran it, to go on with the
+         * loading of its tile in order of priority, like the other jobs of
+         * the client. If the job cannot be queued, the tile is left unloaded.
+         * @param pRevalidation True if the job only validates its tile, which is already shown.
+         */
+        protected void requeue(boolean pRevalidation)
+        {
+            aResuming = true;
+            JobDispatcher.Client client = aClient;
+            boolean added;
+            if(client == null)
+            {
+                added = JobDispatcher.getInstance().addJob(this, pRevalidation);
+            }
+            else
+            {
+                added = client.addJob(this, pRevalidation);
+            }
+            if(!added)
+            {
+                aResuming = false;
+                aTile.setLoading(false);
+            }
+        }
+
+        /**
+         * Called when the job runs, before {@link #startLoading()}.
+         * @return True if the job runs again after {@link #retryLater(Throwable)}
+         *     or {@link #requeue(boolean)}, in which case it is to resume the
+         *     loading of its tile unless it was cancelled.
+         */
+        protected boolean resume()
+        {
+            if(!aResuming)
+            {
+                return false;
+            }
+            aResuming = false;
+            return true;
+        }
+
+        /**
+         * @return The client of the dispatcher that started the job, to which the
+         *     jobs that follow it up are added, or null if it was not started by a dispatcher.
+         */
+        protected JobDispatcher.Client getClient()
+        {
+            return aClient;
+        }
+
+        /**
+         * @return True if the job was cancelled.
+         */
+        protected boolean isCancelled()
+        {
+            return aCancelled;
+        }
+
+        /**
+         * @return A new request for the tile, which is cancelled if the job is.
+         */
+        protected CompletableFuture<TileFetchRegistry.Fetch> openRequest()
+        {
+            CompletableFuture<TileFetchRegistry.Fetch> request = new CompletableFuture<TileFetchRegistry.Fetch>();
+            aRequest = request;
+            if(aCancelled)
+            {
+                request.cancel(false);
+            }
+            return request;
+        }
+
+        /**
+         * Makes a request for the tile wait until the request limiter of the
+         * loader and the limit on the connections to the host of the tile
+         * allow it, without making a thread wait for the limiter. Cancelling
+         * the job stops the wait, and the request is not sent if its fetch
+         * was aborted in the meantime.
+         * @param pRequest Sends the request for the tile and reads the response.
+         * @param pExecutor Runs pRequest if it could not be sent at once, in
+         *     place of the thread in which the limiter allows it.
+         * @return Calls pRequest in the calling thread if it may be sent at
+         *     once, otherwise in pExecutor once it may be sent.
+         */
+        protected Supplier<CompletionStage<TileFetchRegistry.Fetch>> limit(final Callable<TileFetchRegistry.Fetch> pRequest,
+                final Executor pExecutor)
+        {
+            return new Supplier<CompletionStage<TileFetchRegistry.Fetch>>()
+            {
+                @Override
+                public CompletionStage<TileFetchRegistry.Fetch> get()
                 {
-                    aInput = conn.getInputStream();
-                    aTile.loadImage(aInput);
-                    aInput.close();
-                    aInput = null;
+                    final TileRequestLimiter limiter = aLimiter;
+                    if(limiter == null)
+                    {
+                        return synchronous(send(pRequest, null)).get();
+                    }
+                    final String key;
+                    try
+                    {
+                        key = getLimiterKey(aTile, new URL(aTile.getUrl()).getHost());
+                    }
+                    catch(IOException e)
+                    {
+                        return CompletableFuture.failedFuture(checkCancelled(e));
+                    }
+                    final Callable<TileFetchRegistry.Fetch> send = send(pRequest, new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            limiter.release(key);
+                        }
+                    });
+                    CompletableFuture<Void> permit = limiter.acquire(key);
+                    aRequestPermit = permit;
+                    if(aCancelled)
+                    {
+                        permit.cancel(false);
+                    }
+                    if(permit.isDone() && !permit.isCompletedExceptionally())
+                    {
+                        return synchronous(send).get();
+                    }
+                    final CompletableFuture<TileFetchRegistry.Fetch> fetch = new CompletableFuture<TileFetchRegistry.Fetch>();
+                    permit.whenComplete(new BiConsumer<Void, Throwable>()
+                    {
+                        @Override
+                        public void accept(Void pPermit, Throwable pFailure)
+                        {
+                            if(pFailure != null)
+                            {
+                                fetch.completeExceptionally(checkCancelled(new IOException("Request for " + aTile + " withdrawn", pFailure)));
+                                return;
+                            }
+                            pExecutor.execute(new Runnable()
+                            {
+                                @Override
+                                public void run()
+                                {
+                                    try
+                                    {
+                                        fetch.complete(send.call());
+                                    }
+                                    catch(Exception e)
+                                    {
+                                        fetch.completeExceptionally(e);
+                                    }
+                                }
+                            });
+                        }
+                    });
+                    return fetch;
                 }
-                aTile.setLoaded(true);
-                aListener.tileLoadingFinished(aTile, true);
-            }
-            catch(IOException e)
+            };
+        }
+
+        /*
+         * Sends a request once the request limiter allowed it, and gives
+         * back the permission of the limiter with pRelease, if not null.
+         */
+        private Callable<TileFetchRegistry.Fetch> send(final Callable<TileFetchRegistry.Fetch> pRequest, final Runnable pRelease)
+        {
+            return new Callable<TileFetchRegistry.Fetch>()
             {
-                aTile.setError();
-                aListener.tileLoadingFinished(aTile, false);
-                if (aInput == null)
+                @Override
+                public TileFetchRegistry.Fetch call() throws Exception
                 {
                     try
                     {
-                        System.err.println("Failed loading " + aTile.getUrl() +": " + e.getMessage());
+                        TileResources.Permit permit = acquire(TileResources.Resource.NETWORK, aTile);
+                        try
+                        {
+                            if(aAborted)
+                            {
+                                // All the requests for the tile were cancelled while waiting
+                                throw new CancellationException();
+                            }
+                            return pRequest.call();
+                        }
+                        finally
+                        {
+                            permit.close();
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        throw checkCancelled(e);
                     }
-                    catch(IOException i)
+                    finally
                     {
+                        if(pRelease != null)
+                        {
+                            pRelease.run();
+                        }
                     }
                 }
+            };
+        }
+
+        /**
+         * Opens a connection for the tile, which is disconnected by {@link #getDisconnect()}.
+         * @return The connection.
+         * @throws IOException If the connection cannot be opened.
+         * @throws CancellationException If the fetch was aborted before the connection was opened.
+         */
+        protected URLConnection connect() throws IOException
+        {
+            URLConnection connection = loadTileFromOsm(aTile);
+            aConnection = connection;
+            if(aAborted)
+            {
+                // The abort may have missed the connection
+                disconnect(connection);
+                throw new CancellationException();
             }
-            finally
+            return connection;
+        }
+
+        /**
+         * @return Closes the last connection opened by {@link #connect()}, from any
+         *     thread, and prevents the job from opening another one.
+         */
+        protected Runnable getDisconnect()
+        {
+            return new Runnable()
             {
-                aTile.setLoading(false);
-                aTile.setLoaded(true);
+                @Override
+                public void run()
+                {
+                    aAborted = true;
+                    disconnect(aConnection);
+                }
+            };
+        }
+
+        /*
+         * Closes a connection, which may be null.
+         */
+        private void disconnect(URLConnection pConnection)
+        {
+            if(pConnection instanceof HttpURLConnection)
+            {
+                ((HttpURLConnection) pConnection).disconnect();
             }
         }
 
-        public Tile getTile()
+        /**
+         * @param pFailure The reason why a download failed.
+         * @return A {@link CancellationException} if the job was cancelled, which
+         *     makes the download fail, otherwise pFailure.
+         */
+        protected Exception checkCancelled(Exception pFailure)
         {
-            return aTile;
+            if(aCancelled)
+            {
+                return new CancellationException();
+            }
+            return pFailure;
+        }
+    }
+
+    private class TileLoaderJob extends CancellableJob
+    {
+    	private final Tile aTile;
+    	
+    	public TileLoaderJob(Tile pTile)
+    	{
+    		super(pTile);
+    		aTile = pTile;
+    	}
+
+        public void run()
+        {
+            if(resume())
+            {
+                if(!isCancelled())
+                {
+                    load();
+                }
+                return;
+            }
+            if(!startLoading())
+            {
+                return;
+            }
+            load();
+        }
+
+        private void load()
+        {
+            try
+            {
+                if(loadTileFromCompressedTier(aTile))
+                {
+                    finish(null, null);
+                    return;
+                }
+                CompletableFuture<TileFetchRegistry.Fetch> request = openRequest();
+                request.whenComplete(new BiConsumer<TileFetchRegistry.Fetch, Throwable>()
+                {
+                    @Override
+                    public void accept(TileFetchRegistry.Fetch pFetch, Throwable pFailure)
+                    {
+                        finish(pFetch, TileFetchRegistry.unwrap(pFailure));
+                    }
+                });
+                fetchShared(aTile, request, limit(new Callable<TileFetchRegistry.Fetch>()
+                {
+                    @Override
+                    public TileFetchRegistry.Fetch call() throws Exception
+                    {
+                        return download(aTile, connect());
+                    }
+                }, REQUEST_EXECUTOR), getDisconnect());
+            }
+            catch(IOException e)
+            {
+                finish(null, e);
+            }
+        }
+
+        /*
+         * Loads the result of the fetch, if any, and notifies the listener.
+         */
+        private void finish(TileFetchRegistry.Fetch pFetch, Throwable pFailure)
+        {
+            if(isCancelled())
+            {
+                aTile.setLoading(false);
+                return;
+            }
+            if(retryLater(pFailure))
+            {
+                return;
+            }
+            Throwable failure = pFailure;
+            if(failure == null && pFetch != null)
+            {
+                try
+                {
+                    loadFetchedTile(aTile, pFetch);
+                }
+                catch(IOException | RuntimeException e)
+                {
+                    failure = e;
+                }
+            }
+            if(failure instanceof TileSourceUnavailableException)
+            {
+                // Not retried: the tile keeps its placeholder and is requested again later
+                aTile.setLoading(false);
+                aListener.tileLoadingFinished(aTile, false);
+                return;
+            }
+            if(failure != null)
+            {
+                aTile.setError();
+                try
+                {
+                    System.err.println("Failed loading " + aTile.getUrl() +": " + failure.getMessage());
+                }
+                catch(IOException i)
+                {
+                }
+            }
+            aTile.setLoaded(true);
+            aTile.setLoading(false);
+            aListener.tileLoadingFinished(aTile, failure == null);
         }
     }
 }
@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource.TileUpdate;
+
+/**
+ * A {@link TileLoader} that keeps the loaded tiles in a {@link TilePackStore}
+ * for each tile source instead of in individual files as the
+ * {@link OsmFileCacheTileLoader} does. Tiles older than a week are painted
+ * from the store and then validated with the tile server, using their ETag
+ * or their age depending on the tile source.
+ */
+public class PackFileTileLoader extends OsmTileLoader
+{
+    private static final Logger LOGGER = Logger.getLogger(PackFileTileLoader.class.getName());
+
+    private static final long MAX_TILE_AGE = 1000L * 60 * 60 * 24 * 7;
+    private static final int HTTP_NOT_MODIFIED = 304;
+
+    private final File aDirectory;
+    private final Map<TileSource, TilePackStore> aStores = new HashMap<TileSource, TilePackStore>();
+
+    /**
+     * Creates a loader that keeps one set of pack files for each
+     * tile source in a subdirectory of pDirectory.
+     *
+     * @param pListener The listener for this loader.
+     * @param pDirectory The directory of the pack files.
+     * @throws IOException If the directory cannot be created.
+     */
+    public PackFileTileLoader(TileLoaderListener pListener, File pDirectory) throws IOException
+    {
+        super(pListener);
+        if(!pDirectory.isDirectory() && !pDirectory.mkdirs())
+        {
+            throw new IOException("Cannot access cache directory " + pDirectory);
+        }
+        aDirectory = pDirectory;
+    }
+
+    @Override
+    public TileJob createTileLoaderJob(Tile pTile)
+    {
+        return new PackLoadJob(pTile);
+    }
+
+    /**
+     * Returns the store of a tile source, opening it the first time.
+     * Stores that have accumulated too many replaced tiles are compacted
+     * when they are opened.
+     *
+     * @param pSource The tile source.
+     * @return The store of the tiles of pSource.
+     * @throws IOException If the store cannot be opened.
+     */
+    public synchronized TilePackStore getStore(TileSource pSource) throws IOException
+    {
+        TilePackStore store = aStores.get(pSource);
+        if(store == null)
+        {
+            store = new TilePackStore(new File(aDirectory, pSource.getName().replaceAll("[\\\\/:*?\"<>|]", "_")));
+            if(store.needsCompaction())
+            {
+                store.compact();
+            }
+            aStores.put(pSource, store);
+        }
+        return store;
+    }
+
+    /**
+     * Closes the pack files of all the tile sources.
+     */
+    public synchronized void close()
+    {
+        for(TilePackStore store : aStores.values())
+        {
+            try
+            {
+                store.close();
+            }
+            catch(IOException e)
+            {
+                LOGGER.log(Level.WARNING, "Failed to close tile pack store", e);
+            }
+        }
+        aStores.clear();
+    }
+
+    /**
+     * The keys of the tiles in a store. The packed key of a tile cannot be
+     * used since source identifiers are assigned anew in each session.
+     *
+     * @param pTile The tile.
+     * @return The key of pTile in the store of its source.
+     */
+    static long getStoreKey(Tile pTile)
+    {
+        return TileKey.pack(0, pTile.getXtile(), pTile.getYtile(), pTile.getZoom());
+    }
+
+    private class PackLoadJob implements TileJob
+    {
+        private final Tile aTile;
+
+        PackLoadJob(Tile pTile)
+        {
+            aTile = pTile;
+        }
+
+        @Override
+        public Tile getTile()
+        {
+            return aTile;
+        }
+
+        @Override
+        public void run()
+        {
+            synchronized (aTile)
+            {
+                if((aTile.isLoaded() && !aTile.isError()) || aTile.isLoading())
+                {
+                    return;
+                }
+                aTile.setLoaded(false);
+                aTile.setError(false);
+                aTile.setLoading(true);
+            }
+            try
+            {
+                if(loadTileFromCompressedTier(aTile))
+                {
+                    aTile.setLoaded(true);
+                    aListener.tileLoadingFinished(aTile, true);
+                    return;
+                }
+                TilePackStore store = getStore(aTile.getSource());
+                TilePackStore.Entry entry = store.lookup(getStoreKey(aTile));
+                byte[] data = null;
+                if(entry != null)
+                {
+                    data = loadTileFromStore(store, entry);
+                    if(data != null && System.currentTimeMillis() - entry.getTime() <= MAX_TILE_AGE)
+                    {
+                        aTile.setLoaded(true);
+                        aListener.tileLoadingFinished(aTile, true);
+                        return;
+                    }
+                    if(data == null)
+                    {
+                        entry = null;
+                    }
+                    else
+                    {
+                        // Show the old tile while checking for a new one
+                        aListener.tileLoadingFinished(aTile, true);
+                    }
+                }
+                try
+                {
+                    loadOrUpdateTile(store, entry, data);
+                }
+                catch(IOException e)
+                {
+                    if(data == null)
+                    {
+                        throw e;
+                    }
+                    LOGGER.fine("Keeping old version of " + aTile + ": " + e.getMessage());
+                }
+                aTile.setLoaded(true);
+                aListener.tileLoadingFinished(aTile, true);
+            }
+            catch(IOException e)
+            {
+                aTile.setError();
+                aListener.tileLoadingFinished(aTile, false);
+                LOGGER.fine("Failed loading " + aTile + ": " + e.getMessage());
+            }
+            finally
+            {
+                aTile.setLoading(false);
+                aTile.setLoaded(true);
+            }
+        }
+
+        /*
+         * Returns the stored bytes of the tile, or null if they
+         * cannot be read or decoded.
+         */
+        private byte[] loadTileFromStore(TilePackStore pStore, TilePackStore.Entry pEntry)
+        {
+            try
+            {
+                byte[] data = pStore.read(pEntry);
+                if(pEntry.isNoTile())
+                {
+                    aTile.putValue("tile-info", "no-tile");
+                    aTile.setError();
+                }
+                else
+                {
+                    loadTileImage(aTile, data);
+                }
+                return data;
+            }
+            catch(IOException e)
+            {
+                LOGGER.fine("Failed reading stored tile " + aTile + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        private void loadOrUpdateTile(TilePackStore pStore, TilePackStore.Entry pEntry, byte[] pData) throws IOException
+        {
+            URLConnection connection = loadTileFromOsm(aTile);
+            TileUpdate update = aTile.getSource().getTileUpdate();
+            if(pEntry != null)
+            {
+                if(pEntry.getETag() != null && (update == TileUpdate.IfNoneMatch || update == TileUpdate.ETag))
+                {
+                    connection.addRequestProperty("If-None-Match", pEntry.getETag());
+                }
+                else if(update == TileUpdate.IfModifiedSince || update == TileUpdate.LastModified)
+                {
+                    connection.setIfModifiedSince(pEntry.getTime());
+                }
+            }
+            if(pEntry != null && connection instanceof HttpURLConnection
+                    && ((HttpURLConnection) connection).getResponseCode() == HTTP_NOT_MODIFIED)
+            {
+                pStore.put(getStoreKey(aTile), pEntry.isNoTile() ? null : pData, System.currentTimeMillis(), pEntry.getETag());
+                return;
+            }
+            loadTileMetadata(aTile, connection);
+            String etag = connection.getHeaderField("ETag");
+            if("no-tile".equals(aTile.getValue("tile-info")))
+            {
+                aTile.setError();
+                pStore.put(getStoreKey(aTile), null, System.currentTimeMillis(), etag);
+                return;
+            }
+            InputStream input = connection.getInputStream();
+            try
+            {
+                byte[] data = TileBuffers.read(input, connection.getContentLengthLong());
+                loadTileImage(aTile, data);
+                pStore.put(getStoreKey(aTile), data, System.currentTimeMillis(), etag);
+            }
+            finally
+            {
+                input.close();
+            }
+        }
+    }
+}
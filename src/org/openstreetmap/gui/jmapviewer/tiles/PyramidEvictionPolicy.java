@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+/**
+ * Protects the tiles that {@link Tile#loadPlaceholderFromCache(TileCache)}
+ * uses as placeholders when zooming. Every time a tile is requested, the
+ * tiles up to {@link #MAX_PARENT_DISTANCE} zoom levels above it are credited
+ * with one more dependent. Tiles that have dependents are moved out of the
+ * delegate policy into a reserved area limited to a small share of the
+ * cache, where the tiles with the fewest dependents are the first to go back
+ * to the delegate. Dependent counts are periodically halved, so that they
+ * reflect the tiles currently on screen rather than the whole history.
+ *
+ * All other tiles are handled by the delegate policy.
+ */
+public class PyramidEvictionPolicy implements TileEvictionPolicy
+{
+    /**
+     * The number of zoom levels over which parent tiles are used as placeholders.
+     */
+    public static final int MAX_PARENT_DISTANCE = 4;
+
+    /**
+     * The default share of the cache weight reserved for parent tiles.
+     */
+    public static final double DEFAULT_RESERVED_RATIO = 0.1;
+
+    // Number of accesses between two halvings of the dependent counts
+    private static final int DECAY_INTERVAL = 4096;
+
+    private final TileEvictionPolicy aDelegate;
+    private final double aReservedRatio;
+    private final LongHashMap<Node> aNodes = new LongHashMap<Node>();
+    private long aReservedMaximum = 0;
+    private long aReservedWeight = 0;
+    private int aReservedCount = 0;
+    private int aAccesses = 0;
+
+    /**
+     * Creates a policy with the default reserved share.
+     *
+     * @param pDelegate The policy for the tiles that are not reserved.
+     */
+    public PyramidEvictionPolicy(TileEvictionPolicy pDelegate)
+    {
+        this(pDelegate, DEFAULT_RESERVED_RATIO);
+    }
+
+    /**
+     * Creates a policy.
+     *
+     * @param pDelegate The policy for the tiles that are not reserved.
+     * @param pReservedRatio The share of the maximum weight of the cache
+     *        reserved for parent tiles, between 0 and 1.
+     */
+    public PyramidEvictionPolicy(TileEvictionPolicy pDelegate, double pReservedRatio)
+    {
+        if(pReservedRatio < 0 || pReservedRatio > 1)
+        {
+            throw new IllegalArgumentException("Invalid reserved ratio: " + pReservedRatio);
+        }
+        aDelegate = pDelegate;
+        aReservedRatio = pReservedRatio;
+    }
+
+    @Override
+    public void setMaximumWeight(long pMaximumWeight)
+    {
+        aReservedMaximum = (long) (pMaximumWeight * aReservedRatio);
+        aDelegate.setMaximumWeight(pMaximumWeight - aReservedMaximum);
+    }
+
+    @Override
+    public void recordInsertion(long pKey, long pWeight)
+    {
+        aNodes.put(pKey, new Node(pWeight));
+        aDelegate.recordInsertion(pKey, pWeight);
+    }
+
+    @Override
+    public void recordAccess(long pKey)
+    {
+        Node node = aNodes.get(pKey);
+        if(node != null && !node.aReserved)
+        {
+            aDelegate.recordAccess(pKey);
+        }
+        creditParents(pKey);
+        if(++aAccesses >= DECAY_INTERVAL)
+        {
+            aAccesses = 0;
+            decay();
+        }
+    }
+
+    @Override
+    public void recordWeightChange(long pKey, long pWeight)
+    {
+        Node node = aNodes.get(pKey);
+        if(node == null)
+        {
+            return;
+        }
+        if(node.aReserved)
+        {
+            aReservedWeight += pWeight - node.aWeight;
+        }
+        else
+        {
+            aDelegate.recordWeightChange(pKey, pWeight);
+        }
+        node.aWeight = pWeight;
+    }
+
+    @Override
+    public void recordRemoval(long pKey)
+    {
+        Node node = aNodes.remove(pKey);
+        if(node == null)
+        {
+            return;
+        }
+        if(node.aReserved)
+        {
+            aReservedWeight -= node.aWeight;
+            aReservedCount--;
+        }
+        else
+        {
+            aDelegate.recordRemoval(pKey);
+        }
+    }
+
+    @Override
+    public long selectVictim()
+    {
+        while(aReservedWeight > aReservedMaximum)
+        {
+            release(leastDependedUpon());
+        }
+        if(aReservedCount == aNodes.size())
+        {
+            // Everything is reserved, so the delegate has nothing to offer
+            return leastDependedUpon();
+        }
+        return aDelegate.selectVictim();
+    }
+
+    private void creditParents(long pKey)
+    {
+        int sourceId = TileKey.getSourceId(pKey);
+        int zoom = TileKey.getZoom(pKey);
+        int x = TileKey.getXtile(pKey);
+        int y = TileKey.getYtile(pKey);
+        for(int distance = 1; distance <= MAX_PARENT_DISTANCE && distance <= zoom; distance++)
+        {
+            long parentKey = TileKey.pack(sourceId, x >> distance, y >> distance, zoom - distance);
+            Node parent = aNodes.get(parentKey);
+            if(parent != null)
+            {
+                parent.aDependents++;
+                if(!parent.aReserved)
+                {
+                    reserve(parentKey, parent);
+                }
+            }
+        }
+    }
+
+    private void reserve(long pKey, Node pNode)
+    {
+        aDelegate.recordRemoval(pKey);
+        pNode.aReserved = true;
+        aReservedWeight += pNode.aWeight;
+        aReservedCount++;
+    }
+
+    /*
+     * Hands a reserved tile back to the delegate, as if it had just been
+     * inserted, and forgets its dependents.
+     */
+    private void release(long pKey)
+    {
+        Node node = aNodes.get(pKey);
+        node.aReserved = false;
+        node.aDependents = 0;
+        aReservedWeight -= node.aWeight;
+        aReservedCount--;
+        aDelegate.recordInsertion(pKey, node.aWeight);
+    }
+
+    /*
+     * The reserved area only holds a small share of the cache,
+     * so a linear scan is cheap enough.
+     */
+    private long leastDependedUpon()
+    {
+        long result = 0;
+        int fewest = Integer.MAX_VALUE;
+        for(long key : aNodes.keys())
+        {
+            Node node = aNodes.get(key);
+            if(node.aReserved && node.aDependents < fewest)
+            {
+                result = key;
+                fewest = node.aDependents;
+            }
+        }
+        return result;
+    }
+
+    private void decay()
+    {
+        for(long key : aNodes.keys())
+        {
+            Node node = aNodes.get(key);
+            node.aDependents /= 2;
+            if(node.aReserved && node.aDependents == 0)
+            {
+                release(key);
+            }
+        }
+    }
+
+    /**
+     * What the policy knows about a cached tile.
+     */
+    private static final class Node
+    {
+        private long aWeight;
+        private int aDependents = 0;
+        private boolean aReserved = false;
+
+        private Node(long pWeight)
+        {
+            aWeight = pWeight;
+        }
+    }
+}
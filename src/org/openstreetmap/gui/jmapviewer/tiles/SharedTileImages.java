@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Decodes tile images so that tiles with identical encoded images share a
+ * single decoded image. The decoded images are held weakly, with a copy of
+ * their encoded form, and are shared for as long as some tile uses them.
+ * The images of tiles are never modified once decoded, which makes sharing
+ * them safe.
+ *
+ * Since images are decoded while the map is painted, an image is looked up
+ * by its length and a hash of a sample of its bytes, which costs the same
+ * whatever the size of the image, and is only compared in full with the
+ * image found, if any.
+ */
+final class SharedTileImages
+{
+    // The number of bytes of an image that are hashed
+    private static final int SAMPLES = 64;
+    private static final int HASH_MULTIPLIER = 31;
+
+    private static final Map<Long, ImageReference> IMAGES = new HashMap<Long, ImageReference>();
+    private static final ReferenceQueue<BufferedImage> COLLECTED = new ReferenceQueue<BufferedImage>();
+
+    private SharedTileImages()
+    {}
+
+    /**
+     * Decodes an image, or returns the image already decoded from identical bytes.
+     *
+     * @param pData The encoded image.
+     * @return The decoded image, or null if pData is not in a known image format.
+     * @throws IOException If the image cannot be decoded.
+     */
+    static BufferedImage decode(byte[] pData) throws IOException
+    {
+        Long key = key(pData);
+        BufferedImage image = get(key, pData);
+        if(image != null)
+        {
+            return image;
+        }
+        image = ImageIO.read(new ByteArrayInputStream(pData));
+        if(image == null)
+        {
+            return null;
+        }
+        synchronized(IMAGES)
+        {
+            // Another thread may have decoded the same image meanwhile
+            BufferedImage existing = get(key, pData);
+            if(existing != null)
+            {
+                return existing;
+            }
+            ImageReference reference = IMAGES.get(key);
+            if(reference == null || reference.get() == null)
+            {
+                // An image with the same key but other bytes keeps its place
+                IMAGES.put(key, new ImageReference(key, Arrays.copyOf(pData, pData.length), image));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * @return The number of decoded images currently shared.
+     */
+    static int size()
+    {
+        synchronized(IMAGES)
+        {
+            expunge();
+            return IMAGES.size();
+        }
+    }
+
+    /*
+     * Returns the length of an image in the high bits and a hash of evenly
+     * spaced bytes of the image, including the last one, in the low bits.
+     */
+    private static Long key(byte[] pData)
+    {
+        int step = Math.max(1, pData.length / SAMPLES);
+        int hash = 0;
+        for(int i = pData.length - 1; i >= 0; i -= step)
+        {
+            hash = hash * HASH_MULTIPLIER + pData[i];
+        }
+        return Long.valueOf((long) pData.length << Integer.SIZE | hash & 0xFFFFFFFFL);
+    }
+
+    private static BufferedImage get(Long pKey, byte[] pData)
+    {
+        ImageReference reference;
+        synchronized(IMAGES)
+        {
+            expunge();
+            reference = IMAGES.get(pKey);
+        }
+        // The encoded images in the map are never modified, so they are compared without the lock
+        if(reference == null || !Arrays.equals(reference.aData, pData))
+        {
+            return null;
+        }
+        return reference.get();
+    }
+
+    /*
+     * Removes the entries of the images that were garbage collected.
+     */
+    private static void expunge()
+    {
+        for(Object reference = COLLECTED.poll(); reference != null; reference = COLLECTED.poll())
+        {
+            ImageReference collected = (ImageReference) reference;
+            if(IMAGES.get(collected.aKey) == collected)
+            {
+                IMAGES.remove(collected.aKey);
+            }
+        }
+    }
+
+    private static final class ImageReference extends WeakReference<BufferedImage>
+    {
+        private final Long aKey;
+        private final byte[] aData;
+
+        private ImageReference(Long pKey, byte[] pData, BufferedImage pImage)
+        {
+            super(pImage, COLLECTED);
+            aKey = pKey;
+            aData = pData;
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -54,6 +55,7 @@ public class Tile
     private int aZoom;
     private BufferedImage aImage;
     private String aKey;
+    private long aPackedKey;
     private boolean aLoaded = false;
     private boolean aLoading = false;
     private boolean aError = false;
@@ -77,6 +79,7 @@ public class Tile
         aZoom = pZoom;
         aImage = LOADING_IMAGE;
         aKey = getTileKey(pSource, pXTile, pYTile, pZoom);
+        aPackedKey = TileKey.pack(pSource, pXTile, pYTile, pZoom);
     }
 
     /**
@@ -209,7 +212,58 @@ public class Tile
      */
     public void loadImage(InputStream pInput) throws IOException
     {
-        aImage = ImageIO.read(pInput);
+        loadImage(pInput.readAllBytes());
+    }
+
+    /**
+     * Load the image for this tile from its encoded bytes. Tiles with
+     * identical bytes share the same decoded image.
+     * @param pData The encoded image.
+     * @throws IOException If we can't load the image.
+     */
+    public void loadImage(byte[] pData) throws IOException
+    {
+        aImage = SharedTileImages.decode(pData);
+    }
+
+    /**
+     * Computes the number of bytes held by the decoded pixels of this tile.
+     * The shared loading and error images are not counted, as they do not
+     * belong to any tile in particular.
+     *
+     * @return The size in bytes of the decoded image, or 0 if the tile
+     *         does not hold an image of its own.
+     */
+    public long getDecodedSize()
+    {
+        return getDecodedSize(getDecodedImage());
+    }
+
+    /*
+     * Returns the decoded image of this tile, which identical tiles may
+     * share, or null if the tile does not hold an image of its own.
+     */
+    BufferedImage getDecodedImage()
+    {
+        BufferedImage image = aImage;
+        if(image == LOADING_IMAGE || image == ERROR_IMAGE)
+        {
+            return null;
+        }
+        return image;
+    }
+
+    /*
+     * Returns the number of bytes held by the pixels of an image, or 0 if it is null.
+     */
+    static long getDecodedSize(BufferedImage pImage)
+    {
+        if(pImage == null)
+        {
+            return 0;
+        }
+        DataBuffer buffer = pImage.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / Byte.SIZE;
     }
 
     /**
@@ -220,6 +274,14 @@ public class Tile
         return aKey;
     }
 
+    /**
+     * @return key that identifies a tile, packed as described in {@link TileKey}
+     */
+    public long getPackedKey()
+    {
+        return aPackedKey;
+    }
+
     /**
      * @return True if the image is loaded.
      */
@@ -0,0 +1,369 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A single file holding cached tiles of one tile source, to copy a warmed
+ * cache to other computers. Copying one large file and reading it in one
+ * sequential pass is much faster than copying or downloading many small
+ * tile files.
+ *
+ * An archive starts with a header naming the tile source, followed by the
+ * records of the tiles in increasing order of their keys. Each record holds
+ * the key, the time the tile was loaded, its tags and its encoded image.
+ * The records are followed by an index of their offsets and by a footer
+ * locating the index, so that single tiles can also be read with
+ * {@link #read(long)}. Archives are written with a {@link Writer}.
+ */
+public class TileArchive implements Closeable
+{
+    /**
+     * Receives the records of an archive in the order of the file.
+     */
+    public interface RecordVisitor
+    {
+        /**
+         * @param pRecord The next record of the archive.
+         * @throws IOException If the record cannot be processed.
+         */
+        void visit(Record pRecord) throws IOException;
+    }
+
+    private static final int MAGIC = 0x54415231;
+    private static final int VERSION = 1;
+    private static final int FOOTER_SIZE = 8 + 4 + 4;
+    private static final int INDEX_ENTRY_SIZE = 8 + 8;
+    // The key, time, tags length and data length of a record
+    private static final int RECORD_HEADER_SIZE = 8 + 8 + 4 + 4;
+    private static final int NO_TILE = -1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final Charset TAGS_CHARSET = Charset.forName("UTF-8");
+
+    private final File aFile;
+    private final RandomAccessFile aRandomAccess;
+    private final String aSourceName;
+    private final long aRecordsStart;
+    private final long[] aKeys;
+    private final long[] aOffsets;
+
+    /**
+     * Opens an archive and reads its index.
+     *
+     * @param pFile The archive file.
+     * @throws IOException If the file cannot be read or is not an archive.
+     */
+    public TileArchive(File pFile) throws IOException
+    {
+        aFile = pFile;
+        aRandomAccess = new RandomAccessFile(pFile, "r");
+        try
+        {
+            if(aRandomAccess.readInt() != MAGIC || aRandomAccess.readInt() != VERSION)
+            {
+                throw new IOException(pFile + " is not a tile archive");
+            }
+            aSourceName = aRandomAccess.readUTF();
+            aRecordsStart = aRandomAccess.getFilePointer();
+            aRandomAccess.seek(aRandomAccess.length() - FOOTER_SIZE);
+            long indexOffset = aRandomAccess.readLong();
+            int count = aRandomAccess.readInt();
+            if(aRandomAccess.readInt() != MAGIC
+                    || indexOffset + (long) count * INDEX_ENTRY_SIZE != aRandomAccess.length() - FOOTER_SIZE)
+            {
+                throw new IOException(pFile + " is incomplete");
+            }
+            aKeys = new long[count];
+            aOffsets = new long[count];
+            DataInputStream index = openStream(indexOffset);
+            try
+            {
+                for(int i = 0; i < count; i++)
+                {
+                    aKeys[i] = index.readLong();
+                    aOffsets[i] = index.readLong();
+                }
+            }
+            finally
+            {
+                index.close();
+            }
+        }
+        catch(IOException e)
+        {
+            aRandomAccess.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The name of the tile source of the tiles.
+     */
+    public String getSourceName()
+    {
+        return aSourceName;
+    }
+
+    /**
+     * @return The number of tiles in the archive.
+     */
+    public int getTileCount()
+    {
+        return aKeys.length;
+    }
+
+    /**
+     * Reads a single tile.
+     *
+     * @param pKey The key of the tile, with a source identifier of 0.
+     * @return The record of the tile, or null if it is not in the archive.
+     * @throws IOException If the archive cannot be read.
+     */
+    public synchronized Record read(long pKey) throws IOException
+    {
+        int i = Arrays.binarySearch(aKeys, pKey);
+        if(i < 0)
+        {
+            return null;
+        }
+        aRandomAccess.seek(aOffsets[i]);
+        return readRecord(aRandomAccess);
+    }
+
+    /**
+     * Reads all the tiles in one sequential pass.
+     *
+     * @param pVisitor The visitor of the records.
+     * @throws IOException If the archive cannot be read, or the visitor fails.
+     */
+    public void readAll(RecordVisitor pVisitor) throws IOException
+    {
+        DataInputStream input = openStream(aRecordsStart);
+        try
+        {
+            for(int i = 0; i < aKeys.length; i++)
+            {
+                pVisitor.visit(readRecord(input));
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        aRandomAccess.close();
+    }
+
+    private DataInputStream openStream(long pOffset) throws IOException
+    {
+        InputStream input = new FileInputStream(aFile);
+        try
+        {
+            long skipped = 0;
+            while(skipped < pOffset)
+            {
+                skipped += input.skip(pOffset - skipped);
+            }
+        }
+        catch(IOException e)
+        {
+            input.close();
+            throw e;
+        }
+        return new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+    }
+
+    private static Record readRecord(DataInput pInput) throws IOException
+    {
+        long key = pInput.readLong();
+        long time = pInput.readLong();
+        byte[] tags = new byte[pInput.readInt()];
+        pInput.readFully(tags);
+        int length = pInput.readInt();
+        byte[] data = null;
+        if(length != NO_TILE)
+        {
+            data = new byte[length];
+            pInput.readFully(data);
+        }
+        return new Record(key, time, new String(tags, TAGS_CHARSET), data);
+    }
+
+    /**
+     * A tile read from an archive.
+     */
+    public static final class Record
+    {
+        private final long aKey;
+        private final long aTime;
+        private final String aTags;
+        private final byte[] aData;
+
+        private Record(long pKey, long pTime, String pTags, byte[] pData)
+        {
+            aKey = pKey;
+            aTime = pTime;
+            aTags = pTags;
+            aData = pData;
+        }
+
+        /**
+         * @return The key of the tile, with a source identifier of 0.
+         */
+        public long getKey()
+        {
+            return aKey;
+        }
+
+        /**
+         * @return The time at which the tile was loaded.
+         */
+        public long getTime()
+        {
+            return aTime;
+        }
+
+        /**
+         * @return The tags of the tile, one per line, possibly empty.
+         */
+        public String getTags()
+        {
+            return aTags;
+        }
+
+        /**
+         * @return The encoded image of the tile, or null if the server has no tile there.
+         */
+        public byte[] getData()
+        {
+            return aData;
+        }
+    }
+
+    /**
+     * Writes an archive. The tiles must be added in increasing order of their keys.
+     */
+    public static final class Writer implements Closeable
+    {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private final DataOutputStream aOutput;
+        private long aPosition;
+        private long[] aKeys = new long[INITIAL_CAPACITY];
+        private long[] aOffsets = new long[INITIAL_CAPACITY];
+        private int aCount = 0;
+
+        /**
+         * Creates an archive, replacing pFile if it exists.
+         *
+         * @param pFile The archive file.
+         * @param pSourceName The name of the tile source of the tiles.
+         * @throws IOException If the file cannot be written.
+         */
+        public Writer(File pFile, String pSourceName) throws IOException
+        {
+            aOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pFile), BUFFER_SIZE));
+            aOutput.writeInt(MAGIC);
+            aOutput.writeInt(VERSION);
+            aOutput.writeUTF(pSourceName);
+            aPosition = aOutput.size();
+        }
+
+        /**
+         * Adds a tile.
+         *
+         * @param pKey The key of the tile, with a source identifier of 0, greater than the previous one.
+         * @param pTime The time at which the tile was loaded.
+         * @param pTags The tags of the tile, one per line, or null.
+         * @param pData The encoded image of the tile, or null if the server has no tile there.
+         * @throws IOException If the tile cannot be written.
+         */
+        public void add(long pKey, long pTime, String pTags, byte[] pData) throws IOException
+        {
+            if(aCount > 0 && pKey <= aKeys[aCount - 1])
+            {
+                throw new IllegalArgumentException("Tiles must be added in increasing order of keys");
+            }
+            if(aCount == aKeys.length)
+            {
+                aKeys = Arrays.copyOf(aKeys, aCount * 2);
+                aOffsets = Arrays.copyOf(aOffsets, aCount * 2);
+            }
+            aKeys[aCount] = pKey;
+            aOffsets[aCount] = aPosition;
+            aCount++;
+            byte[] tags = pTags == null ? new byte[0] : pTags.getBytes(TAGS_CHARSET);
+            aOutput.writeLong(pKey);
+            aOutput.writeLong(pTime);
+            aOutput.writeInt(tags.length);
+            aOutput.write(tags);
+            aOutput.writeInt(pData == null ? NO_TILE : pData.length);
+            if(pData != null)
+            {
+                aOutput.write(pData);
+            }
+            aPosition += RECORD_HEADER_SIZE + tags.length + (pData == null ? 0 : pData.length);
+        }
+
+        /**
+         * Writes the index and closes the file.
+         *
+         * @throws IOException If the file cannot be written.
+         */
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                for(int i = 0; i < aCount; i++)
+                {
+                    aOutput.writeLong(aKeys[i]);
+                    aOutput.writeLong(aOffsets[i]);
+                }
+                aOutput.writeLong(aPosition);
+                aOutput.writeInt(aCount);
+                aOutput.writeInt(MAGIC);
+            }
+            finally
+            {
+                aOutput.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads encoded tiles into byte arrays with a single allocation per tile.
+ * The array that holds a tile is then decoded, stored in the compressed tier
+ * and written to the disk cache as it is, without further copies. When the
+ * length of the tile is known, for example from the Content-Length of the
+ * response, the tile is read directly into an array of that length.
+ * Otherwise it is read into a scratch buffer borrowed from a small pool and
+ * copied once into an array of the right length.
+ */
+final class TileBuffers
+{
+    /**
+     * The size of the pooled scratch buffers, which holds most tiles.
+     */
+    static final int SCRATCH_SIZE = 64 * 1024;
+
+    // Larger lengths are not trusted, to not allocate them on the word of a server
+    private static final long MAX_HINTED_LENGTH = 16 * 1024 * 1024;
+    private static final int MAX_POOLED = 16;
+    private static final BlockingQueue<byte[]> POOL = new ArrayBlockingQueue<byte[]>(MAX_POOLED);
+
+    private TileBuffers()
+    {}
+
+    /**
+     * Reads a stream to its end, or up to a known length.
+     *
+     * @param pInput The stream holding the encoded tile. It is not closed.
+     * @param pLength The number of bytes in the stream, or a negative value if it is unknown.
+     * @return The bytes read.
+     * @throws EOFException If the stream holds fewer bytes than pLength.
+     * @throws IOException If the stream cannot be read.
+     */
+    static byte[] read(InputStream pInput, long pLength) throws IOException
+    {
+        if(pLength >= 0 && pLength <= MAX_HINTED_LENGTH)
+        {
+            byte[] data = new byte[(int) pLength];
+            int read = pInput.readNBytes(data, 0, data.length);
+            if(read < data.length)
+            {
+                throw new EOFException("Received " + read + " of " + pLength + " bytes");
+            }
+            return data;
+        }
+        byte[] scratch = POOL.poll();
+        if(scratch == null)
+        {
+            scratch = new byte[SCRATCH_SIZE];
+        }
+        try
+        {
+            byte[] buffer = scratch;
+            int size = 0;
+            while(true)
+            {
+                if(size == buffer.length)
+                {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int read = pInput.read(buffer, size, buffer.length - size);
+                if(read < 0)
+                {
+                    return Arrays.copyOf(buffer, size);
+                }
+                size += read;
+            }
+        }
+        finally
+        {
+            POOL.offer(scratch);
+        }
+    }
+
+    /**
+     * @return The number of scratch buffers available in the pool.
+     */
+    static int getPooledCount()
+    {
+        return POOL.size();
+    }
+}
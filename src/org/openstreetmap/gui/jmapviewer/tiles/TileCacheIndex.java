@@ -0,0 +1,519 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A persistent index of the tiles in a file cache directory, kept in a
+ * memory-mapped file. For each tile the index records the size of the image
+ * file, the time at which the tile was loaded or last validated, the time at
+ * which it was last read, and the tags of the tile if they fit in the slot. Most decisions about cached tiles can
+ * thus be made without touching the file system. The entries of the tiles
+ * whose image file is a hard link shared with other tiles are marked, so
+ * that the shared files are counted once.
+ *
+ * The index is an open-addressing hash table of fixed-size slots. It is a
+ * cache of the directory rather than the reference: a tile missing from the
+ * index is treated as absent, and an entry whose file has disappeared should
+ * be removed by the caller. An index that was never completely filled, or
+ * that was left inconsistent by an interrupted resize, is discarded when it
+ * is opened and reported by {@link #isNew()}, so that the caller can rebuild it.
+ *
+ * The index file may be mapped by several processes sharing the cache, such
+ * as the map and the seeding command. It is therefore never truncated: a
+ * resized or rebuilt table is written to a new file that replaces it, and the
+ * other processes keep the file they mapped until they open the index again.
+ */
+public final class TileCacheIndex implements Closeable
+{
+    /**
+     * The maximum number of bytes of tags kept in the index for a tile.
+     */
+    public static final int MAX_INLINE_TAGS = 96;
+
+    private static final int MAGIC = 0x54434931;
+    private static final int VERSION = 3;
+    // Magic, version, capacity, used slots, valid flag
+    private static final int HEADER_SIZE = 32;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int USED_OFFSET = 12;
+    private static final int VALID_OFFSET = 16;
+
+    // Key, time, access time, size, flags, tags length, tags
+    private static final int SLOT_SIZE = 8 + 8 + 8 + 4 + 2 + 2 + MAX_INLINE_TAGS;
+    private static final int TIME_OFFSET = 8;
+    private static final int ACCESS_OFFSET = 16;
+    private static final int SIZE_OFFSET = 24;
+    private static final int FLAGS_OFFSET = 28;
+    private static final int TAGS_LENGTH_OFFSET = 30;
+    private static final int TAGS_OFFSET = 32;
+
+    private static final short FLAG_OCCUPIED = 1;
+    private static final short FLAG_REMOVED = 2;
+    private static final short FLAG_TAGS_OVERFLOW = 4;
+    private static final short FLAG_SHARED = 8;
+
+    private static final int MINIMUM_CAPACITY = 4096;
+    private static final Charset TAGS_CHARSET = Charset.forName("UTF-8");
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File aFile;
+    private FileChannel aChannel;
+    private MappedByteBuffer aBuffer;
+    private int aCapacity;
+    private int aSize = 0;
+    private int aUsed;
+    private boolean aNew = false;
+    private boolean aValid = true;
+
+    /**
+     * Opens or creates an index file.
+     *
+     * @param pFile The index file.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    public TileCacheIndex(File pFile) throws IOException
+    {
+        aFile = pFile;
+        aChannel = FileChannel.open(pFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if(aChannel.size() >= HEADER_SIZE)
+        {
+            aBuffer = aChannel.map(FileChannel.MapMode.READ_WRITE, 0, aChannel.size());
+            aCapacity = aBuffer.getInt(CAPACITY_OFFSET);
+        }
+        if(aBuffer == null || aBuffer.getInt(0) != MAGIC || aBuffer.getInt(4) != VERSION
+                || aBuffer.getInt(VALID_OFFSET) != 1 || Integer.bitCount(aCapacity) != 1
+                || aChannel.size() != HEADER_SIZE + (long) aCapacity * SLOT_SIZE)
+        {
+            aValid = false;
+            map(MINIMUM_CAPACITY);
+            aNew = true;
+        }
+        else
+        {
+            aUsed = aBuffer.getInt(USED_OFFSET);
+            for(int slot = 0; slot < aCapacity; slot++)
+            {
+                if((getFlags(slot) & FLAG_OCCUPIED) != 0)
+                {
+                    aSize++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True if the index did not exist or could not be used and was
+     *     created empty, in which case it should be filled from the directory.
+     */
+    public boolean isNew()
+    {
+        return aNew;
+    }
+
+    /**
+     * Records that a new index was filled from the directory, so that it is
+     * kept the next time it is opened.
+     */
+    public synchronized void markFilled()
+    {
+        aValid = true;
+        aBuffer.putInt(VALID_OFFSET, 1);
+    }
+
+    /**
+     * @param pKey The key of a tile.
+     * @return The entry of the tile, or null if it is not in the index.
+     */
+    public synchronized Entry get(long pKey)
+    {
+        int slot = find(pKey);
+        if(slot < 0)
+        {
+            return null;
+        }
+        int base = offset(slot);
+        String tags = null;
+        if((getFlags(slot) & FLAG_TAGS_OVERFLOW) == 0)
+        {
+            byte[] bytes = new byte[aBuffer.getShort(base + TAGS_LENGTH_OFFSET)];
+            aBuffer.get(base + TAGS_OFFSET, bytes);
+            tags = new String(bytes, TAGS_CHARSET);
+        }
+        return new Entry(aBuffer.getLong(base + TIME_OFFSET), aBuffer.getLong(base + ACCESS_OFFSET),
+                aBuffer.getInt(base + SIZE_OFFSET), tags, (getFlags(slot) & FLAG_SHARED) != 0);
+    }
+
+    /**
+     * Records a tile, replacing any previous entry. The tile is
+     * considered accessed at pTime, and its image file is not shared.
+     *
+     * @param pKey The key of the tile.
+     * @param pTime The time at which the tile was loaded or validated, in milliseconds.
+     * @param pSize The size of the image file, 0 if there is none.
+     * @param pTags The tags of the tile, in the format of the tags files.
+     *     If they do not fit in the index, the entry notes that they must be
+     *     read from the tags file.
+     */
+    public synchronized void put(long pKey, long pTime, int pSize, String pTags)
+    {
+        int slot = find(pKey);
+        if(slot < 0)
+        {
+            if(aUsed + 1 > aCapacity / 2)
+            {
+                resize();
+            }
+            slot = findFree(pKey);
+            if(getFlags(slot) == 0)
+            {
+                aUsed++;
+                aBuffer.putInt(USED_OFFSET, aUsed);
+            }
+            aSize++;
+        }
+        byte[] tags = pTags == null ? new byte[0] : pTags.getBytes(TAGS_CHARSET);
+        short flags = FLAG_OCCUPIED;
+        if(tags.length > MAX_INLINE_TAGS)
+        {
+            flags |= FLAG_TAGS_OVERFLOW;
+            tags = new byte[0];
+        }
+        write(slot, pKey, pTime, pSize, flags, tags);
+    }
+
+    /**
+     * Updates the time of a tile, if it is in the index.
+     *
+     * @param pKey The key of the tile.
+     * @param pTime The time at which the tile was validated, in milliseconds.
+     */
+    public synchronized void setTime(long pKey, long pTime)
+    {
+        int slot = find(pKey);
+        if(slot >= 0)
+        {
+            aBuffer.putLong(offset(slot) + TIME_OFFSET, pTime);
+        }
+    }
+
+    /**
+     * Records that a tile was read, if it is in the index.
+     *
+     * @param pKey The key of the tile.
+     * @param pTime The time at which the tile was read, in milliseconds.
+     */
+    public synchronized void setAccessTime(long pKey, long pTime)
+    {
+        int slot = find(pKey);
+        if(slot >= 0)
+        {
+            aBuffer.putLong(offset(slot) + ACCESS_OFFSET, pTime);
+        }
+    }
+
+    /**
+     * Records that the image file of a tile, if it is in the index, is a
+     * hard link shared with other tiles, until the tile is put again.
+     *
+     * @param pKey The key of the tile.
+     */
+    public synchronized void markShared(long pKey)
+    {
+        int slot = find(pKey);
+        if(slot >= 0)
+        {
+            aBuffer.putShort(offset(slot) + FLAGS_OFFSET, (short) (getFlags(slot) | FLAG_SHARED));
+        }
+    }
+
+    /**
+     * Removes a tile from the index.
+     *
+     * @param pKey The key of the tile.
+     */
+    public synchronized void remove(long pKey)
+    {
+        int slot = find(pKey);
+        if(slot >= 0)
+        {
+            aBuffer.putShort(offset(slot) + FLAGS_OFFSET, FLAG_REMOVED);
+            aSize--;
+        }
+    }
+
+    /**
+     * @return The number of tiles in the index.
+     */
+    public synchronized int size()
+    {
+        return aSize;
+    }
+
+    /**
+     * @return The keys of all the tiles in the index.
+     */
+    public synchronized long[] keys()
+    {
+        long[] keys = new long[aSize];
+        int count = 0;
+        for(int slot = 0; slot < aCapacity; slot++)
+        {
+            if((getFlags(slot) & FLAG_OCCUPIED) != 0)
+            {
+                keys[count++] = aBuffer.getLong(offset(slot));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Writes the changes to the storage device and closes the index.
+     *
+     * @throws IOException If the file cannot be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        aBuffer.force();
+        aChannel.close();
+    }
+
+    /*
+     * Maps a new file with an empty table, which then replaces the index file.
+     * The table is marked invalid until the caller is done filling it.
+     */
+    private void map(int pCapacity) throws IOException
+    {
+        long size = HEADER_SIZE + (long) pCapacity * SLOT_SIZE;
+        File temp = File.createTempFile(aFile.getName(), TEMP_SUFFIX, aFile.getAbsoluteFile().getParentFile());
+        FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer;
+        try
+        {
+            // The file is extended with zeros, so all the slots start empty
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(VALID_OFFSET, 0);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(CAPACITY_OFFSET, pCapacity);
+            buffer.putInt(USED_OFFSET, 0);
+            try
+            {
+                Files.move(temp.toPath(), aFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch(AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp.toPath(), aFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch(IOException e)
+        {
+            channel.close();
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+        aChannel.close();
+        aChannel = channel;
+        aBuffer = buffer;
+        aCapacity = pCapacity;
+        aUsed = 0;
+        aSize = 0;
+    }
+
+    /*
+     * Rebuilds the table with room for four times the current number of
+     * tiles, dropping the removed slots.
+     */
+    private void resize()
+    {
+        List<byte[]> slots = new ArrayList<byte[]>(aSize);
+        for(int slot = 0; slot < aCapacity; slot++)
+        {
+            if((getFlags(slot) & FLAG_OCCUPIED) != 0)
+            {
+                byte[] bytes = new byte[SLOT_SIZE];
+                aBuffer.get(offset(slot), bytes);
+                slots.add(bytes);
+            }
+        }
+        int capacity = MINIMUM_CAPACITY;
+        while(capacity < slots.size() * 4)
+        {
+            capacity <<= 1;
+        }
+        try
+        {
+            map(capacity);
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException("Cannot resize tile cache index", e);
+        }
+        for(byte[] bytes : slots)
+        {
+            ByteBuffer slot = ByteBuffer.wrap(bytes);
+            int free = findFree(slot.getLong(0));
+            aBuffer.put(offset(free), bytes);
+            aUsed++;
+            aSize++;
+        }
+        aBuffer.putInt(USED_OFFSET, aUsed);
+        aBuffer.putInt(VALID_OFFSET, aValid ? 1 : 0);
+    }
+
+    private void write(int pSlot, long pKey, long pTime, int pSize, short pFlags, byte[] pTags)
+    {
+        int base = offset(pSlot);
+        aBuffer.putLong(base, pKey);
+        aBuffer.putLong(base + TIME_OFFSET, pTime);
+        aBuffer.putLong(base + ACCESS_OFFSET, pTime);
+        aBuffer.putInt(base + SIZE_OFFSET, pSize);
+        aBuffer.putShort(base + TAGS_LENGTH_OFFSET, (short) pTags.length);
+        aBuffer.put(base + TAGS_OFFSET, pTags);
+        // Written last, so that a crash never leaves a half-written entry visible
+        aBuffer.putShort(base + FLAGS_OFFSET, pFlags);
+    }
+
+    private int find(long pKey)
+    {
+        int mask = aCapacity - 1;
+        for(int slot = indexFor(pKey); ; slot = (slot + 1) & mask)
+        {
+            short flags = getFlags(slot);
+            if(flags == 0)
+            {
+                return -1;
+            }
+            if((flags & FLAG_OCCUPIED) != 0 && aBuffer.getLong(offset(slot)) == pKey)
+            {
+                return slot;
+            }
+        }
+    }
+
+    /*
+     * Returns the first empty or removed slot for a key known to be absent.
+     */
+    private int findFree(long pKey)
+    {
+        int mask = aCapacity - 1;
+        int slot = indexFor(pKey);
+        while((getFlags(slot) & FLAG_OCCUPIED) != 0)
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int indexFor(long pKey)
+    {
+        long hash = pKey * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ hash >>> 32) & (aCapacity - 1);
+    }
+
+    private short getFlags(int pSlot)
+    {
+        return aBuffer.getShort(offset(pSlot) + FLAGS_OFFSET);
+    }
+
+    private static int offset(int pSlot)
+    {
+        return HEADER_SIZE + pSlot * SLOT_SIZE;
+    }
+
+    /**
+     * What the index knows about a tile.
+     */
+    public static final class Entry
+    {
+        private final long aTime;
+        private final long aAccessTime;
+        private final int aSize;
+        private final String aTags;
+        private final boolean aShared;
+
+        private Entry(long pTime, long pAccessTime, int pSize, String pTags, boolean pShared)
+        {
+            aTime = pTime;
+            aAccessTime = pAccessTime;
+            aSize = pSize;
+            aTags = pTags;
+            aShared = pShared;
+        }
+
+        /**
+         * @return The time at which the tile was loaded or validated, in milliseconds.
+         */
+        public long getTime()
+        {
+            return aTime;
+        }
+
+        /**
+         * @return The time at which the tile was last read, in milliseconds.
+         */
+        public long getAccessTime()
+        {
+            return aAccessTime;
+        }
+
+        /**
+         * @return The size of the image file, 0 if there is none.
+         */
+        public int getSize()
+        {
+            return aSize;
+        }
+
+        /**
+         * @return The tags of the tile, in the format of the tags files,
+         *     or null if they did not fit in the index.
+         */
+        public String getTags()
+        {
+            return aTags;
+        }
+
+        /**
+         * @return True if the image file may be a hard link shared with other
+         *     tiles, in which case its bytes are not freed by deleting it alone.
+         */
+        public boolean isShared()
+        {
+            return aShared;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The layout of the files of one tile source in a file cache. The files of
+ * a tile are named zoom/x/y.ext in the directory of the source, so that no
+ * directory holds more than one column of tiles of one zoom level and
+ * lookups stay fast however many tiles are cached. Caches written with the
+ * former flat layout, in which all the files of a source were named
+ * zoom_x_y.ext in its directory, are converted by {@link #migrate(File)}.
+ */
+final class TileCacheLayout
+{
+    private static final Logger LOGGER = Logger.getLogger(TileCacheLayout.class.getName());
+
+    private static final Pattern FLAT_FILE_NAME = Pattern.compile("(\\d+)_(\\d+)_(\\d+)(\\.\\w+)");
+    private static final Pattern SHARDED_FILE_NAME = Pattern.compile("(\\d+)(\\.\\w+)");
+    private static final Pattern NUMBER = Pattern.compile("\\d+");
+
+    private TileCacheLayout()
+    {}
+
+    /**
+     * Called for each file of a tile found in a directory.
+     */
+    interface TileFileVisitor
+    {
+        /**
+         * @param pFile The file.
+         * @param pZoom The zoom level of the tile.
+         * @param pX The column of the tile.
+         * @param pY The row of the tile.
+         * @param pExtension The extension of the file, including the dot.
+         */
+        void visit(File pFile, int pZoom, int pX, int pY, String pExtension);
+    }
+
+    /**
+     * @param pDirectory The directory of a tile source.
+     * @param pZoom The zoom level of the tile.
+     * @param pX The column of the tile.
+     * @param pY The row of the tile.
+     * @param pExtension The extension of the file, including the dot.
+     * @return The file of the tile with that extension.
+     */
+    static File getFile(File pDirectory, int pZoom, int pX, int pY, String pExtension)
+    {
+        return new File(new File(new File(pDirectory, Integer.toString(pZoom)), Integer.toString(pX)), pY + pExtension);
+    }
+
+    /**
+     * @param pFile A file of a tile, named as by {@link #getFile(File, int, int, int, String)}.
+     * @return The directory of the tile source of pFile.
+     */
+    static File getDirectory(File pFile)
+    {
+        return pFile.getParentFile().getParentFile().getParentFile();
+    }
+
+    /**
+     * @param pFile A file of a tile, named as by {@link #getFile(File, int, int, int, String)}.
+     * @return The key of the tile with source 0, as in a {@link TileCacheIndex},
+     *     or -1 if pFile is not named as the file of a tile.
+     */
+    static long getKey(File pFile)
+    {
+        Matcher matcher = SHARDED_FILE_NAME.matcher(pFile.getName());
+        File columnDir = pFile.getParentFile();
+        File zoomDir = columnDir == null ? null : columnDir.getParentFile();
+        if(!matcher.matches() || zoomDir == null || !NUMBER.matcher(columnDir.getName()).matches()
+                || !NUMBER.matcher(zoomDir.getName()).matches())
+        {
+            return -1;
+        }
+        try
+        {
+            int zoom = Integer.parseInt(zoomDir.getName());
+            int x = Integer.parseInt(columnDir.getName());
+            int y = Integer.parseInt(matcher.group(1));
+            return TileKey.isValid(x, y, zoom) ? TileKey.pack(0, x, y, zoom) : -1;
+        }
+        catch(NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * @param pFile A file.
+     * @return The number of hard links to the content of pFile, 1 if the
+     *     file system does not tell or if the file does not exist.
+     */
+    static int getLinkCount(File pFile)
+    {
+        try
+        {
+            Object count = Files.getAttribute(pFile.toPath(), "unix:nlink");
+            return count instanceof Integer ? (Integer) count : 1;
+        }
+        catch(IOException | UnsupportedOperationException | IllegalArgumentException e)
+        {
+            return 1;
+        }
+    }
+
+    /**
+     * @param pFile A file.
+     * @return An object that identifies the content of pFile, the same for all
+     *     the hard links to it, or pFile itself if the file system does not tell.
+     */
+    static Object getFileKey(File pFile)
+    {
+        try
+        {
+            Object key = Files.readAttributes(pFile.toPath(), BasicFileAttributes.class).fileKey();
+            return key == null ? pFile : key;
+        }
+        catch(IOException e)
+        {
+            return pFile;
+        }
+    }
+
+    /**
+     * Calls pVisitor for each file of a tile in a directory laid out by this class.
+     * The files whose coordinates are not those of a tile are ignored.
+     *
+     * @param pDirectory The directory of a tile source.
+     * @param pVisitor The visitor of the files.
+     */
+    static void visitFiles(File pDirectory, TileFileVisitor pVisitor)
+    {
+        for(File zoomDir : listNumbered(pDirectory))
+        {
+            int zoom = Integer.parseInt(zoomDir.getName());
+            for(File columnDir : listNumbered(zoomDir))
+            {
+                int x = Integer.parseInt(columnDir.getName());
+                File[] files = columnDir.listFiles();
+                if(files == null)
+                {
+                    continue;
+                }
+                for(File file : files)
+                {
+                    Matcher matcher = SHARDED_FILE_NAME.matcher(file.getName());
+                    if(matcher.matches())
+                    {
+                        int y = Integer.parseInt(matcher.group(1));
+                        if(TileKey.isValid(x, y, zoom))
+                        {
+                            pVisitor.visit(file, zoom, x, y, matcher.group(2));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the files of a directory in the flat layout to their place in the
+     * sharded layout. Only the files left in the flat layout are moved, so a
+     * migration that was interrupted resumes where it stopped. A flat file
+     * whose sharded counterpart exists is older and is deleted.
+     *
+     * @param pDirectory The directory of a tile source.
+     * @return The number of files moved.
+     */
+    static int migrate(File pDirectory)
+    {
+        File[] files = pDirectory.listFiles();
+        if(files == null)
+        {
+            return 0;
+        }
+        int moved = 0;
+        for(File file : files)
+        {
+            Matcher matcher = FLAT_FILE_NAME.matcher(file.getName());
+            if(!matcher.matches() || !file.isFile())
+            {
+                continue;
+            }
+            File target = getFile(pDirectory, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)),
+                    Integer.parseInt(matcher.group(3)), matcher.group(4));
+            try
+            {
+                if(target.exists())
+                {
+                    Files.delete(file.toPath());
+                    continue;
+                }
+                Files.createDirectories(target.getParentFile().toPath());
+                Files.move(file.toPath(), target.toPath());
+                moved++;
+            }
+            catch(IOException e)
+            {
+                LOGGER.warning("Failed to migrate cached tile " + file + ": " + e.getMessage());
+            }
+        }
+        if(moved > 0)
+        {
+            LOGGER.info("Moved " + moved + " files of " + pDirectory + " to the sharded layout");
+        }
+        return moved;
+    }
+
+    private static File[] listNumbered(File pDirectory)
+    {
+        File[] files = pDirectory.listFiles();
+        if(files == null)
+        {
+            return new File[0];
+        }
+        int count = 0;
+        for(File file : files)
+        {
+            if(file.isDirectory() && NUMBER.matcher(file.getName()).matches())
+            {
+                files[count++] = file;
+            }
+        }
+        File[] result = new File[count];
+        System.arraycopy(files, 0, result, 0, count);
+        return result;
+    }
+}
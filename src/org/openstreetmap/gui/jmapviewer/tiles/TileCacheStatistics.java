@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters describing the behavior of a tile cache. The counters are
+ * {@link LongAdder} instances, so recording an event from the painting or
+ * loader threads costs little and never contends on a shared variable.
+ * The values can be observed from JConsole once the statistics are
+ * {@link #register(String) registered} with the platform MBean server.
+ */
+public class TileCacheStatistics implements TileCacheStatisticsMXBean
+{
+    /**
+     * The domain of the object names under which statistics are registered.
+     */
+    public static final String DOMAIN = "org.openstreetmap.gui.jmapviewer";
+
+    private static final Logger LOGGER = Logger.getLogger(TileCacheStatistics.class.getName());
+
+    private static final int ZOOM_LEVELS = 32;
+    private static final double NANOS_PER_MICRO = 1000.0;
+
+    private final LongAdder aHits = new LongAdder();
+    private final LongAdder aMisses = new LongAdder();
+    private final LongAdder aEvictions = new LongAdder();
+    private final LongAdder aEvictedBytes = new LongAdder();
+    private final LongAdder aLookupNanos = new LongAdder();
+    private final LongAdder aResidentBytes = new LongAdder();
+    private final LongAdder[] aEntriesPerZoom = new LongAdder[ZOOM_LEVELS];
+    private ObjectName aObjectName;
+
+    /**
+     * Creates statistics with all counters at zero.
+     */
+    public TileCacheStatistics()
+    {
+        for(int i = 0; i < ZOOM_LEVELS; i++)
+        {
+            aEntriesPerZoom[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a lookup that found the tile.
+     *
+     * @param pNanos The duration of the lookup, in nanoseconds.
+     */
+    public void recordHit(long pNanos)
+    {
+        aHits.increment();
+        aLookupNanos.add(pNanos);
+    }
+
+    /**
+     * Records a lookup that did not find the tile.
+     *
+     * @param pNanos The duration of the lookup, in nanoseconds.
+     */
+    public void recordMiss(long pNanos)
+    {
+        aMisses.increment();
+        aLookupNanos.add(pNanos);
+    }
+
+    /**
+     * Records a tile added to the cache.
+     *
+     * @param pZoom The zoom level of the tile.
+     * @param pBytes The number of bytes taken by the tile.
+     */
+    public void recordInsertion(int pZoom, long pBytes)
+    {
+        aEntriesPerZoom[pZoom].increment();
+        aResidentBytes.add(pBytes);
+    }
+
+    /**
+     * Records a tile that is no longer in the cache, without counting it as an eviction.
+     *
+     * @param pZoom The zoom level of the tile.
+     * @param pBytes The number of bytes that were taken by the tile.
+     */
+    public void recordRemoval(int pZoom, long pBytes)
+    {
+        aEntriesPerZoom[pZoom].decrement();
+        aResidentBytes.add(-pBytes);
+    }
+
+    /**
+     * Records a tile removed from the cache to make room or because it was invalid.
+     *
+     * @param pZoom The zoom level of the tile.
+     * @param pBytes The number of bytes that were taken by the tile.
+     */
+    public void recordEviction(int pZoom, long pBytes)
+    {
+        aEvictions.increment();
+        aEvictedBytes.add(pBytes);
+        recordRemoval(pZoom, pBytes);
+    }
+
+    /**
+     * Records a change in the size of a cached tile.
+     *
+     * @param pDelta The number of bytes added, or removed if negative.
+     */
+    public void recordResize(long pDelta)
+    {
+        aResidentBytes.add(pDelta);
+    }
+
+    @Override
+    public long getHitCount()
+    {
+        return aHits.sum();
+    }
+
+    @Override
+    public long getMissCount()
+    {
+        return aMisses.sum();
+    }
+
+    @Override
+    public double getHitRate()
+    {
+        long hits = aHits.sum();
+        long lookups = hits + aMisses.sum();
+        if(lookups == 0)
+        {
+            return 0;
+        }
+        return (double) hits / lookups;
+    }
+
+    @Override
+    public long getEvictionCount()
+    {
+        return aEvictions.sum();
+    }
+
+    @Override
+    public long getEvictedBytes()
+    {
+        return aEvictedBytes.sum();
+    }
+
+    @Override
+    public long getResidentBytes()
+    {
+        return aResidentBytes.sum();
+    }
+
+    @Override
+    public long getEntryCount()
+    {
+        long total = 0;
+        for(LongAdder entries : aEntriesPerZoom)
+        {
+            total += entries.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long[] getEntriesPerZoom()
+    {
+        long[] result = new long[ZOOM_LEVELS];
+        for(int i = 0; i < ZOOM_LEVELS; i++)
+        {
+            result[i] = aEntriesPerZoom[i].sum();
+        }
+        return result;
+    }
+
+    @Override
+    public double getAverageLookupMicros()
+    {
+        long lookups = aHits.sum() + aMisses.sum();
+        if(lookups == 0)
+        {
+            return 0;
+        }
+        return aLookupNanos.sum() / NANOS_PER_MICRO / lookups;
+    }
+
+    @Override
+    public void resetCounters()
+    {
+        aHits.reset();
+        aMisses.reset();
+        aEvictions.reset();
+        aEvictedBytes.reset();
+        aLookupNanos.reset();
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server under
+     * the type TileCache and the requested name, or a numbered variant
+     * of it if the name is taken. Failures are logged and otherwise ignored.
+     *
+     * @param pName The name identifying the cache, e.g., "memory" or "disk".
+     */
+    public synchronized void register(String pName)
+    {
+        if(aObjectName != null)
+        {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            for(int i = 1; aObjectName == null; i++)
+            {
+                String name = i == 1 ? pName : pName + "-" + i;
+                ObjectName objectName = new ObjectName(DOMAIN + ":type=TileCache,name=" + name);
+                try
+                {
+                    server.registerMBean(this, objectName);
+                    aObjectName = objectName;
+                }
+                catch(InstanceAlreadyExistsException e)
+                {
+                    // Try the next number
+                }
+            }
+        }
+        catch(JMException e)
+        {
+            LOGGER.log(Level.WARNING, "Failed to register tile cache statistics " + pName, e);
+        }
+    }
+
+    /**
+     * Removes these statistics from the platform MBean server, if they were registered.
+     */
+    public synchronized void unregister()
+    {
+        if(aObjectName == null)
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(aObjectName);
+        }
+        catch(JMException e)
+        {
+            LOGGER.log(Level.WARNING, "Failed to unregister tile cache statistics " + aObjectName, e);
+        }
+        aObjectName = null;
+    }
+
+    /**
+     * @return The name under which these statistics are registered, or null if they are not.
+     */
+    public synchronized ObjectName getObjectName()
+    {
+        return aObjectName;
+    }
+}
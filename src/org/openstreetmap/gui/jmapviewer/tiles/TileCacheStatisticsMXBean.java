@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+/**
+ * Management interface of the {@link TileCacheStatistics}, as shown in JConsole.
+ */
+public interface TileCacheStatisticsMXBean
+{
+    /**
+     * @return The number of lookups that found the tile.
+     */
+    long getHitCount();
+
+    /**
+     * @return The number of lookups that did not find the tile.
+     */
+    long getMissCount();
+
+    /**
+     * @return The fraction of lookups that found the tile, or 0 if there was no lookup.
+     */
+    double getHitRate();
+
+    /**
+     * @return The number of tiles removed from the cache to make room or because they were invalid.
+     */
+    long getEvictionCount();
+
+    /**
+     * @return The number of bytes reclaimed by removing tiles from the cache.
+     */
+    long getEvictedBytes();
+
+    /**
+     * @return The number of bytes held by the cache.
+     */
+    long getResidentBytes();
+
+    /**
+     * @return The number of tiles held by the cache.
+     */
+    long getEntryCount();
+
+    /**
+     * @return The number of tiles held by the cache at each zoom level, indexed by zoom level.
+     */
+    long[] getEntriesPerZoom();
+
+    /**
+     * @return The average duration of a lookup, in microseconds.
+     */
+    double getAverageLookupMicros();
+
+    /**
+     * Sets the hit, miss and eviction counts, the evicted bytes and the lookup durations back to zero.
+     * The resident bytes and entries are not affected.
+     */
+    void resetCounters();
+}
@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the directories of a file cache within a byte quota for each tile
+ * source and a global one. When a quota is exceeded, tiles are deleted until
+ * the cache is back under {@link #TARGET_RATIO} of the quota: first the tiles
+ * older than the maximum age, which would have to be validated anyway, then
+ * the tiles that were read the longest time ago. The tiles to delete are
+ * chosen from the {@link TileCacheIndex} of each directory, so a sweep does
+ * not list the directories. An image file shared by several tiles as a hard
+ * link is counted once, and its bytes are reclaimed only with its last link.
+ *
+ * Sweeps run in a low-priority daemon thread, periodically and whenever
+ * {@link #requestSweep()} is called.
+ */
+public class TileCacheSweeper
+{
+    /**
+     * The share of a quota to which the cache is reduced when it exceeds the quota.
+     */
+    public static final double TARGET_RATIO = 0.9;
+
+    private static final Logger LOGGER = Logger.getLogger(TileCacheSweeper.class.getName());
+
+    // Serializes the sweeps without blocking the requests for a sweep
+    private final Object aSweepLock = new Object();
+    private final List<CacheDirectory> aDirectories = new CopyOnWriteArrayList<CacheDirectory>();
+    private final TileCacheStatistics aStatistics;
+    private final long aMaximumAge;
+    private volatile long aSourceQuota = Long.MAX_VALUE;
+    private volatile long aGlobalQuota = Long.MAX_VALUE;
+    private boolean aSweepRequested = false;
+    private Thread aThread;
+
+    /**
+     * Creates a sweeper for which no directory is registered yet.
+     *
+     * @param pStatistics The statistics in which the deleted tiles are recorded.
+     * @param pMaximumAge The age in milliseconds above which tiles are deleted first.
+     */
+    public TileCacheSweeper(TileCacheStatistics pStatistics, long pMaximumAge)
+    {
+        aStatistics = pStatistics;
+        aMaximumAge = pMaximumAge;
+    }
+
+    /**
+     * Registers the directory of a tile source.
+     *
+     * @param pDirectory The directory of the tiles.
+     * @param pIndex The index of pDirectory.
+     * @param pTileType The extension of the tile image files.
+     */
+    public void addDirectory(File pDirectory, TileCacheIndex pIndex, String pTileType)
+    {
+        aDirectories.add(new CacheDirectory(pDirectory, pIndex, pTileType));
+    }
+
+    /**
+     * Sets the quotas.
+     *
+     * @param pSourceQuota The maximum number of bytes of tiles for each tile source.
+     * @param pGlobalQuota The maximum number of bytes of tiles for all the sources together.
+     */
+    public void setQuotas(long pSourceQuota, long pGlobalQuota)
+    {
+        if(pSourceQuota <= 0 || pGlobalQuota <= 0)
+        {
+            throw new IllegalArgumentException("Quotas must be positive");
+        }
+        aSourceQuota = pSourceQuota;
+        aGlobalQuota = pGlobalQuota;
+    }
+
+    /**
+     * @return The maximum number of bytes of tiles for each tile source.
+     */
+    public long getSourceQuota()
+    {
+        return aSourceQuota;
+    }
+
+    /**
+     * @return The maximum number of bytes of tiles for all the sources together.
+     */
+    public long getGlobalQuota()
+    {
+        return aGlobalQuota;
+    }
+
+    /**
+     * Starts the sweeping thread if it is not running yet.
+     *
+     * @param pInterval The time between two periodic sweeps, in milliseconds.
+     */
+    public synchronized void start(final long pInterval)
+    {
+        if(aThread != null)
+        {
+            return;
+        }
+        aThread = new Thread("Tile cache sweeper")
+        {
+            @Override
+            public void run()
+            {
+                sweepLoop(pInterval);
+            }
+        };
+        aThread.setDaemon(true);
+        aThread.setPriority(Thread.MIN_PRIORITY);
+        aThread.start();
+    }
+
+    /**
+     * Wakes up the sweeping thread, if it is started, for an immediate sweep.
+     */
+    public synchronized void requestSweep()
+    {
+        aSweepRequested = true;
+        notifyAll();
+    }
+
+    /**
+     * Deletes tiles until all the quotas are met.
+     *
+     * @return The number of bytes of the deleted tile images.
+     */
+    public long sweep()
+    {
+        synchronized(aSweepLock)
+        {
+            return doSweep();
+        }
+    }
+
+    private long doSweep()
+    {
+        long now = System.currentTimeMillis();
+        long reclaimed = 0;
+        int tiles = 0;
+        List<Candidate> remaining = new ArrayList<Candidate>();
+        long total = 0;
+        for(CacheDirectory directory : aDirectories)
+        {
+            List<Candidate> candidates = directory.getCandidates(now);
+            long size = getSize(candidates);
+            int deleted = 0;
+            if(size > aSourceQuota)
+            {
+                long target = (long) (aSourceQuota * TARGET_RATIO);
+                for(; deleted < candidates.size() && size > target; deleted++)
+                {
+                    long freed = delete(candidates.get(deleted));
+                    size -= freed;
+                    reclaimed += freed;
+                    tiles++;
+                }
+            }
+            remaining.addAll(candidates.subList(deleted, candidates.size()));
+            total += size;
+        }
+        if(total > aGlobalQuota)
+        {
+            Collections.sort(remaining, new CandidateComparator());
+            long target = (long) (aGlobalQuota * TARGET_RATIO);
+            for(int i = 0; i < remaining.size() && total > target; i++)
+            {
+                long freed = delete(remaining.get(i));
+                total -= freed;
+                reclaimed += freed;
+                tiles++;
+            }
+        }
+        if(tiles > 0)
+        {
+            LOGGER.info("Reclaimed " + reclaimed + " bytes by deleting " + tiles + " cached tiles");
+        }
+        return reclaimed;
+    }
+
+    private void sweepLoop(long pInterval)
+    {
+        while(true)
+        {
+            synchronized(this)
+            {
+                try
+                {
+                    if(!aSweepRequested)
+                    {
+                        wait(pInterval);
+                    }
+                }
+                catch(InterruptedException e)
+                {
+                    return;
+                }
+                aSweepRequested = false;
+            }
+            try
+            {
+                sweep();
+            }
+            catch(RuntimeException e)
+            {
+                LOGGER.warning("Tile cache sweep failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Returns the number of bytes of the image files of the candidates,
+     * counting a shared file once.
+     */
+    private static long getSize(List<Candidate> pCandidates)
+    {
+        long size = 0;
+        Set<Object> sharedFiles = new HashSet<Object>();
+        for(Candidate candidate : pCandidates)
+        {
+            if(candidate.aFileKey == null || sharedFiles.add(candidate.aFileKey))
+            {
+                size += candidate.aSize;
+            }
+        }
+        return size;
+    }
+
+    /*
+     * Deletes the files of a tile and returns the number of bytes freed,
+     * which is 0 if its image file is still linked to by other tiles.
+     */
+    private long delete(Candidate pCandidate)
+    {
+        CacheDirectory directory = pCandidate.aDirectory;
+        long key = pCandidate.aKey;
+        int zoom = TileKey.getZoom(key);
+        int x = TileKey.getXtile(key);
+        int y = TileKey.getYtile(key);
+        File file = TileCacheLayout.getFile(directory.aDirectory, zoom, x, y, "." + directory.aTileType);
+        long freed = pCandidate.aSize;
+        if(pCandidate.aFileKey != null && TileCacheLayout.getLinkCount(file) > 1)
+        {
+            freed = 0;
+        }
+        directory.aIndex.remove(key);
+        file.delete();
+        TileCacheLayout.getFile(directory.aDirectory, zoom, x, y, ".tags").delete();
+        aStatistics.recordEviction(zoom, freed);
+        return freed;
+    }
+
+    /**
+     * A directory of tiles of one source.
+     */
+    private final class CacheDirectory
+    {
+        private final File aDirectory;
+        private final TileCacheIndex aIndex;
+        private final String aTileType;
+
+        private CacheDirectory(File pDirectory, TileCacheIndex pIndex, String pTileType)
+        {
+            aDirectory = pDirectory;
+            aIndex = pIndex;
+            aTileType = pTileType;
+        }
+
+        /*
+         * Returns the tiles of the directory, the first to delete first.
+         * Only the shared image files are looked up, to tell which are the same.
+         */
+        private List<Candidate> getCandidates(long pNow)
+        {
+            long[] keys = aIndex.keys();
+            List<Candidate> candidates = new ArrayList<Candidate>(keys.length);
+            for(long key : keys)
+            {
+                TileCacheIndex.Entry entry = aIndex.get(key);
+                if(entry != null)
+                {
+                    Object fileKey = null;
+                    if(entry.isShared())
+                    {
+                        fileKey = TileCacheLayout.getFileKey(TileCacheLayout.getFile(aDirectory, TileKey.getZoom(key),
+                                TileKey.getXtile(key), TileKey.getYtile(key), "." + aTileType));
+                    }
+                    candidates.add(new Candidate(this, key, entry.getSize(), fileKey,
+                            pNow - entry.getTime() > aMaximumAge, entry.getAccessTime()));
+                }
+            }
+            Collections.sort(candidates, new CandidateComparator());
+            return candidates;
+        }
+    }
+
+    /**
+     * A tile that could be deleted.
+     */
+    private static final class Candidate
+    {
+        private final CacheDirectory aDirectory;
+        private final long aKey;
+        private final int aSize;
+        // Identifies the image file if it is shared, null otherwise
+        private final Object aFileKey;
+        private final boolean aExpired;
+        private final long aAccessTime;
+
+        private Candidate(CacheDirectory pDirectory, long pKey, int pSize, Object pFileKey, boolean pExpired, long pAccessTime)
+        {
+            aDirectory = pDirectory;
+            aKey = pKey;
+            aSize = pSize;
+            aFileKey = pFileKey;
+            aExpired = pExpired;
+            aAccessTime = pAccessTime;
+        }
+    }
+
+    /**
+     * Orders the expired tiles first, then by access time.
+     */
+    private static final class CandidateComparator implements Comparator<Candidate>
+    {
+        @Override
+        public int compare(Candidate pCandidate1, Candidate pCandidate2)
+        {
+            if(pCandidate1.aExpired != pCandidate2.aExpired)
+            {
+                return pCandidate1.aExpired ? -1 : 1;
+            }
+            return Long.compare(pCandidate1.aAccessTime, pCandidate2.aAccessTime);
+        }
+    }
+}
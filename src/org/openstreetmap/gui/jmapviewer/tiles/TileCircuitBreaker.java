@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.logging.Logger;
+
+/**
+ * Stops requesting tiles from a tile source that keeps failing, so that an
+ * outage of one source does not tie up the threads and connections that
+ * the other sources need. The circuit of a source opens after a number of
+ * consecutive failures: requests then fail immediately, and the tiles keep
+ * the image they show, if any, until they are requested again. Once the circuit has been open for a while, a
+ * single request is let through as a probe: the circuit closes if it
+ * succeeds, and opens again otherwise.
+ *
+ * A request fails if its server cannot be reached or answers with an error.
+ * A missing tile is not a failure, since the server did answer.
+ */
+public class TileCircuitBreaker
+{
+    /**
+     * The state of the circuit of a tile source.
+     */
+    public enum State
+    {
+        /** Requests are sent. */
+        CLOSED,
+        /** Requests fail immediately. */
+        OPEN,
+        /** A single request is sent to probe the source, the others fail immediately. */
+        HALF_OPEN
+    }
+
+    /**
+     * The default number of consecutive failures that opens a circuit.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * The default time a circuit stays open before it is probed, in milliseconds.
+     */
+    public static final long DEFAULT_OPEN_TIME = 30000;
+
+    private static final Logger LOGGER = Logger.getLogger(TileCircuitBreaker.class.getName());
+    private static final TileCircuitBreaker DEFAULT = new TileCircuitBreaker();
+
+    // Guarded by itself
+    private final Map<String, Circuit> aCircuits = new HashMap<String, Circuit>();
+    private final int aFailureThreshold;
+    private final long aOpenTime;
+
+    /**
+     * Creates a breaker with the default threshold and open time.
+     */
+    public TileCircuitBreaker()
+    {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME);
+    }
+
+    /**
+     * Creates a breaker.
+     *
+     * @param pFailureThreshold The number of consecutive failures that opens a circuit.
+     * @param pOpenTime The time a circuit stays open before it is probed, in milliseconds.
+     */
+    public TileCircuitBreaker(int pFailureThreshold, long pOpenTime)
+    {
+        if(pFailureThreshold < 1 || pOpenTime < 0)
+        {
+            throw new IllegalArgumentException("Invalid circuit parameters");
+        }
+        aFailureThreshold = pFailureThreshold;
+        aOpenTime = pOpenTime;
+    }
+
+    /**
+     * @return The breaker shared by default by the tile loaders.
+     */
+    public static TileCircuitBreaker getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * Tells whether a request to a tile source may be sent. A request allowed
+     * must be followed by a call to {@link #record(String, Throwable)}.
+     *
+     * @param pSourceName The name of the tile source.
+     * @return True if the request may be sent.
+     */
+    public boolean allowRequest(String pSourceName)
+    {
+        return allowRequest(pSourceName, System.currentTimeMillis());
+    }
+
+    /**
+     * Records the outcome of a request that was allowed.
+     *
+     * @param pSourceName The name of the tile source.
+     * @param pFailure The reason why the request failed, or null if it succeeded.
+     */
+    public void record(String pSourceName, Throwable pFailure)
+    {
+        record(pSourceName, pFailure, System.currentTimeMillis());
+    }
+
+    /**
+     * @param pSourceName The name of a tile source.
+     * @return The state of the circuit of the tile source.
+     */
+    public State getState(String pSourceName)
+    {
+        synchronized(aCircuits)
+        {
+            Circuit circuit = aCircuits.get(pSourceName);
+            if(circuit == null || circuit.aOpenedAt < 0)
+            {
+                return State.CLOSED;
+            }
+            return circuit.aProbing ? State.HALF_OPEN : State.OPEN;
+        }
+    }
+
+    /**
+     * @param pSourceName The name of a tile source.
+     * @return The time until a request to the tile source may be sent again in
+     *     milliseconds: 0 if its circuit is closed or may be probed, and the
+     *     open time while it is probed.
+     */
+    public long getWaitTime(String pSourceName)
+    {
+        return getWaitTime(pSourceName, System.currentTimeMillis());
+    }
+
+    /**
+     * @param pFailure The reason why a request failed.
+     * @return True if pFailure means that the tile source is not working.
+     */
+    public static boolean isSourceFailure(Throwable pFailure)
+    {
+        Throwable failure = TileFetchRegistry.unwrap(pFailure);
+        return failure instanceof IOException && !(failure instanceof FileNotFoundException)
+                && !(failure instanceof TileSourceUnavailableException);
+    }
+
+    boolean allowRequest(String pSourceName, long pNow)
+    {
+        synchronized(aCircuits)
+        {
+            Circuit circuit = aCircuits.get(pSourceName);
+            if(circuit == null || circuit.aOpenedAt < 0)
+            {
+                return true;
+            }
+            if(circuit.aProbing || pNow - circuit.aOpenedAt < aOpenTime)
+            {
+                return false;
+            }
+            circuit.aProbing = true;
+            return true;
+        }
+    }
+
+    long getWaitTime(String pSourceName, long pNow)
+    {
+        synchronized(aCircuits)
+        {
+            Circuit circuit = aCircuits.get(pSourceName);
+            if(circuit == null || circuit.aOpenedAt < 0)
+            {
+                return 0;
+            }
+            if(circuit.aProbing)
+            {
+                return aOpenTime;
+            }
+            return Math.max(0, circuit.aOpenedAt + aOpenTime - pNow);
+        }
+    }
+
+    void record(String pSourceName, Throwable pFailure, long pNow)
+    {
+        synchronized(aCircuits)
+        {
+            Circuit circuit = aCircuits.get(pSourceName);
+            if(TileFetchRegistry.unwrap(pFailure) instanceof CancellationException)
+            {
+                // An aborted request tells nothing about the source
+                if(circuit != null)
+                {
+                    circuit.aProbing = false;
+                }
+                return;
+            }
+            if(!isSourceFailure(pFailure))
+            {
+                if(circuit != null && circuit.aOpenedAt >= 0)
+                {
+                    LOGGER.info("Tile source " + pSourceName + " is available again");
+                }
+                aCircuits.remove(pSourceName);
+                return;
+            }
+            if(circuit == null)
+            {
+                circuit = new Circuit();
+                aCircuits.put(pSourceName, circuit);
+            }
+            circuit.aFailures++;
+            boolean closed = circuit.aOpenedAt < 0;
+            if(circuit.aProbing || closed && circuit.aFailures >= aFailureThreshold)
+            {
+                if(closed)
+                {
+                    LOGGER.warning("Tile source " + pSourceName + " failed " + circuit.aFailures + " times, pausing its requests");
+                }
+                circuit.aOpenedAt = pNow;
+                circuit.aProbing = false;
+            }
+        }
+    }
+
+    /**
+     * The failures of a tile source. Sources without failures have no circuit.
+     */
+    private static final class Circuit
+    {
+        private int aFailures = 0;
+        // The time at which the circuit was last opened, or -1 while it is closed
+        private long aOpenedAt = -1;
+        private boolean aProbing = false;
+    }
+}
@@ -20,20 +20,45 @@
  *******************************************************************************/
 package org.openstreetmap.gui.jmapviewer.tiles;
 
+import java.awt.Rectangle;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
 import org.openstreetmap.gui.jmapviewer.tilesources.MapnikOsmTileSource;
 import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
 
 /**
- * Controls the loading of tiles.
+ * Controls the loading of tiles. The controller keeps track of the jobs it
+ * submitted, so that the jobs of the tiles that are no longer in view, for
+ * example after the map was panned or zoomed, can be cancelled instead of
+ * keeping the threads and the connections busy. The jobs are tracked for the
+ * thread that paints the map, which must be the only one to use them.
+ *
+ * The jobs are run through a client of their own of a {@link JobDispatcher},
+ * the shared one by default, so that the jobs of several maps are served in
+ * turn, and cancelling the jobs of one map does not cancel those of the others.
  */
 public class TileController
 {
+    /**
+     * The number of tiles around the viewport whose jobs are not cancelled,
+     * so that a small pan does not cancel the tiles about to come into view.
+     */
+    public static final int PREFETCH_MARGIN = 1;
+
+    // The jobs submitted for the tiles not loaded yet
+    private final Map<Tile, TileJob> aJobs = new IdentityHashMap<Tile, TileJob>();
     private TileLoader aTileLoader;
     private TileCache aTileCache;
     private TileSource aTileSource;
+    private JobDispatcher.Client aJobClient = JobDispatcher.getInstance().createClient();
 
     /**
-     * Creates a controller that loads Mapnik tiles by default.
+     * Creates a controller that loads Mapnik tiles by default. The encoded
+     * images of the loaded tiles are kept off-heap in an {@link OffHeapTileStore},
+     * so that tiles evicted from pTileCache can be decoded again without
+     * being downloaded.
      * @param pSource The tile source.
      * @param pTileCache The tile cache.
      * @param pListener The tile listener.
@@ -41,7 +66,9 @@ public class TileController
     public TileController(TileSource pSource, TileCache pTileCache, TileLoaderListener pListener) 
     {
         aTileSource = new MapnikOsmTileSource();
-        aTileLoader = new OsmTileLoader(pListener);
+        OsmTileLoader loader = new OsmTileLoader(pListener);
+        loader.setCompressedTileStore(new OffHeapTileStore());
+        aTileLoader = loader;
         this.aTileCache = pTileCache;
     }
 
@@ -69,13 +96,110 @@ public class TileController
             aTileCache.addTile(tile);
             tile.loadPlaceholderFromCache(aTileCache);
         }
-        if(!tile.isLoaded()) 
+        if(!tile.isLoaded() && !tile.isLoading() && !aJobs.containsKey(tile)) 
         {
-        	JobDispatcher.getInstance().addJob(aTileLoader.createTileLoaderJob(tile));
+            TileJob job = aTileLoader.createTileLoaderJob(tile);
+            if(aJobClient.addJob(job))
+            {
+                aJobs.put(tile, job);
+            }
         }
         return tile;
     }
 
+    /**
+     * Sets the viewport from which the order of the jobs is decided.
+     *
+     * @param pZoomLevel The zoom level in view.
+     * @param pVisible The range of tiles in view.
+     * @param pFocusX The X position, in tiles, of the point to load first.
+     * @param pFocusY The Y position, in tiles, of the point to load first.
+     */
+    public void setViewport(int pZoomLevel, Rectangle pVisible, double pFocusX, double pFocusY)
+    {
+        aJobClient.setViewport(pZoomLevel, pVisible, pFocusX, pFocusY);
+    }
+
+    /**
+     * Cancels the jobs of the tiles that are outside of a range of tiles,
+     * extended by {@link #PREFETCH_MARGIN}, or at another zoom level.
+     *
+     * @param pZoomLevel The zoom level in view.
+     * @param pMinX The X position of the leftmost tile in view.
+     * @param pMinY The Y position of the topmost tile in view.
+     * @param pMaxX The X position of the rightmost tile in view.
+     * @param pMaxY The Y position of the bottommost tile in view.
+     */
+    public void cancelJobsOutside(int pZoomLevel, int pMinX, int pMinY, int pMaxX, int pMaxY)
+    {
+        Iterator<Map.Entry<Tile, TileJob>> iterator = aJobs.entrySet().iterator();
+        while(iterator.hasNext())
+        {
+            Map.Entry<Tile, TileJob> entry = iterator.next();
+            Tile tile = entry.getKey();
+            if(tile.isLoaded() && !tile.isLoading())
+            {
+                iterator.remove();
+            }
+            else if(tile.getZoom() != pZoomLevel || tile.getXtile() < pMinX - PREFETCH_MARGIN
+                    || tile.getXtile() > pMaxX + PREFETCH_MARGIN || tile.getYtile() < pMinY - PREFETCH_MARGIN
+                    || tile.getYtile() > pMaxY + PREFETCH_MARGIN)
+            {
+                iterator.remove();
+                aJobClient.cancelJob(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Cancels the jobs of all the tiles not loaded yet.
+     */
+    public void cancelAllJobs()
+    {
+        for(TileJob job : aJobs.values())
+        {
+            aJobClient.cancelJob(job);
+        }
+        aJobs.clear();
+    }
+
+    /**
+     * Cancels the jobs of this controller that are not running yet.
+     * The jobs of the other controllers are not affected.
+     */
+    public void cancelOutstandingJobs()
+    {
+        aJobClient.cancelOutstandingJobs();
+        Iterator<Tile> iterator = aJobs.keySet().iterator();
+        while(iterator.hasNext())
+        {
+            // The tiles of the cancelled jobs are no longer loading, and are requested again when painted
+            if(!iterator.next().isLoading())
+            {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Makes the jobs of this controller run on another dispatcher, such as
+     * one of its own, after cancelling its current jobs.
+     * @param pDispatcher The dispatcher.
+     */
+    public void setJobDispatcher(JobDispatcher pDispatcher)
+    {
+        cancelAllJobs();
+        aJobClient = pDispatcher.createClient();
+    }
+
+    /**
+     * @return The client of the dispatcher that runs the jobs of this controller.
+     */
+    public JobDispatcher.Client getJobClient()
+    {
+        return aJobClient;
+    }
+
     /**
      * Sets the tile loader to a non-default value.
      * @param pTileLoader The new value.
@@ -99,6 +223,7 @@ public class TileController
      */
     public void setTileSource(TileSource pTileSource)
     {
+        cancelAllJobs();
         aTileSource = pTileSource;
     }
 }
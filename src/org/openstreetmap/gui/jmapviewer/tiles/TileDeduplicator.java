@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the content of recently written tile files, so that a tile
+ * identical to one of them can be stored as a hard link to the same file
+ * instead of as a copy. At high zoom levels, the tiles of the sea, of deserts
+ * or beyond the data of a map are identical thousands of times, and these
+ * few contents are written constantly, so they stay among the recent ones.
+ *
+ * Contents are identified by their SHA-256 hash. Since tile files are always
+ * replaced by renaming a new file onto them, and never modified in place, a
+ * file keeps the content it was remembered with until it is written again,
+ * at which point {@link #forget(File)} must be called.
+ */
+public class TileDeduplicator
+{
+    /**
+     * The default number of contents remembered.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int NIBBLE_BITS = 4;
+    private static final int NIBBLE_MASK = 0xF;
+
+    // Guarded by this, from the hash of a content to a file holding it, least recently used first
+    private final Map<String, File> aFiles;
+    private final Map<File, String> aHashes = new HashMap<File, String>();
+    private long aSavedBytes = 0;
+
+    /**
+     * Creates a deduplicator that remembers a bounded number of contents.
+     *
+     * @param pCapacity The number of contents to remember.
+     */
+    public TileDeduplicator(final int pCapacity)
+    {
+        aFiles = new LinkedHashMap<String, File>(pCapacity, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, File> pEldest)
+            {
+                if(size() > pCapacity)
+                {
+                    aHashes.remove(pEldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Computes the hash that identifies the content of a tile.
+     *
+     * @param pData The encoded image of a tile.
+     * @return The SHA-256 hash of pData, in hexadecimal.
+     */
+    public static String hash(byte[] pData)
+    {
+        byte[] digest;
+        try
+        {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM).digest(pData);
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            // Every Java platform provides SHA-256
+            throw new IllegalStateException(e);
+        }
+        char[] hex = new char[digest.length * 2];
+        for(int i = 0; i < digest.length; i++)
+        {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> NIBBLE_BITS) & NIBBLE_MASK];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & NIBBLE_MASK];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @param pHash The hash of a content.
+     * @return A file known to hold this content, or null if there is none.
+     */
+    public synchronized File find(String pHash)
+    {
+        return aFiles.get(pHash);
+    }
+
+    /**
+     * Records that a file holds a content.
+     *
+     * @param pFile A tile file that was just written.
+     * @param pHash The hash of its content.
+     */
+    public synchronized void remember(File pFile, String pHash)
+    {
+        forget(pFile);
+        File previous = aFiles.put(pHash, pFile);
+        if(previous != null)
+        {
+            aHashes.remove(previous);
+        }
+        aHashes.put(pFile, pHash);
+    }
+
+    /**
+     * Forgets the content of a file, because it is replaced or deleted.
+     *
+     * @param pFile The tile file.
+     */
+    public synchronized void forget(File pFile)
+    {
+        String hash = aHashes.remove(pFile);
+        if(hash != null && pFile.equals(aFiles.get(hash)))
+        {
+            aFiles.remove(hash);
+        }
+    }
+
+    /**
+     * Records that a tile was stored as a link instead of as a copy.
+     *
+     * @param pBytes The size of the tile.
+     */
+    public synchronized void recordLink(long pBytes)
+    {
+        aSavedBytes += pBytes;
+    }
+
+    /**
+     * @return The number of bytes that were not written thanks to links.
+     */
+    public synchronized long getSavedBytes()
+    {
+        return aSavedBytes;
+    }
+}
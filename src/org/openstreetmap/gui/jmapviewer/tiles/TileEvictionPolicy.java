@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+/**
+ * Decides which tiles a {@link ConcurrentTileCache} discards when it runs
+ * over its memory budget. Tiles are identified by their packed
+ * {@link TileKey} and weighed in bytes.
+ *
+ * The cache notifies its policy of every insertion, access and removal, and
+ * asks it for a victim until the budget is met. All the calls are made while
+ * the cache holds its eviction lock, so implementations do not need to be
+ * thread-safe, but an instance must not be shared between caches.
+ */
+public interface TileEvictionPolicy
+{
+    /**
+     * Called once by the cache, before any other method,
+     * to tell the policy about the budget of the cache.
+     *
+     * @param pMaximumWeight The maximum weight of the cache, in bytes.
+     */
+    void setMaximumWeight(long pMaximumWeight);
+
+    /**
+     * Called when a tile is added to the cache.
+     *
+     * @param pKey The key of the tile.
+     * @param pWeight The weight of the tile, in bytes.
+     */
+    void recordInsertion(long pKey, long pWeight);
+
+    /**
+     * Called when a tile is found in the cache.
+     *
+     * @param pKey The key of the tile.
+     */
+    void recordAccess(long pKey);
+
+    /**
+     * Called when the weight of a tile changes, typically
+     * because its image was loaded.
+     *
+     * @param pKey The key of the tile.
+     * @param pWeight The new weight of the tile, in bytes.
+     */
+    void recordWeightChange(long pKey, long pWeight);
+
+    /**
+     * Called when a tile is removed from the cache, including
+     * when it is the victim returned by {@link #selectVictim()}.
+     *
+     * @param pKey The key of the tile.
+     */
+    void recordRemoval(long pKey);
+
+    /**
+     * Selects the next tile to discard. Only called when
+     * the cache holds at least one tile.
+     *
+     * @return The key of a tile currently in the cache.
+     */
+    long selectVictim();
+}
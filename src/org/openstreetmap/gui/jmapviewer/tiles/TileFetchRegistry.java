@@ -0,0 +1,364 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Keeps track of the tile fetches in flight, by URL, so that a tile
+ * requested again while it is being fetched is fetched only once: the later
+ * requests attach to the pending result instead of sending their own request.
+ * The result holds the encoded image, which the requesters decode through
+ * {@link Tile#loadImage(byte[])}, so identical images are also decoded once.
+ *
+ * Each request is a future of its own. A requester that no longer needs the
+ * tile cancels its future, which does not affect the other requesters; once
+ * all the requests of a fetch are cancelled, the fetch itself is aborted.
+ *
+ * A single registry, {@link #getDefault()}, is shared by default by all the
+ * loaders, so that the fetches are coalesced across viewers and across loaders.
+ */
+public class TileFetchRegistry
+{
+    private static final TileFetchRegistry DEFAULT = new TileFetchRegistry();
+
+    // Guarded by itself
+    private final Map<String, Flight> aFlights = new HashMap<String, Flight>();
+    private long aCoalesced = 0;
+
+    /**
+     * @return The registry shared by default by the tile loaders.
+     */
+    public static TileFetchRegistry getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * Fetches a tile, unless a fetch of the same URL is already in flight,
+     * in which case the result of that fetch is returned instead.
+     * When the fetch is started, pFetch is called by the calling thread.
+     *
+     * @param pUrl The URL of the tile.
+     * @param pFetch Starts the fetch of pUrl.
+     * @return The request, completed with the result of the fetch.
+     */
+    public CompletableFuture<Fetch> fetch(String pUrl, Supplier<? extends CompletionStage<Fetch>> pFetch)
+    {
+        CompletableFuture<Fetch> request = new CompletableFuture<Fetch>();
+        fetch(pUrl, request, pFetch, null);
+        return request;
+    }
+
+    /**
+     * Fetches a tile for a request, unless a fetch of the same URL is already
+     * in flight, in which case the request is attached to that fetch instead.
+     * When the fetch is started, pFetch is called by the calling thread, and
+     * pRequest may be completed before this method returns. If all the requests
+     * of the fetch are cancelled before it completes, the stage returned by
+     * pFetch is cancelled and pAbort is run.
+     *
+     * @param pUrl The URL of the tile.
+     * @param pRequest The request, completed with the result of the fetch.
+     * @param pFetch Starts the fetch of pUrl.
+     * @param pAbort Aborts the fetch started by pFetch, or null.
+     */
+    public void fetch(String pUrl, CompletableFuture<Fetch> pRequest, Supplier<? extends CompletionStage<Fetch>> pFetch,
+            Runnable pAbort)
+    {
+        Flight flight;
+        synchronized(aFlights)
+        {
+            flight = aFlights.get(pUrl);
+            if(flight != null)
+            {
+                aCoalesced++;
+                join(flight, pRequest);
+                return;
+            }
+            flight = new Flight(pUrl, pAbort);
+            aFlights.put(pUrl, flight);
+            join(flight, pRequest);
+        }
+        CompletionStage<Fetch> stage;
+        try
+        {
+            stage = pFetch.get();
+        }
+        catch(RuntimeException e)
+        {
+            stage = CompletableFuture.failedFuture(e);
+        }
+        flight.start(stage);
+    }
+
+    /**
+     * Attaches a request to the fetch of a URL, if one is in flight.
+     *
+     * @param pUrl The URL of the tile.
+     * @param pRequest The request, completed with the result of the fetch.
+     * @return True if the request was attached, false if no fetch of pUrl is in flight.
+     */
+    public boolean attach(String pUrl, CompletableFuture<Fetch> pRequest)
+    {
+        synchronized(aFlights)
+        {
+            Flight flight = aFlights.get(pUrl);
+            if(flight == null)
+            {
+                return false;
+            }
+            aCoalesced++;
+            join(flight, pRequest);
+            return true;
+        }
+    }
+
+    /**
+     * @return The number of fetches in flight.
+     */
+    public int getInFlightCount()
+    {
+        synchronized(aFlights)
+        {
+            return aFlights.size();
+        }
+    }
+
+    /**
+     * @return The number of requests that attached to a fetch in flight
+     *     instead of fetching their tile.
+     */
+    public long getCoalescedCount()
+    {
+        synchronized(aFlights)
+        {
+            return aCoalesced;
+        }
+    }
+
+    /**
+     * @param pFailure The exception with which a future completed.
+     * @return The cause of pFailure if it only wraps it, otherwise pFailure.
+     */
+    public static Throwable unwrap(Throwable pFailure)
+    {
+        if(pFailure instanceof CompletionException && pFailure.getCause() != null)
+        {
+            return pFailure.getCause();
+        }
+        return pFailure;
+    }
+
+    /*
+     * Must be called with the lock held.
+     */
+    private void join(final Flight pFlight, final CompletableFuture<Fetch> pRequest)
+    {
+        pFlight.aRequests++;
+        pFlight.aResult.whenComplete(new BiConsumer<Fetch, Throwable>()
+        {
+            @Override
+            public void accept(Fetch pResult, Throwable pFailure)
+            {
+                if(pFailure == null)
+                {
+                    pRequest.complete(pResult);
+                }
+                else
+                {
+                    pRequest.completeExceptionally(unwrap(pFailure));
+                }
+            }
+        });
+        pRequest.whenComplete(new BiConsumer<Fetch, Throwable>()
+        {
+            @Override
+            public void accept(Fetch pResult, Throwable pFailure)
+            {
+                if(pRequest.isCancelled())
+                {
+                    withdraw(pFlight);
+                }
+            }
+        });
+    }
+
+    /*
+     * Aborts the flight if it lost its last request.
+     */
+    private void withdraw(Flight pFlight)
+    {
+        synchronized(aFlights)
+        {
+            pFlight.aRequests--;
+            if(pFlight.aRequests > 0 || pFlight.aResult.isDone())
+            {
+                return;
+            }
+            remove(pFlight);
+        }
+        pFlight.abort();
+    }
+
+    /*
+     * Must be called with the lock held.
+     */
+    private void remove(Flight pFlight)
+    {
+        if(aFlights.get(pFlight.aUrl) == pFlight)
+        {
+            aFlights.remove(pFlight.aUrl);
+        }
+    }
+
+    /**
+     * A fetch in flight and its requests.
+     */
+    private final class Flight
+    {
+        private final String aUrl;
+        private final Runnable aAbort;
+        private final CompletableFuture<Fetch> aResult = new CompletableFuture<Fetch>();
+        // Guarded by the lock of the registry
+        private int aRequests = 0;
+        private CompletionStage<Fetch> aStage;
+        private boolean aAborted = false;
+
+        private Flight(String pUrl, Runnable pAbort)
+        {
+            aUrl = pUrl;
+            aAbort = pAbort;
+        }
+
+        private void start(CompletionStage<Fetch> pStage)
+        {
+            boolean aborted;
+            synchronized(aFlights)
+            {
+                aStage = pStage;
+                aborted = aAborted;
+            }
+            if(aborted)
+            {
+                pStage.toCompletableFuture().cancel(true);
+            }
+            pStage.whenComplete(new BiConsumer<Fetch, Throwable>()
+            {
+                @Override
+                public void accept(Fetch pResult, Throwable pFailure)
+                {
+                    land(pResult, pFailure);
+                }
+            });
+        }
+
+        /*
+         * Removes the flight before completing it, so that the requests
+         * that arrive afterwards start a new fetch.
+         */
+        private void land(Fetch pResult, Throwable pFailure)
+        {
+            synchronized(aFlights)
+            {
+                remove(this);
+            }
+            if(pFailure == null)
+            {
+                aResult.complete(pResult);
+            }
+            else
+            {
+                aResult.completeExceptionally(unwrap(pFailure));
+            }
+        }
+
+        private void abort()
+        {
+            CompletionStage<Fetch> stage;
+            synchronized(aFlights)
+            {
+                aAborted = true;
+                stage = aStage;
+            }
+            aResult.completeExceptionally(new CancellationException());
+            if(stage != null)
+            {
+                stage.toCompletableFuture().cancel(true);
+            }
+            if(aAbort != null)
+            {
+                aAbort.run();
+            }
+        }
+    }
+
+    /**
+     * The result of a tile fetch, shared by all its requesters.
+     * The encoded image must not be modified.
+     */
+    public static final class Fetch
+    {
+        private final byte[] aData;
+        private final Map<String, String> aMetadata;
+
+        /**
+         * @param pData The encoded image, or null if the server has no tile.
+         * @param pMetadata The metadata of the tile, or null if it has none.
+         */
+        public Fetch(byte[] pData, Map<String, String> pMetadata)
+        {
+            aData = pData;
+            if(pMetadata == null)
+            {
+                aMetadata = Collections.emptyMap();
+            }
+            else
+            {
+                aMetadata = Collections.unmodifiableMap(new HashMap<String, String>(pMetadata));
+            }
+        }
+
+        /**
+         * @return The encoded image, or null if the server has no tile.
+         */
+        public byte[] getData()
+        {
+            return aData;
+        }
+
+        /**
+         * @return The metadata of the tile.
+         */
+        public Map<String, String> getMetadata()
+        {
+            return aMetadata;
+        }
+    }
+}
@@ -34,4 +34,13 @@ public interface TileJob extends Runnable
      * @return {@link Tile} to be handled
      */
     Tile getTile();
+
+    /**
+     * Cancels the job, because its tile is no longer needed. A job that is
+     * queued does not run anymore, and a job that is loading its tile stops
+     * if it can and leaves the tile unloaded. By default, this does nothing.
+     */
+    default void cancel()
+    {
+    }
 }
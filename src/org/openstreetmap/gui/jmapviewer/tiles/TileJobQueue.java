@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The queue of a client of a {@link JobDispatcher}, which hands out the tile jobs in
+ * order of priority instead of in the order in which they were added.
+ * The jobs are ordered first by {@link Tier}, then by the distance of their
+ * tile to the focus of the viewport, usually the tile under the cursor or
+ * at the center of the map, plus {@link #ZOOM_PENALTY} tiles per zoom level
+ * away from the viewport. Jobs without a tile are handed out first, in order.
+ *
+ * A job is found by its tile in constant time, both to ignore a job for a
+ * tile already queued and to remove a job. When the viewport changes, the
+ * priorities are only recomputed once the next job is taken, so a map
+ * moving repeatedly costs one reordering of the queue per job taken at most.
+ */
+final class TileJobQueue
+{
+    /**
+     * The number of tiles of distance that a zoom level of difference is worth.
+     */
+    static final double ZOOM_PENALTY = 4;
+
+    // Removed jobs are dropped from the heap when it reaches this many times the live jobs
+    private static final int GARBAGE_RATIO = 2;
+    private static final int GARBAGE_MINIMUM = 64;
+    private static final double HALF_TILE = 0.5;
+
+    /**
+     * The classes of jobs, the first served first.
+     */
+    enum Tier
+    {
+        /** Tiles in view at the zoom level of the viewport. */
+        VISIBLE,
+        /** Tiles out of view, or at another zoom level. */
+        PREFETCH,
+        /** Tiles already shown from a local copy, which is being validated. */
+        REVALIDATION
+    }
+
+    private final ArrayDeque<TileJob> aUntiledJobs = new ArrayDeque<TileJob>();
+    private final Map<Tile, Entry> aIndex = new IdentityHashMap<Tile, Entry>();
+    private PriorityQueue<Entry> aHeap = new PriorityQueue<Entry>();
+    private boolean aStale = false;
+    private long aSequence = 0;
+    // The viewport, or null while none was set
+    private Rectangle aVisible;
+    private int aZoom;
+    private double aFocusX;
+    private double aFocusY;
+
+    /**
+     * Adds a job, unless a job for the same tile is already queued.
+     *
+     * @param pJob The job to add.
+     * @param pRevalidation True if pJob only validates a tile already shown.
+     * @return True if the job was added.
+     */
+    synchronized boolean add(TileJob pJob, boolean pRevalidation)
+    {
+        Tile tile = pJob.getTile();
+        if(tile == null)
+        {
+            aUntiledJobs.add(pJob);
+        }
+        else
+        {
+            if(aIndex.containsKey(tile))
+            {
+                return false;
+            }
+            Entry entry = new Entry(pJob, pRevalidation, aSequence++);
+            prioritize(entry);
+            aIndex.put(tile, entry);
+            aHeap.add(entry);
+        }
+        return true;
+    }
+
+    /**
+     * @param pJob A job.
+     * @return True if pJob was queued and is removed.
+     */
+    synchronized boolean remove(TileJob pJob)
+    {
+        Tile tile = pJob.getTile();
+        if(tile == null)
+        {
+            return aUntiledJobs.remove(pJob);
+        }
+        Entry entry = aIndex.get(tile);
+        if(entry == null || entry.aJob != pJob)
+        {
+            return false;
+        }
+        aIndex.remove(tile);
+        entry.aRemoved = true;
+        if(aHeap.size() > GARBAGE_RATIO * aIndex.size() + GARBAGE_MINIMUM)
+        {
+            aStale = true;
+        }
+        return true;
+    }
+
+    /**
+     * Removes all the jobs.
+     *
+     * @return The jobs removed, in no particular order.
+     */
+    synchronized List<TileJob> drain()
+    {
+        List<TileJob> jobs = new ArrayList<TileJob>(aUntiledJobs);
+        for(Entry entry : aIndex.values())
+        {
+            jobs.add(entry.aJob);
+        }
+        aUntiledJobs.clear();
+        aIndex.clear();
+        aHeap.clear();
+        aStale = false;
+        return jobs;
+    }
+
+    /**
+     * @return The number of jobs queued.
+     */
+    synchronized int size()
+    {
+        return aUntiledJobs.size() + aIndex.size();
+    }
+
+    /**
+     * @return The job with the highest priority and its tier, which is taken,
+     *     or null if the queue is empty.
+     */
+    synchronized Entry take()
+    {
+        return next();
+    }
+
+    /**
+     * Sets the viewport from which the priorities are computed.
+     *
+     * @param pZoom The zoom level in view.
+     * @param pVisible The range of tiles in view.
+     * @param pFocusX The X position, in tiles, of the point to load first.
+     * @param pFocusY The Y position, in tiles, of the point to load first.
+     */
+    synchronized void setViewport(int pZoom, Rectangle pVisible, double pFocusX, double pFocusY)
+    {
+        if(aVisible != null && aZoom == pZoom && aVisible.equals(pVisible) && aFocusX == pFocusX && aFocusY == pFocusY)
+        {
+            return;
+        }
+        aZoom = pZoom;
+        aVisible = new Rectangle(pVisible);
+        aFocusX = pFocusX;
+        aFocusY = pFocusY;
+        aStale |= !aIndex.isEmpty();
+    }
+
+    /*
+     * Returns the entry of the next job, or null if there is none.
+     */
+    private Entry next()
+    {
+        if(!aUntiledJobs.isEmpty())
+        {
+            return new Entry(aUntiledJobs.poll(), false, 0);
+        }
+        if(aStale)
+        {
+            reorder();
+        }
+        Entry entry = aHeap.poll();
+        while(entry != null && entry.aRemoved)
+        {
+            entry = aHeap.poll();
+        }
+        if(entry == null)
+        {
+            return null;
+        }
+        aIndex.remove(entry.aJob.getTile());
+        return entry;
+    }
+
+    /*
+     * Recomputes the priorities of the live jobs and rebuilds the heap
+     * from them in linear time, dropping the removed jobs.
+     */
+    private void reorder()
+    {
+        List<Entry> entries = new ArrayList<Entry>(aIndex.values());
+        for(Entry entry : entries)
+        {
+            prioritize(entry);
+        }
+        aHeap = new PriorityQueue<Entry>(entries);
+        aStale = false;
+    }
+
+    private void prioritize(Entry pEntry)
+    {
+        if(aVisible == null)
+        {
+            // Without a viewport, the jobs are served in order
+            pEntry.aTier = pEntry.aRevalidation ? Tier.REVALIDATION : Tier.VISIBLE;
+            pEntry.aDistance = 0;
+            return;
+        }
+        Tile tile = pEntry.aJob.getTile();
+        int zoomDifference = aZoom - tile.getZoom();
+        double scale = Math.scalb(1.0, zoomDifference);
+        double x = (tile.getXtile() + HALF_TILE) * scale;
+        double y = (tile.getYtile() + HALF_TILE) * scale;
+        pEntry.aDistance = Math.hypot(x - aFocusX, y - aFocusY) + ZOOM_PENALTY * Math.abs(zoomDifference);
+        if(pEntry.aRevalidation)
+        {
+            pEntry.aTier = Tier.REVALIDATION;
+        }
+        else if(zoomDifference == 0 && aVisible.contains(tile.getXtile(), tile.getYtile()))
+        {
+            pEntry.aTier = Tier.VISIBLE;
+        }
+        else
+        {
+            pEntry.aTier = Tier.PREFETCH;
+        }
+    }
+
+    /**
+     * A queued job and its priority. Entries of the same priority are served in order.
+     */
+    static final class Entry implements Comparable<Entry>
+    {
+        private final TileJob aJob;
+        private final boolean aRevalidation;
+        private final long aSequence;
+        private Tier aTier;
+        private double aDistance;
+        private boolean aRemoved = false;
+
+        private Entry(TileJob pJob, boolean pRevalidation, long pSequence)
+        {
+            aJob = pJob;
+            aRevalidation = pRevalidation;
+            aSequence = pSequence;
+        }
+
+        /**
+         * @return The job.
+         */
+        TileJob getJob()
+        {
+            return aJob;
+        }
+
+        /**
+         * @return True if the job only validates a tile already shown.
+         */
+        boolean isRevalidation()
+        {
+            return aRevalidation;
+        }
+
+        @Override
+        public int compareTo(Entry pEntry)
+        {
+            if(aTier != pEntry.aTier)
+            {
+                return aTier.compareTo(pEntry.aTier);
+            }
+            if(aDistance != pEntry.aDistance)
+            {
+                return Double.compare(aDistance, pEntry.aDistance);
+            }
+            return Long.compare(aSequence, pEntry.aSequence);
+        }
+    }
+}
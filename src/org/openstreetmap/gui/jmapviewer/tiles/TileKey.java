@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+
+/**
+ * Packs the coordinates of a tile and the identity of its source into a
+ * single <code>long</code>, so that tiles can be looked up without building
+ * a key object. From the most significant bits down, a key holds:
+ * <ul>
+ * <li>15 bits for the source id;</li>
+ * <li>5 bits for the zoom level;</li>
+ * <li>22 bits for the x coordinate;</li>
+ * <li>22 bits for the y coordinate.</li>
+ * </ul>
+ * This covers all zoom levels up to {@link org.openstreetmap.gui.jmapviewer.JMapViewer#MAX_ZOOM}.
+ * Source ids are assigned on first use and are only valid for the lifetime of
+ * the virtual machine. They must not be persisted.
+ */
+public final class TileKey
+{
+    private static final int COORDINATE_BITS = 22;
+    private static final int ZOOM_BITS = 5;
+    private static final int SOURCE_BITS = 15;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+    private static final long ZOOM_MASK = (1L << ZOOM_BITS) - 1;
+    private static final int X_SHIFT = COORDINATE_BITS;
+    private static final int ZOOM_SHIFT = 2 * COORDINATE_BITS;
+    private static final int SOURCE_SHIFT = ZOOM_SHIFT + ZOOM_BITS;
+    private static final int MAX_SOURCES = 1 << SOURCE_BITS;
+
+    // Tile source names are unique, see TileSource#getName()
+    private static final ConcurrentHashMap<String, Integer> SOURCE_IDS = new ConcurrentHashMap<String, Integer>();
+
+    private TileKey()
+    {}
+
+    /**
+     * Computes the key of a tile. The coordinates must be valid
+     * for the zoom level.
+     *
+     * @param pSource The tile source
+     * @param pXTile The x coordinate
+     * @param pYTile The y coordinate
+     * @param pZoom The zoom level
+     * @return The packed key.
+     * @throws IllegalArgumentException If the zoom level or the coordinates are out of range.
+     */
+    public static long pack(TileSource pSource, int pXTile, int pYTile, int pZoom)
+    {
+        return pack(getSourceId(pSource), pXTile, pYTile, pZoom);
+    }
+
+    /**
+     * Computes the key of a tile from an id obtained
+     * through {@link #getSourceId(TileSource)}.
+     *
+     * @param pSourceId The source id
+     * @param pXTile The x coordinate
+     * @param pYTile The y coordinate
+     * @param pZoom The zoom level
+     * @return The packed key.
+     * @throws IllegalArgumentException If the source id, the zoom level or the coordinates are out of range.
+     */
+    public static long pack(int pSourceId, int pXTile, int pYTile, int pZoom)
+    {
+        if(pSourceId < 0 || pSourceId >= MAX_SOURCES)
+        {
+            throw new IllegalArgumentException("Invalid source id: " + pSourceId);
+        }
+        if(!isValid(pXTile, pYTile, pZoom))
+        {
+            throw new IllegalArgumentException("Invalid tile: " + pZoom + "/" + pXTile + "/" + pYTile);
+        }
+        return (long) pSourceId << SOURCE_SHIFT | (pZoom & ZOOM_MASK) << ZOOM_SHIFT
+                | (pXTile & COORDINATE_MASK) << X_SHIFT | pYTile & COORDINATE_MASK;
+    }
+
+    /**
+     * @param pXTile The x coordinate
+     * @param pYTile The y coordinate
+     * @param pZoom The zoom level
+     * @return True if the coordinates are those of a tile at that zoom level,
+     *     and the zoom level is one that keys can hold.
+     */
+    public static boolean isValid(int pXTile, int pYTile, int pZoom)
+    {
+        // Beyond COORDINATE_BITS, the coordinates would not fit in their bits
+        return pZoom >= 0 && pZoom <= COORDINATE_BITS && pXTile >= 0 && pXTile < 1 << pZoom && pYTile >= 0
+                && pYTile < 1 << pZoom;
+    }
+
+    /**
+     * Returns the small integer that identifies pSource in keys,
+     * assigning a new one if the source has never been seen.
+     *
+     * @param pSource The tile source.
+     * @return The id of the source.
+     */
+    public static int getSourceId(TileSource pSource)
+    {
+        Integer id = SOURCE_IDS.get(pSource.getName());
+        if(id == null)
+        {
+            synchronized(SOURCE_IDS)
+            {
+                id = SOURCE_IDS.get(pSource.getName());
+                if(id == null)
+                {
+                    if(SOURCE_IDS.size() >= MAX_SOURCES)
+                    {
+                        throw new IllegalStateException("Too many tile sources");
+                    }
+                    id = SOURCE_IDS.size();
+                    SOURCE_IDS.put(pSource.getName(), id);
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @param pKey A packed key
+     * @return The source id stored in pKey.
+     */
+    public static int getSourceId(long pKey)
+    {
+        return (int) (pKey >>> SOURCE_SHIFT);
+    }
+
+    /**
+     * @param pKey A packed key
+     * @return The zoom level stored in pKey.
+     */
+    public static int getZoom(long pKey)
+    {
+        return (int) (pKey >>> ZOOM_SHIFT & ZOOM_MASK);
+    }
+
+    /**
+     * @param pKey A packed key
+     * @return The x coordinate stored in pKey.
+     */
+    public static int getXtile(long pKey)
+    {
+        return (int) (pKey >>> X_SHIFT & COORDINATE_MASK);
+    }
+
+    /**
+     * @param pKey A packed key
+     * @return The y coordinate stored in pKey.
+     */
+    public static int getYtile(long pKey)
+    {
+        return (int) (pKey & COORDINATE_MASK);
+    }
+}
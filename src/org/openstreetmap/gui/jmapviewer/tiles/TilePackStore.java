@@ -0,0 +1,528 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Stores encoded tiles in a few large append-only pack files instead of one
+ * file per tile. Each record of a pack holds the key of the tile, the time
+ * at which it was loaded, its ETag and its encoded image. The location of the
+ * latest record of each tile is kept in an in-memory index rebuilt from the
+ * record headers when the store is opened, so that a miss costs no I/O and a
+ * hit costs a single positioned read.
+ *
+ * Replacing or removing a tile appends a new record and leaves the old one
+ * in its pack as garbage. {@link #compact()} copies the live records out of
+ * the existing packs and deletes them.
+ *
+ * Lookups and reads can be done concurrently from any thread. Modifications
+ * are serialized.
+ */
+public class TilePackStore implements Closeable
+{
+    /**
+     * The default size above which a new pack file is started.
+     */
+    public static final long DEFAULT_MAXIMUM_PACK_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The share of the pack bytes taken by replaced or removed records
+     * above which the store should be compacted.
+     */
+    public static final double COMPACTION_THRESHOLD = 0.5;
+
+    private static final Logger LOGGER = Logger.getLogger(TilePackStore.class.getName());
+
+    private static final int MAGIC = 0x54504B31;
+    // Magic, key, time, type, ETag length, data length
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 1 + 2 + 4;
+    private static final byte TYPE_TILE = 0;
+    private static final byte TYPE_NO_TILE = 1;
+    private static final byte TYPE_DELETION = 2;
+    private static final int MAX_ETAG_LENGTH = 0xFFFF;
+
+    private static final String PACK_PREFIX = "tiles-";
+    private static final String PACK_SUFFIX = ".pack";
+    private static final Charset ETAG_CHARSET = Charset.forName("UTF-8");
+
+    private final File aDirectory;
+    private final long aMaximumPackSize;
+    private final LongHashMap<Entry> aIndex = new LongHashMap<Entry>();
+    private final Map<Integer, Pack> aPacks = new ConcurrentHashMap<Integer, Pack>();
+    private Pack aActive;
+    private long aLiveBytes = 0;
+    private long aTotalBytes = 0;
+
+    /**
+     * Opens the store kept in a directory, creating it if necessary.
+     *
+     * @param pDirectory The directory holding the pack files.
+     * @throws IOException If the directory or the packs cannot be accessed.
+     */
+    public TilePackStore(File pDirectory) throws IOException
+    {
+        this(pDirectory, DEFAULT_MAXIMUM_PACK_SIZE);
+    }
+
+    /**
+     * Opens the store kept in a directory, creating it if necessary.
+     * Damaged records at the end of a pack, as left by a crash, are discarded.
+     *
+     * @param pDirectory The directory holding the pack files.
+     * @param pMaximumPackSize The size above which a new pack file is started.
+     * @throws IOException If the directory or the packs cannot be accessed.
+     */
+    public TilePackStore(File pDirectory, long pMaximumPackSize) throws IOException
+    {
+        if(!pDirectory.isDirectory() && !pDirectory.mkdirs())
+        {
+            throw new IOException("Cannot access pack directory " + pDirectory);
+        }
+        aDirectory = pDirectory;
+        aMaximumPackSize = pMaximumPackSize;
+        for(int id : findPackIds())
+        {
+            Pack pack = openPack(id);
+            scan(pack);
+            aActive = pack;
+        }
+        if(aActive == null)
+        {
+            aActive = openPack(1);
+        }
+    }
+
+    /**
+     * Looks up a tile in the index, without any I/O.
+     *
+     * @param pKey The key of the tile.
+     * @return The entry of the tile, or null if the tile is not stored.
+     */
+    public Entry lookup(long pKey)
+    {
+        return aIndex.get(pKey);
+    }
+
+    /**
+     * Reads the encoded image of a tile.
+     *
+     * @param pEntry An entry obtained from {@link #lookup(long)}.
+     * @return The encoded image, empty if the entry is a no-tile marker.
+     * @throws IOException If the image cannot be read, in particular if
+     *     the pack of the entry was removed by a compaction since the lookup.
+     */
+    public byte[] read(Entry pEntry) throws IOException
+    {
+        Pack pack = aPacks.get(pEntry.aPack);
+        if(pack == null)
+        {
+            throw new IOException("Pack " + pEntry.aPack + " was removed");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(pEntry.aLength);
+        readFully(pack.aChannel, buffer, pEntry.getDataOffset());
+        return buffer.array();
+    }
+
+    /**
+     * Stores a tile, replacing any previous version.
+     *
+     * @param pKey The key of the tile.
+     * @param pData The encoded image of the tile, or null to record that the
+     *     server has no tile at this location.
+     * @param pTime The time at which the tile was loaded or validated, in milliseconds.
+     * @param pETag The ETag of the tile, or null.
+     * @throws IOException If the record cannot be written.
+     */
+    public synchronized void put(long pKey, byte[] pData, long pTime, String pETag) throws IOException
+    {
+        byte[] etag = new byte[0];
+        if(pETag != null && pETag.length() > 0)
+        {
+            etag = pETag.getBytes(ETAG_CHARSET);
+            if(etag.length > MAX_ETAG_LENGTH)
+            {
+                etag = new byte[0];
+            }
+        }
+        byte[] data = pData == null ? new byte[0] : pData;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + etag.length + data.length);
+        record.putInt(MAGIC).putLong(pKey).putLong(pTime).put(pData == null ? TYPE_NO_TILE : TYPE_TILE);
+        record.putShort((short) etag.length).putInt(data.length).put(etag).put(data).flip();
+        long offset = append(record);
+        index(pKey, new Entry(aActive.aId, offset, etag.length, data.length, pTime,
+                etag.length == 0 ? null : pETag, pData == null), record.capacity());
+    }
+
+    /**
+     * Removes a tile from the store.
+     *
+     * @param pKey The key of the tile.
+     * @throws IOException If the removal cannot be recorded.
+     */
+    public synchronized void remove(long pKey) throws IOException
+    {
+        if(aIndex.get(pKey) == null)
+        {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE);
+        record.putInt(MAGIC).putLong(pKey).putLong(0).put(TYPE_DELETION).putShort((short) 0).putInt(0).flip();
+        append(record);
+        index(pKey, null, HEADER_SIZE);
+    }
+
+    /**
+     * @return True if replaced and removed records take more than
+     *     {@link #COMPACTION_THRESHOLD} of the pack bytes.
+     */
+    public synchronized boolean needsCompaction()
+    {
+        return aTotalBytes - aLiveBytes > aTotalBytes * COMPACTION_THRESHOLD;
+    }
+
+    /**
+     * Copies the live records of all the packs to new packs and deletes
+     * the old ones. Modifications wait until the compaction is done, but
+     * lookups and reads can proceed.
+     *
+     * @throws IOException If a record cannot be copied. The store remains
+     *     usable, since the packs are only deleted once all their live
+     *     records are copied.
+     */
+    public synchronized void compact() throws IOException
+    {
+        List<Integer> sealed = new ArrayList<Integer>(aPacks.keySet());
+        // Oldest first, so that a crash never leaves a removal record without the record it removes
+        Collections.sort(sealed);
+        roll();
+        int firstNew = aActive.aId;
+        for(long key : aIndex.keys())
+        {
+            Entry entry = aIndex.get(key);
+            if(entry == null || entry.aPack >= firstNew)
+            {
+                continue;
+            }
+            ByteBuffer record = ByteBuffer.allocate(entry.getRecordLength());
+            readFully(aPacks.get(entry.aPack).aChannel, record, entry.aOffset);
+            record.flip();
+            long offset = append(record);
+            aIndex.put(key, new Entry(aActive.aId, offset, entry.aETagLength, entry.aLength,
+                    entry.aTime, entry.aETag, entry.aNoTile));
+        }
+        for(int id : sealed)
+        {
+            Pack pack = aPacks.remove(id);
+            aTotalBytes -= pack.aSize;
+            pack.aChannel.close();
+            if(!pack.aFile.delete())
+            {
+                LOGGER.warning("Could not delete compacted pack " + pack.aFile);
+            }
+        }
+    }
+
+    /**
+     * @return The number of tiles in the store.
+     */
+    public int getTileCount()
+    {
+        return aIndex.size();
+    }
+
+    /**
+     * @return The number of bytes taken by the latest records of the stored tiles.
+     */
+    public synchronized long getLiveBytes()
+    {
+        return aLiveBytes;
+    }
+
+    /**
+     * @return The number of bytes in all the pack files.
+     */
+    public synchronized long getTotalBytes()
+    {
+        return aTotalBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        for(Pack pack : aPacks.values())
+        {
+            pack.aChannel.close();
+        }
+        aPacks.clear();
+    }
+
+    private int[] findPackIds()
+    {
+        List<Integer> ids = new ArrayList<Integer>();
+        String[] names = aDirectory.list();
+        if(names != null)
+        {
+            for(String name : names)
+            {
+                if(name.startsWith(PACK_PREFIX) && name.endsWith(PACK_SUFFIX))
+                {
+                    try
+                    {
+                        ids.add(Integer.parseInt(name.substring(PACK_PREFIX.length(), name.length() - PACK_SUFFIX.length())));
+                    }
+                    catch(NumberFormatException e)
+                    {
+                        // Not one of our packs
+                    }
+                }
+            }
+        }
+        int[] result = new int[ids.size()];
+        for(int i = 0; i < result.length; i++)
+        {
+            result[i] = ids.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private Pack openPack(int pId) throws IOException
+    {
+        File file = new File(aDirectory, String.format("%s%08d%s", PACK_PREFIX, pId, PACK_SUFFIX));
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Pack pack = new Pack(pId, file, channel);
+        pack.aSize = channel.size();
+        aPacks.put(pId, pack);
+        aTotalBytes += pack.aSize;
+        return pack;
+    }
+
+    /*
+     * Rebuilds the index entries of the records of a pack, truncating the
+     * pack at the first record that is damaged or incomplete.
+     */
+    private void scan(Pack pPack) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long offset = 0;
+        while(offset + HEADER_SIZE <= pPack.aSize)
+        {
+            header.clear();
+            readFully(pPack.aChannel, header, offset);
+            header.flip();
+            if(header.getInt() != MAGIC)
+            {
+                break;
+            }
+            long key = header.getLong();
+            long time = header.getLong();
+            byte type = header.get();
+            int etagLength = header.getShort() & MAX_ETAG_LENGTH;
+            int length = header.getInt();
+            long recordLength = (long) HEADER_SIZE + etagLength + length;
+            if(length < 0 || type < TYPE_TILE || type > TYPE_DELETION || offset + recordLength > pPack.aSize)
+            {
+                break;
+            }
+            Entry entry = null;
+            if(type != TYPE_DELETION)
+            {
+                String etag = null;
+                if(etagLength > 0)
+                {
+                    ByteBuffer buffer = ByteBuffer.allocate(etagLength);
+                    readFully(pPack.aChannel, buffer, offset + HEADER_SIZE);
+                    etag = new String(buffer.array(), ETAG_CHARSET);
+                }
+                entry = new Entry(pPack.aId, offset, etagLength, length, time, etag, type == TYPE_NO_TILE);
+            }
+            index(key, entry, recordLength);
+            offset += recordLength;
+        }
+        if(offset < pPack.aSize)
+        {
+            LOGGER.warning("Discarding " + (pPack.aSize - offset) + " damaged bytes at the end of " + pPack.aFile);
+            pPack.aChannel.truncate(offset);
+            aTotalBytes -= pPack.aSize - offset;
+            pPack.aSize = offset;
+        }
+    }
+
+    /*
+     * Points the index to the latest record of a tile, or removes
+     * the tile from the index if pEntry is null.
+     */
+    private void index(long pKey, Entry pEntry, long pRecordLength)
+    {
+        Entry old;
+        if(pEntry == null)
+        {
+            old = aIndex.remove(pKey);
+        }
+        else
+        {
+            old = aIndex.put(pKey, pEntry);
+            aLiveBytes += pRecordLength;
+        }
+        if(old != null)
+        {
+            aLiveBytes -= old.getRecordLength();
+        }
+    }
+
+    private long append(ByteBuffer pRecord) throws IOException
+    {
+        if(aActive.aSize > 0 && aActive.aSize + pRecord.remaining() > aMaximumPackSize)
+        {
+            roll();
+        }
+        long offset = aActive.aSize;
+        int length = pRecord.remaining();
+        long position = offset;
+        while(pRecord.hasRemaining())
+        {
+            position += aActive.aChannel.write(pRecord, position);
+        }
+        aActive.aSize += length;
+        aTotalBytes += length;
+        return offset;
+    }
+
+    private void roll() throws IOException
+    {
+        aActive = openPack(aActive.aId + 1);
+    }
+
+    private static void readFully(FileChannel pChannel, ByteBuffer pBuffer, long pPosition) throws IOException
+    {
+        long position = pPosition;
+        while(pBuffer.hasRemaining())
+        {
+            int read = pChannel.read(pBuffer, position);
+            if(read < 0)
+            {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * The location and attributes of the latest record of a stored tile.
+     */
+    public static final class Entry
+    {
+        private final int aPack;
+        private final long aOffset;
+        private final int aETagLength;
+        private final int aLength;
+        private final long aTime;
+        private final String aETag;
+        private final boolean aNoTile;
+
+        private Entry(int pPack, long pOffset, int pETagLength, int pLength, long pTime, String pETag, boolean pNoTile)
+        {
+            aPack = pPack;
+            aOffset = pOffset;
+            aETagLength = pETagLength;
+            aLength = pLength;
+            aTime = pTime;
+            aETag = pETag;
+            aNoTile = pNoTile;
+        }
+
+        /**
+         * @return The number of bytes of the encoded image.
+         */
+        public int getLength()
+        {
+            return aLength;
+        }
+
+        /**
+         * @return The time at which the tile was loaded or validated, in milliseconds.
+         */
+        public long getTime()
+        {
+            return aTime;
+        }
+
+        /**
+         * @return The ETag of the tile, or null if it has none.
+         */
+        public String getETag()
+        {
+            return aETag;
+        }
+
+        /**
+         * @return True if the server has no tile at this location.
+         */
+        public boolean isNoTile()
+        {
+            return aNoTile;
+        }
+
+        private long getDataOffset()
+        {
+            return aOffset + HEADER_SIZE + aETagLength;
+        }
+
+        private int getRecordLength()
+        {
+            return HEADER_SIZE + aETagLength + aLength;
+        }
+    }
+
+    /**
+     * An open pack file. The size is guarded by the store.
+     */
+    private static final class Pack
+    {
+        private final int aId;
+        private final File aFile;
+        private final FileChannel aChannel;
+        private long aSize;
+
+        private Pack(int pId, File pFile, FileChannel pChannel)
+        {
+            aId = pId;
+            aFile = pFile;
+            aChannel = pChannel;
+        }
+    }
+}
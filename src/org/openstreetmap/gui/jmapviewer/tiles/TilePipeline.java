@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The stages through which a tile goes when it is loaded through a file
+ * cache: it is looked up on disk, downloaded if it is not there or is old,
+ * then decoded. Each stage has threads of its own and a bounded queue, so
+ * that the tiles found on disk are shown while other tiles are still
+ * downloading, however slow the network is. The tiles downloaded are then
+ * written by a {@link TileWriteQueue}, which is the last stage.
+ *
+ * A job enters the pipeline with {@link #offer(Stage, Runnable, Runnable)},
+ * which never makes its thread wait: a stage whose queue is full refuses the
+ * task, and calls back the job once the queue has room again, so that the job
+ * can go back to the queue of its {@link JobDispatcher}. The jobs waiting for a
+ * stage thus stay ordered by priority and can be cancelled, and a saturated
+ * stage does not hold the threads of the dispatcher. A task already in the
+ * pipeline hands the tile to the next stage with {@link #getExecutor(Stage)},
+ * which queues it even if the queue is full, since the tasks admitted by the
+ * stages are already bounded.
+ *
+ * The threads of a stage limit the resource it uses, so the tasks running in
+ * a stage need no {@link TileResources} permit for it, see {@link #isRunningIn(Stage)}.
+ */
+public class TilePipeline
+{
+    /**
+     * The default number of tasks that can wait in each stage.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * The default number of threads reading tiles from disk.
+     */
+    public static final int DEFAULT_DISK_THREADS = 2;
+
+    /**
+     * The default number of threads downloading tiles.
+     */
+    public static final int DEFAULT_NETWORK_THREADS = 8;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * The stages of the pipeline, in the order in which a tile goes through them.
+     */
+    public enum Stage
+    {
+        /** Looks up the tile in the file cache and reads it. */
+        DISK,
+        /** Downloads the tile, or validates the copy in the cache. */
+        NETWORK,
+        /** Decodes the image of the tile. */
+        DECODE
+    }
+
+    private final Map<Stage, StageExecutor> aExecutors = new EnumMap<Stage, StageExecutor>(Stage.class);
+
+    /**
+     * Creates a pipeline with the default sizes, and as many decoding threads as processors.
+     */
+    public TilePipeline()
+    {
+        this(DEFAULT_DISK_THREADS, DEFAULT_NETWORK_THREADS, Runtime.getRuntime().availableProcessors(), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a pipeline. The threads are started when needed, and end when they are idle.
+     *
+     * @param pDiskThreads The number of threads reading tiles from disk.
+     * @param pNetworkThreads The number of threads downloading tiles.
+     * @param pDecodeThreads The number of threads decoding tiles.
+     * @param pCapacity The number of tasks that can wait in each stage.
+     */
+    public TilePipeline(int pDiskThreads, int pNetworkThreads, int pDecodeThreads, int pCapacity)
+    {
+        aExecutors.put(Stage.DISK, new StageExecutor(Stage.DISK, "Tile disk reader", pDiskThreads, pCapacity));
+        aExecutors.put(Stage.NETWORK, new StageExecutor(Stage.NETWORK, "Tile downloader", pNetworkThreads, pCapacity));
+        aExecutors.put(Stage.DECODE, new StageExecutor(Stage.DECODE, "Tile decoder", pDecodeThreads, pCapacity));
+    }
+
+    /**
+     * @param pResource A resource used to load tiles.
+     * @return The stage that uses pResource.
+     */
+    public static Stage getStage(TileResources.Resource pResource)
+    {
+        switch(pResource)
+        {
+        case DISK:
+            return Stage.DISK;
+        case NETWORK:
+            return Stage.NETWORK;
+        default:
+            return Stage.DECODE;
+        }
+    }
+
+    /**
+     * @param pStage A stage.
+     * @return True if the current thread is a thread of pStage of this pipeline.
+     */
+    public boolean isRunningIn(Stage pStage)
+    {
+        Thread thread = Thread.currentThread();
+        return thread instanceof StageThread && ((StageThread) thread).aPipeline == this
+                && ((StageThread) thread).aStage == pStage;
+    }
+
+    /**
+     * Hands a task to a stage, unless its queue is full.
+     *
+     * @param pStage The stage.
+     * @param pTask The task to run in pStage.
+     * @param pRetry If pTask is refused, called once the queue of pStage has
+     *     room again, by a thread of pStage. It must not wait.
+     * @return True if pTask was queued, false if it was refused.
+     */
+    public boolean offer(Stage pStage, Runnable pTask, Runnable pRetry)
+    {
+        return aExecutors.get(pStage).offer(pTask, pRetry);
+    }
+
+    /**
+     * @param pStage A stage.
+     * @return The executor of the tasks of pStage that follow a task already
+     *     in the pipeline, which queues them even if the queue is full.
+     */
+    public Executor getExecutor(Stage pStage)
+    {
+        return aExecutors.get(pStage);
+    }
+
+    /**
+     * @param pStage A stage.
+     * @return The number of tasks waiting in pStage.
+     */
+    public int getQueueDepth(Stage pStage)
+    {
+        return aExecutors.get(pStage).aThreads.getQueue().size();
+    }
+
+    /**
+     * @param pStage A stage.
+     * @return The number of tasks running in pStage.
+     */
+    public int getActiveCount(Stage pStage)
+    {
+        return aExecutors.get(pStage).aThreads.getActiveCount();
+    }
+
+    /**
+     * @param pStage A stage.
+     * @return The maximum number of threads of pStage.
+     */
+    public int getThreadCount(Stage pStage)
+    {
+        return aExecutors.get(pStage).aThreads.getMaximumPoolSize();
+    }
+
+    /**
+     * Changes the number of threads of a stage.
+     *
+     * @param pStage The stage.
+     * @param pThreads The maximum number of threads of pStage.
+     */
+    public void setThreadCount(Stage pStage, int pThreads)
+    {
+        if(pThreads <= 0)
+        {
+            throw new IllegalArgumentException("A stage needs a thread");
+        }
+        aExecutors.get(pStage).setThreadCount(pThreads);
+    }
+
+    /**
+     * Changes the number of tasks that can wait in a stage. The tasks
+     * already queued are kept.
+     *
+     * @param pStage The stage.
+     * @param pCapacity The number of tasks that can wait in pStage.
+     */
+    public void setCapacity(Stage pStage, int pCapacity)
+    {
+        if(pCapacity <= 0)
+        {
+            throw new IllegalArgumentException("A stage needs room for a task");
+        }
+        aExecutors.get(pStage).setCapacity(pCapacity);
+    }
+
+    /**
+     * Runs the tasks of a stage on its threads. The capacity of the queue is
+     * only enforced on the tasks offered, and the offers refused are called
+     * back together once the queue is down to half its capacity, so that the
+     * jobs waiting for the stage are not called back for every task taken.
+     */
+    private final class StageExecutor implements Executor
+    {
+        private final ThreadPoolExecutor aThreads;
+        // Guarded by this
+        private int aCapacity;
+        private List<Runnable> aRetries = new ArrayList<Runnable>();
+
+        private StageExecutor(final Stage pStage, final String pName, int pThreads, int pCapacity)
+        {
+            if(pThreads <= 0 || pCapacity <= 0)
+            {
+                throw new IllegalArgumentException("A stage needs a thread and room for a task");
+            }
+            aCapacity = pCapacity;
+            aThreads = new ThreadPoolExecutor(pThreads, pThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+                    {
+                        private final AtomicInteger aCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable pRunnable)
+                        {
+                            return new StageThread(pRunnable, pName + " " + aCount.incrementAndGet(), TilePipeline.this, pStage);
+                        }
+                    });
+            aThreads.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void execute(final Runnable pTask)
+        {
+            aThreads.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    taken();
+                    pTask.run();
+                }
+            });
+        }
+
+        private synchronized boolean offer(Runnable pTask, Runnable pRetry)
+        {
+            if(aThreads.getQueue().size() >= aCapacity)
+            {
+                aRetries.add(pRetry);
+                return false;
+            }
+            execute(pTask);
+            return true;
+        }
+
+        /*
+         * Called by a thread of the stage when it takes a task. The retries
+         * are called outside of the lock, since they queue jobs again.
+         */
+        private void taken()
+        {
+            List<Runnable> retries;
+            synchronized(this)
+            {
+                if(aRetries.isEmpty() || aThreads.getQueue().size() > aCapacity / 2)
+                {
+                    return;
+                }
+                retries = aRetries;
+                aRetries = new ArrayList<Runnable>();
+            }
+            for(Runnable retry : retries)
+            {
+                retry.run();
+            }
+        }
+
+        private synchronized void setCapacity(int pCapacity)
+        {
+            aCapacity = pCapacity;
+        }
+
+        private synchronized void setThreadCount(int pThreads)
+        {
+            if(pThreads > aThreads.getMaximumPoolSize())
+            {
+                aThreads.setMaximumPoolSize(pThreads);
+                aThreads.setCorePoolSize(pThreads);
+            }
+            else
+            {
+                aThreads.setCorePoolSize(pThreads);
+                aThreads.setMaximumPoolSize(pThreads);
+            }
+        }
+    }
+
+    /**
+     * A thread of a stage of a pipeline.
+     */
+    private static final class StageThread extends Thread
+    {
+        private final TilePipeline aPipeline;
+        private final Stage aStage;
+
+        private StageThread(Runnable pRunnable, String pName, TilePipeline pPipeline, Stage pStage)
+        {
+            super(pRunnable, pName);
+            aPipeline = pPipeline;
+            aStage = pStage;
+            setDaemon(true);
+        }
+    }
+}
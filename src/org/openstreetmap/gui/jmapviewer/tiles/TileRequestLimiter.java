@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the requests sent to each tile server within a maximum number of
+ * requests in flight and a maximum rate, so that panning quickly does not
+ * send bursts that get the application throttled. Requests are grouped by a
+ * key, typically the tile source and the host, and each key has its own
+ * limits and a token bucket from which each request takes a token.
+ *
+ * Waiting never blocks a thread: {@link #acquire(String)} returns a future
+ * completed once the request may be sent, either immediately, when another
+ * request of the same key is {@link #release(String) released}, or by a
+ * timer thread when the bucket has refilled.
+ *
+ * A single limiter, {@link #getDefault()}, is shared by default by all the
+ * loaders, since they send their requests to the same servers.
+ */
+public class TileRequestLimiter
+{
+    /**
+     * The default maximum number of requests in flight for a key.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    /**
+     * The default maximum number of requests per second for a key.
+     */
+    public static final double DEFAULT_RATE = 20;
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final TileRequestLimiter DEFAULT = new TileRequestLimiter();
+
+    private final Map<String, Bucket> aBuckets = new HashMap<String, Bucket>();
+    private final Map<String, double[]> aLimits = new HashMap<String, double[]>();
+    private final int aDefaultMaxInFlight;
+    private final double aDefaultRate;
+    private final ScheduledExecutorService aTimer;
+
+    /**
+     * Creates a limiter with the default limits.
+     */
+    public TileRequestLimiter()
+    {
+        this(DEFAULT_MAX_IN_FLIGHT, DEFAULT_RATE);
+    }
+
+    /**
+     * Creates a limiter.
+     *
+     * @param pMaxInFlight The maximum number of requests in flight for each key.
+     * @param pRate The maximum number of requests per second for each key, or 0 for no limit.
+     */
+    public TileRequestLimiter(int pMaxInFlight, double pRate)
+    {
+        checkLimits(pMaxInFlight, pRate);
+        aDefaultMaxInFlight = pMaxInFlight;
+        aDefaultRate = pRate;
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable pRunnable)
+            {
+                Thread thread = new Thread(pRunnable, "Tile request limiter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        aTimer = timer;
+    }
+
+    /**
+     * @return The limiter shared by default by the tile loaders.
+     */
+    public static TileRequestLimiter getDefault()
+    {
+        return DEFAULT;
+    }
+
+    private static void checkLimits(int pMaxInFlight, double pRate)
+    {
+        if(pMaxInFlight < 1 || pRate < 0)
+        {
+            throw new IllegalArgumentException("Invalid limits " + pMaxInFlight + ", " + pRate);
+        }
+    }
+
+    /**
+     * Sets the limits of one key instead of the default ones.
+     *
+     * @param pKey The key.
+     * @param pMaxInFlight The maximum number of requests in flight.
+     * @param pRate The maximum number of requests per second, or 0 for no limit.
+     */
+    public void setLimits(String pKey, int pMaxInFlight, double pRate)
+    {
+        checkLimits(pMaxInFlight, pRate);
+        synchronized(aBuckets)
+        {
+            aLimits.put(pKey, new double[] {pMaxInFlight, pRate});
+            Bucket bucket = aBuckets.get(pKey);
+            if(bucket != null)
+            {
+                synchronized(bucket)
+                {
+                    bucket.setLimits(pMaxInFlight, pRate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Requests the permission to send a request. Once the returned future
+     * is completed, {@link #release(String)} must be called when the
+     * response is received. A future cancelled before it is completed
+     * gives up its place without being counted.
+     *
+     * @param pKey The key of the request.
+     * @return A future completed when the request may be sent.
+     */
+    public CompletableFuture<Void> acquire(String pKey)
+    {
+        Bucket bucket = getBucket(pKey);
+        CompletableFuture<Void> permit = new CompletableFuture<Void>();
+        synchronized(bucket)
+        {
+            bucket.aWaiting.add(permit);
+        }
+        dispatch(bucket);
+        return permit;
+    }
+
+    /**
+     * Records that a request was answered, letting the next one be sent.
+     *
+     * @param pKey The key of the request.
+     */
+    public void release(String pKey)
+    {
+        release(getBucket(pKey));
+    }
+
+    /**
+     * @param pKey A key.
+     * @return The number of requests of this key that are waiting.
+     */
+    public int getWaitingCount(String pKey)
+    {
+        Bucket bucket = getBucket(pKey);
+        synchronized(bucket)
+        {
+            return bucket.aWaiting.size();
+        }
+    }
+
+    /**
+     * @param pKey A key.
+     * @return The number of requests of this key in flight.
+     */
+    public int getInFlightCount(String pKey)
+    {
+        Bucket bucket = getBucket(pKey);
+        synchronized(bucket)
+        {
+            return bucket.aInFlight;
+        }
+    }
+
+    private Bucket getBucket(String pKey)
+    {
+        synchronized(aBuckets)
+        {
+            Bucket bucket = aBuckets.get(pKey);
+            if(bucket == null)
+            {
+                double[] limits = aLimits.get(pKey);
+                bucket = limits == null ? new Bucket(aDefaultMaxInFlight, aDefaultRate) : new Bucket((int) limits[0], limits[1]);
+                aBuckets.put(pKey, bucket);
+            }
+            return bucket;
+        }
+    }
+
+    /*
+     * Grants the permits that the limits allow, and schedules another
+     * dispatch for when the bucket will have a token again if requests
+     * are still waiting. The permits are completed outside of the lock,
+     * since completing them sends the requests.
+     */
+    private void dispatch(final Bucket pBucket)
+    {
+        List<CompletableFuture<Void>> granted = new ArrayList<CompletableFuture<Void>>();
+        synchronized(pBucket)
+        {
+            pBucket.refill(System.nanoTime());
+            while(!pBucket.aWaiting.isEmpty() && pBucket.aInFlight < pBucket.aMaxInFlight)
+            {
+                if(pBucket.aWaiting.peek().isDone())
+                {
+                    // Cancelled while waiting
+                    pBucket.aWaiting.poll();
+                    continue;
+                }
+                if(pBucket.aRate > 0)
+                {
+                    if(pBucket.aTokens < 1)
+                    {
+                        break;
+                    }
+                    pBucket.aTokens--;
+                }
+                pBucket.aInFlight++;
+                granted.add(pBucket.aWaiting.poll());
+            }
+            if(!pBucket.aWaiting.isEmpty() && pBucket.aInFlight < pBucket.aMaxInFlight && pBucket.aRate > 0 && !pBucket.aScheduled)
+            {
+                pBucket.aScheduled = true;
+                long delay = (long) ((1 - pBucket.aTokens) * NANOS_PER_SECOND / pBucket.aRate);
+                aTimer.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        synchronized(pBucket)
+                        {
+                            pBucket.aScheduled = false;
+                        }
+                        dispatch(pBucket);
+                    }
+                }, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+        for(CompletableFuture<Void> permit : granted)
+        {
+            if(!permit.complete(null))
+            {
+                // Cancelled just before being granted
+                release(pBucket);
+            }
+        }
+    }
+
+    private void release(Bucket pBucket)
+    {
+        synchronized(pBucket)
+        {
+            pBucket.aInFlight--;
+        }
+        dispatch(pBucket);
+    }
+
+    /**
+     * The state of one key, guarded by itself.
+     */
+    private static final class Bucket
+    {
+        private final ArrayDeque<CompletableFuture<Void>> aWaiting = new ArrayDeque<CompletableFuture<Void>>();
+        private int aMaxInFlight;
+        private double aRate;
+        private double aTokens;
+        private long aLastRefill = System.nanoTime();
+        private int aInFlight = 0;
+        private boolean aScheduled = false;
+
+        private Bucket(int pMaxInFlight, double pRate)
+        {
+            setLimits(pMaxInFlight, pRate);
+            aTokens = getCapacity();
+        }
+
+        private void setLimits(int pMaxInFlight, double pRate)
+        {
+            aMaxInFlight = pMaxInFlight;
+            aRate = pRate;
+            aTokens = Math.min(aTokens, getCapacity());
+        }
+
+        /*
+         * A bucket holds at most one second worth of tokens, so that
+         * bursts are never faster than the rate over a second.
+         */
+        private double getCapacity()
+        {
+            return Math.max(1, aRate);
+        }
+
+        private void refill(long pNow)
+        {
+            if(aRate > 0)
+            {
+                aTokens = Math.min(getCapacity(), aTokens + (pNow - aLastRefill) * aRate / NANOS_PER_SECOND);
+            }
+            aLastRefill = pNow;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of tile jobs that use each resource at the same time:
+ * the connections to each host, the tile files on disk, and the image
+ * decoder. With a {@link JobDispatcher} running on virtual threads, the
+ * number of threads no longer bounds how many tiles are loaded at once, so
+ * these limits are what keeps a server, a disk or the processors from being
+ * overwhelmed. The permits are granted in the order in which they were
+ * requested, which is the order of priority of the jobs.
+ *
+ * A single set of limits, {@link #getDefault()}, is shared by default by all
+ * the loaders, since they share the hosts, the disk and the processors.
+ */
+public class TileResources
+{
+    /**
+     * The default number of connections to a host.
+     */
+    public static final int DEFAULT_HOST_LIMIT = 6;
+
+    /**
+     * The default number of tile files read at the same time.
+     */
+    public static final int DEFAULT_DISK_LIMIT = 4;
+
+    private static final TileResources DEFAULT = new TileResources(DEFAULT_HOST_LIMIT, DEFAULT_DISK_LIMIT,
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The resources used to load tiles.
+     */
+    public enum Resource
+    {
+        /** The connections to a host, keyed by host name. */
+        NETWORK,
+        /** The reading of tile files. */
+        DISK,
+        /** The decoding of tile images. */
+        DECODER
+    }
+
+    private final Map<Resource, Integer> aLimits = new EnumMap<Resource, Integer>(Resource.class);
+    // Guarded by itself
+    private final Map<String, Semaphore> aSemaphores = new HashMap<String, Semaphore>();
+
+    /**
+     * Creates a set of limits.
+     *
+     * @param pHostLimit The number of connections to each host.
+     * @param pDiskLimit The number of tile files read at the same time.
+     * @param pDecoderLimit The number of images decoded at the same time.
+     */
+    public TileResources(int pHostLimit, int pDiskLimit, int pDecoderLimit)
+    {
+        if(pHostLimit <= 0 || pDiskLimit <= 0 || pDecoderLimit <= 0)
+        {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        aLimits.put(Resource.NETWORK, pHostLimit);
+        aLimits.put(Resource.DISK, pDiskLimit);
+        aLimits.put(Resource.DECODER, pDecoderLimit);
+    }
+
+    /**
+     * @return The limits shared by default by the tile loaders.
+     */
+    public static TileResources getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * @param pResource A resource.
+     * @return The number of jobs that may use pResource, or each host for NETWORK, at the same time.
+     */
+    public int getLimit(Resource pResource)
+    {
+        return aLimits.get(pResource);
+    }
+
+    /**
+     * Waits until a resource may be used.
+     *
+     * @param pResource The resource to use.
+     * @param pHost The host to connect to for NETWORK, ignored otherwise.
+     * @return The permit, to close once the resource is no longer used.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    public Permit acquire(Resource pResource, String pHost) throws InterruptedIOException
+    {
+        Semaphore semaphore = getSemaphore(pResource, pHost);
+        try
+        {
+            semaphore.acquire();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + pResource);
+        }
+        return new Permit(semaphore);
+    }
+
+    /**
+     * @param pResource A resource.
+     * @param pHost The host for NETWORK, ignored otherwise.
+     * @return The number of jobs using pResource.
+     */
+    public int getInUseCount(Resource pResource, String pHost)
+    {
+        return getLimit(pResource) - getSemaphore(pResource, pHost).availablePermits();
+    }
+
+    /**
+     * @param pResource A resource.
+     * @param pHost The host for NETWORK, ignored otherwise.
+     * @return An estimate of the number of jobs waiting for pResource.
+     */
+    public int getWaitingCount(Resource pResource, String pHost)
+    {
+        return getSemaphore(pResource, pHost).getQueueLength();
+    }
+
+    private Semaphore getSemaphore(Resource pResource, String pHost)
+    {
+        String key = pResource == Resource.NETWORK ? pResource + "@" + pHost : pResource.toString();
+        synchronized(aSemaphores)
+        {
+            Semaphore semaphore = aSemaphores.get(key);
+            if(semaphore == null)
+            {
+                semaphore = new Semaphore(getLimit(pResource), true);
+                aSemaphores.put(key, semaphore);
+            }
+            return semaphore;
+        }
+    }
+
+    /**
+     * The permission to use a resource, released by {@link #close()}.
+     */
+    public static final class Permit implements AutoCloseable
+    {
+        private final Semaphore aSemaphore;
+        private boolean aClosed = false;
+
+        private Permit(Semaphore pSemaphore)
+        {
+            aSemaphore = pSemaphore;
+        }
+
+        /**
+         * @return A permit for a resource that is not limited.
+         */
+        public static Permit unlimited()
+        {
+            return new Permit(null);
+        }
+
+        /**
+         * Releases the resource. Closing a permit again has no effect.
+         */
+        @Override
+        public void close()
+        {
+            if(!aClosed && aSemaphore != null)
+            {
+                aSemaphore.release();
+            }
+            aClosed = true;
+        }
+    }
+}
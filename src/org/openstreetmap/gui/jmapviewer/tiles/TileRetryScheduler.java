@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Schedules the loading of tiles again when their server was busy. Instead
+ * of waiting in the thread that loaded the tile, the job is handed back to the
+ * client of the {@link JobDispatcher} that ran it by a timer thread once the
+ * delay has elapsed, and sends a new request. The delay doubles with each retry, up to a maximum,
+ * and is randomized so that the tiles that failed together are not requested
+ * again together. A longer delay requested by the server with a Retry-After
+ * header is honored up to the maximum, so that a tile is never held back longer.
+ */
+public class TileRetryScheduler
+{
+    /**
+     * The default number of times a tile is requested again.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    /**
+     * The default delay before the first retry, in milliseconds.
+     */
+    public static final long DEFAULT_BASE_DELAY = 1000;
+
+    /**
+     * The default maximum delay computed for a retry, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_DELAY = 60000;
+
+    private static final Logger LOGGER = Logger.getLogger(TileRetryScheduler.class.getName());
+    private static final TileRetryScheduler DEFAULT = new TileRetryScheduler();
+    private static final int MAX_SHIFT = 30;
+
+    private final int aMaxRetries;
+    private final long aBaseDelay;
+    private final long aMaxDelay;
+    private final ScheduledExecutorService aTimer;
+    private final AtomicInteger aPending = new AtomicInteger();
+
+    /**
+     * Creates a scheduler with the default delays.
+     */
+    public TileRetryScheduler()
+    {
+        this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param pMaxRetries The number of times a tile is requested again.
+     * @param pBaseDelay The delay before the first retry, in milliseconds.
+     * @param pMaxDelay The maximum delay computed for a retry, in milliseconds.
+     */
+    public TileRetryScheduler(int pMaxRetries, long pBaseDelay, long pMaxDelay)
+    {
+        if(pMaxRetries < 0 || pBaseDelay <= 0 || pMaxDelay < pBaseDelay)
+        {
+            throw new IllegalArgumentException("Invalid retry parameters");
+        }
+        aMaxRetries = pMaxRetries;
+        aBaseDelay = pBaseDelay;
+        aMaxDelay = pMaxDelay;
+        aTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable pRunnable)
+            {
+                Thread thread = new Thread(pRunnable, "Tile retry scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return The scheduler shared by default by the tile loaders.
+     */
+    public static TileRetryScheduler getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * Schedules a job to run again through the shared dispatcher, unless it
+     * was retried too many times already.
+     *
+     * @param pJob The job to run again.
+     * @param pRetries The number of times the job was retried already.
+     * @param pCause The answer of the server.
+     * @return True if the job was scheduled, false if the tile should be
+     *     considered failed.
+     */
+    public boolean retry(TileJob pJob, int pRetries, TileServerBusyException pCause)
+    {
+        return retry(pJob, null, pRetries, pCause);
+    }
+
+    /**
+     * Schedules a job to run again, unless it was retried too many times already.
+     * The job is added with its tile among the jobs that load tiles, so that it
+     * is ordered by the viewport and can be cancelled like them.
+     *
+     * @param pJob The job to run again.
+     * @param pClient The client of the dispatcher that runs the job again,
+     *     or null for the default client of the shared dispatcher.
+     * @param pRetries The number of times the job was retried already.
+     * @param pCause The answer of the server.
+     * @return True if the job was scheduled, false if the tile should be
+     *     considered failed.
+     */
+    public boolean retry(TileJob pJob, JobDispatcher.Client pClient, int pRetries, TileServerBusyException pCause)
+    {
+        if(pRetries >= aMaxRetries)
+        {
+            return false;
+        }
+        long delay = getDelay(pRetries, pCause.getRetryAfter());
+        LOGGER.fine("Retrying in " + delay + " ms after " + pCause.getMessage());
+        schedule(pJob, pClient, delay);
+        return true;
+    }
+
+    /**
+     * Schedules a job to run again after a given delay, whatever the number
+     * of times it was retried. The job is added like in
+     * {@link #retry(TileJob, JobDispatcher.Client, int, TileServerBusyException)}.
+     *
+     * @param pJob The job to run again.
+     * @param pClient The client of the dispatcher that runs the job again,
+     *     or null for the default client of the shared dispatcher.
+     * @param pDelay The delay in milliseconds.
+     */
+    public void schedule(final TileJob pJob, final JobDispatcher.Client pClient, long pDelay)
+    {
+        aPending.incrementAndGet();
+        aTimer.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                aPending.decrementAndGet();
+                if(pClient == null)
+                {
+                    JobDispatcher.getInstance().addJob(pJob);
+                }
+                else
+                {
+                    pClient.addJob(pJob);
+                }
+            }
+        }, pDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The number of jobs waiting to run again.
+     */
+    public int getPendingCount()
+    {
+        return aPending.get();
+    }
+
+    /**
+     * Computes the delay before a retry: a random time between half and all
+     * of the exponential backoff, or the time requested by the server if it
+     * is longer, but no longer than the maximum delay.
+     *
+     * @param pRetries The number of times the job was retried already.
+     * @param pRetryAfter The delay requested by the server in milliseconds, or -1.
+     * @return The delay in milliseconds.
+     */
+    long getDelay(int pRetries, long pRetryAfter)
+    {
+        long backoff = Math.min(aMaxDelay, aBaseDelay << Math.min(pRetries, MAX_SHIFT));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        return Math.max(delay, Math.min(pRetryAfter, aMaxDelay));
+    }
+}
@@ -0,0 +1,611 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstreetmap.gui.jmapviewer.Coordinate;
+import org.openstreetmap.gui.jmapviewer.OsmMercator;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+
+/**
+ * Downloads all the tiles of an area over a range of zoom levels into the
+ * cache of an {@link OsmFileCacheTileLoader}, so that the area can later be
+ * viewed offline. The tiles are downloaded by a fixed number of threads, no
+ * faster than a maximum rate, and tiles already in the cache and fresh are
+ * skipped without being read.
+ *
+ * The tiles are enumerated in a fixed order, zoom level by zoom level, and
+ * the position below which all the tiles are in the cache is saved regularly
+ * in a checkpoint file, if one is set. Seeding the same area again with the
+ * same checkpoint file resumes from this position. Tiles that failed are
+ * downloaded again when the seeding is resumed or repeated.
+ */
+public class TileSeeder
+{
+    /**
+     * Receives the progress of a seeding.
+     */
+    public interface ProgressListener
+    {
+        /**
+         * Called regularly while seeding, and once at the end.
+         *
+         * @param pProgress The progress so far.
+         */
+        void progress(Progress pProgress);
+    }
+
+    /**
+     * The default number of tiles downloaded at the same time.
+     */
+    public static final int DEFAULT_CONCURRENCY = 2;
+
+    private static final Logger LOGGER = Logger.getLogger(TileSeeder.class.getName());
+
+    private static final int TILE_SIZE = 256;
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    private static final long CHECKPOINT_INTERVAL = TimeUnit.SECONDS.toNanos(30);
+    private static final int TASKS_PER_THREAD = 4;
+    private static final String KEY_AREA = "area";
+    private static final String KEY_DONE = "done";
+
+    private final OsmFileCacheTileLoader aLoader;
+    private final TileSource aSource;
+    private int aConcurrency = DEFAULT_CONCURRENCY;
+    private long aInterval = 0;
+    private File aCheckpointFile;
+    private ProgressListener aListener;
+    private volatile boolean aCancelled = false;
+
+    // Guarded by this
+    private final TreeSet<Long> aPending = new TreeSet<Long>();
+    private long aNextPosition;
+    private long aNextDownload;
+    private long aLastReport;
+    private long aLastCheckpoint;
+    private Progress aProgress;
+    private String aArea;
+
+    /**
+     * Creates a seeder that downloads the tiles of a source into the cache of a loader.
+     *
+     * @param pLoader The loader in the cache of which the tiles are saved.
+     * @param pSource The source of the tiles.
+     */
+    public TileSeeder(OsmFileCacheTileLoader pLoader, TileSource pSource)
+    {
+        aLoader = pLoader;
+        aSource = pSource;
+    }
+
+    /**
+     * @param pConcurrency The number of tiles downloaded at the same time.
+     */
+    public void setConcurrency(int pConcurrency)
+    {
+        if(pConcurrency < 1)
+        {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+        aConcurrency = pConcurrency;
+    }
+
+    /**
+     * @param pTilesPerSecond The maximum number of tiles downloaded per second, or 0 for no limit.
+     */
+    public void setRate(double pTilesPerSecond)
+    {
+        if(pTilesPerSecond < 0)
+        {
+            throw new IllegalArgumentException("Rate must not be negative");
+        }
+        aInterval = pTilesPerSecond == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / pTilesPerSecond);
+    }
+
+    /**
+     * @param pFile The file in which the progress is saved, or null to not save it.
+     */
+    public void setCheckpointFile(File pFile)
+    {
+        aCheckpointFile = pFile;
+    }
+
+    /**
+     * @param pListener The listener of the progress, or null.
+     */
+    public void setProgressListener(ProgressListener pListener)
+    {
+        aListener = pListener;
+    }
+
+    /**
+     * Stops a seeding in progress. The tiles being downloaded are completed
+     * and the progress is saved before {@link #seed} returns.
+     */
+    public void cancel()
+    {
+        aCancelled = true;
+    }
+
+    /**
+     * Counts the tiles of an area. The latitudes beyond the ones that can be
+     * projected are taken as the limits of the map.
+     *
+     * @param pNorthWest The north-west corner of the area.
+     * @param pSouthEast The south-east corner of the area.
+     * @param pMinZoom The lowest zoom level.
+     * @param pMaxZoom The highest zoom level.
+     * @return The number of tiles covering the area at all the zoom levels.
+     */
+    public static long countTiles(Coordinate pNorthWest, Coordinate pSouthEast, int pMinZoom, int pMaxZoom)
+    {
+        long count = 0;
+        for(int zoom = pMinZoom; zoom <= pMaxZoom; zoom++)
+        {
+            int[] range = getTileRange(pNorthWest, pSouthEast, zoom);
+            count += (long) Math.max(0, range[2] - range[0] + 1) * Math.max(0, range[3] - range[1] + 1);
+        }
+        return count;
+    }
+
+    /*
+     * Returns the first column, first row, last column and last row of the tiles
+     * of an area, with the coordinates clamped to the limits of the map.
+     */
+    static int[] getTileRange(Coordinate pNorthWest, Coordinate pSouthEast, int pZoom)
+    {
+        return new int[] {OsmMercator.longitudeToX(clampLongitude(pNorthWest.getLongitude()), pZoom) / TILE_SIZE,
+                OsmMercator.latitudeToY(clampLatitude(pNorthWest.getLatitude()), pZoom) / TILE_SIZE,
+                OsmMercator.longitudeToX(clampLongitude(pSouthEast.getLongitude()), pZoom) / TILE_SIZE,
+                OsmMercator.latitudeToY(clampLatitude(pSouthEast.getLatitude()), pZoom) / TILE_SIZE};
+    }
+
+    private static double clampLatitude(double pLatitude)
+    {
+        return Math.max(OsmMercator.MIN_LAT, Math.min(OsmMercator.MAX_LAT, pLatitude));
+    }
+
+    private static double clampLongitude(double pLongitude)
+    {
+        return Math.max(-180, Math.min(180, pLongitude));
+    }
+
+    /**
+     * Downloads the tiles of an area that are not fresh in the cache, and
+     * waits until they are written.
+     *
+     * @param pNorthWest The north-west corner of the area.
+     * @param pSouthEast The south-east corner of the area.
+     * @param pMinZoom The lowest zoom level.
+     * @param pMaxZoom The highest zoom level, at most the maximum zoom of the tile source.
+     * @return The progress at the end of the seeding.
+     * @throws InterruptedException If the thread is interrupted while seeding.
+     * @throws IllegalArgumentException If the corners are swapped or the zoom range is invalid.
+     */
+    public Progress seed(Coordinate pNorthWest, Coordinate pSouthEast, int pMinZoom, int pMaxZoom) throws InterruptedException
+    {
+        if(pMinZoom < aSource.getMinZoom() || pMaxZoom > aSource.getMaxZoom() || pMinZoom > pMaxZoom)
+        {
+            throw new IllegalArgumentException("Invalid zoom range " + pMinZoom + "-" + pMaxZoom);
+        }
+        if(pNorthWest.getLatitude() < pSouthEast.getLatitude() || pNorthWest.getLongitude() > pSouthEast.getLongitude())
+        {
+            throw new IllegalArgumentException("Invalid area " + pNorthWest + " " + pSouthEast);
+        }
+        long start;
+        synchronized(this)
+        {
+            aArea = aSource.getName() + " " + pNorthWest + " " + pSouthEast + " " + pMinZoom + "-" + pMaxZoom;
+            start = readCheckpoint();
+            aProgress = new Progress(countTiles(pNorthWest, pSouthEast, pMinZoom, pMaxZoom), start);
+            aNextPosition = start;
+            aPending.clear();
+            aLastReport = System.nanoTime();
+            aLastCheckpoint = aLastReport;
+        }
+        aCancelled = false;
+        if(start > 0)
+        {
+            LOGGER.info("Resuming seeding of " + aArea + " after " + start + " tiles");
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(aConcurrency);
+        Semaphore slots = new Semaphore(aConcurrency * TASKS_PER_THREAD);
+        try
+        {
+            long position = 0;
+            for(int zoom = pMinZoom; zoom <= pMaxZoom && !aCancelled; zoom++)
+            {
+                int[] range = getTileRange(pNorthWest, pSouthEast, zoom);
+                long rows = range[3] - range[1] + 1;
+                long tiles = (range[2] - range[0] + 1) * rows;
+                if(position + tiles <= start)
+                {
+                    position += tiles;
+                    continue;
+                }
+                for(int x = range[0]; x <= range[2] && !aCancelled; x++)
+                {
+                    if(position + rows <= start)
+                    {
+                        position += rows;
+                        continue;
+                    }
+                    for(int y = range[1]; y <= range[3] && !aCancelled; y++, position++)
+                    {
+                        if(position < start)
+                        {
+                            continue;
+                        }
+                        slots.acquire();
+                        submit(executor, slots, new Tile(aSource, x, y, zoom), position);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            aLoader.getWriteQueue().flush();
+        }
+        synchronized(this)
+        {
+            if(aCancelled)
+            {
+                writeCheckpoint();
+            }
+            else if(aCheckpointFile != null)
+            {
+                aCheckpointFile.delete();
+            }
+            report(true);
+            return aProgress;
+        }
+    }
+
+    private void submit(ExecutorService pExecutor, final Semaphore pSlots, final Tile pTile, final long pPosition)
+    {
+        synchronized(this)
+        {
+            aPending.add(pPosition);
+            aNextPosition = pPosition + 1;
+        }
+        pExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                boolean cached = false;
+                try
+                {
+                    cached = seedTile(pTile);
+                }
+                catch(InterruptedException e)
+                {
+                    aCancelled = true;
+                }
+                finally
+                {
+                    pSlots.release();
+                    completed(pPosition, cached);
+                }
+            }
+        });
+    }
+
+    /*
+     * Returns true if the tile is in the cache once done.
+     */
+    private boolean seedTile(Tile pTile) throws InterruptedException
+    {
+        if(aLoader.isFresh(pTile))
+        {
+            synchronized(this)
+            {
+                aProgress.aSkipped++;
+            }
+            return true;
+        }
+        if(aCancelled)
+        {
+            return false;
+        }
+        awaitRate();
+        aLoader.createSeedingJob(pTile).run();
+        synchronized(this)
+        {
+            // A tile whose source is unavailable is left unloaded, without an error
+            if(!pTile.isLoaded() || pTile.isError() && !"no-tile".equals(pTile.getValue("tile-info")))
+            {
+                aProgress.aFailed++;
+                return false;
+            }
+            aProgress.aDownloaded++;
+            return true;
+        }
+    }
+
+    /*
+     * Waits until the next download is allowed by the rate.
+     */
+    private void awaitRate() throws InterruptedException
+    {
+        if(aInterval == 0)
+        {
+            return;
+        }
+        long wait;
+        synchronized(this)
+        {
+            long now = System.nanoTime();
+            long slot = Math.max(now, aNextDownload);
+            aNextDownload = slot + aInterval;
+            wait = slot - now;
+        }
+        TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /*
+     * Tiles that are not in the cache stay in flight, so that the
+     * checkpoint does not move past them.
+     */
+    private void completed(long pPosition, boolean pCached)
+    {
+        boolean checkpoint = false;
+        synchronized(this)
+        {
+            if(pCached)
+            {
+                aPending.remove(pPosition);
+            }
+            long now = System.nanoTime();
+            if(now - aLastReport >= REPORT_INTERVAL)
+            {
+                aLastReport = now;
+                report(false);
+            }
+            if(aCheckpointFile != null && now - aLastCheckpoint >= CHECKPOINT_INTERVAL)
+            {
+                aLastCheckpoint = now;
+                checkpoint = true;
+            }
+        }
+        if(checkpoint)
+        {
+            saveCheckpoint();
+        }
+    }
+
+    /*
+     * Saves the position below which all the tiles are done, once the
+     * tiles already downloaded are written.
+     */
+    private void saveCheckpoint()
+    {
+        long done;
+        synchronized(this)
+        {
+            done = getDonePosition();
+        }
+        try
+        {
+            aLoader.getWriteQueue().flush();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        synchronized(this)
+        {
+            writeCheckpoint(done);
+        }
+    }
+
+    private long getDonePosition()
+    {
+        return aPending.isEmpty() ? aNextPosition : aPending.first();
+    }
+
+    private void writeCheckpoint()
+    {
+        writeCheckpoint(getDonePosition());
+    }
+
+    private void writeCheckpoint(long pDone)
+    {
+        if(aCheckpointFile == null)
+        {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty(KEY_AREA, aArea);
+        properties.setProperty(KEY_DONE, Long.toString(pDone));
+        try(OutputStream out = new FileOutputStream(aCheckpointFile))
+        {
+            properties.store(out, "Tile seeding progress");
+        }
+        catch(IOException e)
+        {
+            LOGGER.log(Level.WARNING, "Failed to save seeding progress to " + aCheckpointFile, e);
+        }
+    }
+
+    /*
+     * Returns the position at which to resume seeding the current area.
+     */
+    private long readCheckpoint()
+    {
+        if(aCheckpointFile == null || !aCheckpointFile.exists())
+        {
+            return 0;
+        }
+        Properties properties = new Properties();
+        try(InputStream in = new FileInputStream(aCheckpointFile))
+        {
+            properties.load(in);
+            if(aArea.equals(properties.getProperty(KEY_AREA)))
+            {
+                return Long.parseLong(properties.getProperty(KEY_DONE, "0"));
+            }
+        }
+        catch(IOException | NumberFormatException e)
+        {
+            LOGGER.warning("Ignoring unreadable seeding progress in " + aCheckpointFile + ": " + e.getMessage());
+        }
+        return 0;
+    }
+
+    private void report(boolean pFinished)
+    {
+        aProgress.aElapsedNanos = System.nanoTime() - aProgress.aStartNanos;
+        aProgress.aFinished = pFinished;
+        if(aListener != null)
+        {
+            aListener.progress(aProgress.copy());
+        }
+    }
+
+    /**
+     * The progress of a seeding.
+     */
+    public static final class Progress
+    {
+        private final long aTotal;
+        private final long aResumed;
+        private final long aStartNanos = System.nanoTime();
+        private long aSkipped;
+        private long aDownloaded;
+        private long aFailed;
+        private long aElapsedNanos;
+        private boolean aFinished;
+
+        private Progress(long pTotal, long pResumed)
+        {
+            aTotal = pTotal;
+            aResumed = pResumed;
+        }
+
+        private Progress copy()
+        {
+            Progress copy = new Progress(aTotal, aResumed);
+            copy.aSkipped = aSkipped;
+            copy.aDownloaded = aDownloaded;
+            copy.aFailed = aFailed;
+            copy.aElapsedNanos = aElapsedNanos;
+            copy.aFinished = aFinished;
+            return copy;
+        }
+
+        /**
+         * @return The number of tiles of the area.
+         */
+        public long getTotal()
+        {
+            return aTotal;
+        }
+
+        /**
+         * @return The number of tiles done in a previous seeding that was resumed.
+         */
+        public long getResumed()
+        {
+            return aResumed;
+        }
+
+        /**
+         * @return The number of tiles that were fresh in the cache.
+         */
+        public long getSkipped()
+        {
+            return aSkipped;
+        }
+
+        /**
+         * @return The number of tiles downloaded.
+         */
+        public long getDownloaded()
+        {
+            return aDownloaded;
+        }
+
+        /**
+         * @return The number of tiles that could not be downloaded.
+         */
+        public long getFailed()
+        {
+            return aFailed;
+        }
+
+        /**
+         * @return The number of tiles done, including the resumed ones.
+         */
+        public long getDone()
+        {
+            return aResumed + aSkipped + aDownloaded + aFailed;
+        }
+
+        /**
+         * @return The time spent seeding, in milliseconds.
+         */
+        public long getElapsedMillis()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(aElapsedNanos);
+        }
+
+        /**
+         * @return The number of tiles downloaded per second.
+         */
+        public double getTilesPerSecond()
+        {
+            return aElapsedNanos == 0 ? 0 : aDownloaded * (double) TimeUnit.SECONDS.toNanos(1) / aElapsedNanos;
+        }
+
+        /**
+         * @return True if this is the progress at the end of the seeding.
+         */
+        public boolean isFinished()
+        {
+            return aFinished;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d/%d tiles (%d downloaded, %d fresh, %d failed), %.1f tiles/s",
+                    getDone(), aTotal, aDownloaded, aSkipped, aFailed, getTilesPerSecond());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thrown when a tile server answers that it is overloaded or that the client
+ * sends too many requests, in which case the tile can be requested again later.
+ */
+public class TileServerBusyException extends IOException
+{
+    /**
+     * The HTTP status of a server temporarily unavailable.
+     */
+    public static final int SERVICE_UNAVAILABLE = 503;
+
+    /**
+     * The HTTP status of a server receiving too many requests from the client.
+     */
+    public static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The name of the header in which a server tells how long to wait.
+     */
+    public static final String RETRY_AFTER_HEADER = "Retry-After";
+
+    private static final long serialVersionUID = 1L;
+
+    private final int aStatus;
+    private final long aRetryAfter;
+
+    /**
+     * @param pStatus The HTTP status of the response.
+     * @param pRetryAfter The value of the Retry-After header of the response, or null.
+     */
+    public TileServerBusyException(int pStatus, String pRetryAfter)
+    {
+        super("HTTP status " + pStatus);
+        aStatus = pStatus;
+        aRetryAfter = parseRetryAfter(pRetryAfter, System.currentTimeMillis());
+    }
+
+    /**
+     * @param pStatus An HTTP status.
+     * @return True if pStatus means that the request can be sent again later.
+     */
+    public static boolean isBusy(int pStatus)
+    {
+        return pStatus == SERVICE_UNAVAILABLE || pStatus == TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * @return The HTTP status of the response.
+     */
+    public int getStatus()
+    {
+        return aStatus;
+    }
+
+    /**
+     * @return The time to wait before the next request, in milliseconds,
+     *     as requested by the server, or -1 if it did not say.
+     */
+    public long getRetryAfter()
+    {
+        return aRetryAfter;
+    }
+
+    /*
+     * The header holds either a number of seconds or an HTTP date.
+     */
+    static long parseRetryAfter(String pValue, long pNow)
+    {
+        if(pValue == null)
+        {
+            return -1;
+        }
+        String value = pValue.trim();
+        try
+        {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+        }
+        catch(NumberFormatException e)
+        {
+            // Not a number of seconds
+        }
+        try
+        {
+            long time = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return Math.max(0, time - pNow);
+        }
+        catch(DateTimeParseException e)
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of requesting a tile when its source has failed repeatedly
+ * and is considered down by a {@link TileCircuitBreaker}.
+ */
+public class TileSourceUnavailableException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String aSourceName;
+
+    /**
+     * @param pSourceName The name of the tile source.
+     */
+    public TileSourceUnavailableException(String pSourceName)
+    {
+        super("Tile source " + pSourceName + " is unavailable");
+        aSourceName = pSourceName;
+    }
+
+    /**
+     * @return The name of the tile source.
+     */
+    public String getSourceName()
+    {
+        return aSourceName;
+    }
+}
@@ -0,0 +1,391 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes tiles to a file cache in a background thread, so that the threads
+ * that download tiles can proceed with the next tile immediately. The image
+ * and the tags of a tile are written together, each into a temporary file
+ * that is then renamed, so that a crash never leaves a truncated tile behind.
+ * A tile submitted again before it was written is written only once, with
+ * the latest content. A tile identical to one written recently is stored as
+ * a hard link to the same file, as recognized by a {@link TileDeduplicator},
+ * when the file system supports it, and the {@link LinkListener} is told.
+ *
+ * The queue is bounded: when it is full, the submitting thread writes the
+ * tile itself. Writes still pending when the application exits are lost,
+ * which only means that the tiles will be downloaded again.
+ */
+public class TileWriteQueue
+{
+    /**
+     * The default number of tiles that can wait to be written.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final Logger LOGGER = Logger.getLogger(TileWriteQueue.class.getName());
+    private static final int BATCH_SIZE = 32;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset TAGS_CHARSET = Charset.forName("UTF-8");
+
+    private final BlockingQueue<File> aQueue;
+    private final TileDeduplicator aDeduplicator = new TileDeduplicator(TileDeduplicator.DEFAULT_CAPACITY);
+    // Guarded by itself, holds the pending writes by tile file
+    private final Map<File, TileWrite> aPending = new HashMap<File, TileWrite>();
+    private int aInProgress = 0;
+    private volatile LinkListener aLinkListener;
+
+    /**
+     * Creates a queue with the default capacity.
+     */
+    public TileWriteQueue()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a queue and starts its writer thread.
+     *
+     * @param pCapacity The number of tiles that can wait to be written.
+     */
+    public TileWriteQueue(int pCapacity)
+    {
+        aQueue = new ArrayBlockingQueue<File>(pCapacity);
+        Thread writer = new Thread("Tile writer")
+        {
+            @Override
+            public void run()
+            {
+                writeLoop();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Schedules the writing of a tile.
+     *
+     * @param pTileFile The file of the tile image.
+     * @param pData The encoded image, or null to leave the tile file as it is.
+     * @param pTagsFile The file of the tile tags.
+     * @param pTags The tags, one per line, or null to delete the tags file.
+     * @param pOnWritten Called by the writing thread once the files are written, or null.
+     */
+    public void write(File pTileFile, byte[] pData, File pTagsFile, String pTags, Runnable pOnWritten)
+    {
+        TileWrite write = new TileWrite(pTileFile, pData, pTagsFile, pTags, pOnWritten);
+        synchronized(aPending)
+        {
+            TileWrite pending = aPending.get(pTileFile);
+            if(pending != null)
+            {
+                pending.merge(write);
+                return;
+            }
+            if(aQueue.offer(pTileFile))
+            {
+                aPending.put(pTileFile, write);
+                return;
+            }
+        }
+        write.perform(aDeduplicator, aLinkListener);
+    }
+
+    /**
+     * Sets the object told about the tile files stored as hard links.
+     *
+     * @param pListener The listener, or null.
+     */
+    public void setLinkListener(LinkListener pListener)
+    {
+        aLinkListener = pListener;
+    }
+
+    /**
+     * @return The object that recognizes the tiles identical to ones already written.
+     */
+    public TileDeduplicator getDeduplicator()
+    {
+        return aDeduplicator;
+    }
+
+    /**
+     * @return The number of tiles waiting to be written.
+     */
+    public int getPendingCount()
+    {
+        synchronized(aPending)
+        {
+            return aPending.size();
+        }
+    }
+
+    /**
+     * Waits until all the tiles submitted so far are written.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void flush() throws InterruptedException
+    {
+        synchronized(aPending)
+        {
+            while(!aPending.isEmpty() || aInProgress > 0)
+            {
+                aPending.wait();
+            }
+        }
+    }
+
+    private void writeLoop()
+    {
+        List<File> batch = new ArrayList<File>(BATCH_SIZE);
+        while(true)
+        {
+            try
+            {
+                batch.add(aQueue.take());
+            }
+            catch(InterruptedException e)
+            {
+                return;
+            }
+            aQueue.drainTo(batch, BATCH_SIZE - 1);
+            List<TileWrite> writes = new ArrayList<TileWrite>(batch.size());
+            synchronized(aPending)
+            {
+                for(File file : batch)
+                {
+                    writes.add(aPending.remove(file));
+                }
+                aInProgress = writes.size();
+            }
+            for(TileWrite write : writes)
+            {
+                write.perform(aDeduplicator, aLinkListener);
+            }
+            synchronized(aPending)
+            {
+                aInProgress = 0;
+                aPending.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    /*
+     * Writes the data to a temporary file next to pFile and renames it,
+     * creating the directory of pFile if needed.
+     */
+    private static void writeAtomically(File pFile, byte[] pData) throws IOException
+    {
+        Files.createDirectories(pFile.getParentFile().toPath());
+        File temp = File.createTempFile(pFile.getName(), TEMP_SUFFIX, pFile.getParentFile());
+        try
+        {
+            FileOutputStream out = new FileOutputStream(temp);
+            try
+            {
+                out.write(pData);
+            }
+            finally
+            {
+                out.close();
+            }
+            try
+            {
+                Files.move(temp.toPath(), pFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch(AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp.toPath(), pFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally
+        {
+            if(temp.exists())
+            {
+                temp.delete();
+            }
+        }
+    }
+
+    /*
+     * Replaces pFile with a hard link to pExisting. Returns false if the
+     * link cannot be created, in which case pFile is left as it was.
+     */
+    private static boolean linkAtomically(File pFile, File pExisting)
+    {
+        File temp = null;
+        try
+        {
+            Files.createDirectories(pFile.getParentFile().toPath());
+            temp = File.createTempFile(pFile.getName(), TEMP_SUFFIX, pFile.getParentFile());
+            Files.delete(temp.toPath());
+            Files.createLink(temp.toPath(), pExisting.toPath());
+            try
+            {
+                Files.move(temp.toPath(), pFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch(AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp.toPath(), pFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        }
+        catch(IOException | UnsupportedOperationException e)
+        {
+            // The file was deleted since, or the file system has no hard links
+            return false;
+        }
+        finally
+        {
+            if(temp != null && temp.exists())
+            {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Told about the tile files stored as hard links to other tile files.
+     */
+    public interface LinkListener
+    {
+        /**
+         * Called by the writing thread once a tile is written, after
+         * its callback, if its image file was stored as a hard link.
+         *
+         * @param pFile The image file written.
+         * @param pExisting The file to which pFile is now linked.
+         */
+        void linked(File pFile, File pExisting);
+    }
+
+    /**
+     * The files of a tile to write. Merged writes are guarded by the pending map.
+     */
+    private static final class TileWrite
+    {
+        private final File aTileFile;
+        private final File aTagsFile;
+        private byte[] aData;
+        private String aTags;
+        private Runnable aOnWritten;
+
+        private TileWrite(File pTileFile, byte[] pData, File pTagsFile, String pTags, Runnable pOnWritten)
+        {
+            aTileFile = pTileFile;
+            aData = pData;
+            aTagsFile = pTagsFile;
+            aTags = pTags;
+            aOnWritten = pOnWritten;
+        }
+
+        private void merge(TileWrite pLater)
+        {
+            if(pLater.aData != null)
+            {
+                aData = pLater.aData;
+            }
+            aTags = pLater.aTags;
+            final Runnable first = aOnWritten;
+            final Runnable second = pLater.aOnWritten;
+            if(first == null)
+            {
+                aOnWritten = second;
+            }
+            else if(second != null)
+            {
+                aOnWritten = new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        first.run();
+                        second.run();
+                    }
+                };
+            }
+        }
+
+        private void perform(TileDeduplicator pDeduplicator, LinkListener pLinkListener)
+        {
+            try
+            {
+                File linked = null;
+                if(aTags == null)
+                {
+                    aTagsFile.delete();
+                }
+                else
+                {
+                    writeAtomically(aTagsFile, aTags.getBytes(TAGS_CHARSET));
+                }
+                if(aData != null)
+                {
+                    String hash = TileDeduplicator.hash(aData);
+                    File existing = pDeduplicator.find(hash);
+                    pDeduplicator.forget(aTileFile);
+                    if(existing != null && !existing.equals(aTileFile) && existing.length() == aData.length
+                            && linkAtomically(aTileFile, existing))
+                    {
+                        pDeduplicator.recordLink(aData.length);
+                        linked = existing;
+                    }
+                    else
+                    {
+                        writeAtomically(aTileFile, aData);
+                    }
+                    pDeduplicator.remember(aTileFile, hash);
+                }
+                if(aOnWritten != null)
+                {
+                    aOnWritten.run();
+                }
+                if(linked != null && pLinkListener != null)
+                {
+                    pLinkListener.linked(aTileFile, linked);
+                }
+            }
+            catch(IOException | RuntimeException e)
+            {
+                LOGGER.log(Level.WARNING, "Failed to save tile " + aTileFile, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * GeoDesk - Desktop application to view and edit geographic markers
+ *
+ *     Copyright (C) 2014 Martin P. Robillard, Jan Peter Stotz, and others
+ *     
+ *     See: http://martinrobillard.com/geodesk
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+/**
+ * A W-TinyLFU eviction policy. New tiles enter a small LRU window. When the
+ * window overflows, its least recently used tile becomes a candidate for the
+ * main area, and is only admitted if it was requested more often than the
+ * tile the main area would discard to make room for it. Request frequencies
+ * are estimated by a count-min sketch that keeps a history of tiles that are
+ * no longer cached, and that is periodically halved so that old popularity
+ * fades away.
+ *
+ * The main area is a segmented LRU: tiles enter a probation segment and move
+ * to a protected segment when requested again. This way a single fast pan or
+ * zoom sweep, which requests many tiles once, cannot flush the tiles that
+ * are requested over and over.
+ */
+public class TinyLfuEvictionPolicy implements TileEvictionPolicy
+{
+    /**
+     * The default share of the cache weight given to the window. General
+     * purpose caches use about 1%, but a map requests a whole screen of new
+     * tiles at once and requests them again on the following repaints, so
+     * the window must be large enough to hold them.
+     */
+    public static final double DEFAULT_WINDOW_RATIO = 0.2;
+
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final double aWindowRatio;
+    private long aWindowMaximum = 0;
+    private long aMainMaximum = 0;
+    private final LongHashMap<Node> aNodes = new LongHashMap<Node>();
+    private final FrequencySketch aSketch = new FrequencySketch();
+    private final Queue aWindow = new Queue();
+    private final Queue aProbation = new Queue();
+    private final Queue aProtected = new Queue();
+
+    /**
+     * Creates a policy with the default window size.
+     */
+    public TinyLfuEvictionPolicy()
+    {
+        this(DEFAULT_WINDOW_RATIO);
+    }
+
+    /**
+     * Creates a policy.
+     *
+     * @param pWindowRatio The share of the maximum weight of the cache given to
+     *        the admission window, between 0 and 1. A larger window favors
+     *        recency over frequency.
+     */
+    public TinyLfuEvictionPolicy(double pWindowRatio)
+    {
+        if(pWindowRatio < 0 || pWindowRatio > 1)
+        {
+            throw new IllegalArgumentException("Invalid window ratio: " + pWindowRatio);
+        }
+        aWindowRatio = pWindowRatio;
+    }
+
+    @Override
+    public void setMaximumWeight(long pMaximumWeight)
+    {
+        aWindowMaximum = (long) (pMaximumWeight * aWindowRatio);
+        aMainMaximum = pMaximumWeight - aWindowMaximum;
+    }
+
+    @Override
+    public void recordInsertion(long pKey, long pWeight)
+    {
+        aSketch.ensureCapacity(aNodes.size() + 1);
+        aSketch.increment(pKey);
+        Node node = new Node(pKey, pWeight);
+        aNodes.put(pKey, node);
+        aWindow.addFirst(node);
+    }
+
+    @Override
+    public void recordAccess(long pKey)
+    {
+        aSketch.increment(pKey);
+        Node node = aNodes.get(pKey);
+        if(node == null)
+        {
+            return;
+        }
+        if(node.aQueue == aProbation)
+        {
+            aProbation.remove(node);
+            aProtected.addFirst(node);
+            demoteProtected();
+        }
+        else
+        {
+            node.aQueue.moveToFront(node);
+        }
+    }
+
+    @Override
+    public void recordWeightChange(long pKey, long pWeight)
+    {
+        Node node = aNodes.get(pKey);
+        if(node != null)
+        {
+            node.aQueue.aWeight += pWeight - node.aWeight;
+            node.aWeight = pWeight;
+        }
+    }
+
+    @Override
+    public void recordRemoval(long pKey)
+    {
+        Node node = aNodes.remove(pKey);
+        if(node != null)
+        {
+            node.aQueue.remove(node);
+        }
+    }
+
+    /*
+     * Moves the tiles overflowing the window to the main area for as long as
+     * the main area has room, then makes the next candidate compete with the
+     * tile the main area would discard.
+     */
+    @Override
+    public long selectVictim()
+    {
+        while(aWindow.aWeight > aWindowMaximum && !aWindow.isEmpty())
+        {
+            Node candidate = aWindow.last();
+            if(mainWeight() + candidate.aWeight <= aMainMaximum)
+            {
+                aWindow.remove(candidate);
+                aProbation.addFirst(candidate);
+                continue;
+            }
+            Node victim = mainVictim();
+            if(victim == null || aSketch.frequency(candidate.aKey) <= aSketch.frequency(victim.aKey))
+            {
+                return candidate.aKey;
+            }
+            aWindow.remove(candidate);
+            aProbation.addFirst(candidate);
+            return victim.aKey;
+        }
+        Node victim = mainVictim();
+        if(victim == null)
+        {
+            victim = aWindow.last();
+        }
+        return victim.aKey;
+    }
+
+    private long mainWeight()
+    {
+        return aProbation.aWeight + aProtected.aWeight;
+    }
+
+    private Node mainVictim()
+    {
+        if(!aProbation.isEmpty())
+        {
+            return aProbation.last();
+        }
+        if(!aProtected.isEmpty())
+        {
+            return aProtected.last();
+        }
+        return null;
+    }
+
+    /*
+     * Keeps the protected segment within its share of the main area by moving
+     * its least recently used tiles back to probation.
+     */
+    private void demoteProtected()
+    {
+        long maximum = (long) (aMainMaximum * PROTECTED_RATIO);
+        while(aProtected.aWeight > maximum && aProtected.aSize > 1)
+        {
+            Node node = aProtected.last();
+            aProtected.remove(node);
+            aProbation.addFirst(node);
+        }
+    }
+
+    /**
+     * A tile known to the policy.
+     */
+    private static final class Node
+    {
+        private final long aKey;
+        private long aWeight;
+        private Queue aQueue;
+        private Node aPrev;
+        private Node aNext;
+
+        private Node(long pKey, long pWeight)
+        {
+            aKey = pKey;
+            aWeight = pWeight;
+        }
+    }
+
+    /**
+     * A weighted LRU list of nodes, most recent first.
+     */
+    private static final class Queue
+    {
+        private final Node aSentinel = new Node(0, 0);
+        private long aWeight = 0;
+        private int aSize = 0;
+
+        private Queue()
+        {
+            aSentinel.aPrev = aSentinel;
+            aSentinel.aNext = aSentinel;
+        }
+
+        private boolean isEmpty()
+        {
+            return aSize == 0;
+        }
+
+        private Node last()
+        {
+            return aSentinel.aPrev;
+        }
+
+        private void addFirst(Node pNode)
+        {
+            pNode.aNext = aSentinel.aNext;
+            pNode.aPrev = aSentinel;
+            aSentinel.aNext.aPrev = pNode;
+            aSentinel.aNext = pNode;
+            pNode.aQueue = this;
+            aWeight += pNode.aWeight;
+            aSize++;
+        }
+
+        private void remove(Node pNode)
+        {
+            pNode.aPrev.aNext = pNode.aNext;
+            pNode.aNext.aPrev = pNode.aPrev;
+            pNode.aQueue = null;
+            aWeight -= pNode.aWeight;
+            aSize--;
+        }
+
+        private void moveToFront(Node pNode)
+        {
+            remove(pNode);
+            addFirst(pNode);
+        }
+    }
+
+    /**
+     * A count-min sketch of small counters that saturate at 15, as the
+     * admission decision only needs to tell popular tiles from rare ones. Each key is counted in one
+     * counter of each of the four rows and its frequency is estimated as the
+     * minimum of these counters. After a number of increments proportional to
+     * the width of the sketch all the counters are halved.
+     */
+    private static final class FrequencySketch
+    {
+        private static final int DEPTH = 4;
+        private static final int MINIMUM_WIDTH = 1024;
+        private static final int MAXIMUM_COUNT = 15;
+        private static final int SAMPLE_FACTOR = 10;
+        private static final long[] SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xFF51AFD7ED558CCDL };
+
+        private byte[][] aCounters = new byte[DEPTH][MINIMUM_WIDTH];
+        private int aMask = MINIMUM_WIDTH - 1;
+        private int aAdditions = 0;
+
+        /*
+         * Widens the sketch, losing its history, if it is too narrow
+         * to estimate the frequencies of pSize keys.
+         */
+        private void ensureCapacity(int pSize)
+        {
+            if(pSize <= aCounters[0].length)
+            {
+                return;
+            }
+            int width = aCounters[0].length;
+            while(width < pSize)
+            {
+                width <<= 1;
+            }
+            aCounters = new byte[DEPTH][width];
+            aMask = width - 1;
+            aAdditions = 0;
+        }
+
+        private int frequency(long pKey)
+        {
+            int frequency = MAXIMUM_COUNT;
+            for(int row = 0; row < DEPTH; row++)
+            {
+                frequency = Math.min(frequency, aCounters[row][indexOf(pKey, row)]);
+            }
+            return frequency;
+        }
+
+        private void increment(long pKey)
+        {
+            boolean added = false;
+            for(int row = 0; row < DEPTH; row++)
+            {
+                int index = indexOf(pKey, row);
+                if(aCounters[row][index] < MAXIMUM_COUNT)
+                {
+                    aCounters[row][index]++;
+                    added = true;
+                }
+            }
+            if(added && ++aAdditions >= SAMPLE_FACTOR * aCounters[0].length)
+            {
+                halve();
+            }
+        }
+
+        private void halve()
+        {
+            for(byte[] row : aCounters)
+            {
+                for(int i = 0; i < row.length; i++)
+                {
+                    row[i] >>= 1;
+                }
+            }
+            aAdditions /= 2;
+        }
+
+        private int indexOf(long pKey, int pRow)
+        {
+            long hash = (pKey + SEEDS[pRow]) * SEEDS[pRow];
+            return (int) (hash ^ hash >>> 32) & aMask;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.tilesources.MapnikOsmTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+
+import static org.junit.Assert.*;
+
+public class TestConcurrentTileCache
+{
+	private static final int TILE_BYTES = 256 * 256 * 4;
+	
+	private final TileSource aSource = new MapnikOsmTileSource();
+	
+	private Tile createLoadedTile(int pX, int pY, int pZoom)
+	{
+		Tile tile = new Tile(aSource, pX, pY, pZoom, new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB));
+		tile.setLoaded(true);
+		return tile;
+	}
+	
+	@Test
+	public void testDecodedSize()
+	{
+		assertEquals(TILE_BYTES, createLoadedTile(0, 0, 1).getDecodedSize());
+		Tile indexed = new Tile(aSource, 0, 0, 1, new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_INDEXED));
+		assertEquals(256 * 256, indexed.getDecodedSize());
+	}
+	
+	@Test
+	public void testSharedImageChargedOnce()
+	{
+		ConcurrentTileCache cache = new ConcurrentTileCache(3L * TILE_BYTES);
+		BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+		Tile first = new Tile(aSource, 0, 0, 4, image);
+		first.setLoaded(true);
+		cache.addTile(first);
+		long single = cache.getResidentBytes();
+		long overhead = single - TILE_BYTES;
+		for(int x = 1; x < 10; x++)
+		{
+			Tile tile = new Tile(aSource, x, 0, 4, image);
+			tile.setLoaded(true);
+			cache.addTile(tile);
+		}
+		// The tiles sharing the image weigh little more than one
+		assertEquals(10, cache.getTileCount());
+		assertEquals(TILE_BYTES + 10 * overhead, cache.getResidentBytes());
+		
+		// The charge passes to another tile when the charged one leaves
+		cache.addTile(createLoadedTile(0, 0, 4));
+		assertEquals(2 * TILE_BYTES + 10 * overhead, cache.getResidentBytes());
+		assertNotNull(cache.getTile(aSource, 1, 0, 4));
+		assertEquals(2 * TILE_BYTES + 10 * overhead, cache.getResidentBytes());
+	}
+	
+	@Test
+	public void testGetAndAdd()
+	{
+		ConcurrentTileCache cache = new ConcurrentTileCache();
+		assertNull(cache.getTile(aSource, 1, 2, 3));
+		Tile tile = createLoadedTile(1, 2, 3);
+		cache.addTile(tile);
+		assertSame(tile, cache.getTile(aSource, 1, 2, 3));
+		assertNull(cache.getTile(aSource, 2, 1, 3));
+		assertEquals(1, cache.getTileCount());
+		assertTrue(cache.getResidentBytes() > TILE_BYTES);
+	}
+	
+	@Test
+	public void testEvictsLeastRecentlyUsedWithinBudget()
+	{
+		ConcurrentTileCache cache = new ConcurrentTileCache(3L * TILE_BYTES + TILE_BYTES / 2);
+		Tile first = createLoadedTile(0, 0, 2);
+		cache.addTile(first);
+		cache.addTile(createLoadedTile(1, 0, 2));
+		cache.addTile(createLoadedTile(2, 0, 2));
+		assertEquals(3, cache.getTileCount());
+		
+		// Touching the first tile protects it from the next eviction
+		assertSame(first, cache.getTile(aSource, 0, 0, 2));
+		cache.addTile(createLoadedTile(3, 0, 2));
+		assertEquals(3, cache.getTileCount());
+		assertSame(first, cache.getTile(aSource, 0, 0, 2));
+		assertNull(cache.getTile(aSource, 1, 0, 2));
+		assertTrue(cache.getResidentBytes() <= cache.getMaximumBytes());
+	}
+	
+	@Test
+	public void testSmallImagesWeighLess()
+	{
+		ConcurrentTileCache cache = new ConcurrentTileCache(2L * TILE_BYTES);
+		for(int x = 0; x < 6; x++)
+		{
+			Tile tile = new Tile(aSource, x, 0, 3, new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_INDEXED));
+			tile.setLoaded(true);
+			cache.addTile(tile);
+		}
+		assertEquals(6, cache.getTileCount());
+	}
+	
+	@Test
+	public void testStatistics() throws Exception
+	{
+		ConcurrentTileCache cache = new ConcurrentTileCache(2L * TILE_BYTES + TILE_BYTES / 2);
+		TileCacheStatistics statistics = cache.getStatistics();
+		assertNull(cache.getTile(aSource, 0, 0, 2));
+		cache.addTile(createLoadedTile(0, 0, 2));
+		cache.addTile(createLoadedTile(0, 0, 3));
+		assertNotNull(cache.getTile(aSource, 0, 0, 2));
+		cache.addTile(createLoadedTile(1, 0, 3));
+		assertEquals(1, statistics.getHitCount());
+		assertEquals(1, statistics.getMissCount());
+		assertEquals(0.5, statistics.getHitRate(), 0);
+		assertEquals(1, statistics.getEvictionCount());
+		assertEquals(cache.getResidentBytes(), statistics.getResidentBytes());
+		assertEquals(1, statistics.getEntriesPerZoom()[2]);
+		assertEquals(1, statistics.getEntriesPerZoom()[3]);
+		assertEquals(2, statistics.getEntryCount());
+		
+		statistics.register("test");
+		ObjectName name = statistics.getObjectName();
+		assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "HitCount"));
+		statistics.unregister();
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBudget()
+	{
+		new ConcurrentTileCache(0);
+	}
+}
@@ -0,0 +1,420 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntBinaryOperator;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.tilesources.AbstractOsmTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource.TileUpdate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.*;
+
+public class TestHttpTileLoader
+{
+	private HttpServer aServer;
+	private TileSource aSource;
+	private Set<Integer> aClientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+	private LinkedBlockingQueue<Tile> aFinished = new LinkedBlockingQueue<Tile>();
+	private HttpTileLoader aLoader;
+	private AtomicInteger aRequests = new AtomicInteger();
+	private AtomicInteger aConcurrent = new AtomicInteger();
+	private AtomicInteger aMaxConcurrent = new AtomicInteger();
+	
+	private static final IntBinaryOperator MAX = new IntBinaryOperator()
+	{
+		@Override
+		public int applyAsInt(int pLeft, int pRight)
+		{
+			return Math.max(pLeft, pRight);
+		}
+	};
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		ByteArrayOutputStream image = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB), "png", image);
+		final byte[] data = image.toByteArray();
+		aServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		aServer.createContext("/", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange pExchange) throws IOException
+			{
+				aClientPorts.add(pExchange.getRemoteAddress().getPort());
+				aRequests.incrementAndGet();
+				int concurrent = aConcurrent.incrementAndGet();
+				aMaxConcurrent.accumulateAndGet(concurrent, MAX);
+				try
+				{
+					Thread.sleep(20);
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+				aConcurrent.decrementAndGet();
+				String path = pExchange.getRequestURI().getPath();
+				if(path.equals("/3/0/0.png") && aRequests.get() < 3)
+				{
+					pExchange.getResponseHeaders().add("Retry-After", "0");
+					pExchange.sendResponseHeaders(aRequests.get() == 1 ? 503 : 429, -1);
+					pExchange.close();
+					return;
+				}
+				if(path.startsWith("/4/"))
+				{
+					pExchange.sendResponseHeaders(500, -1);
+					pExchange.close();
+					return;
+				}
+				if(path.equals("/1/0/1.png"))
+				{
+					pExchange.sendResponseHeaders(404, -1);
+					pExchange.close();
+					return;
+				}
+				if(path.equals("/1/1/1.png"))
+				{
+					pExchange.getResponseHeaders().add("X-VE-Tile-Info", "no-tile");
+				}
+				pExchange.sendResponseHeaders(200, data.length);
+				OutputStream out = pExchange.getResponseBody();
+				out.write(data);
+				out.close();
+			}
+		});
+		aServer.start();
+		aSource = new AbstractOsmTileSource("Test", "http://localhost:" + aServer.getAddress().getPort())
+		{
+			@Override
+			public TileUpdate getTileUpdate()
+			{
+				return TileUpdate.None;
+			}
+		};
+		aLoader = new HttpTileLoader(new TileLoaderListener()
+		{
+			@Override
+			public void tileLoadingFinished(Tile pTile, boolean pSuccess)
+			{
+				aFinished.add(pTile);
+			}
+		});
+	}
+	
+	@After
+	public void tearDown()
+	{
+		aServer.stop(0);
+	}
+	
+	private Tile load(int pX, int pY, int pZoom) throws InterruptedException
+	{
+		Tile tile = new Tile(aSource, pX, pY, pZoom);
+		aLoader.createTileLoaderJob(tile).run();
+		assertSame(tile, aFinished.poll(10, TimeUnit.SECONDS));
+		return tile;
+	}
+	
+	@Test
+	public void testLoad() throws InterruptedException
+	{
+		Tile tile = load(0, 0, 1);
+		assertTrue(tile.isLoaded());
+		assertFalse(tile.isLoading());
+		assertFalse(tile.isError());
+		assertTrue(tile.getDecodedSize() > 0);
+		
+		tile = load(0, 1, 1);
+		assertTrue(tile.isError());
+		
+		tile = load(1, 1, 1);
+		assertTrue(tile.isError());
+		assertEquals("no-tile", tile.getValue("tile-info"));
+	}
+	
+	@Test
+	public void testConnectionReuse() throws InterruptedException
+	{
+		for(int x = 0; x < 4; x++)
+		{
+			load(x, 2, 2);
+		}
+		assertEquals(1, aClientPorts.size());
+	}
+	
+	@Test
+	public void testRequestLimits() throws InterruptedException
+	{
+		aLoader.setRequestLimiter(new TileRequestLimiter(1, 0));
+		for(int x = 0; x < 4; x++)
+		{
+			aLoader.createTileLoaderJob(new Tile(aSource, x, 3, 2)).run();
+		}
+		for(int i = 0; i < 4; i++)
+		{
+			assertNotNull(aFinished.poll(10, TimeUnit.SECONDS));
+		}
+		assertEquals(1, aMaxConcurrent.get());
+	}
+	
+	@Test
+	public void testBlockingLoaderRequestLimits() throws InterruptedException
+	{
+		final OsmTileLoader loader = new OsmTileLoader(new TileLoaderListener()
+		{
+			@Override
+			public void tileLoadingFinished(Tile pTile, boolean pSuccess)
+			{
+				aFinished.add(pTile);
+			}
+		});
+		loader.setRequestLimiter(new TileRequestLimiter(1, 0));
+		for(int x = 0; x < 4; x++)
+		{
+			final Tile tile = new Tile(aSource, x, 3, 2);
+			new Thread()
+			{
+				@Override
+				public void run()
+				{
+					loader.createTileLoaderJob(tile).run();
+				}
+			}.start();
+		}
+		for(int i = 0; i < 4; i++)
+		{
+			assertNotNull(aFinished.poll(10, TimeUnit.SECONDS));
+		}
+		assertEquals(4, aRequests.get());
+		assertEquals(1, aMaxConcurrent.get());
+	}
+	
+	@Test
+	public void testBlockingLoaderDoesNotWaitForLimiter() throws InterruptedException
+	{
+		OsmTileLoader loader = new OsmTileLoader(new TileLoaderListener()
+		{
+			@Override
+			public void tileLoadingFinished(Tile pTile, boolean pSuccess)
+			{
+				aFinished.add(pTile);
+			}
+		});
+		TileRequestLimiter limiter = new TileRequestLimiter(1, 0);
+		loader.setRequestLimiter(limiter);
+		String key = OsmTileLoader.getLimiterKey(new Tile(aSource, 0, 0, 0), "localhost");
+		assertTrue(limiter.acquire(key).isDone());
+		
+		// The job returns while its request waits, and the request is sent once allowed
+		Tile tile = new Tile(aSource, 1, 3, 2);
+		loader.createTileLoaderJob(tile).run();
+		assertTrue(tile.isLoading());
+		assertEquals(1, limiter.getWaitingCount(key));
+		assertEquals(0, aRequests.get());
+		limiter.release(key);
+		assertSame(tile, aFinished.poll(10, TimeUnit.SECONDS));
+		assertTrue(tile.isLoaded());
+		assertFalse(tile.isError());
+		assertEquals(1, aRequests.get());
+		assertEquals(0, limiter.getInFlightCount(key));
+	}
+	
+	@Test
+	public void testCancelWhileWaitingForConnection() throws InterruptedException, IOException
+	{
+		OsmTileLoader loader = new OsmTileLoader(new TileLoaderListener()
+		{
+			@Override
+			public void tileLoadingFinished(Tile pTile, boolean pSuccess)
+			{
+				aFinished.add(pTile);
+			}
+		});
+		TileResources resources = new TileResources(1, 1, 1);
+		loader.setResources(resources);
+		loader.setRequestLimiter(null);
+		loader.setFetchRegistry(new TileFetchRegistry());
+		TileResources.Permit held = resources.acquire(TileResources.Resource.NETWORK, "localhost");
+		Tile tile = new Tile(aSource, 2, 2, 6);
+		final TileJob job = loader.createTileLoaderJob(tile);
+		Thread thread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				job.run();
+			}
+		};
+		thread.start();
+		for(int i = 0; i < 500 && resources.getWaitingCount(TileResources.Resource.NETWORK, "localhost") == 0; i++)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(1, resources.getWaitingCount(TileResources.Resource.NETWORK, "localhost"));
+		
+		// The job cancelled while waiting for a connection does not send its request
+		job.cancel();
+		assertFalse(tile.isLoading());
+		held.close();
+		thread.join(10000);
+		assertFalse(thread.isAlive());
+		assertEquals(0, aRequests.get());
+		assertEquals(0, resources.getInUseCount(TileResources.Resource.NETWORK, "localhost"));
+		assertNull(aFinished.poll(100, TimeUnit.MILLISECONDS));
+		assertFalse(tile.isLoaded());
+	}
+	
+	@Test
+	public void testCoalescing() throws InterruptedException
+	{
+		TileFetchRegistry registry = new TileFetchRegistry();
+		aLoader.setFetchRegistry(registry);
+		Tile first = new Tile(aSource, 1, 0, 2);
+		Tile second = new Tile(aSource, 1, 0, 2);
+		aLoader.createTileLoaderJob(first).run();
+		aLoader.createTileLoaderJob(second).run();
+		assertNotNull(aFinished.poll(10, TimeUnit.SECONDS));
+		assertNotNull(aFinished.poll(10, TimeUnit.SECONDS));
+		assertEquals(1, aRequests.get());
+		assertEquals(1, registry.getCoalescedCount());
+		assertFalse(first.isError());
+		assertFalse(second.isError());
+		assertTrue(second.getDecodedSize() > 0);
+	}
+	
+	@Test
+	public void testRetry() throws InterruptedException
+	{
+		aLoader.setRetryScheduler(new TileRetryScheduler(3, 10, 50));
+		Tile tile = load(0, 0, 3);
+		assertFalse(tile.isError());
+		assertEquals(3, aRequests.get());
+	}
+	
+	@Test
+	public void testCancelRetry() throws InterruptedException
+	{
+		TileRetryScheduler scheduler = new TileRetryScheduler(3, 200, 400);
+		aLoader.setRetryScheduler(scheduler);
+		JobDispatcher.Client client = new JobDispatcher().createClient();
+		Tile tile = new Tile(aSource, 0, 0, 3);
+		TileJob job = aLoader.createTileLoaderJob(tile);
+		client.addJob(job);
+		for(int i = 0; i < 500 && scheduler.getPendingCount() == 0; i++)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(1, scheduler.getPendingCount());
+		assertTrue(tile.isLoading());
+		
+		// The retry is the job itself, so cancelling the job cancels the retry
+		client.cancelJob(job);
+		assertFalse(tile.isLoading());
+		assertNull(aFinished.poll(1, TimeUnit.SECONDS));
+		assertEquals(0, scheduler.getPendingCount());
+		assertEquals(1, aRequests.get());
+		assertFalse(tile.isLoaded());
+	}
+	
+	@Test
+	public void testCircuitBreaker() throws InterruptedException
+	{
+		aLoader.setCircuitBreaker(new TileCircuitBreaker(2, 60000));
+		aLoader.setRetryScheduler(null);
+		assertTrue(load(0, 0, 4).isError());
+		assertTrue(load(1, 0, 4).isError());
+		assertEquals(2, aRequests.get());
+		
+		// The source is considered down: the tile keeps its image, is not requested,
+		// and is left unloaded so that it can be requested again
+		Tile tile = new Tile(aSource, 2, 0, 4, new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB));
+		aLoader.createTileLoaderJob(tile).run();
+		assertSame(tile, aFinished.poll(10, TimeUnit.SECONDS));
+		assertFalse(tile.isLoaded());
+		assertFalse(tile.isLoading());
+		assertFalse(tile.isError());
+		assertTrue(tile.getDecodedSize() > 0);
+		assertEquals(2, aRequests.get());
+	}
+	
+	@Test
+	public void testCircuitClosed() throws InterruptedException
+	{
+		TileCircuitBreaker breaker = new TileCircuitBreaker(2, 200);
+		aLoader.setCircuitBreaker(breaker);
+		aLoader.setRetryScheduler(new TileRetryScheduler());
+		assertTrue(load(0, 0, 4).isError());
+		assertTrue(load(1, 0, 4).isError());
+		assertEquals(TileCircuitBreaker.State.OPEN, breaker.getState(aSource.getName()));
+		
+		// The tile that failed while the circuit was open is requested again as a probe
+		Tile tile = new Tile(aSource, 1, 0, 3);
+		aLoader.createTileLoaderJob(tile).run();
+		assertTrue(tile.isLoading());
+		assertSame(tile, aFinished.poll(10, TimeUnit.SECONDS));
+		assertTrue(tile.isLoaded());
+		assertFalse(tile.isError());
+		assertEquals(TileCircuitBreaker.State.CLOSED, breaker.getState(aSource.getName()));
+		assertEquals(3, aRequests.get());
+	}
+	
+	@Test
+	public void testCancel() throws InterruptedException
+	{
+		TileRequestLimiter limiter = new TileRequestLimiter(1, 0);
+		aLoader.setRequestLimiter(limiter);
+		Tile first = new Tile(aSource, 0, 0, 5);
+		Tile second = new Tile(aSource, 1, 0, 5);
+		aLoader.createTileLoaderJob(first).run();
+		TileJob job = aLoader.createTileLoaderJob(second);
+		job.run();
+		assertTrue(second.isLoading());
+		assertEquals(1, limiter.getWaitingCount(aSource.getName() + "@localhost"));
+		
+		// The cancelled request leaves the limiter and is never sent
+		job.cancel();
+		assertFalse(second.isLoading());
+		assertSame(first, aFinished.poll(10, TimeUnit.SECONDS));
+		assertEquals(0, limiter.getWaitingCount(aSource.getName() + "@localhost"));
+		assertNull(aFinished.poll(100, TimeUnit.MILLISECONDS));
+		assertFalse(second.isLoaded());
+		assertEquals(1, aRequests.get());
+		
+		// The tile can be requested again
+		job = aLoader.createTileLoaderJob(second);
+		job.run();
+		assertSame(second, aFinished.poll(10, TimeUnit.SECONDS));
+		assertTrue(second.isLoaded());
+	}
+}
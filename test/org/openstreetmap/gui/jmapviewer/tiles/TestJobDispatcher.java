@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestJobDispatcher
+{
+	// As many as the worker threads of a dispatcher
+	private static final int WORKERS = 8;
+	
+	private JobDispatcher aDispatcher;
+	private CountDownLatch aReleaseOne;
+	private CountDownLatch aReleaseOthers;
+	private List<String> aRun;
+	private CountDownLatch aDone;
+	
+	@Before
+	public void setUp() throws InterruptedException
+	{
+		aDispatcher = new JobDispatcher();
+		aReleaseOne = new CountDownLatch(1);
+		aReleaseOthers = new CountDownLatch(1);
+		aRun = new ArrayList<String>();
+		// Blocks all the workers but one, which then runs the jobs one at a time
+		JobDispatcher.Client blocker = aDispatcher.createClient();
+		for(int i = 0; i < WORKERS; i++)
+		{
+			CountDownLatch started = new CountDownLatch(1);
+			blocker.addJob(new Job(null, started, i == 0 ? aReleaseOne : aReleaseOthers, null));
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+		}
+	}
+	
+	private class Job implements TileJob
+	{
+		private final String aName;
+		private final CountDownLatch aStarted;
+		private final CountDownLatch aRelease;
+		private final JobDispatcher.Client aClient;
+		private boolean aCancelled = false;
+		
+		Job(String pName, CountDownLatch pStarted, CountDownLatch pRelease, JobDispatcher.Client pClient)
+		{
+			aName = pName;
+			aStarted = pStarted;
+			aRelease = pRelease;
+			aClient = pClient;
+		}
+		
+		@Override
+		public void run()
+		{
+			if(aStarted != null)
+			{
+				aStarted.countDown();
+			}
+			try
+			{
+				if(aRelease != null)
+				{
+					aRelease.await();
+				}
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+			if(aName != null)
+			{
+				synchronized(aRun)
+				{
+					aRun.add(aName + (JobDispatcher.getCurrentClient() == aClient ? "" : "?"));
+				}
+				aDone.countDown();
+			}
+		}
+		
+		@Override
+		public Tile getTile()
+		{
+			return null;
+		}
+		
+		@Override
+		public void cancel()
+		{
+			aCancelled = true;
+		}
+	}
+	
+	@Test
+	public void testClientsServedInTurn() throws InterruptedException
+	{
+		JobDispatcher.Client overview = aDispatcher.createClient();
+		JobDispatcher.Client detail = aDispatcher.createClient();
+		aDone = new CountDownLatch(5);
+		detail.addJob(new Job("D1", null, null, detail));
+		detail.addJob(new Job("D2", null, null, detail));
+		detail.addJob(new Job("D3", null, null, detail));
+		overview.addJob(new Job("O1", null, null, overview));
+		overview.addJob(new Job("O2", null, null, overview));
+		assertEquals(3, detail.getQueueSize());
+		assertEquals(0, aDispatcher.getQueueSize());
+		aReleaseOne.countDown();
+		assertTrue(aDone.await(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("D1", "O1", "D2", "O2", "D3"), aRun);
+		aReleaseOthers.countDown();
+	}
+	
+	@Test
+	public void testCancelOneClient() throws InterruptedException
+	{
+		JobDispatcher.Client overview = aDispatcher.createClient();
+		JobDispatcher.Client detail = aDispatcher.createClient();
+		aDone = new CountDownLatch(2);
+		Job cancelled = new Job("D1", null, null, detail);
+		detail.addJob(cancelled);
+		overview.addJob(new Job("O1", null, null, overview));
+		overview.addJob(new Job("O2", null, null, overview));
+		detail.cancelOutstandingJobs();
+		assertTrue(cancelled.aCancelled);
+		assertEquals(0, detail.getQueueSize());
+		assertEquals(2, overview.getQueueSize());
+		aReleaseOne.countDown();
+		assertTrue(aDone.await(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("O1", "O2"), aRun);
+		aReleaseOthers.countDown();
+	}
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestOffHeapTileStore
+{
+	private static final int ONE_MB = 1024 * 1024;
+	
+	private static byte[] createData(int pLength, int pSeed)
+	{
+		byte[] data = new byte[pLength];
+		for(int i = 0; i < pLength; i++)
+		{
+			data[i] = (byte)(i * 31 + pSeed);
+		}
+		return data;
+	}
+	
+	@Test
+	public void testPutAndGet()
+	{
+		OffHeapTileStore store = new OffHeapTileStore(ONE_MB);
+		assertNull(store.get(1));
+		assertEquals(0, store.getAllocatedBytes());
+		byte[] data = createData(10000, 1);
+		store.put(1, data, data.length);
+		assertArrayEquals(data, store.get(1));
+		assertEquals(10000, store.getStoredBytes());
+		assertEquals(ONE_MB, store.getAllocatedBytes());
+		
+		// Only the given length is stored
+		store.put(2, data, 100);
+		assertArrayEquals(Arrays.copyOf(data, 100), store.get(2));
+		
+		byte[] other = createData(5000, 2);
+		store.put(1, other, other.length);
+		assertArrayEquals(other, store.get(1));
+		assertEquals(5100, store.getStoredBytes());
+		
+		store.remove(1);
+		assertNull(store.get(1));
+		assertEquals(1, store.getTileCount());
+	}
+	
+	@Test
+	public void testEvictsLeastRecentlyUsed()
+	{
+		OffHeapTileStore store = new OffHeapTileStore(ONE_MB);
+		// 25 pages each, so 10 tiles fit in one slab
+		for(int i = 0; i < 10; i++)
+		{
+			byte[] data = createData(100000, i);
+			store.put(i, data, data.length);
+		}
+		assertEquals(10, store.getTileCount());
+		assertNotNull(store.get(0));
+		byte[] data = createData(100000, 10);
+		store.put(10, data, data.length);
+		assertEquals(10, store.getTileCount());
+		assertNull(store.get(1));
+		assertArrayEquals(createData(100000, 0), store.get(0));
+		assertArrayEquals(data, store.get(10));
+		assertEquals(ONE_MB, store.getAllocatedBytes());
+	}
+	
+	@Test
+	public void testIgnoresLargeTiles()
+	{
+		OffHeapTileStore store = new OffHeapTileStore(ONE_MB);
+		byte[] data = createData(ONE_MB / 2, 0);
+		store.put(1, data, data.length);
+		assertNull(store.get(1));
+		assertEquals(0, store.getTileCount());
+	}
+}
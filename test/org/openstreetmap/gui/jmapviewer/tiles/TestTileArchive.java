@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.Coordinate;
+import org.openstreetmap.gui.jmapviewer.tilesources.MapnikOsmTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+
+import static org.junit.Assert.*;
+
+public class TestTileArchive
+{
+	private static final TileLoaderListener LISTENER = new TileLoaderListener()
+	{
+		@Override
+		public void tileLoadingFinished(Tile pTile, boolean pSuccess)
+		{}
+	};
+	
+	private File aDirectory;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		aDirectory = Files.createTempDirectory("archive").toFile();
+	}
+	
+	@After
+	public void tearDown()
+	{
+		delete(aDirectory);
+	}
+	
+	private static void delete(File pFile)
+	{
+		if(pFile.isDirectory())
+		{
+			for(File file : pFile.listFiles())
+			{
+				delete(file);
+			}
+		}
+		pFile.delete();
+	}
+	
+	@Test
+	public void testWriteAndRead() throws IOException
+	{
+		File file = new File(aDirectory, "tiles.archive");
+		TileArchive.Writer writer = new TileArchive.Writer(file, "Mapnik");
+		writer.add(TileKey.pack(0, 1, 2, 3), 100, "etag=a\n", new byte[] {1, 2});
+		writer.add(TileKey.pack(0, 2, 2, 3), 200, null, null);
+		writer.add(TileKey.pack(0, 3, 2, 3), 300, "", new byte[0]);
+		try
+		{
+			writer.add(TileKey.pack(0, 1, 2, 3), 0, null, null);
+			fail();
+		}
+		catch(IllegalArgumentException e)
+		{
+			// Keys must increase
+		}
+		writer.close();
+		
+		TileArchive archive = new TileArchive(file);
+		assertEquals("Mapnik", archive.getSourceName());
+		assertEquals(3, archive.getTileCount());
+		TileArchive.Record record = archive.read(TileKey.pack(0, 1, 2, 3));
+		assertEquals(100, record.getTime());
+		assertEquals("etag=a\n", record.getTags());
+		assertArrayEquals(new byte[] {1, 2}, record.getData());
+		assertNull(archive.read(TileKey.pack(0, 2, 2, 3)).getData());
+		assertNull(archive.read(TileKey.pack(0, 4, 2, 3)));
+		
+		final List<Long> times = new ArrayList<Long>();
+		archive.readAll(new TileArchive.RecordVisitor()
+		{
+			@Override
+			public void visit(TileArchive.Record pRecord)
+			{
+				times.add(pRecord.getTime());
+			}
+		});
+		assertEquals("[100, 200, 300]", times.toString());
+		archive.close();
+		
+		// A truncated archive is rejected
+		RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+		truncated.setLength(truncated.length() - 1);
+		truncated.close();
+		try
+		{
+			new TileArchive(file).close();
+			fail();
+		}
+		catch(IOException e)
+		{
+			// Incomplete
+		}
+	}
+	
+	private static void write(File pFile, String pContent) throws IOException
+	{
+		pFile.getParentFile().mkdirs();
+		Files.write(pFile.toPath(), pContent.getBytes("UTF-8"));
+	}
+	
+	@Test
+	public void testExportAndImport() throws IOException
+	{
+		TileSource source = new MapnikOsmTileSource();
+		File from = new File(aDirectory, "from");
+		File sourceDir = new File(from, "Mapnik");
+		// Montreal at zoom 10, a tile next to it, and a tile elsewhere
+		write(TileCacheLayout.getFile(sourceDir, 10, 301, 366, ".png"), "a");
+		write(TileCacheLayout.getFile(sourceDir, 10, 301, 366, ".tags"), "etag=x");
+		write(TileCacheLayout.getFile(sourceDir, 10, 302, 366, ".tags"), "tile-info=no-tile");
+		write(TileCacheLayout.getFile(sourceDir, 10, 10, 10, ".png"), "b");
+		write(TileCacheLayout.getFile(sourceDir, 12, 1205, 1465, ".png"), "c");
+		OsmFileCacheTileLoader exporter = new OsmFileCacheTileLoader(LISTENER, from);
+		File file = new File(aDirectory, "tiles.archive");
+		assertEquals(2, exporter.exportArchive(source, new Coordinate(45.6, -74), new Coordinate(45.4, -73.5), 10, 11, file));
+		assertEquals(4, exporter.exportArchive(source, null, null, 0, 18, file));
+		
+		File to = new File(aDirectory, "to");
+		OsmFileCacheTileLoader importer = new OsmFileCacheTileLoader(LISTENER, to);
+		assertEquals(4, importer.importArchive(source, file));
+		File targetDir = new File(to, "Mapnik");
+		assertEquals("a", new String(Files.readAllBytes(TileCacheLayout.getFile(targetDir, 10, 301, 366, ".png").toPath()), "UTF-8"));
+		assertEquals("etag=x\n", new String(Files.readAllBytes(TileCacheLayout.getFile(targetDir, 10, 301, 366, ".tags").toPath()), "UTF-8"));
+		assertFalse(TileCacheLayout.getFile(targetDir, 10, 302, 366, ".png").exists());
+		assertTrue(importer.isFresh(new Tile(source, 1205, 1465, 12)));
+		assertTrue(importer.isFresh(new Tile(source, 302, 366, 10)));
+		assertEquals(3, importer.getStatistics().getEntryCount());
+	}
+}
@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTileBuffers
+{
+	private static byte[] randomBytes(int pLength)
+	{
+		byte[] data = new byte[pLength];
+		new Random(pLength).nextBytes(data);
+		return data;
+	}
+	
+	@Test
+	public void testKnownLength() throws IOException
+	{
+		byte[] data = randomBytes(5000);
+		assertArrayEquals(data, TileBuffers.read(new ByteArrayInputStream(data), data.length));
+		try
+		{
+			TileBuffers.read(new ByteArrayInputStream(data), data.length + 1);
+			fail();
+		}
+		catch(EOFException e)
+		{
+			// Truncated
+		}
+	}
+	
+	@Test
+	public void testUnknownLength() throws IOException
+	{
+		byte[] small = randomBytes(100);
+		assertArrayEquals(small, TileBuffers.read(new ByteArrayInputStream(small), -1));
+		assertTrue(TileBuffers.getPooledCount() > 0);
+		int pooled = TileBuffers.getPooledCount();
+		
+		byte[] large = randomBytes(TileBuffers.SCRATCH_SIZE * 3 + 7);
+		assertArrayEquals(large, TileBuffers.read(new ByteArrayInputStream(large), -1));
+		assertEquals(pooled, TileBuffers.getPooledCount());
+		assertEquals(0, TileBuffers.read(new ByteArrayInputStream(new byte[0]), -1).length);
+	}
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTileCacheIndex
+{
+	private File aFile;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		aFile = File.createTempFile("tiles", ".idx");
+		aFile.delete();
+	}
+	
+	@After
+	public void tearDown()
+	{
+		aFile.delete();
+	}
+	
+	@Test
+	public void testPutGetRemove() throws IOException
+	{
+		TileCacheIndex index = new TileCacheIndex(aFile);
+		assertTrue(index.isNew());
+		assertNull(index.get(1));
+		index.put(1, 100, 2000, "etag=\"x\"\n");
+		index.put(2, 200, 0, "tile-info=no-tile\n");
+		index.put(1, 150, 3000, "etag=\"y\"\n");
+		assertEquals(2, index.size());
+		assertEquals(150, index.get(1).getTime());
+		assertEquals(3000, index.get(1).getSize());
+		assertEquals("etag=\"y\"\n", index.get(1).getTags());
+		index.setTime(2, 250);
+		assertEquals(250, index.get(2).getTime());
+		index.remove(1);
+		assertNull(index.get(1));
+		assertEquals(1, index.size());
+		
+		StringBuilder tags = new StringBuilder();
+		while(tags.length() <= TileCacheIndex.MAX_INLINE_TAGS)
+		{
+			tags.append("capture-date=2014\n");
+		}
+		index.put(3, 300, 10, tags.toString());
+		assertNull(index.get(3).getTags());
+		index.close();
+	}
+	
+	@Test
+	public void testReopenAndGrow() throws IOException
+	{
+		TileCacheIndex index = new TileCacheIndex(aFile);
+		index.markFilled();
+		for(int key = 0; key < 10000; key++)
+		{
+			index.put(key, key, key + 1, "");
+		}
+		for(int key = 0; key < 10000; key += 2)
+		{
+			index.remove(key);
+		}
+		index.close();
+		
+		index = new TileCacheIndex(aFile);
+		assertFalse(index.isNew());
+		assertEquals(5000, index.size());
+		assertNull(index.get(0));
+		assertEquals(10000, index.get(9999).getSize());
+		assertEquals(5000, index.keys().length);
+		index.close();
+	}
+	
+	@Test
+	public void testResizeKeepsMappedFile() throws IOException
+	{
+		TileCacheIndex index = new TileCacheIndex(aFile);
+		index.markFilled();
+		for(int key = 0; key < 10000; key++)
+		{
+			index.put(key, key, 1, "");
+		}
+		// Another process maps the index, which then shrinks once its tiles are gone
+		FileChannel other = FileChannel.open(aFile.toPath(), StandardOpenOption.READ);
+		long size = other.size();
+		MappedByteBuffer mapped = other.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		for(int key = 0; key < 10000; key++)
+		{
+			index.remove(key);
+		}
+		// Short-lived tiles use up the free slots until the table is rebuilt
+		for(int key = 10000; aFile.length() == size; key++)
+		{
+			index.put(key, key, 1, "");
+			index.remove(key);
+		}
+		index.put(1, 100, 1, "");
+		assertTrue(aFile.length() < size);
+		assertEquals(size, other.size());
+		mapped.get((int) size - 1);
+		other.close();
+		index.close();
+		
+		index = new TileCacheIndex(aFile);
+		assertFalse(index.isNew());
+		assertEquals(1, index.size());
+		assertEquals(100, index.get(1).getTime());
+		index.close();
+	}
+	
+	@Test
+	public void testUnfilledIndexIsRebuilt() throws IOException
+	{
+		TileCacheIndex index = new TileCacheIndex(aFile);
+		index.put(1, 100, 10, "");
+		index.close();
+		index = new TileCacheIndex(aFile);
+		assertTrue(index.isNew());
+		assertNull(index.get(1));
+		index.close();
+	}
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTileCacheLayout
+{
+	private File aDirectory;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		aDirectory = Files.createTempDirectory("cache").toFile();
+	}
+	
+	@After
+	public void tearDown()
+	{
+		delete(aDirectory);
+	}
+	
+	private static void delete(File pFile)
+	{
+		if(pFile.isDirectory())
+		{
+			for(File file : pFile.listFiles())
+			{
+				delete(file);
+			}
+		}
+		pFile.delete();
+	}
+	
+	private void write(File pFile, String pContent) throws IOException
+	{
+		pFile.getParentFile().mkdirs();
+		Files.write(pFile.toPath(), pContent.getBytes("UTF-8"));
+	}
+	
+	private String read(File pFile) throws IOException
+	{
+		return new String(Files.readAllBytes(pFile.toPath()), "UTF-8");
+	}
+	
+	@Test
+	public void testGetFile()
+	{
+		File file = TileCacheLayout.getFile(aDirectory, 12, 2047, 1361, ".png");
+		assertEquals("1361.png", file.getName());
+		assertEquals("2047", file.getParentFile().getName());
+		assertEquals("12", file.getParentFile().getParentFile().getName());
+		assertEquals(aDirectory, file.getParentFile().getParentFile().getParentFile());
+	}
+	
+	@Test
+	public void testMigrate() throws IOException
+	{
+		write(new File(aDirectory, "12_2047_1361.png"), "tile");
+		write(new File(aDirectory, "12_2047_1361.tags"), "etag=1");
+		write(new File(aDirectory, "3_1_2.png"), "old");
+		write(TileCacheLayout.getFile(aDirectory, 3, 1, 2, ".png"), "new");
+		write(new File(aDirectory, "tiles.idx"), "index");
+		
+		assertEquals(2, TileCacheLayout.migrate(aDirectory));
+		assertEquals("tile", read(TileCacheLayout.getFile(aDirectory, 12, 2047, 1361, ".png")));
+		assertEquals("etag=1", read(TileCacheLayout.getFile(aDirectory, 12, 2047, 1361, ".tags")));
+		assertEquals("new", read(TileCacheLayout.getFile(aDirectory, 3, 1, 2, ".png")));
+		assertFalse(new File(aDirectory, "12_2047_1361.png").exists());
+		assertFalse(new File(aDirectory, "3_1_2.png").exists());
+		assertTrue(new File(aDirectory, "tiles.idx").exists());
+		assertEquals(0, TileCacheLayout.migrate(aDirectory));
+	}
+	
+	@Test
+	public void testVisitFiles() throws IOException
+	{
+		write(TileCacheLayout.getFile(aDirectory, 12, 2047, 1361, ".png"), "a");
+		write(TileCacheLayout.getFile(aDirectory, 12, 2047, 1361, ".tags"), "b");
+		write(TileCacheLayout.getFile(aDirectory, 3, 1, 2, ".png"), "c");
+		write(new File(aDirectory, "tiles.idx"), "index");
+		final List<String> visited = new ArrayList<String>();
+		TileCacheLayout.visitFiles(aDirectory, new TileCacheLayout.TileFileVisitor()
+		{
+			@Override
+			public void visit(File pFile, int pZoom, int pX, int pY, String pExtension)
+			{
+				visited.add(pZoom + "/" + pX + "/" + pY + pExtension);
+			}
+		});
+		Collections.sort(visited);
+		assertEquals("[12/2047/1361.png, 12/2047/1361.tags, 3/1/2.png]", visited.toString());
+	}
+}
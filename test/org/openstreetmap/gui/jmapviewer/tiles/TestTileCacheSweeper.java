@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTileCacheSweeper
+{
+	private static final long DAY = 1000L * 60 * 60 * 24;
+	private static final long NOW = System.currentTimeMillis();
+	
+	private File aDirectory;
+	private TileCacheStatistics aStatistics = new TileCacheStatistics();
+	private TileCacheSweeper aSweeper = new TileCacheSweeper(aStatistics, 7 * DAY);
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		aDirectory = Files.createTempDirectory("cache").toFile();
+	}
+	
+	@After
+	public void tearDown()
+	{
+		delete(aDirectory);
+	}
+	
+	private static void delete(File pFile)
+	{
+		if(pFile.isDirectory())
+		{
+			for(File file : pFile.listFiles())
+			{
+				delete(file);
+			}
+		}
+		pFile.delete();
+	}
+	
+	private TileCacheIndex createSource(String pName) throws IOException
+	{
+		File directory = new File(aDirectory, pName);
+		directory.mkdir();
+		TileCacheIndex index = new TileCacheIndex(new File(directory, "tiles.idx"));
+		aSweeper.addDirectory(directory, index, "png");
+		return index;
+	}
+	
+	/*
+	 * Adds a tile of 1000 bytes at zoom 10 loaded pAge days ago and read pAccess days ago.
+	 */
+	private void addTile(TileCacheIndex pIndex, String pSource, int pX, int pAge, int pAccess) throws IOException
+	{
+		File file = TileCacheLayout.getFile(new File(aDirectory, pSource), 10, pX, 0, ".png");
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), new byte[1000]);
+		long key = TileKey.pack(0, pX, 0, 10);
+		pIndex.put(key, NOW - pAge * DAY, 1000, "");
+		pIndex.setAccessTime(key, NOW - pAccess * DAY);
+	}
+	
+	private boolean exists(String pSource, int pX)
+	{
+		return TileCacheLayout.getFile(new File(aDirectory, pSource), 10, pX, 0, ".png").exists();
+	}
+	
+	@Test
+	public void testSourceQuota() throws IOException
+	{
+		TileCacheIndex index = createSource("a");
+		addTile(index, "a", 0, 1, 1);
+		addTile(index, "a", 1, 10, 0);
+		addTile(index, "a", 2, 2, 2);
+		addTile(index, "a", 3, 1, 0);
+		assertEquals(0, aSweeper.sweep());
+		
+		aSweeper.setQuotas(3000, 100000);
+		assertEquals(2000, aSweeper.sweep());
+		// The expired tile goes first, then the least recently read one
+		assertFalse(exists("a", 1));
+		assertFalse(exists("a", 2));
+		assertTrue(exists("a", 0));
+		assertTrue(exists("a", 3));
+		assertEquals(2, index.size());
+		assertNull(index.get(TileKey.pack(0, 1, 0, 10)));
+		assertEquals(2000, aStatistics.getEvictedBytes());
+	}
+	
+	@Test
+	public void testGlobalQuota() throws IOException
+	{
+		TileCacheIndex indexA = createSource("a");
+		TileCacheIndex indexB = createSource("b");
+		addTile(indexA, "a", 0, 1, 3);
+		addTile(indexA, "a", 1, 1, 1);
+		addTile(indexB, "b", 0, 1, 2);
+		addTile(indexB, "b", 1, 1, 0);
+		aSweeper.setQuotas(100000, 3000);
+		assertEquals(2000, aSweeper.sweep());
+		assertFalse(exists("a", 0));
+		assertFalse(exists("b", 0));
+		assertTrue(exists("a", 1));
+		assertTrue(exists("b", 1));
+	}
+	
+	@Test
+	public void testSharedFilesCountedOnce() throws IOException
+	{
+		TileCacheIndex index = createSource("a");
+		addTile(index, "a", 0, 1, 3);
+		addTile(index, "a", 1, 1, 2);
+		File file = TileCacheLayout.getFile(new File(aDirectory, "a"), 10, 2, 0, ".png");
+		file.getParentFile().mkdirs();
+		Files.createLink(file.toPath(), TileCacheLayout.getFile(new File(aDirectory, "a"), 10, 0, 0, ".png").toPath());
+		index.put(TileKey.pack(0, 2, 0, 10), NOW - DAY, 1000, "");
+		index.markShared(TileKey.pack(0, 0, 0, 10));
+		index.markShared(TileKey.pack(0, 2, 0, 10));
+		assertTrue(index.get(TileKey.pack(0, 2, 0, 10)).isShared());
+		assertFalse(index.get(TileKey.pack(0, 1, 0, 10)).isShared());
+		
+		aSweeper.setQuotas(2500, 100000);
+		assertEquals(0, aSweeper.sweep());
+		
+		// Deleting the first link frees nothing, so the next tile goes too
+		aSweeper.setQuotas(1500, 100000);
+		assertEquals(1000, aSweeper.sweep());
+		assertFalse(exists("a", 0));
+		assertFalse(exists("a", 1));
+		assertTrue(exists("a", 2));
+		assertEquals(1000, aStatistics.getEvictedBytes());
+	}
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.tiles.TileCircuitBreaker.State;
+import org.openstreetmap.gui.jmapviewer.tilesources.MapnikOsmTileSource;
+
+import static org.junit.Assert.*;
+
+public class TestTileCircuitBreaker
+{
+	private static final String SOURCE = "Test";
+	
+	@Test
+	public void testTrip()
+	{
+		TileCircuitBreaker breaker = new TileCircuitBreaker(3, 1000);
+		for(int i = 0; i < 2; i++)
+		{
+			assertTrue(breaker.allowRequest(SOURCE, 0));
+			breaker.record(SOURCE, new SocketTimeoutException(), 0);
+		}
+		// Missing tiles are not failures
+		breaker.record(SOURCE, new FileNotFoundException(), 0);
+		assertEquals(State.CLOSED, breaker.getState(SOURCE));
+		for(int i = 0; i < 3; i++)
+		{
+			assertTrue(breaker.allowRequest(SOURCE, 0));
+			breaker.record(SOURCE, new IOException(), 0);
+		}
+		assertEquals(State.OPEN, breaker.getState(SOURCE));
+		assertFalse(breaker.allowRequest(SOURCE, 500));
+		assertTrue(breaker.allowRequest("Other", 500));
+	}
+	
+	@Test
+	public void testProbe()
+	{
+		TileCircuitBreaker breaker = new TileCircuitBreaker(1, 1000);
+		breaker.record(SOURCE, new IOException(), 0);
+		assertEquals(State.OPEN, breaker.getState(SOURCE));
+		assertEquals(600, breaker.getWaitTime(SOURCE, 400));
+		assertEquals(0, breaker.getWaitTime(SOURCE, 1500));
+		
+		// A single probe once the circuit has been open long enough
+		assertTrue(breaker.allowRequest(SOURCE, 1000));
+		assertEquals(State.HALF_OPEN, breaker.getState(SOURCE));
+		assertEquals(1000, breaker.getWaitTime(SOURCE, 1000));
+		assertFalse(breaker.allowRequest(SOURCE, 1000));
+		breaker.record(SOURCE, new IOException(), 1200);
+		assertEquals(State.OPEN, breaker.getState(SOURCE));
+		assertFalse(breaker.allowRequest(SOURCE, 2000));
+		
+		assertTrue(breaker.allowRequest(SOURCE, 2200));
+		breaker.record(SOURCE, null, 2300);
+		assertEquals(State.CLOSED, breaker.getState(SOURCE));
+		assertEquals(0, breaker.getWaitTime(SOURCE, 2300));
+		assertTrue(breaker.allowRequest(SOURCE, 2300));
+	}
+	
+	@Test
+	public void testAbortedProbe()
+	{
+		TileCircuitBreaker breaker = new TileCircuitBreaker(1, 1000);
+		breaker.record(SOURCE, new IOException(), 0);
+		assertTrue(breaker.allowRequest(SOURCE, 1000));
+		breaker.record(SOURCE, new CancellationException(), 1100);
+		// The circuit stays open but may be probed again
+		assertEquals(State.OPEN, breaker.getState(SOURCE));
+		assertTrue(breaker.allowRequest(SOURCE, 1100));
+	}
+	
+	@Test
+	public void testProbeThatFailsToStart()
+	{
+		TileCircuitBreaker breaker = new TileCircuitBreaker(1, 0);
+		OsmTileLoader loader = new OsmTileLoader(new TileLoaderListener()
+		{
+			@Override
+			public void tileLoadingFinished(Tile pTile, boolean pSuccess)
+			{}
+		});
+		loader.setCircuitBreaker(breaker);
+		Tile tile = new Tile(new MapnikOsmTileSource(), 0, 0, 0);
+		String source = tile.getSource().getName();
+		breaker.record(source, new IOException());
+		Supplier<CompletionStage<TileFetchRegistry.Fetch>> fetch = loader.guard(tile, new Supplier<CompletionStage<TileFetchRegistry.Fetch>>()
+		{
+			@Override
+			public CompletionStage<TileFetchRegistry.Fetch> get()
+			{
+				throw new IllegalStateException();
+			}
+		});
+		try
+		{
+			fetch.get();
+			fail();
+		}
+		catch(IllegalStateException e)
+		{
+			// Expected
+		}
+		// The probe is over without closing the circuit
+		assertEquals(State.OPEN, breaker.getState(source));
+		assertTrue(breaker.allowRequest(source));
+	}
+}
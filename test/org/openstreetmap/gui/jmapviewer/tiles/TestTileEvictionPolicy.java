@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.tilesources.MapnikOsmTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays synthetic pan and zoom traces through caches using different
+ * eviction policies and compares their hit rates. In the traces, the operator
+ * keeps coming back to a home region between sweeps over areas that are seen
+ * only once.
+ */
+public class TestTileEvictionPolicy
+{
+	private static final int VIEW_WIDTH = 6;
+	private static final int VIEW_HEIGHT = 4;
+	private static final int HOME_ZOOM = 12;
+	private static final int HOME_X = 2000;
+	private static final int HOME_Y = 1400;
+	private static final int CAPACITY_IN_TILES = 150;
+	
+	private final TileSource aSource = new MapnikOsmTileSource();
+	
+	// Each tile has an image of its own, since a shared image is charged once
+	private static BufferedImage createImage()
+	{
+		return new BufferedImage(16, 16, BufferedImage.TYPE_BYTE_GRAY);
+	}
+	
+	private static void view(List<int[]> pTrace, int pX, int pY, int pZoom)
+	{
+		// As in the map, there are no tiles past the edges of the world
+		int max = 1 << pZoom;
+		for(int x = pX; x < pX + VIEW_WIDTH && x < max; x++)
+		{
+			for(int y = pY; y < pY + VIEW_HEIGHT && y < max; y++)
+			{
+				pTrace.add(new int[] {x, y, pZoom});
+			}
+		}
+	}
+	
+	private static List<int[]> createTrace(long pSeed)
+	{
+		Random random = new Random(pSeed);
+		List<int[]> trace = new ArrayList<int[]>();
+		for(int session = 0; session < 50; session++)
+		{
+			// Look around the home region for a while
+			for(int i = 0; i < 3; i++)
+			{
+				view(trace, HOME_X, HOME_Y, HOME_ZOOM);
+			}
+			// Fast pan over a new area
+			int x = random.nextInt(1 << HOME_ZOOM);
+			int y = random.nextInt(1 << HOME_ZOOM);
+			for(int step = 0; step < 40; step++)
+			{
+				view(trace, x + 2 * step, y, HOME_ZOOM);
+			}
+			// Zoom sweep on another area
+			x = random.nextInt(1 << HOME_ZOOM);
+			y = random.nextInt(1 << HOME_ZOOM);
+			for(int zoom = HOME_ZOOM; zoom <= HOME_ZOOM + 4; zoom++)
+			{
+				int factor = 1 << (zoom - HOME_ZOOM);
+				view(trace, x * factor, y * factor, zoom);
+			}
+		}
+		return trace;
+	}
+	
+	private ConcurrentTileCache createCache(TileEvictionPolicy pPolicy)
+	{
+		Tile sample = new Tile(aSource, 0, 0, 0, createImage());
+		sample.setLoaded(true);
+		ConcurrentTileCache probe = new ConcurrentTileCache();
+		probe.addTile(sample);
+		return new ConcurrentTileCache(CAPACITY_IN_TILES * probe.getResidentBytes(), pPolicy);
+	}
+	
+	private double replay(List<int[]> pTrace, ConcurrentTileCache pCache)
+	{
+		int hits = 0;
+		for(int[] request : pTrace)
+		{
+			if(pCache.getTile(aSource, request[0], request[1], request[2]) != null)
+			{
+				hits++;
+			}
+			else
+			{
+				Tile tile = new Tile(aSource, request[0], request[1], request[2], createImage());
+				tile.setLoaded(true);
+				pCache.addTile(tile);
+			}
+			assertTrue(pCache.getTileCount() <= CAPACITY_IN_TILES);
+		}
+		return (double) hits / pTrace.size();
+	}
+	
+	@Test
+	public void testTinyLfuBeatsLruOnPanAndZoomTraces()
+	{
+		for(long seed = 1; seed <= 3; seed++)
+		{
+			List<int[]> trace = createTrace(seed);
+			double lru = replay(trace, createCache(new LruEvictionPolicy()));
+			double tinyLfu = replay(trace, createCache(new TinyLfuEvictionPolicy()));
+			assertTrue("LRU: " + lru + ", TinyLFU: " + tinyLfu, tinyLfu > lru + 0.01);
+		}
+	}
+	
+	@Test
+	public void testTinyLfuKeepsHomeRegion()
+	{
+		List<int[]> trace = createTrace(42);
+		ConcurrentTileCache lru = createCache(new LruEvictionPolicy());
+		ConcurrentTileCache tinyLfu = createCache(new TinyLfuEvictionPolicy());
+		replay(trace, lru);
+		replay(trace, tinyLfu);
+		assertNull(lru.getTile(aSource, HOME_X, HOME_Y, HOME_ZOOM));
+		for(int x = HOME_X; x < HOME_X + VIEW_WIDTH; x++)
+		{
+			for(int y = HOME_Y; y < HOME_Y + VIEW_HEIGHT; y++)
+			{
+				assertNotNull(tinyLfu.getTile(aSource, x, y, HOME_ZOOM));
+			}
+		}
+	}
+	
+	@Test
+	public void testSmallWindowStillRespectsBudget()
+	{
+		ConcurrentTileCache cache = createCache(new TinyLfuEvictionPolicy(0));
+		replay(createTrace(7), cache);
+		assertTrue(cache.getResidentBytes() <= cache.getMaximumBytes());
+	}
+	
+	@Test
+	public void testPyramidKeepsParentsOfVisibleTiles()
+	{
+		List<int[]> trace = new ArrayList<int[]>();
+		for(int zoom = HOME_ZOOM; zoom <= HOME_ZOOM + 4; zoom++)
+		{
+			int factor = 1 << (zoom - HOME_ZOOM);
+			view(trace, HOME_X * factor, HOME_Y * factor, zoom);
+		}
+		// Sweep the deepest zoom level under a single home tile
+		int factor = 1 << 4;
+		for(int y = 0; y + VIEW_HEIGHT <= factor; y += VIEW_HEIGHT)
+		{
+			for(int x = 0; x + VIEW_WIDTH <= factor; x++)
+			{
+				view(trace, HOME_X * factor + x, HOME_Y * factor + y, HOME_ZOOM + 4);
+			}
+		}
+		ConcurrentTileCache lru = createCache(new LruEvictionPolicy());
+		ConcurrentTileCache pyramid = createCache(new PyramidEvictionPolicy(new LruEvictionPolicy()));
+		replay(trace, lru);
+		replay(trace, pyramid);
+		assertNull(lru.getTile(aSource, HOME_X, HOME_Y, HOME_ZOOM));
+		assertNotNull(pyramid.getTile(aSource, HOME_X, HOME_Y, HOME_ZOOM));
+		assertNotNull(pyramid.getTile(aSource, HOME_X * 2, HOME_Y * 2, HOME_ZOOM + 1));
+		
+		ConcurrentTileCache cache = createCache(new PyramidEvictionPolicy(new TinyLfuEvictionPolicy()));
+		replay(createTrace(7), cache);
+		assertTrue(cache.getResidentBytes() <= cache.getMaximumBytes());
+	}
+}
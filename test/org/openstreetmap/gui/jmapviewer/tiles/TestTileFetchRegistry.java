@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTileFetchRegistry
+{
+	private static final String URL = "http://localhost/1/0/0.png";
+	
+	private AtomicInteger aStarted = new AtomicInteger();
+	
+	private Supplier<CompletionStage<TileFetchRegistry.Fetch>> start(final CompletableFuture<TileFetchRegistry.Fetch> pResult)
+	{
+		return new Supplier<CompletionStage<TileFetchRegistry.Fetch>>()
+		{
+			@Override
+			public CompletionStage<TileFetchRegistry.Fetch> get()
+			{
+				aStarted.incrementAndGet();
+				return pResult;
+			}
+		};
+	}
+	
+	@Test
+	public void testCoalescing() throws Exception
+	{
+		TileFetchRegistry registry = new TileFetchRegistry();
+		CompletableFuture<TileFetchRegistry.Fetch> result = new CompletableFuture<TileFetchRegistry.Fetch>();
+		CompletableFuture<TileFetchRegistry.Fetch> first = registry.fetch(URL, start(result));
+		CompletableFuture<TileFetchRegistry.Fetch> second = registry.fetch(URL, start(result));
+		CompletableFuture<TileFetchRegistry.Fetch> third = new CompletableFuture<TileFetchRegistry.Fetch>();
+		assertTrue(registry.attach(URL, third));
+		assertFalse(registry.attach("http://localhost/1/1/0.png", new CompletableFuture<TileFetchRegistry.Fetch>()));
+		assertEquals(1, aStarted.get());
+		assertEquals(1, registry.getInFlightCount());
+		assertEquals(2, registry.getCoalescedCount());
+		
+		// A requester that gives up does not affect the others
+		third.cancel(false);
+		assertFalse(first.isDone());
+		
+		TileFetchRegistry.Fetch fetch = new TileFetchRegistry.Fetch(new byte[] {1, 2}, Collections.singletonMap("etag", "a"));
+		result.complete(fetch);
+		assertSame(fetch, first.get());
+		assertSame(fetch, second.get());
+		assertEquals("a", second.get().getMetadata().get("etag"));
+		assertEquals(0, registry.getInFlightCount());
+		
+		// The next request fetches the tile again
+		registry.fetch(URL, start(new CompletableFuture<TileFetchRegistry.Fetch>()));
+		assertEquals(2, aStarted.get());
+	}
+	
+	@Test
+	public void testAbort() throws Exception
+	{
+		TileFetchRegistry registry = new TileFetchRegistry();
+		CompletableFuture<TileFetchRegistry.Fetch> result = new CompletableFuture<TileFetchRegistry.Fetch>();
+		final AtomicInteger aborted = new AtomicInteger();
+		Runnable abort = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				aborted.incrementAndGet();
+			}
+		};
+		CompletableFuture<TileFetchRegistry.Fetch> first = new CompletableFuture<TileFetchRegistry.Fetch>();
+		CompletableFuture<TileFetchRegistry.Fetch> second = new CompletableFuture<TileFetchRegistry.Fetch>();
+		registry.fetch(URL, first, start(result), abort);
+		registry.fetch(URL, second, start(result), abort);
+		
+		// The fetch goes on as long as one requester needs it
+		first.cancel(false);
+		assertEquals(0, aborted.get());
+		assertFalse(result.isDone());
+		assertEquals(1, registry.getInFlightCount());
+		
+		second.cancel(false);
+		assertEquals(1, aborted.get());
+		assertTrue(result.isCancelled());
+		assertEquals(0, registry.getInFlightCount());
+		
+		// The next request fetches the tile again
+		CompletableFuture<TileFetchRegistry.Fetch> third = registry.fetch(URL, start(new CompletableFuture<TileFetchRegistry.Fetch>()));
+		assertEquals(2, aStarted.get());
+		assertFalse(third.isDone());
+	}
+	
+	@Test
+	public void testFailure() throws Exception
+	{
+		TileFetchRegistry registry = new TileFetchRegistry();
+		CompletableFuture<TileFetchRegistry.Fetch> result = new CompletableFuture<TileFetchRegistry.Fetch>();
+		CompletableFuture<TileFetchRegistry.Fetch> first = registry.fetch(URL, start(result));
+		CompletableFuture<TileFetchRegistry.Fetch> second = registry.fetch(URL, start(result));
+		result.completeExceptionally(new IOException("down"));
+		for(CompletableFuture<TileFetchRegistry.Fetch> future : Arrays.asList(first, second))
+		{
+			try
+			{
+				future.get();
+				fail();
+			}
+			catch(ExecutionException e)
+			{
+				assertTrue(TileFetchRegistry.unwrap(e.getCause()) instanceof IOException);
+			}
+		}
+		assertEquals(0, registry.getInFlightCount());
+	}
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.awt.Rectangle;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.tilesources.MapnikOsmTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+
+import static org.junit.Assert.*;
+
+public class TestTileJobQueue
+{
+	private final TileSource aSource = new MapnikOsmTileSource();
+	
+	private TileJob job(int pX, int pY, int pZoom)
+	{
+		final Tile tile = new Tile(aSource, pX, pY, pZoom);
+		return new TileJob()
+		{
+			@Override
+			public void run()
+			{
+			}
+			
+			@Override
+			public Tile getTile()
+			{
+				return tile;
+			}
+		};
+	}
+	
+	private TileJob next(TileJobQueue pQueue)
+	{
+		TileJobQueue.Entry entry = pQueue.take();
+		return entry == null ? null : entry.getJob();
+	}
+	
+	@Test
+	public void testOrder()
+	{
+		TileJobQueue queue = new TileJobQueue();
+		queue.setViewport(5, new Rectangle(10, 10, 4, 3), 12.5, 11.5);
+		TileJob far = job(10, 10, 5);
+		TileJob prefetch = job(14, 11, 5);
+		TileJob zoomedOut = job(6, 5, 4);
+		TileJob revalidation = job(12, 11, 5);
+		TileJob focus = job(12, 11, 5);
+		TileJob near = job(13, 11, 5);
+		queue.add(far, false);
+		queue.add(prefetch, false);
+		queue.add(zoomedOut, false);
+		queue.add(revalidation, true);
+		queue.add(focus, false);
+		queue.add(near, false);
+		assertEquals(6, queue.size());
+		
+		assertSame(focus, next(queue));
+		assertSame(near, next(queue));
+		assertSame(far, next(queue));
+		assertSame(prefetch, next(queue));
+		assertSame(zoomedOut, next(queue));
+		// The tier of a job taken is kept, to queue it again in the same tier
+		TileJobQueue.Entry entry = queue.take();
+		assertSame(revalidation, entry.getJob());
+		assertTrue(entry.isRevalidation());
+		assertNull(next(queue));
+	}
+	
+	@Test
+	public void testReorder()
+	{
+		TileJobQueue queue = new TileJobQueue();
+		queue.setViewport(3, new Rectangle(0, 0, 8, 8), 0.5, 0.5);
+		TileJob left = job(0, 0, 3);
+		TileJob right = job(7, 0, 3);
+		queue.add(left, false);
+		queue.add(right, false);
+		
+		// The map moved to the right
+		queue.setViewport(3, new Rectangle(0, 0, 8, 8), 7.5, 0.5);
+		assertSame(right, next(queue));
+		assertSame(left, next(queue));
+	}
+	
+	@Test
+	public void testDuplicatesAndRemoval()
+	{
+		TileJobQueue queue = new TileJobQueue();
+		TileJob first = job(1, 1, 2);
+		TileJob second = job(2, 1, 2);
+		TileJob retry = new TileJob()
+		{
+			@Override
+			public void run()
+			{
+			}
+			
+			@Override
+			public Tile getTile()
+			{
+				return null;
+			}
+		};
+		assertTrue(queue.add(first, false));
+		assertFalse(queue.add(new TileJobWrapper(first), false));
+		assertTrue(queue.add(second, false));
+		assertTrue(queue.add(retry, false));
+		
+		assertTrue(queue.remove(first));
+		assertFalse(queue.remove(first));
+		assertEquals(2, queue.size());
+		
+		// Jobs without a tile come first, and a removed tile can be queued again
+		assertTrue(queue.add(first, false));
+		assertSame(retry, next(queue));
+		assertSame(second, next(queue));
+		assertSame(first, next(queue));
+		assertEquals(0, queue.size());
+	}
+	
+	private static final class TileJobWrapper implements TileJob
+	{
+		private final TileJob aJob;
+		
+		TileJobWrapper(TileJob pJob)
+		{
+			aJob = pJob;
+		}
+		
+		@Override
+		public void run()
+		{
+			aJob.run();
+		}
+		
+		@Override
+		public Tile getTile()
+		{
+			return aJob.getTile();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.tilesources.CycleOsmTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.MapnikOsmTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+
+import static org.junit.Assert.*;
+
+public class TestTileKey
+{
+	private final TileSource aMapnik = new MapnikOsmTileSource();
+	private final TileSource aCycle = new CycleOsmTileSource();
+	
+	@Test
+	public void testRoundTrip()
+	{
+		int max = (1 << 22) - 1;
+		long key = TileKey.pack(aMapnik, max, 0, 22);
+		assertEquals(max, TileKey.getXtile(key));
+		assertEquals(0, TileKey.getYtile(key));
+		assertEquals(22, TileKey.getZoom(key));
+		assertEquals(TileKey.getSourceId(aMapnik), TileKey.getSourceId(key));
+		
+		key = TileKey.pack(aCycle, 1234, max, 22);
+		assertEquals(1234, TileKey.getXtile(key));
+		assertEquals(max, TileKey.getYtile(key));
+		assertEquals(22, TileKey.getZoom(key));
+		assertEquals(TileKey.getSourceId(aCycle), TileKey.getSourceId(key));
+		
+		key = TileKey.pack(aCycle, 0, 0, 0);
+		assertEquals(0, TileKey.getXtile(key));
+		assertEquals(0, TileKey.getZoom(key));
+	}
+	
+	@Test
+	public void testInvalidTiles()
+	{
+		int[][] invalid = {{-1, 0, 3}, {0, -1, 3}, {8, 0, 3}, {0, 8, 3}, {1, 0, 0}, {0, 0, -1}, {0, 0, 23}, {Integer.MIN_VALUE, 0, 22}};
+		for(int[] tile : invalid)
+		{
+			try
+			{
+				TileKey.pack(aMapnik, tile[0], tile[1], tile[2]);
+				fail("Accepted " + tile[2] + "/" + tile[0] + "/" + tile[1]);
+			}
+			catch(IllegalArgumentException e)
+			{
+			}
+		}
+		try
+		{
+			TileKey.pack(-1, 0, 0, 0);
+			fail();
+		}
+		catch(IllegalArgumentException e)
+		{
+		}
+	}
+	
+	@Test
+	public void testDistinctKeys()
+	{
+		assertNotEquals(TileKey.pack(aMapnik, 1, 2, 3), TileKey.pack(aCycle, 1, 2, 3));
+		assertNotEquals(TileKey.pack(aMapnik, 1, 2, 3), TileKey.pack(aMapnik, 2, 1, 3));
+		assertNotEquals(TileKey.pack(aMapnik, 1, 2, 3), TileKey.pack(aMapnik, 1, 2, 4));
+		assertEquals(TileKey.pack(aMapnik, 1, 2, 3), TileKey.pack(new MapnikOsmTileSource(), 1, 2, 3));
+		assertEquals(TileKey.pack(aMapnik, 5, 6, 7), new Tile(aMapnik, 5, 6, 7).getPackedKey());
+	}
+	
+	@Test
+	public void testMapPutGetRemove()
+	{
+		LongHashMap<String> map = new LongHashMap<String>();
+		assertNull(map.get(1));
+		assertNull(map.put(1, "a"));
+		assertEquals("a", map.put(1, "b"));
+		assertEquals("b", map.get(1));
+		assertEquals(1, map.size());
+		assertNull(map.remove(1, "a"));
+		assertEquals("b", map.remove(1));
+		assertNull(map.get(1));
+		assertEquals(0, map.size());
+	}
+	
+	@Test
+	public void testMapGrowsAndReusesRemovedSlots()
+	{
+		LongHashMap<Integer> map = new LongHashMap<Integer>();
+		for(int i = 0; i < 10000; i++)
+		{
+			map.put(TileKey.pack(aMapnik, i, i, 18), i);
+		}
+		assertEquals(10000, map.size());
+		for(int i = 0; i < 10000; i += 2)
+		{
+			assertEquals(Integer.valueOf(i), map.remove(TileKey.pack(aMapnik, i, i, 18)));
+		}
+		for(int i = 0; i < 10000; i++)
+		{
+			Integer expected = i % 2 == 0 ? null : Integer.valueOf(i);
+			assertEquals(expected, map.get(TileKey.pack(aMapnik, i, i, 18)));
+		}
+		// Churn through many keys, the removed slots must not fill the table
+		for(int i = 0; i < 100000; i++)
+		{
+			map.put(-i - 1, i);
+			map.remove(-i - 1);
+		}
+		assertEquals(5000, map.size());
+		assertEquals(5000, map.keys().length);
+	}
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTilePackStore
+{
+	private File aDirectory;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		aDirectory = Files.createTempDirectory("packs").toFile();
+	}
+	
+	@After
+	public void tearDown()
+	{
+		for(File file : aDirectory.listFiles())
+		{
+			file.delete();
+		}
+		aDirectory.delete();
+	}
+	
+	private static byte[] createData(int pLength, int pSeed)
+	{
+		byte[] data = new byte[pLength];
+		for(int i = 0; i < pLength; i++)
+		{
+			data[i] = (byte)(i * 31 + pSeed);
+		}
+		return data;
+	}
+	
+	@Test
+	public void testPutAndReopen() throws IOException
+	{
+		TilePackStore store = new TilePackStore(aDirectory);
+		assertNull(store.lookup(1));
+		store.put(1, createData(1000, 1), 42, "\"abc\"");
+		store.put(2, null, 43, null);
+		store.put(3, createData(500, 3), 44, null);
+		store.put(1, createData(2000, 4), 45, "\"def\"");
+		store.remove(3);
+		assertArrayEquals(createData(2000, 4), store.read(store.lookup(1)));
+		store.close();
+		
+		store = new TilePackStore(aDirectory);
+		assertEquals(2, store.getTileCount());
+		TilePackStore.Entry entry = store.lookup(1);
+		assertEquals(45, entry.getTime());
+		assertEquals("\"def\"", entry.getETag());
+		assertFalse(entry.isNoTile());
+		assertArrayEquals(createData(2000, 4), store.read(entry));
+		assertTrue(store.lookup(2).isNoTile());
+		assertNull(store.lookup(2).getETag());
+		assertNull(store.lookup(3));
+		store.close();
+	}
+	
+	@Test
+	public void testDamagedTailIsDiscarded() throws IOException
+	{
+		TilePackStore store = new TilePackStore(aDirectory);
+		store.put(1, createData(1000, 1), 1, null);
+		store.put(2, createData(1000, 2), 2, null);
+		store.close();
+		File pack = aDirectory.listFiles()[0];
+		RandomAccessFile file = new RandomAccessFile(pack, "rw");
+		file.setLength(file.length() - 10);
+		file.close();
+		
+		store = new TilePackStore(aDirectory);
+		assertEquals(1, store.getTileCount());
+		assertNull(store.lookup(2));
+		store.put(2, createData(1000, 5), 3, null);
+		store.close();
+		store = new TilePackStore(aDirectory);
+		assertArrayEquals(createData(1000, 5), store.read(store.lookup(2)));
+		store.close();
+	}
+	
+	@Test
+	public void testCompaction() throws IOException
+	{
+		TilePackStore store = new TilePackStore(aDirectory, 10000);
+		for(int round = 0; round < 5; round++)
+		{
+			for(int key = 0; key < 20; key++)
+			{
+				store.put(key, createData(1000, key + round), round, null);
+			}
+		}
+		store.remove(0);
+		assertTrue(aDirectory.listFiles().length > 5);
+		assertTrue(store.needsCompaction());
+		long live = store.getLiveBytes();
+		
+		store.compact();
+		assertFalse(store.needsCompaction());
+		assertEquals(live, store.getLiveBytes());
+		assertEquals(live, store.getTotalBytes());
+		assertEquals(19, store.getTileCount());
+		store.close();
+		
+		store = new TilePackStore(aDirectory, 10000);
+		assertEquals(19, store.getTileCount());
+		assertNull(store.lookup(0));
+		for(int key = 1; key < 20; key++)
+		{
+			assertArrayEquals(createData(1000, key + 4), store.read(store.lookup(key)));
+		}
+		store.close();
+	}
+}
@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.tilesources.AbstractOsmTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource.TileUpdate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.*;
+
+public class TestTilePipeline
+{
+	private static void delete(File pFile)
+	{
+		if(pFile.isDirectory())
+		{
+			for(File file : pFile.listFiles())
+			{
+				delete(file);
+			}
+		}
+		pFile.delete();
+	}
+	
+	@Test
+	public void testBoundedStage() throws InterruptedException
+	{
+		final TilePipeline pipeline = new TilePipeline(1, 1, 1, 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		Runnable blocking = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				started.countDown();
+				try
+				{
+					release.await();
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+		};
+		pipeline.getExecutor(TilePipeline.Stage.NETWORK).execute(blocking);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertEquals(1, pipeline.getActiveCount(TilePipeline.Stage.NETWORK));
+		
+		final Thread[] runner = new Thread[2];
+		final CountDownLatch ran = new CountDownLatch(1);
+		final CountDownLatch retried = new CountDownLatch(1);
+		Runnable refused = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				fail();
+			}
+		};
+		Runnable retry = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				runner[1] = Thread.currentThread();
+				retried.countDown();
+			}
+		};
+		assertTrue(pipeline.offer(TilePipeline.Stage.NETWORK, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				runner[0] = Thread.currentThread();
+				ran.countDown();
+			}
+		}, refused));
+		assertEquals(1, pipeline.getQueueDepth(TilePipeline.Stage.NETWORK));
+		
+		// A full stage refuses a task without making the submitting thread wait
+		assertFalse(pipeline.offer(TilePipeline.Stage.NETWORK, refused, retry));
+		assertEquals(1, pipeline.getQueueDepth(TilePipeline.Stage.NETWORK));
+		assertFalse(retried.await(100, TimeUnit.MILLISECONDS));
+		
+		// The other stages are not affected
+		final CountDownLatch decoded = new CountDownLatch(1);
+		final boolean[] stage = new boolean[2];
+		pipeline.getExecutor(TilePipeline.Stage.DECODE).execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				stage[0] = pipeline.isRunningIn(TilePipeline.Stage.DECODE);
+				stage[1] = pipeline.isRunningIn(TilePipeline.Stage.NETWORK);
+				decoded.countDown();
+			}
+		});
+		assertTrue(decoded.await(10, TimeUnit.SECONDS));
+		assertTrue(stage[0]);
+		assertFalse(stage[1]);
+		assertFalse(pipeline.isRunningIn(TilePipeline.Stage.DECODE));
+		
+		// The refused task is called back once the stage has room
+		release.countDown();
+		assertTrue(ran.await(10, TimeUnit.SECONDS));
+		assertTrue(retried.await(10, TimeUnit.SECONDS));
+		assertTrue(runner[0].getName().startsWith("Tile downloader"));
+		assertTrue(runner[1].getName().startsWith("Tile downloader"));
+		assertEquals(0, pipeline.getQueueDepth(TilePipeline.Stage.NETWORK));
+		
+		pipeline.setThreadCount(TilePipeline.Stage.DISK, 4);
+		assertEquals(4, pipeline.getThreadCount(TilePipeline.Stage.DISK));
+	}
+	
+	@Test
+	public void testDiskHitsDuringSlowDownload() throws Exception
+	{
+		File directory = Files.createTempDirectory("pipeline").toFile();
+		ByteArrayOutputStream image = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB), "png", image);
+		final byte[] data = image.toByteArray();
+		final CountDownLatch stall = new CountDownLatch(1);
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange pExchange) throws IOException
+			{
+				if(pExchange.getRequestURI().getPath().startsWith("/2/"))
+				{
+					try
+					{
+						stall.await();
+					}
+					catch(InterruptedException e)
+					{
+					}
+				}
+				pExchange.sendResponseHeaders(200, data.length);
+				OutputStream out = pExchange.getResponseBody();
+				out.write(data);
+				out.close();
+			}
+		});
+		server.start();
+		JobDispatcher.Client client = null;
+		try
+		{
+			TileSource source = new AbstractOsmTileSource("Pipeline", "http://localhost:" + server.getAddress().getPort())
+			{
+				@Override
+				public TileUpdate getTileUpdate()
+				{
+					return TileUpdate.None;
+				}
+			};
+			final LinkedBlockingQueue<Tile> finished = new LinkedBlockingQueue<Tile>();
+			final List<String> downloaders = Collections.synchronizedList(new ArrayList<String>());
+			OsmFileCacheTileLoader loader = new OsmFileCacheTileLoader(new TileLoaderListener()
+			{
+				@Override
+				public void tileLoadingFinished(Tile pTile, boolean pSuccess)
+				{
+					finished.add(pTile);
+				}
+			}, directory)
+			{
+				@Override
+				protected URLConnection loadTileFromOsm(Tile pTile) throws IOException
+				{
+					downloaders.add(Thread.currentThread().getName());
+					return super.loadTileFromOsm(pTile);
+				}
+			};
+			loader.setFetchRegistry(null);
+			Tile first = new Tile(source, 0, 0, 1);
+			loader.createTileLoaderJob(first).run();
+			assertSame(first, finished.poll(10, TimeUnit.SECONDS));
+			// The tile is written once the listener is notified
+			while(first.isLoading())
+			{
+				Thread.sleep(10);
+			}
+			loader.getWriteQueue().flush();
+			
+			// More tiles to download than the threads of the dispatcher and of the network stage
+			TilePipeline pipeline = loader.getPipeline();
+			pipeline.setThreadCount(TilePipeline.Stage.NETWORK, 2);
+			pipeline.setCapacity(TilePipeline.Stage.NETWORK, 1);
+			client = JobDispatcher.getInstance().createClient();
+			List<Tile> slow = new ArrayList<Tile>();
+			for(int x = 0; x < 4; x++)
+			{
+				for(int y = 0; y < 3; y++)
+				{
+					Tile tile = new Tile(source, x, y, 2);
+					slow.add(tile);
+					client.addJob(loader.createTileLoaderJob(tile));
+				}
+			}
+			for(int i = 0; i < 1000 && pipeline.getQueueDepth(TilePipeline.Stage.NETWORK) == 0; i++)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals(2, pipeline.getActiveCount(TilePipeline.Stage.NETWORK));
+			assertEquals(1, pipeline.getQueueDepth(TilePipeline.Stage.NETWORK));
+			
+			Tile cached = new Tile(source, 0, 0, 1);
+			client.addJob(loader.createTileLoaderJob(cached));
+			assertSame(cached, finished.poll(10, TimeUnit.SECONDS));
+			assertTrue(cached.isLoaded());
+			assertFalse(cached.isLoading());
+			for(Tile tile : slow)
+			{
+				assertTrue(tile.isLoading());
+			}
+			
+			// The jobs refused by the network stage are queued again once it has room
+			stall.countDown();
+			for(int i = 0; i < slow.size(); i++)
+			{
+				assertNotNull(finished.poll(10, TimeUnit.SECONDS));
+			}
+			for(Tile tile : slow)
+			{
+				assertTrue(tile.isLoaded());
+				while(tile.isLoading())
+				{
+					Thread.sleep(10);
+				}
+			}
+			loader.getWriteQueue().flush();
+			
+			// The tiles missing from the disk are downloaded in the network stage only
+			assertEquals(1 + slow.size(), downloaders.size());
+			for(String downloader : new ArrayList<String>(downloaders))
+			{
+				assertTrue(downloader, downloader.startsWith("Tile downloader"));
+			}
+		}
+		finally
+		{
+			stall.countDown();
+			if(client != null)
+			{
+				client.cancelOutstandingJobs();
+			}
+			server.stop(0);
+			delete(directory);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTileRequestLimiter
+{
+	@Test
+	public void testMaxInFlight() throws Exception
+	{
+		TileRequestLimiter limiter = new TileRequestLimiter(2, 0);
+		CompletableFuture<Void> first = limiter.acquire("a");
+		CompletableFuture<Void> second = limiter.acquire("a");
+		CompletableFuture<Void> third = limiter.acquire("a");
+		CompletableFuture<Void> other = limiter.acquire("b");
+		assertTrue(first.isDone());
+		assertTrue(second.isDone());
+		assertFalse(third.isDone());
+		assertTrue(other.isDone());
+		assertEquals(1, limiter.getWaitingCount("a"));
+		assertEquals(2, limiter.getInFlightCount("a"));
+		
+		limiter.release("a");
+		assertTrue(third.isDone());
+		
+		// A cancelled request gives up its place
+		CompletableFuture<Void> cancelled = limiter.acquire("a");
+		CompletableFuture<Void> fourth = limiter.acquire("a");
+		cancelled.cancel(false);
+		limiter.release("a");
+		assertTrue(fourth.isDone());
+		assertEquals(2, limiter.getInFlightCount("a"));
+	}
+	
+	@Test
+	public void testRate() throws Exception
+	{
+		TileRequestLimiter limiter = new TileRequestLimiter(100, 100);
+		limiter.setLimits("slow", 100, 10);
+		long start = System.nanoTime();
+		CompletableFuture<?>[] permits = new CompletableFuture<?>[13];
+		for(int i = 0; i < permits.length; i++)
+		{
+			permits[i] = limiter.acquire("slow");
+		}
+		// The bucket holds 10 tokens, the other 3 come at 10 per second
+		assertTrue(permits[9].isDone());
+		assertFalse(permits[10].isDone());
+		CompletableFuture.allOf(permits).get(5, TimeUnit.SECONDS);
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(elapsed >= 250);
+		assertTrue(limiter.acquire("fast").isDone());
+	}
+}
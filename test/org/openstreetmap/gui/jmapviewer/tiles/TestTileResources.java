@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTileResources
+{
+	@Test
+	public void testLimits() throws Exception
+	{
+		final TileResources resources = new TileResources(2, 1, 1);
+		TileResources.Permit first = resources.acquire(TileResources.Resource.NETWORK, "a.tile.org");
+		TileResources.Permit second = resources.acquire(TileResources.Resource.NETWORK, "a.tile.org");
+		assertEquals(2, resources.getInUseCount(TileResources.Resource.NETWORK, "a.tile.org"));
+		
+		// Each host has its own limit
+		TileResources.Permit other = resources.acquire(TileResources.Resource.NETWORK, "b.tile.org");
+		assertEquals(1, resources.getInUseCount(TileResources.Resource.NETWORK, "b.tile.org"));
+		other.close();
+		
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread waiting = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					TileResources.Permit permit = resources.acquire(TileResources.Resource.NETWORK, "a.tile.org");
+					acquired.countDown();
+					permit.close();
+				}
+				catch(IOException e)
+				{
+				}
+			}
+		};
+		waiting.start();
+		assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+		assertEquals(1, resources.getWaitingCount(TileResources.Resource.NETWORK, "a.tile.org"));
+		
+		// Closing a permit twice releases it once
+		first.close();
+		first.close();
+		assertTrue(acquired.await(10, TimeUnit.SECONDS));
+		waiting.join();
+		assertEquals(1, resources.getInUseCount(TileResources.Resource.NETWORK, "a.tile.org"));
+		second.close();
+		assertEquals(0, resources.getInUseCount(TileResources.Resource.NETWORK, "a.tile.org"));
+		
+		TileResources.Permit disk = resources.acquire(TileResources.Resource.DISK, null);
+		assertEquals(1, resources.getInUseCount(TileResources.Resource.DISK, null));
+		assertEquals(0, resources.getInUseCount(TileResources.Resource.DECODER, null));
+		disk.close();
+	}
+	
+	@Test
+	public void testVirtualThreads() throws InterruptedException
+	{
+		JobDispatcher dispatcher = new JobDispatcher();
+		assertEquals(JobDispatcher.isVirtualThreadSupported(), dispatcher.setVirtualThreads(true));
+		try
+		{
+			final CountDownLatch done = new CountDownLatch(2);
+			for(int i = 0; i < 2; i++)
+			{
+				dispatcher.addJob(new TileJob()
+				{
+					@Override
+					public void run()
+					{
+						done.countDown();
+					}
+					
+					@Override
+					public Tile getTile()
+					{
+						return null;
+					}
+				});
+			}
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			assertFalse(dispatcher.setVirtualThreads(false));
+		}
+		assertFalse(dispatcher.isUsingVirtualThreads());
+	}
+	
+	@Test
+	public void testPlatformThreadsRestored() throws InterruptedException
+	{
+		JobDispatcher dispatcher = JobDispatcher.getInstance();
+		try
+		{
+			if(dispatcher.setVirtualThreads(true))
+			{
+				final CountDownLatch done = new CountDownLatch(1);
+				dispatcher.addJob(new TileJob()
+				{
+					@Override
+					public void run()
+					{
+						done.countDown();
+					}
+					
+					@Override
+					public Tile getTile()
+					{
+						return null;
+					}
+				});
+				assertTrue(done.await(10, TimeUnit.SECONDS));
+			}
+		}
+		finally
+		{
+			assertFalse(dispatcher.setVirtualThreads(false));
+		}
+		
+		// The jobs run in the threads of the dispatcher again
+		final CountDownLatch done = new CountDownLatch(1);
+		final String[] thread = new String[1];
+		dispatcher.addJob(new TileJob()
+		{
+			@Override
+			public void run()
+			{
+				thread[0] = Thread.currentThread().getName();
+				done.countDown();
+			}
+			
+			@Override
+			public Tile getTile()
+			{
+				return null;
+			}
+		});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue(thread[0], thread[0].startsWith("OSMJobThread"));
+	}
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTileRetryScheduler
+{
+	@Test
+	public void testDelay()
+	{
+		TileRetryScheduler scheduler = new TileRetryScheduler(5, 1000, 10000);
+		for(int i = 0; i < 20; i++)
+		{
+			long first = scheduler.getDelay(0, -1);
+			assertTrue(first >= 500 && first <= 1000);
+			long fourth = scheduler.getDelay(3, -1);
+			assertTrue(fourth >= 4000 && fourth <= 8000);
+			long capped = scheduler.getDelay(10, -1);
+			assertTrue(capped >= 5000 && capped <= 10000);
+		}
+		assertEquals(9000, scheduler.getDelay(0, 9000));
+		// A longer delay requested by the server is capped
+		assertEquals(10000, scheduler.getDelay(0, 30000));
+	}
+	
+	@Test
+	public void testParseRetryAfter()
+	{
+		long now = System.currentTimeMillis();
+		assertEquals(-1, TileServerBusyException.parseRetryAfter(null, now));
+		assertEquals(-1, TileServerBusyException.parseRetryAfter("soon", now));
+		assertEquals(120000, TileServerBusyException.parseRetryAfter(" 120 ", now));
+		String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(60));
+		long delay = TileServerBusyException.parseRetryAfter(date, System.currentTimeMillis());
+		assertTrue(delay > 55000 && delay <= 60000);
+		assertEquals(120000, new TileServerBusyException(503, "120").getRetryAfter());
+	}
+	
+	@Test
+	public void testRetry() throws InterruptedException
+	{
+		TileRetryScheduler scheduler = new TileRetryScheduler(2, 10, 20);
+		final CountDownLatch ran = new CountDownLatch(1);
+		TileJob job = new TileJob()
+		{
+			@Override
+			public void run()
+			{
+				ran.countDown();
+			}
+			
+			@Override
+			public Tile getTile()
+			{
+				return null;
+			}
+		};
+		TileServerBusyException busy = new TileServerBusyException(429, null);
+		assertTrue(scheduler.retry(job, 1, busy));
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		assertFalse(scheduler.retry(job, 2, busy));
+	}
+}
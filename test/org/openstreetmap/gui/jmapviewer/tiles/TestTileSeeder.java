@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.Coordinate;
+import org.openstreetmap.gui.jmapviewer.tilesources.AbstractOsmTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSource.TileUpdate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.*;
+
+public class TestTileSeeder
+{
+	// Around Montreal: 1 tile at each zoom from 0 to 7
+	private static final Coordinate NORTH_WEST = new Coordinate(45.7, -73.9);
+	private static final Coordinate SOUTH_EAST = new Coordinate(45.4, -73.4);
+	
+	private File aDirectory;
+	private HttpServer aServer;
+	private AtomicInteger aRequests = new AtomicInteger();
+	private volatile TileSeeder aCancelAt4;
+	private TileSource aSource;
+	private OsmFileCacheTileLoader aLoader;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		aDirectory = Files.createTempDirectory("seed").toFile();
+		ByteArrayOutputStream image = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB), "png", image);
+		final byte[] data = image.toByteArray();
+		aServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		aServer.createContext("/", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange pExchange) throws IOException
+			{
+				if(aRequests.incrementAndGet() == 4 && aCancelAt4 != null)
+				{
+					aCancelAt4.cancel();
+					pExchange.sendResponseHeaders(404, -1);
+					pExchange.close();
+					return;
+				}
+				pExchange.sendResponseHeaders(200, data.length);
+				OutputStream out = pExchange.getResponseBody();
+				out.write(data);
+				out.close();
+			}
+		});
+		aServer.start();
+		aSource = new AbstractOsmTileSource("Test", "http://localhost:" + aServer.getAddress().getPort())
+		{
+			@Override
+			public TileUpdate getTileUpdate()
+			{
+				return TileUpdate.None;
+			}
+		};
+		aLoader = new OsmFileCacheTileLoader(new TileLoaderListener()
+		{
+			@Override
+			public void tileLoadingFinished(Tile pTile, boolean pSuccess)
+			{}
+		}, aDirectory);
+	}
+	
+	@After
+	public void tearDown()
+	{
+		aServer.stop(0);
+		delete(aDirectory);
+	}
+	
+	private static void delete(File pFile)
+	{
+		if(pFile.isDirectory())
+		{
+			for(File file : pFile.listFiles())
+			{
+				delete(file);
+			}
+		}
+		pFile.delete();
+	}
+	
+	@Test
+	public void testCountTiles()
+	{
+		assertEquals(8, TileSeeder.countTiles(NORTH_WEST, SOUTH_EAST, 0, 7));
+		assertEquals(4, TileSeeder.countTiles(new Coordinate(80, -170), new Coordinate(-80, 170), 1, 1));
+		assertEquals(1, TileSeeder.countTiles(NORTH_WEST, NORTH_WEST, 10, 10));
+		// The poles are clamped to the limits of the map
+		assertEquals(16, TileSeeder.countTiles(new Coordinate(90, -180), new Coordinate(-90, 180), 2, 2));
+		assertEquals(0, TileSeeder.countTiles(SOUTH_EAST, NORTH_WEST, 12, 12));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testSwappedCorners() throws Exception
+	{
+		new TileSeeder(aLoader, aSource).seed(SOUTH_EAST, NORTH_WEST, 0, 7);
+	}
+	
+	@Test
+	public void testSeedAndSkipFresh() throws Exception
+	{
+		TileSeeder seeder = new TileSeeder(aLoader, aSource);
+		seeder.setConcurrency(3);
+		TileSeeder.Progress progress = seeder.seed(NORTH_WEST, SOUTH_EAST, 0, 7);
+		assertTrue(progress.isFinished());
+		assertEquals(8, progress.getDownloaded());
+		assertEquals(8, aRequests.get());
+		assertTrue(TileCacheLayout.getFile(new File(aDirectory, "Test"), 0, 0, 0, ".png").exists());
+		
+		progress = seeder.seed(NORTH_WEST, SOUTH_EAST, 0, 7);
+		assertEquals(8, progress.getSkipped());
+		assertEquals(0, progress.getDownloaded());
+		assertEquals(8, aRequests.get());
+	}
+	
+	@Test
+	public void testResume() throws Exception
+	{
+		File checkpoint = new File(aDirectory, "progress.properties");
+		TileSeeder seeder = new TileSeeder(aLoader, aSource);
+		seeder.setConcurrency(1);
+		seeder.setCheckpointFile(checkpoint);
+		aCancelAt4 = seeder;
+		TileSeeder.Progress progress = seeder.seed(NORTH_WEST, SOUTH_EAST, 0, 7);
+		assertEquals(3, progress.getDownloaded());
+		assertEquals(1, progress.getFailed());
+		assertTrue(checkpoint.exists());
+		
+		// The failed tile is not passed by the checkpoint
+		aCancelAt4 = null;
+		progress = seeder.seed(NORTH_WEST, SOUTH_EAST, 0, 7);
+		assertEquals(3, progress.getResumed());
+		assertEquals(5, progress.getDownloaded());
+		assertEquals(8, progress.getDone());
+		assertFalse(checkpoint.exists());
+	}
+	
+	@Test
+	public void testOpenCircuit() throws Exception
+	{
+		TileCircuitBreaker breaker = new TileCircuitBreaker(1, 60000);
+		breaker.record(aSource.getName(), new IOException("Down"));
+		aLoader.setCircuitBreaker(breaker);
+		File checkpoint = new File(aDirectory, "progress.properties");
+		TileSeeder seeder = new TileSeeder(aLoader, aSource);
+		seeder.setConcurrency(1);
+		seeder.setCheckpointFile(checkpoint);
+		TileSeeder.Progress progress = seeder.seed(NORTH_WEST, SOUTH_EAST, 0, 7);
+		assertEquals(0, aRequests.get());
+		assertEquals(0, progress.getDownloaded());
+		assertEquals(8, progress.getFailed());
+		
+		
+		aLoader.setCircuitBreaker(new TileCircuitBreaker());
+		progress = seeder.seed(NORTH_WEST, SOUTH_EAST, 0, 7);
+		assertEquals(0, progress.getSkipped());
+		assertEquals(8, progress.getDownloaded());
+	}
+}
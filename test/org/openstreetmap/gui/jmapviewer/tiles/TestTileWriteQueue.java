@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.openstreetmap.gui.jmapviewer.tiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTileWriteQueue
+{
+	private File aDirectory;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		aDirectory = Files.createTempDirectory("tiles").toFile();
+	}
+	
+	@After
+	public void tearDown()
+	{
+		for(File file : aDirectory.listFiles())
+		{
+			file.delete();
+		}
+		aDirectory.delete();
+	}
+	
+	private File file(String pName)
+	{
+		return new File(aDirectory, pName);
+	}
+	
+	@Test
+	public void testWriteAndFlush() throws Exception
+	{
+		TileWriteQueue queue = new TileWriteQueue();
+		final int[] written = new int[1];
+		Runnable callback = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				written[0]++;
+			}
+		};
+		Files.write(file("1_0_0.tags").toPath(), new byte[] {1});
+		queue.write(file("1_0_0.png"), new byte[] {1, 2, 3}, file("1_0_0.tags"), null, callback);
+		queue.write(file("1_1_0.png"), null, file("1_1_0.tags"), "tile-info=no-tile\n", callback);
+		queue.flush();
+		assertEquals(2, written[0]);
+		assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(file("1_0_0.png").toPath()));
+		assertFalse(file("1_0_0.tags").exists());
+		assertFalse(file("1_1_0.png").exists());
+		assertEquals("tile-info=no-tile\n", new String(Files.readAllBytes(file("1_1_0.tags").toPath()), "UTF-8"));
+		assertEquals(2, aDirectory.list().length);
+	}
+	
+	@Test
+	public void testCoalescingAndFullQueue() throws Exception
+	{
+		TileWriteQueue queue = new TileWriteQueue(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		queue.write(file("1_0_0.png"), new byte[] {0}, file("1_0_0.tags"), null, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				started.countDown();
+				try
+				{
+					release.await();
+				}
+				catch(InterruptedException e)
+				{
+					fail();
+				}
+			}
+		});
+		started.await();
+		
+		// The writer is busy: the next two writes of the same tile are merged
+		queue.write(file("1_1_0.png"), new byte[] {1}, file("1_1_0.tags"), null, null);
+		queue.write(file("1_1_0.png"), new byte[] {2}, file("1_1_0.tags"), "etag=x\n", null);
+		assertEquals(1, queue.getPendingCount());
+		
+		// The queue is full: the submitting thread writes the tile itself
+		queue.write(file("1_2_0.png"), new byte[] {3}, file("1_2_0.tags"), null, null);
+		assertTrue(file("1_2_0.png").exists());
+		
+		release.countDown();
+		queue.flush();
+		assertArrayEquals(new byte[] {2}, Files.readAllBytes(file("1_1_0.png").toPath()));
+		assertTrue(file("1_1_0.tags").exists());
+	}
+	
+	@Test
+	public void testIdenticalTilesAreLinked() throws Exception
+	{
+		TileWriteQueue queue = new TileWriteQueue();
+		queue.write(file("1_0_0.png"), new byte[] {1, 2, 3}, file("1_0_0.tags"), null, null);
+		queue.write(file("1_1_0.png"), new byte[] {1, 2, 3}, file("1_1_0.tags"), null, null);
+		queue.write(file("1_0_1.png"), new byte[] {4, 5}, file("1_0_1.tags"), null, null);
+		queue.flush();
+		assertTrue(Files.isSameFile(file("1_0_0.png").toPath(), file("1_1_0.png").toPath()));
+		assertFalse(Files.isSameFile(file("1_0_0.png").toPath(), file("1_0_1.png").toPath()));
+		assertEquals(3, queue.getDeduplicator().getSavedBytes());
+		
+		// Replacing a linked tile leaves the other one intact
+		queue.write(file("1_0_0.png"), new byte[] {4, 5}, file("1_0_0.tags"), null, null);
+		queue.flush();
+		assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(file("1_1_0.png").toPath()));
+		assertArrayEquals(new byte[] {4, 5}, Files.readAllBytes(file("1_0_0.png").toPath()));
+		
+		// A deleted tile is no longer linked to
+		file("1_1_0.png").delete();
+		queue.write(file("1_2_0.png"), new byte[] {1, 2, 3}, file("1_2_0.tags"), null, null);
+		queue.flush();
+		assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(file("1_2_0.png").toPath()));
+		assertEquals(5, queue.getDeduplicator().getSavedBytes());
+	}
+	
+	@Test
+	public void testLinkListener() throws Exception
+	{
+		final List<File> linked = new ArrayList<File>();
+		TileWriteQueue queue = new TileWriteQueue();
+		queue.setLinkListener(new TileWriteQueue.LinkListener()
+		{
+			@Override
+			public void linked(File pFile, File pExisting)
+			{
+				linked.add(pFile);
+				linked.add(pExisting);
+			}
+		});
+		queue.write(file("1_0_0.png"), new byte[] {1, 2, 3}, file("1_0_0.tags"), null, null);
+		queue.write(file("1_1_0.png"), new byte[] {4, 5}, file("1_1_0.tags"), null, null);
+		queue.write(file("1_2_0.png"), new byte[] {1, 2, 3}, file("1_2_0.tags"), null, null);
+		queue.flush();
+		assertEquals(Arrays.asList(file("1_2_0.png"), file("1_0_0.png")), linked);
+	}
+	
+	@Test
+	public void testIdenticalImagesAreShared() throws Exception
+	{
+		java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(4, 4, java.awt.image.BufferedImage.TYPE_INT_RGB);
+		java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+		javax.imageio.ImageIO.write(image, "png", out);
+		byte[] data = out.toByteArray();
+		assertSame(SharedTileImages.decode(data), SharedTileImages.decode(data.clone()));
+		assertNull(SharedTileImages.decode(new byte[] {1, 2, 3}));
+	}
+}